@@ -30,6 +30,7 @@ import org.helioviewer.jhv.gui.ImageViewerGui;
 import org.helioviewer.jhv.gui.components.layerTable.LayerTableOverlapWatcher;
 import org.helioviewer.jhv.gui.dialogs.AboutDialog;
 import org.helioviewer.jhv.internal_plugins.InternalFilterPlugin;
+import org.helioviewer.jhv.io.BatchExport;
 import org.helioviewer.jhv.io.CommandLineProcessor;
 import org.helioviewer.jhv.layers.LayersModel;
 import org.helioviewer.jhv.opengl.OpenGLHelper;
@@ -39,6 +40,7 @@ import org.helioviewer.jhv.plugins.sdocutoutplugin.SDOCutOutPlugin3D;
 import org.helioviewer.jhv.plugins.viewmodelplugin.controller.PluginManager;
 import org.helioviewer.jhv.plugins.viewmodelplugin.interfaces.Plugin;
 import org.helioviewer.jhv.viewmodel.view.jp2view.kakadu.JHV_KduException;
+import org.helioviewer.jhv.viewmodel.view.opengl.shader.GLShaderHelper;
 
 import com.install4j.api.launcher.ApplicationLauncher;
 import com.install4j.api.update.UpdateScheduleRegistry;
@@ -155,6 +157,9 @@ public class JHelioviewer {
             splash.nextStep();
             splash.setProgressText("Initializing Kakadu libraries...");
     		loadLibraries();
+
+            // Load the shaders compiled in earlier sessions in the background
+            GLShaderHelper.precompile();
     
             // The following code-block attempts to start the native message
             // handling
@@ -203,6 +208,13 @@ public class JHelioviewer {
             
             
             UILatencyWatchdog.startWatchdog();
+
+            // Export without user interaction, if requested
+            File exportTarget = CommandLineProcessor.getExportOptionValue();
+            if (exportTarget != null) {
+                System.out.println("Start batch export to " + exportTarget);
+                new BatchExport(exportTarget, CommandLineProcessor.getExportSizeOptionValue()).start();
+            }
         }
         catch(Throwable _t)
         {
@@ -19,6 +19,11 @@ public class IntervalStore<TimeFormat extends Comparable<TimeFormat>, ItemFormat
      */
     private HashMap<Interval<TimeFormat>, IntervalContainer<TimeFormat, ItemFormat>> data = new HashMap<Interval<TimeFormat>, IntervalContainer<TimeFormat, ItemFormat>>();
 
+    /**
+     * Incremented on every change of the stored intervals or items
+     */
+    private int modificationCount = 0;
+
     /**
      * Empty Constructor
      */
@@ -66,6 +71,7 @@ public class IntervalStore<TimeFormat extends Comparable<TimeFormat>, ItemFormat
      *            - intervals to be added/merged
      */
     public boolean add(Interval<TimeFormat> newInterval, IntervalContainer<TimeFormat, ItemFormat> newIntervalContainer) {
+        modificationCount++;
         boolean merged = false;
         int newItems = newIntervalContainer.getItems().size();
 
@@ -336,6 +342,7 @@ public class IntervalStore<TimeFormat extends Comparable<TimeFormat>, ItemFormat
      */
     public void addEvent(Interval<TimeFormat> interval, ItemFormat newEvent) {
         // System.out.println("Adding " + newEvent + " to " + interval);
+        modificationCount++;
         if (!this.data.containsKey(interval)) {
             this.data.put(interval, new IntervalContainer<TimeFormat, ItemFormat>());
         }
@@ -440,7 +447,18 @@ public class IntervalStore<TimeFormat extends Comparable<TimeFormat>, ItemFormat
     }
 
     public void removeInterval(Interval<TimeFormat> interval) {
+        modificationCount++;
         this.data.remove(interval);
     }
 
+    /**
+     * Return a counter, which changes whenever intervals or items are added or
+     * removed. Allows to keep data derived from this store up to date.
+     *
+     * @return current modification count
+     */
+    public int getModificationCount() {
+        return modificationCount;
+    }
+
 }
@@ -289,8 +289,7 @@ public class OverViewPanel extends JPanel implements LayersListener, GLEventList
 	
 	@Override
 	public void dispose(GLAutoDrawable arg0) {
-		// TODO Auto-generated method stub
-		
+		GLTextureHelper.disposeContext(arg0.getContext());
 	}
 
 	@Override
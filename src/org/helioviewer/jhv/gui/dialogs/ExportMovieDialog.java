@@ -17,7 +17,6 @@ import java.util.concurrent.TimeUnit;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
-import javax.imageio.ImageIO;
 import javax.swing.JButton;
 import javax.swing.JDialog;
 import javax.swing.JFileChooser;
@@ -69,6 +68,17 @@ public class ExportMovieDialog implements ActionListener {
 	private FileOutputStream fileOutputStream;
 	private ZipOutputStream zipOutputStream;
 
+	private MovieExportPipeline pipeline;
+
+	/** Called when the export has finished, only set for batch exports */
+	private Runnable onFinished;
+
+	/** Set when a frame could not be converted or written */
+	private boolean failed = false;
+
+	/** Frame rates of the stages of the finished export */
+	private String statistics = null;
+
 	private static final String SETTING_MOVIE_EXPORT_LAST_DIRECTORY = "export.movie.last.directory";
 
 	private static final String SETTING_IMG_WIDTH = "export.movie.image.width";
@@ -100,6 +110,58 @@ public class ExportMovieDialog implements ActionListener {
 		}
 	}
 
+	/**
+	 * Exports the current movie to the given file without any user
+	 * interaction, e.g. for a batch export from the command line. The format
+	 * is determined by the extension of the file, ".zip" archives contain JPG
+	 * images. Has to be called on the event dispatch thread.
+	 * 
+	 * @param target
+	 *            file to export to
+	 * @param width
+	 *            width of the frames, 0 to use the settings
+	 * @param height
+	 *            height of the frames, 0 to use the settings
+	 * @param onFinished
+	 *            called on the event dispatch thread, when all frames are
+	 *            written
+	 * @throws IllegalArgumentException
+	 *             if the extension of the file is not supported
+	 */
+	public ExportMovieDialog(File target, int width, int height,
+			Runnable onFinished) {
+		this.onFinished = onFinished;
+
+		selectedOutputFormat = null;
+		for (MovieFileFilter.ImplementedMovieFilter movieFilter : MovieFileFilter.ImplementedMovieFilter
+				.values()) {
+			if (target.getName().endsWith(
+					movieFilter.getMovieFilter().getExtension())) {
+				selectedOutputFormat = movieFilter.getMovieFilter();
+				break;
+			}
+		}
+		if (selectedOutputFormat == null)
+			throw new IllegalArgumentException("Unsupported file type: "
+					+ target.getName());
+
+		directory = target.getAbsoluteFile().getParent() + "/";
+		filename = target.getName().substring(0,
+				target.getName().lastIndexOf(selectedOutputFormat.getExtension()));
+
+		this.loadSettings();
+		if (width > 0 && height > 0) {
+			imageWidth = width;
+			imageHeight = height;
+		}
+
+		currentExportFrameNumber = 0;
+
+		this.initExportMovie();
+		timer = new Timer(0, this);
+		timer.start();
+	}
+
 	private int openFileChooser() {
 		txtTargetFile = "";
 		SimpleDateFormat dateFormat = new SimpleDateFormat(
@@ -267,9 +329,30 @@ public class ExportMovieDialog implements ActionListener {
 			directory += this.filename + "/";
 		}
 
-		if (timedJHVJPXView != null)
+		if (timedJHVJPXView != null && progressDialog != null)
 			progressDialog.setMaximumOfProgressBar(timedJHVJPXView
 					.getMaximumFrameNumber());
+
+		String imageFormat = null;
+		if (this.selectedOutputFormat.isCompressedFile())
+			imageFormat = this.selectedOutputFormat.getInnerMovieFilter()
+					.getFileType();
+		else if (this.selectedOutputFormat.isImageFile())
+			imageFormat = this.selectedOutputFormat.getFileType();
+
+		pipeline = new MovieExportPipeline(imageWidth, imageHeight,
+				imageFormat, new MovieExportPipeline.FrameWriter() {
+					@Override
+					public void write(int frameNumber, BufferedImage image,
+							byte[] data) throws IOException {
+						writeFrame(frameNumber, image, data);
+					}
+
+					@Override
+					public void close() throws IOException {
+						closeOutput();
+					}
+				});
 	}
 
 	private void exportMovie() {
@@ -285,11 +368,24 @@ public class ExportMovieDialog implements ActionListener {
 						.getImageCachedCompletelyUntil()
 						&& !(currentExportFrameNumber > jhvjpxView
 								.getMaximumFrameNumber() - 1)) {
-					this.progressDialog.setDescription("Loading image data");
+					if (progressDialog != null)
+						this.progressDialog.setDescription("Loading image data");
 					return;
 				}
 			}
 
+			if (pipeline.hasFailed()) {
+				started = false;
+				stopExportMovie();
+				return;
+			}
+
+			// wait until the frames in the pipeline are written
+			BufferedImage bufferedImage = pipeline.nextImage();
+			if (bufferedImage == null)
+				return;
+
+			long start = System.nanoTime();
 			timedJHVJPXView.setCurrentFrame(currentExportFrameNumber,
 					new ChangeEvent(), true);
 
@@ -312,48 +408,16 @@ public class ExportMovieDialog implements ActionListener {
 					counter++;
 				}
 			}
-			this.progressDialog.setDescription("Rendering images");
-			BufferedImage bufferedImage = mainComponentView.getBufferedImage(
-					imageWidth, imageHeight, descriptions);
-
-			progressDialog.updateProgressBar(currentExportFrameNumber);
-
-			if (this.selectedOutputFormat.isMovieFile() && started) {
-				writer.encodeVideo(0, bufferedImage, speed
-						* currentExportFrameNumber, TimeUnit.MILLISECONDS);
-			}
-
-			else if (this.selectedOutputFormat.isCompressedFile() && started) {
-				String number = String.format("%04d", currentExportFrameNumber);
-				try {
-					zipOutputStream.putNextEntry(new ZipEntry(filename
-							+ "/"
-							+ this.filename
-							+ "-"
-							+ number
-							+ this.selectedOutputFormat.getInnerMovieFilter()
-									.getExtension()));
-					ImageIO.write(bufferedImage, this.selectedOutputFormat
-							.getInnerMovieFilter().getFileType(),
-							zipOutputStream);
-					zipOutputStream.closeEntry();
-				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
+			mainComponentView.renderToImage(bufferedImage, descriptions);
+			pipeline.submit(currentExportFrameNumber, bufferedImage,
+					System.nanoTime() - start);
+
+			if (progressDialog != null) {
+				this.progressDialog.setDescription("Rendering images: "
+						+ pipeline.getStatistics());
+				progressDialog.updateProgressBar(currentExportFrameNumber);
 			}
 
-			else if (this.selectedOutputFormat.isImageFile() && started) {
-				String number = String.format("%04d", currentExportFrameNumber);
-				try {
-					ImageIO.write(bufferedImage, selectedOutputFormat
-							.getFileType(), new File(directory + this.filename
-							+ this.filename + "-" + number
-							+ this.selectedOutputFormat.getExtension()));
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
 			currentExportFrameNumber++;
 			if (currentExportFrameNumber > timedJHVJPXView
 					.getMaximumFrameNumber()) {
@@ -364,27 +428,103 @@ public class ExportMovieDialog implements ActionListener {
 	}
 
 	public void stopExportMovie() {
+		timer.stop();
 		this.timedJHVJPXView.setCurrentFrame(0, new ChangeEvent());
-		// export movie
+		if (pipeline == null)
+			return;
+
+		// the dialog stays open until the remaining frames are written
+		if (progressDialog != null)
+			progressDialog.setDescription("Writing remaining images");
+		final MovieExportPipeline finished = pipeline;
+		finished.finish(new Runnable() {
+			@Override
+			public void run() {
+				if (progressDialog != null)
+					progressDialog.dispose();
+				statistics = finished.getStatistics();
+				if (finished.hasFailed()) {
+					failed = true;
+					if (onFinished == null)
+						JOptionPane.showMessageDialog(null,
+								"The export was aborted: "
+										+ finished.getFailure(),
+								"Export failed", JOptionPane.ERROR_MESSAGE);
+				}
+				if (onFinished != null)
+					onFinished.run();
+			}
+		});
+		pipeline = null;
+	}
+
+	/**
+	 * Writes one frame to the output, called by the writer thread of the
+	 * pipeline in frame order
+	 */
+	private void writeFrame(int frameNumber, BufferedImage image, byte[] data)
+			throws IOException {
+		if (this.selectedOutputFormat.isMovieFile()) {
+			writer.encodeVideo(0, image, speed * frameNumber,
+					TimeUnit.MILLISECONDS);
+		}
+
+		else if (this.selectedOutputFormat.isCompressedFile()) {
+			String number = String.format("%04d", frameNumber);
+			zipOutputStream.putNextEntry(new ZipEntry(filename
+					+ "/"
+					+ this.filename
+					+ "-"
+					+ number
+					+ this.selectedOutputFormat.getInnerMovieFilter()
+							.getExtension()));
+			zipOutputStream.write(data);
+			zipOutputStream.closeEntry();
+		}
+
+		else if (this.selectedOutputFormat.isImageFile()) {
+			String number = String.format("%04d", frameNumber);
+			try (FileOutputStream out = new FileOutputStream(directory
+					+ this.filename + this.filename + "-" + number
+					+ this.selectedOutputFormat.getExtension())) {
+				out.write(data);
+			}
+		}
+	}
+
+	/**
+	 * Closes the output, called by the writer thread of the pipeline after
+	 * the last frame
+	 */
+	private void closeOutput() throws IOException {
 		if (selectedOutputFormat.isMovieFile())
 			writer.close();
 		else if (selectedOutputFormat.isCompressedFile()) {
-			try {
-				zipOutputStream.close();
-				fileOutputStream.close();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
+			zipOutputStream.close();
+			fileOutputStream.close();
 		}
-		progressDialog.dispose();
-		timer.stop();
 	}
 
 	public void cancelMovie() {
 		started = false;
 	}
 
+	/**
+	 * @return true, if the export was aborted because a frame could not be
+	 *         converted or written
+	 */
+	public boolean hasFailed() {
+		return failed;
+	}
+
+	/**
+	 * @return frames per second of each stage of the export, or null until
+	 *         the export has finished
+	 */
+	public String getStatistics() {
+		return statistics;
+	}
+
 	public static class ProgressDialog extends JDialog implements
 			ActionListener {
 
@@ -447,6 +587,8 @@ public class ExportMovieDialog implements ActionListener {
 
 		public void setDescription(String description) {
 			this.lblDescription.setText(description);
+			if (getPreferredSize().width > getWidth())
+				pack();
 		}
 
 		@Override
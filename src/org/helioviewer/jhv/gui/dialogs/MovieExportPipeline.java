@@ -0,0 +1,336 @@
+package org.helioviewer.jhv.gui.dialogs;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+import javax.swing.SwingUtilities;
+
+import com.jogamp.opengl.util.awt.ImageUtil;
+
+/**
+ * Staged pipeline of the movie export.
+ *
+ * The frames are stepped, rendered and read back on the event dispatch
+ * thread, which owns the view chain and the OpenGL context. The images read
+ * back are then flipped and, for image formats, compressed on a pool of
+ * worker threads. Finally, a single writer thread hands them to the
+ * {@link FrameWriter} in frame order.
+ *
+ * The stages are connected by a bounded queue and the images are reused, so
+ * rendering pauses instead of piling up images if writing falls behind.
+ *
+ * If a frame cannot be converted or written, the export is aborted: no
+ * further frames are written, and {@link #hasFailed()} tells the event
+ * dispatch thread to stop rendering.
+ */
+class MovieExportPipeline {
+
+	/** Number of frames in flight between rendering and writing */
+	private static final int QUEUE_SIZE = 8;
+
+	/**
+	 * Final stage of the pipeline, called on the writer thread
+	 */
+	interface FrameWriter {
+		/**
+		 * Writes one frame. The frames are written in the order they were
+		 * submitted.
+		 *
+		 * @param frameNumber
+		 *            number of the frame
+		 * @param image
+		 *            image of the frame, only valid during the call, or null
+		 *            if the image was compressed
+		 * @param data
+		 *            compressed image, or null if no image format was given
+		 */
+		void write(int frameNumber, BufferedImage image, byte[] data)
+				throws IOException;
+
+		/**
+		 * Called after the last frame was written
+		 */
+		void close() throws IOException;
+	}
+
+	private static class Frame {
+		private final int number;
+		private BufferedImage image;
+		private byte[] data;
+
+		private Frame(int number, BufferedImage image) {
+			this.number = number;
+			this.image = image;
+		}
+	}
+
+	/** Frames processed and time spent by one stage */
+	private static class Stage {
+		private final AtomicLong frames = new AtomicLong();
+		private final AtomicLong nanos = new AtomicLong();
+
+		private void add(long duration) {
+			frames.incrementAndGet();
+			nanos.addAndGet(duration);
+		}
+
+		private double getFramesPerSecond(int threads) {
+			long n = nanos.get();
+			return n == 0 ? 0 : frames.get() * threads * 1e9 / n;
+		}
+	}
+
+	private static int converterNumber = 0;
+
+	private final int width;
+	private final int height;
+	private final String imageFormat;
+	private final FrameWriter frameWriter;
+
+	private final int converterThreads = Math.max(1, Runtime.getRuntime()
+			.availableProcessors() - 1);
+	private final ExecutorService converters = Executors.newFixedThreadPool(
+			converterThreads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = Executors.defaultThreadFactory().newThread(r);
+					t.setName("Movie-Export-Converter-" + (converterNumber++));
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	/** Frames being converted, in frame order. A null frame ends the export. */
+	private final ArrayBlockingQueue<Future<Frame>> pending = new ArrayBlockingQueue<Future<Frame>>(
+			QUEUE_SIZE);
+
+	/** Images which can be rendered into again */
+	private final ArrayBlockingQueue<BufferedImage> freeImages = new ArrayBlockingQueue<BufferedImage>(
+			QUEUE_SIZE + 2);
+	private int imagesCreated = 0;
+
+	private Runnable onFinished;
+
+	/** First error of the conversion or writing, null as long as there is none */
+	private volatile Throwable failure = null;
+
+	private final Stage rendering = new Stage();
+	private final Stage converting = new Stage();
+	private final Stage writing = new Stage();
+
+	/**
+	 * Creates the pipeline and starts its threads
+	 *
+	 * @param width
+	 *            width of the frames
+	 * @param height
+	 *            height of the frames
+	 * @param imageFormat
+	 *            format to compress the frames to, e.g. "png", or null if the
+	 *            frame writer needs the images
+	 * @param frameWriter
+	 *            final stage
+	 */
+	MovieExportPipeline(int width, int height, String imageFormat,
+			FrameWriter frameWriter) {
+		this.width = width;
+		this.height = height;
+		this.imageFormat = imageFormat;
+		this.frameWriter = frameWriter;
+
+		Thread writerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeFrames();
+			}
+		}, "Movie-Export-Writer");
+		writerThread.start();
+	}
+
+	/**
+	 * Returns an image to render the next frame into. Has to be called on the
+	 * event dispatch thread.
+	 *
+	 * @return image of type TYPE_3BYTE_BGR, or null if the pipeline is full
+	 *         or the export failed
+	 */
+	BufferedImage nextImage() {
+		if (pending.remainingCapacity() == 0 || failure != null)
+			return null;
+
+		BufferedImage image = freeImages.poll();
+		if (image == null && imagesCreated < QUEUE_SIZE + 2) {
+			image = new BufferedImage(width, height,
+					BufferedImage.TYPE_3BYTE_BGR);
+			imagesCreated++;
+		}
+		return image;
+	}
+
+	/**
+	 * Passes a rendered frame on to the conversion. Has to be called on the
+	 * event dispatch thread, after {@link #nextImage()} returned the image.
+	 *
+	 * @param frameNumber
+	 *            number of the frame
+	 * @param image
+	 *            image as read back from OpenGL, i.e. bottom-up
+	 * @param renderNanos
+	 *            time it took to step to and render the frame
+	 */
+	void submit(int frameNumber, BufferedImage image, long renderNanos) {
+		rendering.add(renderNanos);
+
+		final Frame frame = new Frame(frameNumber, image);
+		pending.add(converters.submit(new Callable<Frame>() {
+			@Override
+			public Frame call() throws Exception {
+				long start = System.nanoTime();
+				try {
+					ImageUtil.flipImageVertically(frame.image);
+					if (imageFormat != null) {
+						ByteArrayOutputStream out = new ByteArrayOutputStream();
+						if (!ImageIO.write(frame.image, imageFormat, out))
+							throw new IOException("No writer for image format "
+									+ imageFormat);
+						frame.data = out.toByteArray();
+
+						freeImages.offer(frame.image);
+						frame.image = null;
+					}
+				} catch (Exception e) {
+					// the writer never sees this frame
+					freeImages.offer(frame.image);
+					frame.image = null;
+					throw e;
+				}
+				converting.add(System.nanoTime() - start);
+				return frame;
+			}
+		}));
+	}
+
+	/**
+	 * Ends the export after the frames submitted so far are written. Has to
+	 * be called on the event dispatch thread.
+	 *
+	 * @param onFinished
+	 *            called on the event dispatch thread, when all frames are
+	 *            written and the frame writer is closed
+	 */
+	void finish(Runnable onFinished) {
+		this.onFinished = onFinished;
+
+		FutureTask<Frame> end = new FutureTask<Frame>(new Callable<Frame>() {
+			@Override
+			public Frame call() {
+				return null;
+			}
+		});
+		end.run();
+
+		try {
+			pending.put(end);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return true, if a frame could not be converted or written and the
+	 *         export was aborted
+	 */
+	boolean hasFailed() {
+		return failure != null;
+	}
+
+	/**
+	 * @return the error which aborted the export, or null
+	 */
+	Throwable getFailure() {
+		return failure;
+	}
+
+	/**
+	 * @return frames per second of each stage, e.g. "rendering 9.5 fps,
+	 *         converting 30.1 fps, writing 21.0 fps"
+	 */
+	String getStatistics() {
+		return String.format(Locale.ENGLISH,
+				"rendering %.1f fps, converting %.1f fps, writing %.1f fps",
+				rendering.getFramesPerSecond(1),
+				converting.getFramesPerSecond(converterThreads),
+				writing.getFramesPerSecond(1));
+	}
+
+	/**
+	 * Writes the frames until the end of the export. After a failure, the
+	 * remaining frames are only taken from the queue, so rendering is not
+	 * blocked until it notices the failure.
+	 */
+	private void writeFrames() {
+		try {
+			while (true) {
+				Frame frame;
+				try {
+					frame = pending.take().get();
+				} catch (ExecutionException e) {
+					// the converter returned the image already
+					fail(e.getCause());
+					continue;
+				}
+				if (frame == null)
+					break;
+
+				if (failure == null) {
+					long start = System.nanoTime();
+					try {
+						frameWriter.write(frame.number, frame.image, frame.data);
+					} catch (Exception e) {
+						fail(e);
+					}
+					writing.add(System.nanoTime() - start);
+				}
+
+				if (frame.image != null)
+					freeImages.offer(frame.image);
+			}
+		} catch (InterruptedException e) {
+			fail(e);
+		}
+
+		try {
+			frameWriter.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		converters.shutdown();
+
+		if (onFinished != null)
+			SwingUtilities.invokeLater(onFinished);
+	}
+
+	/**
+	 * Aborts the export, only the first error is kept
+	 */
+	private void fail(Throwable e) {
+		if (failure != null)
+			return;
+
+		System.err.println(">> MovieExportPipeline > Export aborted");
+		e.printStackTrace();
+		failure = e;
+	}
+}
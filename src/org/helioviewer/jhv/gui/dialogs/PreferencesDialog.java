@@ -28,6 +28,7 @@ import org.helioviewer.jhv.gui.IconBank;
 import org.helioviewer.jhv.gui.IconBank.JHVIcon;
 import org.helioviewer.jhv.gui.ImageViewerGui;
 import org.helioviewer.jhv.gui.interfaces.ShowableDialog;
+import org.helioviewer.jhv.viewmodel.view.opengl.GLTextureHelper;
 
 import com.jgoodies.forms.factories.FormFactory;
 import com.jgoodies.forms.layout.ColumnSpec;
@@ -273,6 +274,7 @@ public class PreferencesDialog extends JDialog implements ShowableDialog{
 		// Default date format
 		Settings.setProperty("default.date.format", dateFormatField.getText());
 		Settings.setProperty("default.display.highDPI", highDPISupport.isSelected() + "");
+		GLTextureHelper.reloadSettings();
 		// Default values
 		defaultsPanel.saveSettings();
 		movieExportPanel.saveSettings();
@@ -27,6 +27,7 @@ import org.helioviewer.jhv.gui.components.calendar.JHVCalendarDatePicker;
 import org.helioviewer.jhv.gui.components.calendar.JHVCalendarEvent;
 import org.helioviewer.jhv.gui.components.calendar.JHVCalendarListener;
 import org.helioviewer.jhv.io.APIRequestManager;
+import org.helioviewer.jhv.io.CommandLineProcessor;
 import org.helioviewer.jhv.io.DataSources;
 import org.helioviewer.jhv.io.DataSources.Item;
 
@@ -112,7 +113,8 @@ public class ImageDataPanel extends ObservationDialogPanel {
                     if (instrumentsPanel.validSelection()) {
                         timeSelectionPanel.setupTime();
 
-                        if (Boolean.parseBoolean(Settings.getProperty("startup.loadmovie"))) {
+                        // a batch export only exports the layers it was given
+                        if (Boolean.parseBoolean(Settings.getProperty("startup.loadmovie")) && CommandLineProcessor.getExportOptionValue() == null) {
                             // wait until view chain is ready to go
                             while (GuiState3DWCS.mainComponentView == null) {
                                 Thread.sleep(100);
@@ -337,10 +337,41 @@ public class APIRequestManager {
      * @throws IOException
      */
     public static ImageInfoView requestAndOpenRemoteFile(String cadence, String startTime, String endTime, String observatory, String instrument, String detector, String measurement) throws IOException {
+        return requestRemoteFile(true, cadence, startTime, endTime, observatory, instrument, detector, measurement);
+    }
+
+    /**
+     * Method does remote opening like
+     * {@link #requestAndOpenRemoteFile(String, String, String, String, String, String, String)}
+     * , but the caller decides whether the view is added to the view chain.
+     * This allows to load several files in parallel and add them in a given
+     * order afterwards.
+     * 
+     * @param addToViewChain
+     *            specifies whether the generated ImageInfoView should be added
+     *            to the view chain of the main image
+     * @param cadence
+     *            cadence between two frames (null for single images).
+     * @param startTime
+     *            start time of the requested image
+     * @param endTime
+     *            end time of the requested image (empty for single images).
+     * @param observatory
+     *            observatory of the requested image
+     * @param instrument
+     *            instrument of the requested image
+     * @param detector
+     *            detector of the requested image.
+     * @param measurement
+     *            measurement of the requested image.
+     * @return new view
+     * @throws IOException
+     */
+    public static ImageInfoView requestRemoteFile(boolean addToViewChain, String cadence, String startTime, String endTime, String observatory, String instrument, String detector, String measurement) throws IOException {
         if (endTime.equals("")) {
-            return loadImage(true, observatory, instrument, detector, measurement, startTime);
+            return loadImage(addToViewChain, observatory, instrument, detector, measurement, startTime);
         } else {
-            return loadImageSeries(true, observatory, instrument, detector, measurement, startTime, endTime, cadence);
+            return loadImageSeries(addToViewChain, observatory, instrument, detector, measurement, startTime, endTime, cadence);
         }
     }
 }
@@ -0,0 +1,188 @@
+package org.helioviewer.jhv.io;
+
+import java.awt.Dimension;
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.SwingUtilities;
+
+import org.helioviewer.jhv.gui.GuiState3DWCS;
+import org.helioviewer.jhv.gui.dialogs.ExportMovieDialog;
+import org.helioviewer.jhv.viewmodel.view.ImageInfoView;
+import org.helioviewer.jhv.viewmodel.view.LinkedMovieManager;
+import org.helioviewer.jhv.viewmodel.view.jp2view.JHVJPXView;
+
+/**
+ * Export without user interaction, started by the -export command line
+ * option.
+ * <p>
+ * All layers given by the -jhv and -jpx options are requested and opened in
+ * parallel, then added to the main view chain in the order they were given.
+ * Each layer is decoded by its own render thread, so the layers are also
+ * decoded in parallel. The export then steps through the frames as soon as
+ * they are available, using the same pipeline as the interactive export.
+ * When it has finished, timing statistics are printed and the program exits.
+ * <p>
+ * The default movie of the startup.loadmovie setting is not loaded in this
+ * mode, so only the given layers are exported.
+ *
+ * @see CommandLineProcessor#getExportOptionValue()
+ */
+public class BatchExport {
+
+    private static int loaderNumber = 0;
+
+    private final File target;
+    private final Dimension size;
+
+    private long startTime;
+    private long loadedTime;
+    private int frames;
+    private ExportMovieDialog dialog;
+
+    /**
+     * Constructor
+     *
+     * @param target
+     *            file to export to
+     * @param size
+     *            size of the exported frames, null to use the settings
+     */
+    public BatchExport(File target, Dimension size) {
+        this.target = target;
+        this.size = size;
+    }
+
+    /**
+     * Starts the export in a separate thread. Has to be called after the view
+     * chains have been created.
+     */
+    public void start() {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    loadLayers();
+                } catch (Exception e) {
+                    System.err.println(">> BatchExport > Could not load the layers");
+                    e.printStackTrace();
+                    System.exit(1);
+                    return;
+                }
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        export();
+                    }
+                });
+            }
+        }, "BatchExport");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Requests all layers in parallel and adds them to the view chain in the
+     * given order
+     */
+    private void loadLayers() throws Exception {
+        startTime = System.nanoTime();
+
+        List<Callable<ImageInfoView>> requests = new ArrayList<Callable<ImageInfoView>>();
+        for (final JHVRequest request : CommandLineProcessor.getJHVOptionValues()) {
+            for (final JHVRequestLayer layer : request.imageLayers) {
+                requests.add(new Callable<ImageInfoView>() {
+                    public ImageInfoView call() throws Exception {
+                        return APIRequestManager.requestRemoteFile(false, request.cadence, request.startTime, request.endTime, layer.observatory, layer.instrument, layer.detector, layer.measurement);
+                    }
+                });
+            }
+        }
+        for (final URL jpxURL : CommandLineProcessor.getJPXOptionValues()) {
+            requests.add(new Callable<ImageInfoView>() {
+                public ImageInfoView call() throws Exception {
+                    return APIRequestManager.requestData(false, jpxURL, null);
+                }
+            });
+        }
+
+        if (requests.isEmpty())
+            throw new IllegalArgumentException("No layers given, use the -jhv or -jpx option");
+
+        ExecutorService loaders = Executors.newFixedThreadPool(requests.size(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = Executors.defaultThreadFactory().newThread(r);
+                t.setName("BatchExport-Loader-" + (loaderNumber++));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        try {
+            List<Future<ImageInfoView>> views = loaders.invokeAll(requests);
+            for (Future<ImageInfoView> view : views) {
+                ImageInfoView loaded;
+                try {
+                    loaded = view.get();
+                } catch (ExecutionException e) {
+                    throw new Exception("Loading a layer failed", e.getCause());
+                }
+                if (loaded == null)
+                    throw new Exception("Loading a layer failed");
+
+                GuiState3DWCS.addLayerToViewchainMain(loaded, GuiState3DWCS.mainComponentView);
+            }
+        } finally {
+            loaders.shutdown();
+        }
+
+        loadedTime = System.nanoTime();
+    }
+
+    /**
+     * Exports the loaded layers, has to be called on the event dispatch thread
+     */
+    private void export() {
+        JHVJPXView masterView = LinkedMovieManager.getActiveInstance().getMasterMovie();
+        if (masterView == null) {
+            System.err.println(">> BatchExport > No image series loaded, nothing to export");
+            System.exit(1);
+            return;
+        }
+        frames = masterView.getMaximumFrameNumber() + 1;
+
+        try {
+            dialog = new ExportMovieDialog(target, size == null ? 0 : size.width, size == null ? 0 : size.height, new Runnable() {
+                public void run() {
+                    if (dialog.hasFailed()) {
+                        System.err.println(">> BatchExport > Export to " + target + " failed");
+                        System.exit(1);
+                        return;
+                    }
+                    printStatistics();
+                    System.exit(0);
+                }
+            });
+        } catch (IllegalArgumentException e) {
+            System.err.println(">> BatchExport > " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private void printStatistics() {
+        long now = System.nanoTime();
+        double loading = (loadedTime - startTime) / 1e9;
+        double exporting = (now - loadedTime) / 1e9;
+
+        System.out.println(">> BatchExport > Exported " + frames + " frames to " + target);
+        System.out.println(String.format(Locale.ENGLISH, ">> BatchExport > Loading %.1f s, exporting %.1f s (%.1f fps), total %.1f s", loading, exporting, exporting > 0 ? frames / exporting : 0, loading + exporting));
+        System.out.println(">> BatchExport > " + dialog.getStatistics());
+    }
+}
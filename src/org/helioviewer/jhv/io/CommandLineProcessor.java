@@ -1,5 +1,7 @@
 package org.helioviewer.jhv.io;
 
+import java.awt.Dimension;
+import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -45,7 +47,7 @@ public class CommandLineProcessor {
     public static void setArguments(String[] args) {
         arguments = args;
 
-        setUsageMessage("The following command-line options are available: \n\n" + "-jhv  jhv \"request(s)\"\n" + "      Allows the user to pass a jhv request. The jhv option can be used multiple times.\n" + "      A request should be surrounded by quotation marks\n" + "      There are two sorts of request, one for a single image and one for a image series" + "\n\n" + "      The request for a single image has the following form:\n" + "      [date=yyyy-MM-dd'T'HH:mm:ss'Z';imageScale=KILOMETER_PER_PIXEL;imageLayers=LAYER1,LAYER2,...]" + "\n\n" + "      The single layers LAYER1, LAYER2,... must be of the form:\n" + "      [OBSERVATORY,INSTRUMENT,DETECTOR,MEASUREMENT,VISIBILITY,OPACITY]" + "\n\n" + "      The form for an image series is similar:\n" + "      [startTime=yyy-MM-dd'T'HH:mm:ss'Z';endTime=yyyy-MM-dd'T'HH:mm:ss'Z';linked=LOAD_LAYERS_LINKED;cadence=SECONDS_BETWEEN_IMAGES;imageScale=KILOMETER_PER_PIXEL;imageLayers=LAYER1,LAYER2,...]" + "\n\n" + "      Example for retrieving a single image with multiple layers:\n" + "      -jhv \"[date=2003-10-05T00:00:00Z;imageScale=5000;imageLayers=[SOHO,EIT,EIT,171,1,100],[SOHO,LASCO,C2,white-light,1,100]]\"" + "\n\n" + "      Example for retrieving an image sequence with multiple layers:\n" + "      -jhv \"[startTime=2003-10-05T00:00:00Z;endTime=2003-10-20T00:00:00Z;linked=true;cadence=3600;imageScale=5000;imageLayers=[SOHO,EIT,EIT,171,1,100],[SOHO,LASCO,C2,white-light,1,100]]\"" + "\n\n\n" + "-jpx   JPX_REQUEST_URL\n" + "       Allows users to pass a jpx request url for a jpx movie which will be opened upon program start. The option can be used multiple times." + "\n\n" + "       Example:\n" + "       -jpx \"http://helioviewer.nascom.nasa.gov/api/index.php?action=getJPX&observatory=SOHO&instrument=MDI&detector=MDI&measurement=magnetogram&startTime=2003-10-05T00:00:00Z&endTime=2003-10-20T00:00:00Z&cadence=3600&linked=true&jpip=true&frames=true\"" + "\n\n\n" + "-jpip  JPIP_URL\n" + "       Allows users to pass a jpip url of a JP2 or JPX image to be opened upon program start.  The option can be used multiple times." + "\n\nExample:\n" + "       -jpip \"jpip://delphi.nascom.nasa.gov:8090/test/images/JP2_v20090917/2003_10_05__00_00_10_653__SOHO_EIT_EIT_195.jp2\"" + "\n\n\n" + "-download  URI_TO_FILE \n" + "       Allows the users to pass the location of JP2 or JPX image, which will be \n" + "       downloaded to a default location and opened when the program starts. This is specially useful \n" + "       for the case of large jpx files which will be very slow to play remotely." + "\n\n" + "       Example:\n" + "       -download \"http://delphi.nascom.nasa.gov/jp2/test/images/JP2_v20090917/2003_10_05__00_00_10_653__SOHO_EIT_EIT_195.jp2\"");
+        setUsageMessage("The following command-line options are available: \n\n" + "-jhv  jhv \"request(s)\"\n" + "      Allows the user to pass a jhv request. The jhv option can be used multiple times.\n" + "      A request should be surrounded by quotation marks\n" + "      There are two sorts of request, one for a single image and one for a image series" + "\n\n" + "      The request for a single image has the following form:\n" + "      [date=yyyy-MM-dd'T'HH:mm:ss'Z';imageScale=KILOMETER_PER_PIXEL;imageLayers=LAYER1,LAYER2,...]" + "\n\n" + "      The single layers LAYER1, LAYER2,... must be of the form:\n" + "      [OBSERVATORY,INSTRUMENT,DETECTOR,MEASUREMENT,VISIBILITY,OPACITY]" + "\n\n" + "      The form for an image series is similar:\n" + "      [startTime=yyy-MM-dd'T'HH:mm:ss'Z';endTime=yyyy-MM-dd'T'HH:mm:ss'Z';linked=LOAD_LAYERS_LINKED;cadence=SECONDS_BETWEEN_IMAGES;imageScale=KILOMETER_PER_PIXEL;imageLayers=LAYER1,LAYER2,...]" + "\n\n" + "      Example for retrieving a single image with multiple layers:\n" + "      -jhv \"[date=2003-10-05T00:00:00Z;imageScale=5000;imageLayers=[SOHO,EIT,EIT,171,1,100],[SOHO,LASCO,C2,white-light,1,100]]\"" + "\n\n" + "      Example for retrieving an image sequence with multiple layers:\n" + "      -jhv \"[startTime=2003-10-05T00:00:00Z;endTime=2003-10-20T00:00:00Z;linked=true;cadence=3600;imageScale=5000;imageLayers=[SOHO,EIT,EIT,171,1,100],[SOHO,LASCO,C2,white-light,1,100]]\"" + "\n\n\n" + "-jpx   JPX_REQUEST_URL\n" + "       Allows users to pass a jpx request url for a jpx movie which will be opened upon program start. The option can be used multiple times." + "\n\n" + "       Example:\n" + "       -jpx \"http://helioviewer.nascom.nasa.gov/api/index.php?action=getJPX&observatory=SOHO&instrument=MDI&detector=MDI&measurement=magnetogram&startTime=2003-10-05T00:00:00Z&endTime=2003-10-20T00:00:00Z&cadence=3600&linked=true&jpip=true&frames=true\"" + "\n\n\n" + "-jpip  JPIP_URL\n" + "       Allows users to pass a jpip url of a JP2 or JPX image to be opened upon program start.  The option can be used multiple times." + "\n\nExample:\n" + "       -jpip \"jpip://delphi.nascom.nasa.gov:8090/test/images/JP2_v20090917/2003_10_05__00_00_10_653__SOHO_EIT_EIT_195.jp2\"" + "\n\n\n" + "-download  URI_TO_FILE \n" + "       Allows the users to pass the location of JP2 or JPX image, which will be \n" + "       downloaded to a default location and opened when the program starts. This is specially useful \n" + "       for the case of large jpx files which will be very slow to play remotely." + "\n\n" + "       Example:\n" + "       -download \"http://delphi.nascom.nasa.gov/jp2/test/images/JP2_v20090917/2003_10_05__00_00_10_653__SOHO_EIT_EIT_195.jp2\"" + "\n\n\n" + "-export  FILE\n" + "       Loads the image series given by the -jhv and -jpx options, exports them to the given file without\n" + "       any user interaction and exits. The format is determined by the extension of the file\n" + "       (.mp4, .mov, .png, .jpg, .jpeg or .zip). Timing statistics are printed at the end.\n" + "       On machines without graphics card, run it with a software OpenGL implementation, e.g. Mesa on Xvfb." + "\n\n" + "       Example:\n" + "       -jhv \"[startTime=2003-10-05T00:00:00Z;endTime=2003-10-06T00:00:00Z;linked=true;cadence=3600;imageScale=5000;imageLayers=[SOHO,EIT,EIT,171,1,100]]\" -export \"/tmp/eit.mp4\"" + "\n\n\n" + "-exportSize  WIDTHxHEIGHT\n" + "       Size of the frames exported with the -export option, e.g. 1920x1080.");
 
     }
 
@@ -139,6 +141,46 @@ public class CommandLineProcessor {
         return uris;
     }
 
+    /**
+     * Returns the value of the -export option.
+     * 
+     * @return file to export to, or null if the option is not set
+     */
+    public static File getExportOptionValue() {
+        AbstractList<String> values = getOptionValues("export");
+        if (values.isEmpty() || values.get(0).equals("")) {
+            return null;
+        }
+        return new File(values.get(0));
+    }
+
+    /**
+     * Returns the value of the -exportSize option.
+     * 
+     * @return size of the exported frames, or null if the option is not set
+     * @throws IllegalArgumentException
+     *             if the value is not of the form WIDTHxHEIGHT
+     */
+    public static Dimension getExportSizeOptionValue() throws IllegalArgumentException {
+        AbstractList<String> values = getOptionValues("exportSize");
+        if (values.isEmpty()) {
+            return null;
+        }
+
+        String[] size = values.get(0).toLowerCase().split("x");
+        try {
+            if (size.length == 2) {
+                Dimension result = new Dimension(Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+                if (result.width > 0 && result.height > 0) {
+                    return result;
+                }
+            }
+        } catch (NumberFormatException e) {
+        }
+        System.err.println(getUsageMessage());
+        throw new IllegalArgumentException("Invalid export size: " + values.get(0));
+    }
+
     /**
      * Checks whether a specific option is set
      * 
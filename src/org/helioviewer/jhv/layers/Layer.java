@@ -103,4 +103,16 @@ public class Layer {
 	public void updateTexture(GL2 gl){
 		OpenGLHelper.updateTexture(gl, this);
 	}
+	
+	/**
+	 * Deletes the texture of this layer, has to be called when the layer is
+	 * removed
+	 */
+	public void dispose(){
+		if (texture == -1)
+			return;
+		OpenGLHelper.glContext.makeCurrent();
+		OpenGLHelper.deleteTexture(OpenGLHelper.glContext.getGL().getGL2(), texture);
+		texture = -1;
+	}
 }
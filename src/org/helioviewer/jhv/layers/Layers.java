@@ -25,7 +25,7 @@ public class Layers {
 	}
 	
 	public void removeLayer(int idx){
-		layers.remove(idx);
+		layers.remove(idx).dispose();
 		for (NewLayerListener renderListener : renderListeners){
 			renderListener.newlayerRemoved(idx);
 		}
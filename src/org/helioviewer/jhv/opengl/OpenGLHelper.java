@@ -38,6 +38,15 @@ public class OpenGLHelper {
 		return tmp[0];
 	}
 	
+	/**
+	 * Deletes a texture created by this class and forgets its storage, since
+	 * the id may be reused by the next texture of the context.
+	 */
+	public static void deleteTexture(GL2 gl, int texID) {
+		GLTextureHelper.forgetTexture(gl, texID);
+		gl.glDeleteTextures(1, new int[] { texID }, 0);
+	}
+	
 	public static ByteBuffer readPixels(BufferedImage image, boolean storeAlphaChannel, boolean switchRandBChannel) {
 		int[] pixels = new int[image.getWidth() * image.getHeight()];
         image.getRGB(0, 0, image.getWidth(), image.getHeight(), pixels, 0, image.getWidth());
@@ -252,33 +261,15 @@ public class OpenGLHelper {
 		gl.glPixelStorei(GL2.GL_UNPACK_ALIGNMENT, bitsPerPixel >> 3);
 
 		ImageFormat imageFormat = imageData.getImageFormat();
-		int internalFormat = GLTextureHelper.mapImageFormatToInternalGLFormat(imageFormat);
-		int inputFormat = GLTextureHelper.mapImageFormatToInputGLFormat(imageFormat);
-		int width = imageData.getWidth();
-		int height = imageData.getHeight();
-		int inputType = GLTextureHelper.mapBitsPerPixelToGLType(bitsPerPixel);
-		
-		gl.glEnable(GL2.GL_TEXTURE_2D);			
-		gl.glBindTexture(GL2.GL_TEXTURE_2D, layer.getTexture());
-		
-		int width2 = nextPowerOfTwo(width);
-		int height2 = nextPowerOfTwo(height);
-		int bpp = OpenGLHelper.getBitsPerPixel(inputFormat, inputType);
-		ByteBuffer b = ByteBuffer.allocate(width2 * height2 * bpp);
-		b.limit(width2 * height2 * bpp);
-
-		gl.glTexImage2D(GL.GL_TEXTURE_2D, 0, internalFormat, width2,
-				height2, 0, inputFormat, inputType, b);
 
+		gl.glEnable(GL2.GL_TEXTURE_2D);
+		gl.glBindTexture(GL2.GL_TEXTURE_2D, layer.getTexture());
 
-		gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_MIN_FILTER,
-				GL2.GL_LINEAR);
-		gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_MAG_FILTER,
-				GL2.GL_NEAREST);
-		gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_WRAP_S,
-				GL2.GL_CLAMP_TO_BORDER);
-		gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_WRAP_T,
-				GL2.GL_CLAMP_TO_BORDER);	
+		allocateTexture(gl, layer.getTexture(),
+				GLTextureHelper.mapImageFormatToInternalGLFormat(imageFormat),
+				imageData.getWidth(), imageData.getHeight(),
+				GLTextureHelper.mapImageFormatToInputGLFormat(imageFormat),
+				GLTextureHelper.mapBitsPerPixelToGLType(bitsPerPixel));
 	}
 	
 	public static void updateTexture(GL2 gl, Layer layer){
@@ -309,21 +300,40 @@ public class OpenGLHelper {
 		gl.glPixelStorei(GL2.GL_UNPACK_ALIGNMENT, bitsPerPixel >> 3);
 
 		ImageFormat imageFormat = imageData.getImageFormat();
+		int internalFormat = GLTextureHelper.mapImageFormatToInternalGLFormat(imageFormat);
 		int inputFormat = GLTextureHelper.mapImageFormatToInputGLFormat(imageFormat);
 		int width = imageData.getWidth();
 		int height = imageData.getHeight();
 		int inputType = GLTextureHelper.mapBitsPerPixelToGLType(bitsPerPixel);
 		
 		gl.glBindTexture(GL2.GL_TEXTURE_2D, layer.getTexture());
-		
+
+		// the storage only has to be reallocated, if the image does not fit anymore
+		if (!GLTextureHelper.hasTextureStorage(gl, layer.getTexture(),
+				internalFormat, nextPowerOfTwo(width), nextPowerOfTwo(height))) {
+			allocateTexture(gl, layer.getTexture(), internalFormat, width,
+					height, inputFormat, inputType);
+		}
+
+		if (buffer != null) {
+			gl.glTexSubImage2D(GL.GL_TEXTURE_2D, 0, 0, 0, width, height,
+					inputFormat, inputType, buffer);
+		}
+	}
+
+	/**
+	 * Allocates the storage of the bound texture, big enough for an image of
+	 * the given size, and sets the texture parameters used for layers.
+	 */
+	private static void allocateTexture(GL2 gl, int texID, int internalFormat,
+			int width, int height, int inputFormat, int inputType) {
 		int width2 = nextPowerOfTwo(width);
 		int height2 = nextPowerOfTwo(height);
 		int bpp = OpenGLHelper.getBitsPerPixel(inputFormat, inputType);
-		ByteBuffer b = ByteBuffer.allocate(width2 * height2 * bpp);
-		b.limit(width2 * height2 * bpp);
 
-			gl.glTexSubImage2D(GL.GL_TEXTURE_2D, 0, 0, 0, width, height,
-					inputFormat, inputType, buffer);
+		gl.glTexImage2D(GL.GL_TEXTURE_2D, 0, internalFormat, width2,
+				height2, 0, inputFormat, inputType,
+				GLTextureHelper.getZeroBuffer(width2 * height2 * bpp));
 
 		gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_MIN_FILTER,
 				GL2.GL_LINEAR);
@@ -333,6 +343,8 @@ public class OpenGLHelper {
 				GL2.GL_CLAMP_TO_BORDER);
 		gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_WRAP_T,
 				GL2.GL_CLAMP_TO_BORDER);
+
+		GLTextureHelper.setTextureStorage(gl, texID, internalFormat, width2, height2);
 	}
 	
 	public static int getBitsPerPixel(int inputFormat, int inputType){
@@ -0,0 +1,206 @@
+package org.helioviewer.jhv.plugins.hekplugin;
+
+import java.awt.Color;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.media.opengl.GL;
+import javax.media.opengl.GL2;
+
+import org.helioviewer.jhv.base.physics.DifferentialRotation;
+import org.helioviewer.jhv.plugins.hekplugin.cache.HEKEvent;
+import org.helioviewer.jhv.plugins.hekplugin.settings.HEKConstants;
+
+import com.jogamp.common.nio.Buffers;
+
+/**
+ * Keeps the areas and outlines of the drawn events in one vertex buffer on the
+ * graphics card.
+ * <p>
+ * The geometry of every event is calculated once, for B0 = 0 and the start of
+ * the event (see {@link HEKEvent#getTriangleVertices()}). The buffer is only
+ * rebuilt when the set of drawn events changes. Per frame, only the rotation
+ * by B0 and the differential rotation of each event are applied as matrix.
+ *
+ */
+class HEKGeometryBuffer
+{
+    /** Location of the geometry of one event within the buffer */
+    private static class Entry
+    {
+        private final HEKEvent event;
+        private final double latitude;
+        private final byte[] color;
+        private int trianglesFirst;
+        private int trianglesCount;
+        private int outlineFirst;
+        private int outlineCount;
+
+        private Entry(HEKEvent _event, double _latitude, byte[] _color)
+        {
+            event=_event;
+            latitude=_latitude;
+            color=_color;
+        }
+    }
+
+    private final ArrayList<Entry> entries=new ArrayList<Entry>();
+
+    /** Whether the triangulation of an event was not available at the last rebuild */
+    private boolean incomplete=false;
+
+    private int[] vbo=null;
+
+    /**
+     * Draws the areas and outlines of the given events
+     *
+     * @param gl
+     * @param events
+     *            - events to be drawn, all of them visible
+     * @param now
+     *            - current point in time
+     */
+    public void draw(GL2 gl,List<HEKEvent> events,Date now)
+    {
+        if(vbo==null)
+        {
+            vbo=new int[1];
+            gl.glGenBuffers(1,vbo,0);
+        }
+
+        if(incomplete || !containsExactly(events))
+            rebuild(gl,events);
+
+        if(entries.isEmpty())
+            return;
+
+        double bzero=HEKEvent.getBZeroInDegree(now);
+
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER,vbo[0]);
+        gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
+        gl.glVertexPointer(3,GL.GL_FLOAT,0,0);
+
+        // areas
+        gl.glEnable(GL2.GL_CULL_FACE);
+        gl.glDisable(GL2.GL_DEPTH_TEST);
+        gl.glBlendFunc(GL2.GL_SRC_ALPHA,GL2.GL_ONE_MINUS_SRC_ALPHA);
+        for(Entry entry:entries)
+        {
+            if(entry.trianglesCount==0)
+                continue;
+
+            gl.glColor4ub(entry.color[0],entry.color[1],entry.color[2],entry.color[3]);
+            gl.glPushMatrix();
+            rotate(gl,entry,now,bzero);
+            gl.glDrawArrays(GL.GL_TRIANGLES,entry.trianglesFirst,entry.trianglesCount);
+            gl.glPopMatrix();
+        }
+
+        // outlines
+        gl.glColor3f(1,1,1);
+        gl.glEnable(GL2.GL_DEPTH_TEST);
+        for(Entry entry:entries)
+        {
+            if(entry.outlineCount==0)
+                continue;
+
+            gl.glPushMatrix();
+            rotate(gl,entry,now,bzero);
+            gl.glDrawArrays(GL.GL_LINE_LOOP,entry.outlineFirst,entry.outlineCount);
+            gl.glPopMatrix();
+        }
+
+        gl.glDisableClientState(GL2.GL_VERTEX_ARRAY);
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER,0);
+    }
+
+    /**
+     * Removes the buffer from the graphics card
+     *
+     * @param gl
+     */
+    public void dispose(GL gl)
+    {
+        if(vbo!=null)
+            gl.glDeleteBuffers(1,vbo,0);
+        vbo=null;
+        entries.clear();
+    }
+
+    private static void rotate(GL2 gl,Entry entry,Date now,double bzero)
+    {
+        //see http://jgiesen.de/sunrot/index.html
+        gl.glRotated(DifferentialRotation.calculateRotationInDegrees(entry.latitude,(now.getTime()-entry.event.getStart().getTime())/1000d),0,1,0);
+        gl.glRotated(bzero,1,0,0);
+    }
+
+    private boolean containsExactly(List<HEKEvent> events)
+    {
+        if(events.size()!=entries.size())
+            return false;
+
+        for(int i=0;i<events.size();i++)
+            if(events.get(i)!=entries.get(i).event)
+                return false;
+        return true;
+    }
+
+    /**
+     * Packs the geometry of all given events into the buffer
+     */
+    private void rebuild(GL2 gl,List<HEKEvent> events)
+    {
+        entries.clear();
+        incomplete=false;
+
+        ArrayList<float[]> triangles=new ArrayList<float[]>(events.size());
+        ArrayList<float[]> outlines=new ArrayList<float[]>(events.size());
+        int size=0;
+        for(HEKEvent evt:events)
+        {
+            Color eventColor=HEKConstants.getSingletonInstance().acronymToColor(evt.getString("event_type"),128);
+            byte[] color={(byte)eventColor.getRed(),(byte)eventColor.getGreen(),(byte)eventColor.getBlue(),(byte)eventColor.getAlpha()};
+            entries.add(new Entry(evt,evt.getStony(evt.getStart()).theta/180.0*Math.PI,color));
+
+            float[] t=evt.getTriangleVertices();
+            float[] o=evt.getOutlineVertices();
+            if(t==null)
+                incomplete=true;
+
+            triangles.add(t);
+            outlines.add(o);
+            size+=(t==null?0:t.length)+(o==null?0:o.length);
+        }
+
+        FloatBuffer vertices=Buffers.newDirectFloatBuffer(Math.max(size,3));
+        for(int i=0;i<entries.size();i++)
+        {
+            Entry entry=entries.get(i);
+            float[] t=triangles.get(i);
+            if(t!=null)
+            {
+                entry.trianglesFirst=vertices.position()/3;
+                entry.trianglesCount=t.length/3;
+                vertices.put(t);
+            }
+        }
+        for(int i=0;i<entries.size();i++)
+        {
+            Entry entry=entries.get(i);
+            float[] o=outlines.get(i);
+            if(o!=null)
+            {
+                entry.outlineFirst=vertices.position()/3;
+                entry.outlineCount=o.length/3;
+                vertices.put(o);
+            }
+        }
+        vertices.rewind();
+
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER,vbo[0]);
+        gl.glBufferData(GL.GL_ARRAY_BUFFER,vertices.capacity()*Buffers.SIZEOF_FLOAT,vertices,GL.GL_STATIC_DRAW);
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER,0);
+    }
+}
@@ -1,7 +1,7 @@
 package org.helioviewer.jhv.plugins.hekplugin;
 
-import java.awt.Color;
 import java.awt.image.BufferedImage;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Vector;
 
@@ -12,12 +12,9 @@ import org.helioviewer.jhv.base.math.Matrix4d;
 import org.helioviewer.jhv.base.math.SphericalCoord;
 import org.helioviewer.jhv.base.math.Vector2d;
 import org.helioviewer.jhv.base.math.Vector3d;
-import org.helioviewer.jhv.base.physics.DifferentialRotation;
 import org.helioviewer.jhv.opengl.scenegraph.GL3DState;
 import org.helioviewer.jhv.plugins.hekplugin.cache.HEKCache;
 import org.helioviewer.jhv.plugins.hekplugin.cache.HEKEvent;
-import org.helioviewer.jhv.plugins.hekplugin.cache.HEKEvent.GenericTriangle;
-import org.helioviewer.jhv.plugins.hekplugin.settings.HEKConstants;
 import org.helioviewer.jhv.viewmodel.region.Region;
 import org.helioviewer.jhv.viewmodel.renderer.physical.GLPhysicalRenderGraphics;
 import org.helioviewer.jhv.viewmodel.renderer.physical.PhysicalRenderer3d;
@@ -37,6 +34,9 @@ public class HEKPlugin3dRenderer extends PhysicalRenderer3d
 {
     private float scale=1;
 
+    /** Areas and outlines of the events drawn last */
+    private final HEKGeometryBuffer geometry=new HEKGeometryBuffer();
+
     /**
      * Default constructor.
      */
@@ -44,73 +44,6 @@ public class HEKPlugin3dRenderer extends PhysicalRenderer3d
     {
     }
 
-    /**
-     * The actual rendering routine
-     * 
-     * @param g
-     *            - PhysicalRenderGraphics to render to
-     * @param evt
-     *            - Event to draw
-     * @param now
-     *            - Current point in time
-     */
-    public void drawPolygon(GLPhysicalRenderGraphics g,HEKEvent evt,Date now)
-    {
-        if(evt==null || !evt.isVisible(now))
-            return;
-        
-        Vector<HEKEvent.GenericTriangle<Vector3d>> triangles=evt.getTriangulation3D(now);
-        Vector<SphericalCoord> outerBound=evt.getStonyBound(now);
-        if(outerBound==null && triangles==null)
-            return;
-            
-        String type=evt.getString("event_type");
-        Color eventColor=HEKConstants.getSingletonInstance().acronymToColor(type,128);
-
-        SphericalCoord stony=evt.getStony(now);
-        double latitude = stony.theta / 180.0 * Math.PI;
-        
-        g.gl.glPushMatrix();
-        g.gl.glRotated(DifferentialRotation.calculateRotationInDegrees(latitude,(now.getTime()-evt.getStart().getTime())/1000d),0,1,0);
-        
-        if(triangles!=null)
-        {
-            g.gl.glColor4ub((byte)eventColor.getRed(),(byte)eventColor.getGreen(),(byte)eventColor.getBlue(),(byte)eventColor.getAlpha());
-
-            g.gl.glEnable(GL2.GL_CULL_FACE);
-            g.gl.glDisable(GL2.GL_DEPTH_TEST);
-            g.gl.glBlendFunc(GL2.GL_SRC_ALPHA,GL2.GL_ONE_MINUS_SRC_ALPHA);
-
-            g.gl.glBegin(GL2.GL_TRIANGLES);
-            for(GenericTriangle<Vector3d> triangle:triangles)
-            {
-                //g.gl.glColor3d(Math.random(),Math.random(),Math.random());
-                g.gl.glVertex3d(triangle.A.x,triangle.A.y,triangle.A.z);
-                g.gl.glVertex3d(triangle.B.x,triangle.B.y,triangle.B.z);
-                g.gl.glVertex3d(triangle.C.x,triangle.C.y,triangle.C.z);
-            }
-            g.gl.glEnd();
-        }
-
-        // draw bounds
-        g.gl.glColor3f(1,1,1);
-        if(outerBound!=null)
-        {
-            g.gl.glBlendFunc(GL2.GL_SRC_ALPHA,GL2.GL_ONE_MINUS_SRC_ALPHA);
-            g.gl.glEnable(GL2.GL_DEPTH_TEST);
-
-            g.gl.glBegin(GL.GL_LINE_LOOP);
-            for(SphericalCoord boundaryPoint:outerBound)
-            {
-                Vector3d boundaryPoint3d=HEKEvent.convertToSceneCoordinates(boundaryPoint,now).scale(1.005);
-                g.gl.glVertex3d(boundaryPoint3d.x,boundaryPoint3d.y,boundaryPoint3d.z);
-            }
-            g.gl.glEnd();
-        }
-
-        g.gl.glPopMatrix();
-    }
-
     /**
      * The actual rendering routine
      * 
@@ -144,12 +77,9 @@ public class HEKPlugin3dRenderer extends PhysicalRenderer3d
             double width2=imageSize.x*scale/2.0;
             double height2=imageSize.y*scale/2.0;
 
-            Vector3d sourceDir=new Vector3d(0,0,1);
-            Vector3d targetDir=new Vector3d(x,y,z);
-
-            double angle=Math.acos(sourceDir.dot(targetDir)/(sourceDir.length()*targetDir.length()));
-            Vector3d axis=sourceDir.cross(targetDir);
-            Matrix4d r=Matrix4d.rotation(angle,axis.normalize());
+            // rotate (0,0,1) onto the direction of the event
+            double angle=Math.acos(z/Math.sqrt(x*x+y*y+z*z));
+            Matrix4d r=Matrix4d.rotation(angle,new Vector3d(-y,x,0).normalize());
             r.setTranslation(x,y,z);
 
             Vector3d p0=new Vector3d(-width2,-height2,0);
@@ -202,8 +132,11 @@ public class HEKPlugin3dRenderer extends PhysicalRenderer3d
         g.gl.glEnable(GL2.GL_LINE_SMOOTH);
         g.gl.glEnable(GL2.GL_BLEND);
 
+        ArrayList<HEKEvent> visible=new ArrayList<HEKEvent>(toDraw.size());
         for(HEKEvent evt:toDraw)
-            drawPolygon(g,evt,currentDate);
+            if(evt!=null && evt.isVisible(currentDate))
+                visible.add(evt);
+        geometry.draw(g.gl,visible,currentDate);
 
         g.gl.glDisable(GL2.GL_LINE_SMOOTH);
 
@@ -31,6 +31,11 @@ public class HEKCache {
 
     private HashMap<HEKPath, IntervalStore<Date, HEKEvent>> tracks = new HashMap<HEKPath, IntervalStore<Date, HEKEvent>>();
 
+    /**
+     * Index of the events of each track by their duration, guarded by itself
+     */
+    private final HashMap<HEKPath, HEKEventIndex> eventIndices = new HashMap<HEKPath, HEKEventIndex>();
+
     private HEKCacheModel model = new HEKCacheModel(this);
     private HEKCacheController controller = new HEKCacheController(this);
 
@@ -132,7 +137,50 @@ public class HEKCache {
         IntervalStore<Date, HEKEvent> theTrack = getTrack(trackPath);
         // Log.info("Current Track is " + theTrack);
         IntervalContainer<Date, HEKEvent> newContainer = new IntervalContainer<Date, HEKEvent>(events);
+
+        int modificationCount = theTrack.getModificationCount();
         theTrack.add(newInterval, newContainer);
+
+        // adding never drops events, so an up to date index only needs the
+        // new ones
+        synchronized (eventIndices) {
+            HEKEventIndex index = eventIndices.get(trackPath);
+            if (index != null && index.getModificationCount() == modificationCount) {
+                index.addAll(events);
+                index.setModificationCount(theTrack.getModificationCount());
+            }
+        }
+    }
+
+    /**
+     * Return the index of the events of the given track by their duration,
+     * which is rebuilt if the track has changed in other ways than by
+     * {@link #addToTrack(HEKPath, Interval, Vector)}
+     * 
+     * @param path
+     *            - path that specifies the track to be requested
+     * @return - index of the track, or null if the track does not exist
+     */
+    HEKEventIndex getEventIndex(HEKPath path) {
+        IntervalStore<Date, HEKEvent> track = getTrack(path);
+        if (track == null)
+            return null;
+
+        synchronized (eventIndices) {
+            HEKEventIndex index = eventIndices.get(path);
+            if (index == null) {
+                index = new HEKEventIndex();
+                eventIndices.put(path, index);
+            }
+
+            if (index.getModificationCount() != track.getModificationCount()) {
+                index.clear();
+                for (Interval<Date> interval : track.getIntervals())
+                    index.addAll(track.getItem(interval).getItems());
+                index.setModificationCount(track.getModificationCount());
+            }
+            return index;
+        }
     }
 
     /**
@@ -142,6 +190,9 @@ public class HEKCache {
      */
     public void setTracks(HashMap<HEKPath, IntervalStore<Date, HEKEvent>> tracks) {
         this.tracks = tracks;
+        synchronized (eventIndices) {
+            eventIndices.clear();
+        }
     }
 
     /**
@@ -385,6 +385,9 @@ public class HEKCacheModel {
 
     /**
      * Get all events stored in the cache, that last in the given interval
+     * <p>
+     * The events are looked up in the index of each track, each event is
+     * returned once per track.
      * 
      * @param interval
      * @return - all events stored in the cache, that last in the given interval
@@ -396,17 +399,13 @@ public class HEKCacheModel {
         try {
             Vector<HEKEvent> result = new Vector<HEKEvent>();
 
-            Iterator<Entry<HEKPath, IntervalStore<Date, HEKEvent>>> iter = cache.getTracks().entrySet().iterator();
+            long start = interval.start.getTime();
+            long end = interval.end.getTime();
 
-            while (iter.hasNext()) {
-                IntervalStore<Date, HEKEvent> intervalCache = iter.next().getValue();
-                for (Interval<Date> hek : intervalCache.getIntervals()) {
-                    for (HEKEvent evts : intervalCache.getItem(hek).getItems()) {
-                        Interval<Date> duration = evts.getDuration();
-                        if (duration != null && duration.overlapsInclusive(interval)) {
-                            result.add(evts);
-                        }
-                    }
+            for (HEKPath path : cache.getTracks().keySet()) {
+                HEKEventIndex index = cache.getEventIndex(path);
+                if (index != null) {
+                    index.query(start, end, result);
                 }
             }
 
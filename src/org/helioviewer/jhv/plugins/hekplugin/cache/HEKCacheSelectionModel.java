@@ -168,10 +168,11 @@ public class HEKCacheSelectionModel implements HEKCacheListener {
      */
     public int getState(HEKPath path) {
 
-        Vector<HEKPath> children = cacheModel.getChildren(path, true);
+        // only virtual paths need their children
+        Vector<HEKPath> children = path.isVirtual() ? cacheModel.getChildren(path, true) : null;
 
         // this is a virtual path, that does not exist in the cache
-        if (path.isVirtual() && children.size() > 0) {
+        if (children != null && children.size() > 0) {
 
             int state = TristateCheckBox.DEFAULT;
             int checked = 0;
@@ -232,27 +233,48 @@ public class HEKCacheSelectionModel implements HEKCacheListener {
      * @return only those items that are NOT UNCHECKED
      */
     public void filterSelectedEvents(Vector<HEKEvent> activeEventCandidates) {
+        HashMap<HEKPathKey, Boolean> unchecked = new HashMap<HEKPathKey, Boolean>();
         Iterator<HEKEvent> activeEventCandidatesIterator = activeEventCandidates.iterator();
         while (activeEventCandidatesIterator.hasNext()) {
             HEKEvent activeEventCandidate = activeEventCandidatesIterator.next();
-            HEKPath activeEventParentPath = activeEventCandidate.getPath().getParent();
-            if (this.getState(activeEventParentPath) == TristateCheckBox.UNCHECKED) {
+            if (isParentUnchecked(activeEventCandidate.getPath(), unchecked)) {
                 activeEventCandidatesIterator.remove();
             }
         }
     }
 
     public void filterSelectedPaths(Vector<HEKPath> activeEventCandidates) {
+        HashMap<HEKPathKey, Boolean> unchecked = new HashMap<HEKPathKey, Boolean>();
         Iterator<HEKPath> activeEventCandidatesIterator = activeEventCandidates.iterator();
         while (activeEventCandidatesIterator.hasNext()) {
             HEKPath activePathCandidate = activeEventCandidatesIterator.next();
-            HEKPath activeEventParentPath = activePathCandidate.getParent();
-            if (this.getState(activeEventParentPath) == TristateCheckBox.UNCHECKED) {
+            if (isParentUnchecked(activePathCandidate, unchecked)) {
                 activeEventCandidatesIterator.remove();
             }
         }
     }
 
+    /**
+     * Check whether the parent of the given path is UNCHECKED. Most events
+     * share their parent, so the states already determined are looked up by
+     * the interned key of the parent.
+     * 
+     * @param path
+     *            - path whose parent is to be checked
+     * @param unchecked
+     *            - states determined so far
+     * @return - true if the parent is UNCHECKED
+     */
+    private boolean isParentUnchecked(HEKPath path, HashMap<HEKPathKey, Boolean> unchecked) {
+        HEKPathKey parentKey = path.getKey().getParent();
+        Boolean result = unchecked.get(parentKey);
+        if (result == null) {
+            result = this.getState(path.getParent()) == TristateCheckBox.UNCHECKED;
+            unchecked.put(parentKey, result);
+        }
+        return result;
+    }
+
     public void cacheStateChanged() {
     }
 
@@ -71,6 +71,12 @@ public class HEKEvent implements IntervalComparison<Date> {
      */
     private Vector<GenericTriangle<SphericalCoord>> cachedTriangles = null;
 
+    /**
+     * Cache of the triangulation and the outline as vertex arrays
+     */
+    private float[] cachedTriangleVertices = null;
+    private float[] cachedOutlineVertices = null;
+
     /**
      * This field is used as a unique identifier of the event
      */
@@ -465,18 +471,7 @@ public class HEKEvent implements IntervalComparison<Date> {
         if (stony == null)
             return new Vector3d(0, 0, 0);
 
-        double bzero;
-        if(lastDate==null || !now.equals(lastDate))
-        {
-            GregorianCalendar c = new GregorianCalendar();
-            c.setTime(now);
-            lastBZero = bzero = Astronomy.getB0InDegree(c);
-            lastDate=now;
-        }
-        else
-        {
-            bzero=lastBZero;
-        }
+        double bzero = getBZeroInDegree(now);
         
         double phizero = 0.0; // do we have a value for this?
         SphericalCoord normalizedStony = new SphericalCoord(stony);
@@ -639,6 +634,95 @@ public class HEKEvent implements IntervalComparison<Date> {
         return result;
     }
 
+    /**
+     * Returns the triangulation as vertex array (x,y,z per vertex, three
+     * vertices per triangle). The vertices are given in scene coordinates for
+     * B0 = 0 and for the start of the event, i.e. a rotation by B0 around the
+     * x-axis and by the differential rotation since the start around the
+     * y-axis yields the same coordinates as {@link #getTriangulation3D(Date)}.
+     * 
+     * @return vertices, which are empty if the event has no area, or null if
+     *         the triangulation has not been calculated yet
+     */
+    public float[] getTriangleVertices() {
+        if (!cacheValid)
+            return null;
+
+        if (cachedTriangleVertices == null) {
+            Vector<GenericTriangle<SphericalCoord>> triangles = cachedTriangles;
+            if (triangles == null)
+                triangles = new Vector<GenericTriangle<SphericalCoord>>();
+
+            float[] vertices = new float[triangles.size() * 9];
+            int i = 0;
+            for (GenericTriangle<SphericalCoord> triangle : triangles) {
+                i = putVertex(vertices, i, triangle.A);
+                i = putVertex(vertices, i, triangle.B);
+                i = putVertex(vertices, i, triangle.C);
+            }
+            cachedTriangleVertices = vertices;
+        }
+        return cachedTriangleVertices;
+    }
+
+    /**
+     * Returns the outline as vertex array (x,y,z per vertex, to be drawn as
+     * line loop), in the same coordinates as {@link #getTriangleVertices()}.
+     * 
+     * @return vertices, or null if the event has no outline
+     */
+    public float[] getOutlineVertices() {
+        if (cachedOutlineVertices == null) {
+            Date start = this.getStart();
+            Vector<SphericalCoord> outerBound = start == null ? null : this.getStonyBound(start);
+            if (outerBound == null) {
+                cachedOutlineVertices = new float[0];
+            } else {
+                float[] vertices = new float[outerBound.size() * 3];
+                int i = 0;
+                for (SphericalCoord boundaryPoint : outerBound)
+                    i = putVertex(vertices, i, boundaryPoint);
+                cachedOutlineVertices = vertices;
+            }
+        }
+        return cachedOutlineVertices.length == 0 ? null : cachedOutlineVertices;
+    }
+
+    /**
+     * Stores the scene coordinates of the given point for B0 = 0, slightly
+     * above the surface
+     * 
+     * @return index behind the stored vertex
+     */
+    private static int putVertex(float[] vertices, int i, SphericalCoord stony) {
+        SphericalCoord normalizedStony = new SphericalCoord(stony);
+        normalizedStony.r = Constants.SUN_RADIUS * 1.005;
+
+        CartesianCoord cart = HEKCoordinateTransform.StonyhurstToHeliocentricCartesian(normalizedStony, 0.0, 0.0);
+        vertices[i++] = (float) cart.x;
+        vertices[i++] = (float) cart.y;
+        vertices[i++] = (float) cart.z;
+        return i;
+    }
+
+    /**
+     * Returns the B0 angle, i.e. the heliographic latitude of the center of
+     * the solar disk, as seen from earth
+     * 
+     * @param now
+     *            - time for which the angle is needed
+     * @return B0 in degrees
+     */
+    public static double getBZeroInDegree(Date now) {
+        if (lastDate == null || !now.equals(lastDate)) {
+            GregorianCalendar c = new GregorianCalendar();
+            c.setTime(now);
+            lastBZero = Astronomy.getB0InDegree(c);
+            lastDate = now;
+        }
+        return lastBZero;
+    }
+
     private void cacheTriangulation() {
         Date now = this.getStart();
 
@@ -0,0 +1,177 @@
+package org.helioviewer.jhv.plugins.hekplugin.cache;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Index of the events of one track by their duration.
+ * <p>
+ * The events are kept in a randomized balanced search tree (treap) ordered by
+ * their start, where each node additionally knows the latest end within its
+ * subtree. Subtrees which cannot contain an overlapping event are skipped, so
+ * a query only visits O(log n) nodes besides the k events it returns.
+ * <p>
+ * Every event is only stored once, even if it has been downloaded in several
+ * requests. Events without a duration are not indexed.
+ * <p>
+ * This class is not threadsafe
+ *
+ */
+class HEKEventIndex {
+
+    private static class Node {
+        private final HEKEvent event;
+        private final long start;
+        private final long end;
+        private final int priority;
+
+        /** Latest end of all events in this subtree */
+        private long maxEnd;
+
+        private Node left;
+        private Node right;
+
+        private Node(HEKEvent event, long start, long end, int priority) {
+            this.event = event;
+            this.start = start;
+            this.end = end;
+            this.priority = priority;
+            this.maxEnd = end;
+        }
+
+        private void update() {
+            maxEnd = end;
+            if (left != null && left.maxEnd > maxEnd)
+                maxEnd = left.maxEnd;
+            if (right != null && right.maxEnd > maxEnd)
+                maxEnd = right.maxEnd;
+        }
+    }
+
+    private final Random random = new Random();
+
+    /** Ids of the indexed events */
+    private final HashSet<String> ids = new HashSet<String>();
+
+    private Node root = null;
+
+    /**
+     * Modification count of the track, which this index reflects
+     */
+    private int modificationCount = -1;
+
+    /**
+     * Add the given event, unless an event with the same id is already indexed
+     *
+     * @param event
+     *            - event to be added
+     */
+    public void add(HEKEvent event) {
+        if (event.getStart() == null || event.getEnd() == null)
+            return;
+        if (event.getId() != null && !ids.add(event.getId()))
+            return;
+
+        root = insert(root, new Node(event, event.getStart().getTime(), event.getEnd().getTime(), random.nextInt()));
+    }
+
+    /**
+     * Add all given events
+     *
+     * @param events
+     *            - events to be added
+     */
+    public void addAll(Collection<HEKEvent> events) {
+        for (HEKEvent event : events)
+            this.add(event);
+    }
+
+    /**
+     * Remove all events
+     */
+    public void clear() {
+        ids.clear();
+        root = null;
+    }
+
+    /**
+     * Find all events lasting in the given window, bounds inclusive
+     *
+     * @param start
+     *            - start of the window in milliseconds
+     * @param end
+     *            - end of the window in milliseconds
+     * @param result
+     *            - collection the events found are added to, ordered by
+     *            their start
+     */
+    public void query(long start, long end, Collection<HEKEvent> result) {
+        query(root, start, end, result);
+    }
+
+    /**
+     * @return - modification count of the track, which this index reflects
+     */
+    public int getModificationCount() {
+        return modificationCount;
+    }
+
+    /**
+     * @param modificationCount
+     *            - modification count of the track, which this index reflects
+     */
+    public void setModificationCount(int modificationCount) {
+        this.modificationCount = modificationCount;
+    }
+
+    private static void query(Node node, long start, long end, Collection<HEKEvent> result) {
+        while (node != null && node.maxEnd >= start) {
+            query(node.left, start, end, result);
+
+            // everything further right starts even later
+            if (node.start > end)
+                return;
+
+            if (node.end >= start)
+                result.add(node.event);
+
+            node = node.right;
+        }
+    }
+
+    private static Node insert(Node node, Node newNode) {
+        if (node == null)
+            return newNode;
+
+        if (newNode.start < node.start) {
+            node.left = insert(node.left, newNode);
+            if (node.left.priority > node.priority)
+                node = rotateRight(node);
+        } else {
+            node.right = insert(node.right, newNode);
+            if (node.right.priority > node.priority)
+                node = rotateLeft(node);
+        }
+        node.update();
+        return node;
+    }
+
+    private static Node rotateRight(Node node) {
+        Node left = node.left;
+        node.left = left.right;
+        left.right = node;
+        node.update();
+        left.update();
+        return left;
+    }
+
+    private static Node rotateLeft(Node node) {
+        Node right = node.right;
+        node.right = right.left;
+        right.left = node;
+        node.update();
+        right.update();
+        return right;
+    }
+}
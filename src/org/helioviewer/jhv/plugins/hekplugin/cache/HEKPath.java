@@ -31,9 +31,9 @@ public class HEKPath {
     private HEKCache cache;
 
     /**
-     * List of Subdirectories
+     * Interned name of this path, which defines equality
      */
-    private Vector<String> path = new Vector<String>();
+    private HEKPathKey key = HEKPathKey.ROOT;
 
     /**
      * Flag if this path directly exists in the cache, or if it is an
@@ -62,9 +62,7 @@ public class HEKPath {
         this.virtual = false;
         this.cache = root;
         this.object = obj;
-        path.add(catalogue);
-        path.add(type);
-        path.add(frm);
+        this.key = HEKPathKey.get(catalogue, type, frm);
     }
 
     /**
@@ -85,7 +83,7 @@ public class HEKPath {
     public HEKPath(HEKPath other) {
         this.cache = other.cache;
         this.object = other.object;
-        this.path.addAll(other.path);
+        this.key = other.key;
     }
 
     /**
@@ -98,7 +96,7 @@ public class HEKPath {
     public HEKPath(HEKPath other, String additional, Object obj) {
         this(other);
         this.object = obj;
-        this.path.add(additional);
+        this.key = other.key.getChild(additional);
     }
 
     /**
@@ -109,9 +107,7 @@ public class HEKPath {
      */
     public HEKPath(HEKCache hekCache, String[] path) {
         this.cache = hekCache;
-        for (int i = 0; i < path.length; i++) {
-            this.path.add(path[i]);
-        }
+        this.key = HEKPathKey.get(path);
     }
 
     /**
@@ -122,40 +118,25 @@ public class HEKPath {
      */
     public HEKPath(HEKPath other, String additional) {
         this(other);
-        this.path.add(additional);
+        this.key = other.key.getChild(additional);
     }
 
     /**
      * Overwritten equals function.
      * 
-     * Two HEKPathes are equal iff all parts of the containing "path" vector
-     * equal.
+     * Two HEKPathes are equal iff all their parts equal, i.e. iff they share
+     * the same interned key.
      */
     public boolean equals(Object other) {
-        if (other instanceof HEKPath) {
-            HEKPath otherType = (HEKPath) other;
-            if (otherType.path.size() != this.path.size())
-                return false;
-            for (int i = 0; i < this.path.size(); i++) {
-                if (!this.path.get(i).equals(otherType.path.get(i)))
-                    return false;
-            }
-            return true;
-        } else {
-            return false;
-        }
+        return other instanceof HEKPath && ((HEKPath) other).key == this.key;
     }
 
     public String getFRM() {
-        if (this.path.size() > 2)
-            return path.get(2);
-        return null;
+        return key.getPart(2);
     }
 
     public String getType() {
-        if (this.path.size() > 1)
-            return path.get(1);
-        return null;
+        return key.getPart(1);
     }
 
     /**
@@ -173,12 +154,11 @@ public class HEKPath {
      */
     public boolean isSubPathOf(HEKPath other, int delta, boolean exact) {
 
-        if (this.path.size() < other.path.size()) {
+        int lenDelta = this.key.getDepth() - other.key.getDepth();
+        if (lenDelta < 0) {
             return false;
         }
 
-        int lenDelta = this.path.size() - other.path.size();
-
         // if in exact mode
         if (exact && lenDelta != delta) {
             return false;
@@ -189,13 +169,7 @@ public class HEKPath {
             return false;
         }
 
-        for (int i = 0; i < other.path.size(); i++) {
-            if (!this.path.get(i).equals(other.path.get(i))) {
-                return false;
-            }
-        }
-
-        return true;
+        return this.key.startsWith(other.key);
     }
 
     /**
@@ -215,41 +189,46 @@ public class HEKPath {
         }
 
         HEKPath result = new HEKPath(this.cache);
-        result.path.addAll(path);
-        result.path.removeElementAt(result.path.size() - 1);
-        result.virtual = !this.cache.getTrackPaths().contains(result); // if the
-                                                                       // cache
+        result.key = key.getParent();
         result.object = this.cache.getTrack(result); // try to get the object
                                                      // behind it
+        result.virtual = result.object == null; // if the cache has no track
         return result;
     }
 
     public String toString() {
-        if (!path.isEmpty()) {
-            return path.toString();
+        if (key.getDepth() > 0) {
+            return key.toString();
         } else {
             return "ROOT";
         }
     }
 
     public int hashCode() {
-        return this.toString().hashCode();
+        return key.hashCode();
     }
 
     public void setLastPart(String lastPart) {
-        if (this.path.size() > 0) {
-            this.path.set(this.path.size() - 1, lastPart);
+        if (key.getDepth() > 0) {
+            key = key.getParent().getChild(lastPart);
         }
     }
 
     public String getLastPart() {
-        if (this.path.size() == 0) {
+        if (key.getDepth() == 0) {
             return "ROOT";
         } else {
-            return this.path.lastElement();
+            return key.getLastPart();
         }
     }
 
+    /**
+     * @return - interned name of this path
+     */
+    public HEKPathKey getKey() {
+        return key;
+    }
+
     public HEKCache getCache() {
         return cache;
     }
@@ -263,14 +242,12 @@ public class HEKPath {
     }
 
     public int getDepth() {
-        return path.size();
+        return key.getDepth();
     }
 
     public HEKPath truncate(int len) {
         HEKPath result = new HEKPath(this);
-        for (int i = len; i < this.path.size(); i++) {
-            result.path.removeElementAt(result.path.size() - 1);
-        }
+        result.key = key.getAncestor(Math.max(len, 0));
         return result;
     }
 
@@ -0,0 +1,183 @@
+package org.helioviewer.jhv.plugins.hekplugin.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable, interned name of a {@link HEKPath}, e.g. [HEK, ar, SPoCA].
+ * <p>
+ * Every name exists only once, so two keys are equal iff they are the same
+ * object. The hash code is calculated once when the key is created, and the
+ * parent as well as every child can be reached without building strings or
+ * copying the parts.
+ * <p>
+ * Keys are never removed, which is fine since the paths of all events
+ * downloaded are kept in the cache anyway.
+ * <p>
+ * This class is threadsafe
+ *
+ */
+public final class HEKPathKey {
+
+    /**
+     * The empty path, i.e. the root of all paths
+     */
+    public static final HEKPathKey ROOT = new HEKPathKey(null, null);
+
+    private final HEKPathKey parent;
+    private final String part;
+    private final int depth;
+    private final int hash;
+
+    /**
+     * Interned children of this key by their last part, created on first use
+     */
+    private volatile ConcurrentHashMap<String, HEKPathKey> children;
+
+    /**
+     * String representation, created on first use
+     */
+    private volatile String string;
+
+    private HEKPathKey(HEKPathKey parent, String part) {
+        this.parent = parent;
+        this.part = part;
+        if (parent == null) {
+            this.depth = 0;
+            this.hash = 1;
+        } else {
+            this.depth = parent.depth + 1;
+            this.hash = 31 * parent.hash + (part == null ? 0 : part.hashCode());
+        }
+    }
+
+    /**
+     * Returns the key for the given parts
+     *
+     * @param parts
+     *            - parts of the path, starting at the root
+     * @return - interned key
+     */
+    public static HEKPathKey get(String... parts) {
+        HEKPathKey result = ROOT;
+        for (String part : parts)
+            result = result.getChild(part);
+        return result;
+    }
+
+    /**
+     * Returns the key of the direct child with the given last part
+     *
+     * @param part
+     *            - last part of the child
+     * @return - interned key of the child
+     */
+    public HEKPathKey getChild(String part) {
+        ConcurrentHashMap<String, HEKPathKey> map = children;
+        if (map == null) {
+            synchronized (this) {
+                map = children;
+                if (map == null)
+                    children = map = new ConcurrentHashMap<String, HEKPathKey>(4);
+            }
+        }
+
+        // ConcurrentHashMap does not support null keys
+        String mapKey = part == null ? "\u0000null" : part;
+        HEKPathKey child = map.get(mapKey);
+        if (child == null) {
+            HEKPathKey newChild = new HEKPathKey(this, part);
+            child = map.putIfAbsent(mapKey, newChild);
+            if (child == null)
+                child = newChild;
+        }
+        return child;
+    }
+
+    /**
+     * @return - key of the parent, null for the root
+     */
+    public HEKPathKey getParent() {
+        return parent;
+    }
+
+    /**
+     * Returns the ancestor with the given depth
+     *
+     * @param depth
+     *            - depth of the ancestor, at most the depth of this key
+     * @return - this key or one of its ancestors
+     */
+    public HEKPathKey getAncestor(int depth) {
+        HEKPathKey result = this;
+        while (result.depth > depth)
+            result = result.parent;
+        return result;
+    }
+
+    /**
+     * Returns one part of the path
+     *
+     * @param index
+     *            - index of the part, starting at 0 below the root
+     * @return - part, or null if the path is not that long
+     */
+    public String getPart(int index) {
+        if (index < 0 || index >= depth)
+            return null;
+        return getAncestor(index + 1).part;
+    }
+
+    /**
+     * @return - last part of the path, null for the root
+     */
+    public String getLastPart() {
+        return part;
+    }
+
+    /**
+     * @return - number of parts
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Check whether the given key is this key or one of its ancestors
+     *
+     * @param other
+     *            - possible ancestor
+     * @return - true if this key starts with the given key
+     */
+    public boolean startsWith(HEKPathKey other) {
+        return other.depth <= depth && getAncestor(other.depth) == other;
+    }
+
+    /**
+     * Structural hash code, which is calculated once
+     */
+    public int hashCode() {
+        return hash;
+    }
+
+    /**
+     * Returns e.g. "[HEK, ar, SPoCA]"
+     */
+    public String toString() {
+        String result = string;
+        if (result == null) {
+            StringBuilder builder = new StringBuilder();
+            appendParts(builder);
+            result = string = "[" + builder + "]";
+        }
+        return result;
+    }
+
+    private void appendParts(StringBuilder builder) {
+        if (parent == null)
+            return;
+        parent.appendParts(builder);
+        if (parent.depth > 0)
+            builder.append(", ");
+        builder.append(part);
+    }
+}
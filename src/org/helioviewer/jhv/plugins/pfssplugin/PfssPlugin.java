@@ -5,6 +5,7 @@ import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ThreadFactory;
 
 import org.helioviewer.jhv.plugins.viewmodelplugin.controller.PluginManager;
@@ -28,6 +29,28 @@ public class PfssPlugin extends OverlayPlugin implements Plugin
         }
     });
     
+    /**
+     * Decompresses frames ahead of playback. Separate from the pool, so the
+     * decompression is not queued behind the downloads of the read ahead.
+     */
+    private static int decompressorNumber=0;
+    public static final ExecutorService decompressionPool = Executors.newFixedThreadPool(Math.max(1,Runtime.getRuntime().availableProcessors()/2),new ThreadFactory()
+    {
+        @Override
+        public Thread newThread(Runnable _r)
+        {
+            Thread t=Executors.defaultThreadFactory().newThread(_r);
+            t.setName("PFSS-Decompressor-"+(decompressorNumber++));
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    
+    /**
+     * Decodes the field lines of a frame in parallel
+     */
+    public static final ForkJoinPool lineDecodingPool = new ForkJoinPool();
+    
 	public PfssPlugin()
 	{
 		try
@@ -21,6 +21,21 @@ public class PfssSettings {
 	 * Number of Preloaded PFSSdata
 	 */
 	public final static int DATA_READ_AHEAD_SIZE = 200;
+	
+	/**
+	 * Number of frames decompressed ahead of playback, including the current one
+	 */
+	public final static int DECOMPRESSED_READ_AHEAD_SIZE = 8;
+	
+	/**
+	 * Maximum number of frames kept decompressed
+	 */
+	public final static int DECOMPRESSED_CACHE_SIZE = 100;
+	
+	/**
+	 * Maximum memory used by the decompressed frames in bytes
+	 */
+	public final static long DECOMPRESSED_CACHE_BYTES = 128 * 1024 * 1024;
 
 	
 	/**
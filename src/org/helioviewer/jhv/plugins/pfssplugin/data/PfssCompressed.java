@@ -1,18 +1,23 @@
 package org.helioviewer.jhv.plugins.pfssplugin.data;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.ArrayList;
 
 import org.helioviewer.jhv.gui.GuiState3DWCS;
 import org.helioviewer.jhv.plugins.pfssplugin.PfssPlugin;
 import org.helioviewer.jhv.plugins.pfssplugin.data.caching.Cacheable;
+import org.helioviewer.jhv.plugins.pfssplugin.data.caching.PfssDiskCache;
 
 /**
  * Represents the raw pfss data. This class is able to download the data asynchronously
+ * on the {@link PfssPlugin#pool} and to run tasks once the data is there.
+ * Downloaded data is kept in the {@link PfssDiskCache}
  * 
  * This class is threadsafe
  */
@@ -24,6 +29,11 @@ public class PfssCompressed implements Cacheable
 	private final String url;
 	private final FileDescriptor descriptor;
 	
+	/**
+	 * Tasks to run when the current attempt to load the data has finished
+	 */
+	private final ArrayList<Runnable> loadedTasks = new ArrayList<>();
+	
 	/**
 	 * 
 	 * @param descriptor File Descriptor representing the file on the server
@@ -36,13 +46,71 @@ public class PfssCompressed implements Cacheable
 	}
 	
 	/**
-	 * Load the data into memory. this method signals all who are waiting on the condition "loaded"
+	 * Load the data into memory. Afterwards, the tasks registered by {@link #whenLoaded(Runnable)}
+	 * are run, whether loading succeeded or not
+	 */
+	public boolean loadData()
+	{
+	    boolean loaded = false;
+	    try
+	    {
+	        synchronized(this)
+	        {
+	            loaded = readOrDownload();
+	        }
+	    }
+	    finally
+	    {
+	        isLoading = false;
+	        
+	        ArrayList<Runnable> tasks;
+	        synchronized(loadedTasks)
+	        {
+	            tasks = new ArrayList<>(loadedTasks);
+	            loadedTasks.clear();
+	        }
+	        for(Runnable task : tasks)
+	            task.run();
+	    }
+	    return loaded;
+	}
+	
+	/**
+	 * Runs the task once the data is loaded or loading failed. The task runs on the thread
+	 * which loaded the data, or right away if the data is already loaded, so it should only
+	 * hand the actual work to another thread. Starts loading if necessary.
+	 */
+	public void whenLoaded(Runnable _task)
+	{
+	    synchronized(loadedTasks)
+	    {
+	        if(!isLoaded)
+	        {
+	            loadedTasks.add(_task);
+	            _task = null;
+	        }
+	    }
+	    
+	    if(_task != null)
+	        _task.run();
+	    else
+	        loadDataAsync();
+	}
+	
+	/**
+	 * Reads the data from the disk cache or downloads it, unless it is loaded already.
+	 * The lock has to be held.
 	 */
-	public synchronized boolean loadData()
+	private boolean readOrDownload()
 	{
 	    if(isLoaded)
+	        return true;
+	    
+	    byte[] cached = PfssDiskCache.load(descriptor);
+	    if(cached != null)
 	    {
-	        isLoading=false;
+	        rawData = cached;
+	        isLoaded = true;
 	        return true;
 	    }
 	    
@@ -54,17 +122,10 @@ public class PfssCompressed implements Cacheable
 			InputStream raw = uc.getInputStream();
 			in = new BufferedInputStream(raw);
 
-			rawData = new byte[contentLength];
-
-			int bytesRead = 0;
-			int offset = 0;
-			while (offset < contentLength) {
-				bytesRead = in.read(rawData, offset, rawData.length
-						- offset);
-				if (bytesRead == -1)
-					break;
-				offset += bytesRead;
-			}
+			byte[] data = contentLength < 0 ? readAll(in) : readFully(in, contentLength);
+			
+			PfssDiskCache.store(descriptor, data);
+			rawData = data;
 			isLoaded = true;
 			return true;
 		} catch (MalformedURLException e) {
@@ -72,7 +133,6 @@ public class PfssCompressed implements Cacheable
 		} catch (IOException e) {
 			e.printStackTrace();
 		} finally {
-		    isLoading = false;
 			try {
 				if (in != null)
 					in.close();
@@ -84,6 +144,35 @@ public class PfssCompressed implements Cacheable
 		return false;
 	}
 	
+	/**
+	 * Reads a download of known length
+	 */
+	private byte[] readFully(InputStream in, int length) throws IOException
+	{
+		byte[] data = new byte[length];
+		int offset = 0;
+		while (offset < length) {
+			int bytesRead = in.read(data, offset, length - offset);
+			if (bytesRead == -1)
+				throw new IOException("Incomplete download of "+url);
+			offset += bytesRead;
+		}
+		return data;
+	}
+	
+	/**
+	 * Reads a download of unknown length, e.g. with chunked transfer encoding
+	 */
+	private static byte[] readAll(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 16);
+		byte[] buffer = new byte[8192];
+		int bytesRead;
+		while ((bytesRead = in.read(buffer)) != -1)
+			out.write(buffer, 0, bytesRead);
+		return out.toByteArray();
+	}
+	
 	/**
 	 * 
 	 * @return true if data has finished loading into memory
@@ -117,6 +206,13 @@ public class PfssCompressed implements Cacheable
 		return this.descriptor;
 	}
 
+	@Override
+	public long getSize()
+	{
+		byte[] data = rawData;
+		return isLoaded && data != null ? data.length : 0;
+	}
+
     public void loadDataAsync()
     {
         if(isLoading || isLoaded)
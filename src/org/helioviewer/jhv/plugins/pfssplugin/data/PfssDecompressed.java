@@ -10,6 +10,7 @@ import javax.media.opengl.GL2;
 import org.helioviewer.jhv.base.math.Vector3d;
 import org.helioviewer.jhv.base.physics.DifferentialRotation;
 import org.helioviewer.jhv.plugins.pfssplugin.PfssSettings;
+import org.helioviewer.jhv.plugins.pfssplugin.data.caching.Cacheable;
 import org.helioviewer.jhv.viewmodel.view.LinkedMovieManager;
 import org.helioviewer.jhv.viewmodel.view.jp2view.JHVJPXView;
 
@@ -19,12 +20,14 @@ import com.jogamp.common.nio.Buffers;
  * Represents a frame of PFSS Data
  * 
  * it is possible that an instance of the PfssFrame does not yet contain the data. If this is the case, display() won't do anything.
+ * The data is decompressed on a background thread, display() only uploads the finished buffers.
  * 
  * this class is threadsafe
  */
-public class PfssDecompressed
+public class PfssDecompressed implements Cacheable
 {
 	private volatile boolean isDataAssigned = false;
+	private volatile boolean isDecompressing = false;
 	private volatile boolean uploadedVBOs = false;
 	private final FileDescriptor descriptor;
 	
@@ -69,6 +72,35 @@ public class PfssDecompressed
 		isDataAssigned = true;
 	}
 	
+	/**
+	 * Marks this frame as being decompressed
+	 * @return false if the frame is already decompressed or being decompressed
+	 */
+	public synchronized boolean startDecompressing()
+	{
+	    if(isDataAssigned || isDecompressing)
+	        return false;
+	    
+	    isDecompressing = true;
+	    return true;
+	}
+	
+	/**
+	 * Marks the decompression of this frame as finished, successful or not
+	 */
+	public void finishDecompressing()
+	{
+	    isDecompressing = false;
+	}
+	
+	/**
+	 * @return true while the frame is being decompressed, including the time waiting for its data
+	 */
+	public boolean isDecompressing()
+	{
+	    return isDecompressing;
+	}
+	
 	/**
 	 * Initializes data on the videocard
 	 * @param gl2
@@ -225,8 +257,19 @@ public class PfssDecompressed
 		return isDataAssigned;
 	}
 	
+	@Override
 	public FileDescriptor getDescriptor()
 	{
 		return descriptor;
 	}
+	
+	@Override
+	public synchronized long getSize()
+	{
+	    if(!isDataAssigned)
+	        return 0;
+	    
+	    return (vertices.capacity() + indicesSunToOutside.capacity() + indicesSunToSun.capacity()
+	            + indicesOutsideToSun.capacity()) * 4L;
+	}
 }
@@ -7,4 +7,9 @@ import org.helioviewer.jhv.plugins.pfssplugin.data.FileDescriptor;
  */
 public interface Cacheable {
 	public FileDescriptor getDescriptor();
+
+	/**
+	 * @return memory used by the data in bytes, 0 if the data is not loaded yet
+	 */
+	public long getSize();
 }
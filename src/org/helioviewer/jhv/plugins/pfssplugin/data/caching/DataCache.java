@@ -1,13 +1,24 @@
 package org.helioviewer.jhv.plugins.pfssplugin.data.caching;
 
+import java.util.HashMap;
+import java.util.Iterator;
+
 import org.helioviewer.jhv.plugins.pfssplugin.PfssSettings;
 import org.helioviewer.jhv.plugins.pfssplugin.data.FileDescriptor;
 import org.helioviewer.jhv.plugins.pfssplugin.data.PfssCompressed;
+import org.helioviewer.jhv.plugins.pfssplugin.data.PfssDecompressed;
+import org.helioviewer.jhv.plugins.pfssplugin.data.decompression.PfssDecompressor;
 import org.helioviewer.jhv.plugins.pfssplugin.data.managers.FileDescriptorManager;
 
 /**
  * Represents the DataCache responsible for caching, loading and preloading PfssData 
  * objects
+ * 
+ * Decompressed frames are kept in memory up to a total size, compressed frames are kept
+ * in memory and on disk in the {@link PfssDiskCache}. Frames only enter the cache of
+ * decompressed frames once they contain their data.
+ *
+ * This class is not threadsafe
  */
 public class DataCache
 {
@@ -15,6 +26,12 @@ public class DataCache
 	
 	private final LRUCache<PfssCompressed> readAheadCache;
 	private final LRUCache<PfssCompressed> cache;
+	private final LRUCache<PfssDecompressed> decompressedCache;
+	
+	/**
+	 * Frames being decompressed, they are moved to the decompressedCache once they are done
+	 */
+	private final HashMap<FileDescriptor, PfssDecompressed> decompressing = new HashMap<>();
 	
 	
 	public DataCache(FileDescriptorManager descriptors)
@@ -22,23 +39,89 @@ public class DataCache
 		this.descriptorManager = descriptors;
 		this.cache = new LRUCache<>(PfssSettings.DATA_CACHE_SIZE);
 		this.readAheadCache = new LRUCache<>(PfssSettings.DATA_READ_AHEAD_SIZE);
+		this.decompressedCache = new LRUCache<>(PfssSettings.DECOMPRESSED_CACHE_SIZE, PfssSettings.DECOMPRESSED_CACHE_BYTES);
+	}
+	
+	/**
+	 * Returns the frame for the descriptor. The frame is decompressed in the background, as well as
+	 * the frames following it.
+	 * @param d
+	 * @return frame, which might not contain the data yet
+	 */
+	public PfssDecompressed getDecompressed(FileDescriptor d)
+	{
+		collectDecompressed();
+		PfssDecompressed frame = getDecompressedAsync(d);
+		
+		FileDescriptor next = descriptorManager.getNext(d);
+		for(int i = 1; i < PfssSettings.DECOMPRESSED_READ_AHEAD_SIZE;i++)
+		{
+			getDecompressedAsync(next);
+			next=descriptorManager.getNext(next);
+		}
+		return frame;
+	}
+	
+	/**
+	 * Get a frame, which is decompressed asynchronously
+	 * @param d
+	 * @return frame which will contain the data in the future
+	 */
+	private PfssDecompressed getDecompressedAsync(FileDescriptor d)
+	{
+		PfssDecompressed frame = decompressedCache.get(d);
+		if(frame != null)
+			return frame;
+		
+		frame = decompressing.get(d);
+		if(frame == null)
+		{
+			frame = new PfssDecompressed(d);
+			decompressing.put(d, frame);
+			PfssDecompressor.decompressAsync(get(d), frame);
+		}
+		return frame;
+	}
+	
+	/**
+	 * Moves the frames, which finished decompressing, to the decompressedCache. Frames which
+	 * failed are dropped, so they are started again when they are requested the next time.
+	 * Afterwards, the decompressedCache checks its size limit against the current sizes of
+	 * all its frames.
+	 */
+	private void collectDecompressed()
+	{
+		Iterator<PfssDecompressed> it = decompressing.values().iterator();
+		while(it.hasNext())
+		{
+			PfssDecompressed frame = it.next();
+			if(frame.isDataAssigned())
+			{
+				it.remove();
+				decompressedCache.put(frame.getDescriptor(), frame);
+			}
+			else if(!frame.isDecompressing())
+				it.remove();
+		}
+		decompressedCache.updateSizes();
 	}
 	
 	public PfssCompressed get(FileDescriptor d)
 	{
-		if(cache.contains(d))
-			return cache.get(d);
+		PfssCompressed data = cache.get(d);
+		if(data != null)
+			return data;
 		
-		if(readAheadCache.contains(d))
+		data = readAheadCache.get(d);
+		if(data != null)
 		{
-			PfssCompressed data = readAheadCache.get(d);
 			cache.put(d, data);
 			readAhead(d);
 			return data;
 		}
 		
 		//cache miss
-		PfssCompressed data = getDataAsync(d);
+		data = getDataAsync(d);
 		cache.put(d, data);
 		readAhead(d);
 		return data;
@@ -62,6 +145,22 @@ public class DataCache
 		}
 	}
 	
+	/**
+	 * @return fraction of the decompressed frames requested, which were found in memory
+	 */
+	public double getDecompressedHitRate()
+	{
+		return decompressedCache.getHitRate();
+	}
+	
+	/**
+	 * @return fraction of the compressed frames requested, which were found in memory
+	 */
+	public double getCompressedHitRate()
+	{
+		return cache.getHitRate();
+	}
+	
 	   /**
      * Get PfssData Asynchronously
      * @param desc
@@ -1,60 +1,127 @@
 package org.helioviewer.jhv.plugins.pfssplugin.data.caching;
 
-import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.helioviewer.jhv.plugins.pfssplugin.data.FileDescriptor;
 
 /**
- * Implementation of a simple First-in-First-out Cache. In this usecase this cache uses the LRU algorithm.
- * 
+ * Implementation of a Least-Recently-Used Cache. Both put and get make an entry the most recently used one.
+ * The cache is bounded by the number of entries and optionally by the total size of the entries in bytes.
+ * The size of an entry may change after it was put, e.g. once its data is loaded. Such changes are taken
+ * into account on {@link #updateSizes()}.
+ *
  * This class is not threadsafe
  */
 public class LRUCache<T extends Cacheable> {
-	private final HashMap<FileDescriptor, Integer> cacheIndices;
-	private final ArrayList<T> cache;
-	private int oldestIndex;
+	private final LinkedHashMap<FileDescriptor, T> cache;
+	private final int maxEntries;
+	private final long maxBytes;
 	
+	/** Size of each entry when it was last checked, and their sum */
+	private final HashMap<FileDescriptor, Long> sizes = new HashMap<>();
+	private long bytes;
+	
+	private long hits;
+	private long misses;
+
 	/**
-	 * 
-	 * @param size total size of the cache
+	 *
+	 * @param size maximum number of entries of the cache
 	 */
 	public LRUCache(int size) {
-		oldestIndex = 0;
-		cacheIndices = new HashMap<>(size,1);
-		cache = new ArrayList<T>(size);
-		
-		//init cache
-		for(int i = 0; i < size;i++) {
-			cache.add(null);
-		}
+		this(size, Long.MAX_VALUE);
 	}
-	
+
+	/**
+	 *
+	 * @param size maximum number of entries of the cache
+	 * @param bytes maximum total size of the entries in bytes. The most recently used entry is always kept.
+	 */
+	public LRUCache(int size, long bytes) {
+		maxEntries = size;
+		maxBytes = bytes;
+		cache = new LinkedHashMap<>(size, 0.75f, true);
+	}
+
 	public void put(FileDescriptor key, T value) {
-		T oldest = cache.get(oldestIndex);
-		if(oldest != null) {
-			//unload
-			FileDescriptor d = oldest.getDescriptor();
-			cacheIndices.remove(d);
-		}
-		
-		//move index
-		cacheIndices.put(key, oldestIndex);
-		cache.set(oldestIndex, value);
-		
-		oldestIndex = ++oldestIndex % cache.size();
+		cache.put(key, value);
+		setSize(key, value.getSize());
+		evict();
 	}
-	
+
+	/**
+	 * Checks the sizes of all entries again and removes the least recently used entries, if the
+	 * cache grew beyond its bounds
+	 */
+	public void updateSizes() {
+		if(maxBytes == Long.MAX_VALUE)
+			return;
+
+		for(Map.Entry<FileDescriptor, T> e : cache.entrySet())
+			setSize(e.getKey(), e.getValue().getSize());
+		evict();
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @return the cached value, or null if it is not in the cache
+	 */
 	public T get(FileDescriptor key) {
-		Integer index = cacheIndices.get(key);
-		return cache.get(index);
+		T value = cache.get(key);
+		if(value == null)
+			misses++;
+		else
+			hits++;
+		return value;
 	}
-	
+
+	/**
+	 * Checks for an entry without changing the order of use
+	 */
 	public boolean contains(FileDescriptor key) {
-		return this.cacheIndices.containsKey(key);
+		return this.cache.containsKey(key);
 	}
-	
+
+	/**
+	 *
+	 * @return maximum number of entries of the cache
+	 */
 	public int size() {
-		return cache.size();
+		return maxEntries;
+	}
+
+	/**
+	 *
+	 * @return fraction of the calls to get, which found the value in the cache
+	 */
+	public double getHitRate() {
+		long total = hits + misses;
+		return total == 0 ? 0 : hits / (double)total;
+	}
+
+	/**
+	 * Removes the least recently used entries, until the cache is within its bounds
+	 */
+	private void evict() {
+		Iterator<FileDescriptor> it = cache.keySet().iterator();
+		while(cache.size() > maxEntries || (bytes > maxBytes && cache.size() > 1)) {
+			FileDescriptor key = it.next();
+			it.remove();
+			Long size = sizes.remove(key);
+			if(size != null)
+				bytes -= size;
+		}
+	}
+
+	/**
+	 * Records the current size of an entry
+	 */
+	private void setSize(FileDescriptor key, long size) {
+		Long old = sizes.put(key, size);
+		bytes += size - (old == null ? 0 : old);
 	}
 }
@@ -0,0 +1,334 @@
+package org.helioviewer.jhv.plugins.pfssplugin.data.caching;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.helioviewer.jhv.Directories;
+import org.helioviewer.jhv.Settings;
+import org.helioviewer.jhv.plugins.pfssplugin.data.FileDescriptor;
+
+/**
+ * Persistent cache of the compressed PFSS files and the monthly file lists.
+ *
+ * The files are stored in the subdirectory "pfss" of the cache directory, so
+ * they are available again in later sessions and without a connection to the
+ * server. Whenever a file is stored, the least recently used files are removed
+ * until the directory fits into the limit given by the setting
+ * <code>pfss.cache.size</code> in megabytes.
+ *
+ * The times the files were last used are only tracked during a session, the
+ * next session starts from the times the files were written.
+ *
+ * This class is threadsafe
+ */
+public class PfssDiskCache
+{
+	/** Limit used, if the setting is missing or invalid */
+	private static final long DEFAULT_SIZE_LIMIT = 1024 * 1024 * 200;
+
+	/**
+	 * File lists of months, which were not over when they were stored, are
+	 * fetched again after this time, since files may have been added
+	 */
+	private static final long INDEX_REFRESH_INTERVAL = 1000 * 60 * 60;
+
+	private static final String INDEX_SUFFIX = "-list.txt";
+
+	/** A file of the cache directory */
+	private static class Entry
+	{
+		private final File file;
+		private final long size;
+		private long lastAccess;
+
+		private Entry(File _file, long _size, long _lastAccess)
+		{
+			file = _file;
+			size = _size;
+			lastAccess = _lastAccess;
+		}
+	}
+
+	/** Cached files by name, guarded by the class lock */
+	private static HashMap<String, Entry> entries = null;
+	private static long totalSize = 0;
+
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+
+	private PfssDiskCache()
+	{
+	}
+
+	/**
+	 * Returns the compressed PFSS file, if it is cached
+	 * @param d descriptor of the file
+	 * @return contents of the file, or null if it is not cached
+	 */
+	public static byte[] load(FileDescriptor d)
+	{
+		byte[] data = read(getFileName(d));
+		if(data == null)
+			misses.incrementAndGet();
+		else
+			hits.incrementAndGet();
+		return data;
+	}
+
+	/**
+	 * Stores a compressed PFSS file and removes the least recently used files if necessary
+	 * @param d descriptor of the file
+	 * @param data contents of the file
+	 */
+	public static void store(FileDescriptor d, byte[] data)
+	{
+		write(getFileName(d), data);
+	}
+
+	/**
+	 * Returns the cached file list of a month
+	 * @param year
+	 * @param month starting at 0
+	 * @param allowOutdated also return the list, if files may have been added to the month after it was stored
+	 * @return contents of the list, or null if it is not cached or outdated
+	 */
+	public static byte[] loadMonthIndex(int year, int month, boolean allowOutdated)
+	{
+		String name = getFileName(year, month) + INDEX_SUFFIX;
+		if(!allowOutdated)
+		{
+			Calendar endOfMonth = new GregorianCalendar(year, month, 1);
+			endOfMonth.add(Calendar.MONTH, 1);
+
+			long stored = new File(getDirectory(), name).lastModified();
+			if(stored < endOfMonth.getTimeInMillis() && System.currentTimeMillis() - stored > INDEX_REFRESH_INTERVAL)
+				return null;
+		}
+		return read(name);
+	}
+
+	/**
+	 * Stores the file list of a month
+	 * @param year
+	 * @param month starting at 0
+	 * @param data contents of the list
+	 */
+	public static void storeMonthIndex(int year, int month, byte[] data)
+	{
+		write(getFileName(year, month) + INDEX_SUFFIX, data);
+	}
+
+	/**
+	 * Returns the size limit of the cache in bytes.
+	 *
+	 * @return Limit as given by the settings
+	 */
+	public static long getSizeLimit()
+	{
+		String value = Settings.getProperty("pfss.cache.size");
+		try
+		{
+			double megabytes = Double.parseDouble(value);
+			if(megabytes > 0)
+				return (long)(megabytes * 1024 * 1024);
+			System.err.println(">> PfssDiskCache > Invalid pfss.cache.size: " + value);
+		}
+		catch(NumberFormatException e)
+		{
+			System.err.println(">> PfssDiskCache > Invalid pfss.cache.size: " + value);
+		}
+		catch(NullPointerException e)
+		{
+			// setting missing, use the default
+		}
+		return DEFAULT_SIZE_LIMIT;
+	}
+
+	/**
+	 * @return fraction of the PFSS files requested, which were found in the cache
+	 */
+	public static double getHitRate()
+	{
+		long h = hits.get();
+		long total = h + misses.get();
+		return total == 0 ? 0 : h / (double)total;
+	}
+
+	/** Returns the number of PFSS files found in the cache */
+	public static long getHits()
+	{
+		return hits.get();
+	}
+
+	/** Returns the number of PFSS files not found in the cache */
+	public static long getMisses()
+	{
+		return misses.get();
+	}
+
+	private static String getFileName(FileDescriptor d)
+	{
+		return getFileName(d.getYear(), d.getMonth()) + "-" + d.getFileName();
+	}
+
+	private static String getFileName(int year, int month)
+	{
+		return year + "-" + (month < 9 ? "0" : "") + (month + 1);
+	}
+
+	private static File getDirectory()
+	{
+		return new File(Directories.CACHE.getFile(), "pfss");
+	}
+
+	/**
+	 * Reads a cached file and marks it as recently used
+	 * @return contents of the file, or null if it does not exist or cannot be read
+	 */
+	private static byte[] read(String name)
+	{
+		Entry entry;
+		synchronized(PfssDiskCache.class)
+		{
+			entry = getEntries().get(name);
+			if(entry == null)
+				return null;
+
+			entry.lastAccess = System.currentTimeMillis();
+		}
+
+		try(RandomAccessFile raf = new RandomAccessFile(entry.file, "r"))
+		{
+			byte[] data = new byte[(int)raf.length()];
+			raf.readFully(data);
+			return data;
+		}
+		catch(IOException e)
+		{
+			synchronized(PfssDiskCache.class)
+			{
+				if(entries.remove(name) != null)
+					totalSize -= entry.size;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Writes a file to the cache and removes the least recently used files if necessary.
+	 * The data is written to a temporary file of its own first, so the class lock is only
+	 * needed to move it into place.
+	 */
+	private static void write(String name, byte[] data)
+	{
+		File directory = getDirectory();
+		File file = new File(directory, name);
+
+		synchronized(PfssDiskCache.class)
+		{
+			getEntries();
+		}
+
+		File tmpFile = null;
+		try
+		{
+			tmpFile = File.createTempFile(name + "-", ".tmp", directory);
+			try(FileOutputStream out = new FileOutputStream(tmpFile))
+			{
+				out.write(data);
+			}
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+			if(tmpFile != null)
+				tmpFile.delete();
+			return;
+		}
+
+		synchronized(PfssDiskCache.class)
+		{
+			if(file.exists() && !file.delete() || !tmpFile.renameTo(file))
+			{
+				tmpFile.delete();
+				return;
+			}
+
+			Entry old = entries.put(name, new Entry(file, data.length, file.lastModified()));
+			if(old != null)
+				totalSize -= old.size;
+			totalSize += data.length;
+
+			evict();
+		}
+	}
+
+	/**
+	 * Removes the least recently used files, until the cache fits into the size limit.
+	 * The class lock has to be held.
+	 */
+	private static void evict()
+	{
+		long limit = getSizeLimit();
+		if(totalSize <= limit)
+			return;
+
+		List<Entry> candidates = new ArrayList<>(entries.values());
+		Collections.sort(candidates, new Comparator<Entry>()
+		{
+			@Override
+			public int compare(Entry o1, Entry o2)
+			{
+				return Long.compare(o1.lastAccess, o2.lastAccess);
+			}
+		});
+
+		for(int i = 0; totalSize > limit && i < candidates.size(); i++)
+		{
+			Entry entry = candidates.get(i);
+			if(entry.file.exists() && !entry.file.delete())
+				continue;
+
+			entries.remove(entry.file.getName());
+			totalSize -= entry.size;
+		}
+	}
+
+	/**
+	 * Returns the entries, listing the cache directory on first use. The class lock has to be held.
+	 */
+	private static HashMap<String, Entry> getEntries()
+	{
+		if(entries != null)
+			return entries;
+
+		entries = new HashMap<>();
+		File directory = getDirectory();
+		directory.mkdirs();
+
+		File[] files = directory.listFiles();
+		if(files != null)
+			for(File file : files)
+			{
+				if(file.getName().endsWith(".tmp"))
+				{
+					file.delete();
+					continue;
+				}
+
+				entries.put(file.getName(), new Entry(file, file.length(), file.lastModified()));
+				totalSize += file.length();
+			}
+		return entries;
+	}
+}
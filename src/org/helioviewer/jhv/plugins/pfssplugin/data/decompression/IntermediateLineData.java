@@ -1,157 +1,246 @@
 package org.helioviewer.jhv.plugins.pfssplugin.data.decompression;
 
-import java.util.LinkedList;
+import java.util.concurrent.RecursiveAction;
+
+import org.helioviewer.jhv.base.physics.Constants;
+import org.helioviewer.jhv.plugins.pfssplugin.PfssPlugin;
 
 /**
  * This class is responsible for holding the intermediate data during decompression.
+ *
+ * All lines are stored one after another in primitive arrays: the encoded channels
+ * in one array per channel, the decoded points interleaved (x, y, z) as they are
+ * uploaded to the graphics card. The lines are independent of each other and are
+ * decoded in parallel.
  */
 public class IntermediateLineData {
-	public float[][] channels;
-	public int size;
-	
-	private IntermediateLineData() {
+	/** Minimum number of lines decoded by one task */
+	private static final int LINES_PER_TASK = 64;
+
+	/** index of the first point of each line, followed by the total number of points */
+	private final int[] offsets;
+
+	/** encoded x, y and z channels */
+	private final int[][] channels;
+
+	/** decoded points, interleaved */
+	private final float[] vertices;
+
+	private final LineType[] types;
+
+	/**
+	 * split all concatenated channels to the correspoding line.
+	 * @param lengths array of all line lengths. These lengths are before they were Run-Length Encoded
+	 * @param x Channel
+	 * @param y Channel
+	 * @param z Channel
+	 */
+	public IntermediateLineData(int[] lengths, int[] x, int[] y, int[] z) {
+		offsets = new int[lengths.length + 1];
+		for(int i = 0; i < lengths.length;i++)
+			offsets[i+1] = offsets[i] + lengths[i];
 
+		channels = new int[][]{x,y,z};
+		vertices = new float[getSize() * 3];
+		types = new LineType[lengths.length];
 	}
-	
+
 	/**
-	 * decode prediction coding
+	 * decode prediction coding of all lines and determine their types
 	 */
-	public void decodePrediction(float _Q1, float _Q2, float _Q3)
-	{
-		dequantizePredictionErrors(_Q1,_Q2,_Q3);
-		
-		for(int i = 0; i < channels.length;i++) {
-			float[] decodedChannel = new float[channels[i].length];
-			decodedChannel[0] = channels[i][0];
-			decodedChannel[decodedChannel.length-1] = channels[i][0]+channels[i][1];
-			if(decodedChannel.length > 2) {
-				int channelIndex = 2;
-				LinkedList<Indices> queue = new LinkedList<>();
-				queue.add(new Indices(0, decodedChannel.length-1));
-				while(!queue.isEmpty()) {
-					prediction(queue,decodedChannel,channels[i],channelIndex);
-					channelIndex++;
-				}
-			}
-			this.channels[i] = decodedChannel;
-		}
-		this.size = this.channels[0].length;
+	public void decode(float _Q1, float _Q2, float _Q3) {
+		PfssPlugin.lineDecodingPool.invoke(new DecodeTask(0, getLineCount(), _Q1, _Q2, _Q3));
 	}
-	
+
 	/**
-	 * Multiplies the prediction errors
-	 * @param channels
+	 * @return number of lines
 	 */
-	private void dequantizePredictionErrors(float _Q1, float _Q2, float _Q3) {
-		for(int i = 0; i < channels.length;i++) { 
-			float[] current = channels[i];
-			
-			int j=0;
-			for(; j < 5 && j< current.length;j++) {
-				current[j] *= _Q1;
-			}
-			
-			for(; j < 16 && j< current.length;j++) {
-				current[j] *= _Q2;
+	public int getLineCount() {
+		return types.length;
+	}
+
+	/**
+	 * @return total number of points of all lines
+	 */
+	public int getSize() {
+		return offsets[offsets.length - 1];
+	}
+
+	/**
+	 * @return index of the first point of the line
+	 */
+	public int getOffset(int line) {
+		return offsets[line];
+	}
+
+	/**
+	 * @return number of points of the line
+	 */
+	public int getSize(int line) {
+		return offsets[line + 1] - offsets[line];
+	}
+
+	/**
+	 * @return type of the line, valid after decoding
+	 */
+	public LineType getType(int line) {
+		return types[line];
+	}
+
+	/**
+	 * @return decoded points of all lines, interleaved (x, y, z)
+	 */
+	public float[] getVertices() {
+		return vertices;
+	}
+
+	/**
+	 * Decodes a range of lines, splitting it for parallel execution
+	 */
+	private class DecodeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int firstLine;
+		private final int endLine;
+		private final float Q1;
+		private final float Q2;
+		private final float Q3;
+
+		public DecodeTask(int _firstLine, int _endLine, float _Q1, float _Q2, float _Q3) {
+			firstLine = _firstLine;
+			endLine = _endLine;
+			Q1 = _Q1;
+			Q2 = _Q2;
+			Q3 = _Q3;
+		}
+
+		@Override
+		protected void compute() {
+			if(endLine - firstLine > LINES_PER_TASK) {
+				int middle = (firstLine + endLine) >>> 1;
+				invokeAll(new DecodeTask(firstLine, middle, Q1, Q2, Q3), new DecodeTask(middle, endLine, Q1, Q2, Q3));
+				return;
 			}
 
-			for(;  j < current.length;j++) {
-				current[j] *= _Q3;
+			int maxSize = 0;
+			for(int i = firstLine; i < endLine;i++)
+				maxSize = Math.max(maxSize, getSize(i));
+
+			//scratch space, shared by all lines of this task
+			float[] encoded = new float[maxSize];
+			int[] queue = new int[maxSize * 2];
+
+			for(int i = firstLine; i < endLine;i++) {
+				for(int c = 0; c < 3;c++)
+					decodePrediction(i, c, Q1, Q2, Q3, encoded, queue);
+				types[i] = determineType(i);
 			}
 		}
 	}
-	
+
 	/**
-	 * predict one value
-	 * @param queue Breadth first indices of the next prediction
-	 * @param decodedChannel decoded channel
-	 * @param encodedChanel
-	 * @param nextIndex
+	 * decode prediction coding of one channel of a line
+	 * @param encoded scratch space for the dequantized prediction errors
+	 * @param queue scratch space for the breadth first indices of the next predictions
 	 */
-	private static void prediction(LinkedList<Indices> queue,float[] decodedChannel,float[] encodedChanel, int nextIndex) {
-		Indices i = queue.pollFirst();
-		float start = decodedChannel[i.startIndex];
-		float end = decodedChannel[i.endIndex];
-		
-		int toPredictIndex = (i.startIndex + i.endIndex) / 2;
-		float predictionError = encodedChanel[nextIndex];
-		
-		//predict
-		float predictionFactor0 = (toPredictIndex-i.startIndex)/(float)(i.endIndex - i.startIndex);
-		float prediction = (1-predictionFactor0)* start + predictionFactor0*end;
-		decodedChannel[toPredictIndex] = prediction-predictionError;
-		
-		//add next level of indices
-		if (i.startIndex + 1 != toPredictIndex)
-			queue.addLast(new Indices(i.startIndex,toPredictIndex));
-
-		if (i.endIndex - 1 != toPredictIndex)
-			queue.addLast(new Indices(toPredictIndex,i.endIndex));
+	private void decodePrediction(int _line, int _channel, float _Q1, float _Q2, float _Q3, float[] encoded, int[] queue) {
+		int offset = offsets[_line];
+		int size = getSize(_line);
+		if(size == 0)
+			return;
+
+		dequantizePredictionErrors(channels[_channel], offset, size, _Q1, _Q2, _Q3, encoded);
+
+		int first = offset * 3 + _channel;
+		vertices[first] = encoded[0];
+		if(size == 1)
+			return;
+		vertices[first + (size-1) * 3] = encoded[0]+encoded[1];
+
+		//breadth first, the prediction errors are stored in this order
+		int head = 0;
+		int tail = 0;
+		int nextIndex = 2;
+		if(size > 2) {
+			queue[tail++] = 0;
+			queue[tail++] = size-1;
+		}
+		while(head < tail) {
+			int startIndex = queue[head++];
+			int endIndex = queue[head++];
+			float start = vertices[first + startIndex * 3];
+			float end = vertices[first + endIndex * 3];
+
+			int toPredictIndex = (startIndex + endIndex) / 2;
+			float predictionError = encoded[nextIndex++];
+
+			//predict
+			float predictionFactor0 = (toPredictIndex-startIndex)/(float)(endIndex - startIndex);
+			float prediction = (1-predictionFactor0)* start + predictionFactor0*end;
+			vertices[first + toPredictIndex * 3] = prediction-predictionError;
+
+			//add next level of indices
+			if (startIndex + 1 != toPredictIndex) {
+				queue[tail++] = startIndex;
+				queue[tail++] = toPredictIndex;
+			}
+
+			if (endIndex - 1 != toPredictIndex) {
+				queue[tail++] = toPredictIndex;
+				queue[tail++] = endIndex;
+			}
+		}
 	}
-	
+
 	/**
-	 * split all concatenated channels to the correspoding line. In the end, all Channels will
-	 * @param lengths array of all line lengths. These lengths are before they were Run-Length Encoded
-	 * @param radius Channel
-	 * @param phi Channel
-	 * @param theta Channel
-	 * @return
+	 * Multiplies the prediction errors
+	 * @param channel encoded channel of all lines
+	 * @param out dequantized prediction errors of the line
 	 */
-	public static IntermediateLineData[] splitToLines(int[] lengths, int[] x, int[] y,int[] z) {
-		 IntermediateLineData[] lines = new IntermediateLineData[lengths.length];
-		 int[][] channels = new int[][]{x,y,z};
-		 
-		 int[] indices = new int[3];
-		 
-		 //go through all lines
-		 for(int i = 0; i < lines.length;i++) {
-			 IntermediateLineData currentLine = new IntermediateLineData();
-			 currentLine.size = lengths[i];
-			 currentLine.channels = new float[3][];
-
-			 //for all channels
-			 for(int j = 0; j < 3;j++) {
-				 int index = indices[j];
-				 
-				 float[] channel = toFloat(channels[j],index,currentLine.size);
-				 currentLine.channels[j] = channel;
-				 
-				 index += currentLine.size;
-				 indices[j] = index;
-			 }
-			 
-			 lines[i] = currentLine;
-		 }
-		 return lines;
-	 }
-	
+	private static void dequantizePredictionErrors(int[] channel, int offset, int size, float _Q1, float _Q2, float _Q3, float[] out) {
+		int j=0;
+		for(; j < 5 && j< size;j++) {
+			out[j] = channel[offset + j] * _Q1;
+		}
+
+		for(; j < 16 && j< size;j++) {
+			out[j] = channel[offset + j] * _Q2;
+		}
+
+		for(;  j < size;j++) {
+			out[j] = channel[offset + j] * _Q3;
+		}
+	}
+
 	/**
-	 * Copy from int array to float
-	 * @param data
-	 * @param start
-	 * @param length
-	 * @return
+	 * Determine Line Type by the distance of its end points to the sun
 	 */
-	private static float[] toFloat(int[] data,int start, int length) {
-		float[] out = new float[length];
-		for(int i = start; i < length+start;i++) {
-			out[i-start] = data[i];
+	private LineType determineType(int _line) {
+		int size = getSize(_line);
+		if(size == 0)
+			return LineType.SUN_TO_SUN;
+
+		double mag0 = magnitude(offsets[_line]);
+		if(mag0 < Constants.SUN_RADIUS*1.05) {
+			double mag1 = magnitude(offsets[_line] + size - 1);
+			if(mag1 > Constants.SUN_RADIUS*1.05) {
+				return LineType.SUN_TO_OUTSIDE;
+			} else {
+				return LineType.SUN_TO_SUN;
+			}
+		}
+		else {
+			return LineType.OUTSIDE_TO_SUN;
 		}
-		return out;
 	}
 
 	/**
-	 * Helper class to und Prediction coding
-	 * @author Jonas Schwammberger
-	 *
+	 * @return Magnitude of a decoded point
 	 */
-	private static class Indices {
-		public int startIndex;
-		public int endIndex;
-		
-		public Indices(int start, int end) {
-			this.startIndex = start;
-			this.endIndex = end;
-		}
+	private double magnitude(int _point) {
+		double xi = vertices[_point * 3];
+		double yi = vertices[_point * 3 + 1];
+		double zi = vertices[_point * 3 + 2];
+		return Math.sqrt(xi*xi+yi*yi+zi*zi);
 	}
 }
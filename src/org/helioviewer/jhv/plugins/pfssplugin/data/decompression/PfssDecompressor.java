@@ -1,17 +1,17 @@
 package org.helioviewer.jhv.plugins.pfssplugin.data.decompression;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
-import java.util.ArrayList;
 
 import nom.tam.fits.BasicHDU;
 import nom.tam.fits.BinaryTableHDU;
 import nom.tam.fits.Fits;
 import nom.tam.fits.FitsException;
 
+import org.helioviewer.jhv.gui.GuiState3DWCS;
+import org.helioviewer.jhv.plugins.pfssplugin.PfssPlugin;
 import org.helioviewer.jhv.plugins.pfssplugin.data.PfssCompressed;
 import org.helioviewer.jhv.plugins.pfssplugin.data.PfssDecompressed;
 
@@ -22,6 +22,45 @@ import com.jogamp.common.nio.Buffers;
  */
 public class PfssDecompressor
 {
+	/**
+	 * Decompresses the PfssData into the frame object on a background thread, unless this
+	 * is already done or in progress. The data is loaded on the {@link PfssPlugin#pool} first,
+	 * the decompression is only queued once it is there. Repaints when the frame is ready.
+	 */
+	public static void decompressAsync(final PfssCompressed _src,final PfssDecompressed _dest)
+	{
+	    if(!_dest.startDecompressing())
+	        return;
+	    
+	    final Runnable decompression = new Runnable()
+	    {
+	        @Override
+	        public void run()
+	        {
+	            try
+	            {
+	                decompress(_src,_dest);
+	            }
+	            finally
+	            {
+	                _dest.finishDecompressing();
+	            }
+	            
+	            if(_dest.isDataAssigned())
+	                GuiState3DWCS.mainComponentView.getComponent().repaint();
+	        }
+	    };
+	    
+	    _src.whenLoaded(new Runnable()
+	    {
+	        @Override
+	        public void run()
+	        {
+	            PfssPlugin.decompressionPool.execute(decompression);
+	        }
+	    });
+	}
+	
 	/**
 	 * Reads the PfssData and fills out the frame object
 	 */
@@ -33,7 +72,7 @@ public class PfssDecompressor
 		if (_dest.isDataAssigned())
 		    return;
 
-		try(InputStream is=new ByteArrayInputStream(UnRar.unrarData(_src).toByteArray()))
+		try(InputStream is=UnRar.unrarData(_src))
 		{
 			Fits fits = new Fits(is, false);
 			BasicHDU hdus[] = fits.read();
@@ -55,15 +94,10 @@ public class PfssDecompressor
 			int[] yInt = ByteDecoder.decodeAdaptive(yRaw);
 			int[] zInt = ByteDecoder.decodeAdaptive(zRaw);
 
-			IntermediateLineData[] lines = IntermediateLineData.splitToLines(lengths, xInt, yInt, zInt);
-			for(IntermediateLineData l : lines)
-				l.decodePrediction(Q1, Q2, Q3);
-		
-			ArrayList<DecompressedLine> decompressedLines = new ArrayList<DecompressedLine>(lines.length);
-			for(IntermediateLineData line : lines)
-				decompressedLines.add(new DecompressedLine(line));
+			IntermediateLineData lines = new IntermediateLineData(lengths, xInt, yInt, zInt);
+			lines.decode(Q1, Q2, Q3);
 			
-            convertToBuffers(decompressedLines, l0, b0, _dest);
+            convertToBuffers(lines, l0, b0, _dest);
 		}
 		catch (FitsException | IOException e)
 		{
@@ -73,70 +107,53 @@ public class PfssDecompressor
 
 	
 	/**
-	 * subsamples and converts the data to the buffer representation needed for the graphics card.
-	 * 
-	 * Also does average filtering.
+	 * converts the data to the buffer representation needed for the graphics card.
 	 * @param lines
 	 */
-	private static void convertToBuffers(ArrayList<DecompressedLine> lines, float _l0, float _b0, PfssDecompressed _frame)
+	private static void convertToBuffers(IntermediateLineData lines, float _l0, float _b0, PfssDecompressed _frame)
 	{
 		int stoSize= 0;
 		int stsSize = 0;
 		int otsSize = 0;
-		int totalSize = 0;
-		for(int i = 0; i < lines.size();i++)
+		for(int i = 0; i < lines.getLineCount();i++)
 		{
-			DecompressedLine currentLine = lines.get(i);
-
-			DecompressedLine subsampledLine = new DecompressedLine(currentLine.points,currentLine.getType());
-			lines.set(i, subsampledLine);
-			switch(subsampledLine.getType())
+			if(lines.getSize(i) == 0)
+				continue;
+			
+			switch(lines.getType(i))
 			{
 				case OUTSIDE_TO_SUN:
-					otsSize += subsampledLine.getSize()-1;
+					otsSize += lines.getSize(i)-1;
 					break;
 				case SUN_TO_OUTSIDE:
-					stoSize += subsampledLine.getSize()-1;
+					stoSize += lines.getSize(i)-1;
 					break;
 				case SUN_TO_SUN:
-					stsSize += subsampledLine.getSize()-1;
+					stsSize += lines.getSize(i)-1;
 					break;
 				default:
 					break;
 			}
-			
-			totalSize += subsampledLine.getSize();
 		}
 		
-		//copy to buffers
-		FloatBuffer vertices = Buffers.newDirectFloatBuffer(totalSize * 3 );
+		//copy to buffers, the points of all lines are already in order
+		FloatBuffer vertices = Buffers.newDirectFloatBuffer(lines.getSize() * 3);
+		vertices.put(lines.getVertices(), 0, lines.getSize() * 3);
 		IntBuffer indicesSunToOutside = Buffers.newDirectIntBuffer(stoSize * 2);
 		IntBuffer indicesSunToSun = Buffers.newDirectIntBuffer(stsSize * 2);
 		IntBuffer indicesOutsideToSun = Buffers.newDirectIntBuffer(otsSize * 2);
 
-		int vertexIndex = 0;
-		for(int i = 0; i < lines.size();i++) {
-			DecompressedLine line = lines.get(i);
-			IntBuffer indexBuffer = getLineType(line.getType(), indicesSunToOutside,
+		for(int i = 0; i < lines.getLineCount();i++) {
+			IntBuffer indexBuffer = getLineType(lines.getType(i), indicesSunToOutside,
 					indicesSunToSun, indicesOutsideToSun);
 			
-			int pointIndex = 0;
-			while(pointIndex+1 < line.getSize())
+			int vertexIndex = lines.getOffset(i);
+			int lastIndex = vertexIndex + lines.getSize(i) - 1;
+			for(; vertexIndex < lastIndex;vertexIndex++)
 			{
-				DecompressedPoint point = line.getPoint(pointIndex);
-				vertices.put(point.getX());
-				vertices.put(point.getY());
-				vertices.put(point.getZ());
 				indexBuffer.put(vertexIndex);
 				indexBuffer.put(vertexIndex+1);
-				vertexIndex++;
-				pointIndex++;
 			}
-			DecompressedPoint point = line.getPoint(pointIndex);
-			vertices.put(point.getX());
-			vertices.put(point.getY());
-			vertices.put(point.getZ());
-			vertexIndex++;
 		}
 
 		vertices.flip();
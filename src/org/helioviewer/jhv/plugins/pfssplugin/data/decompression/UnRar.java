@@ -3,9 +3,10 @@ package org.helioviewer.jhv.plugins.pfssplugin.data.decompression;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
-import org.apache.tika.io.TikaInputStream;
 import org.helioviewer.jhv.plugins.pfssplugin.data.PfssCompressed;
 
 import de.innosystec.unrar.Archive;
@@ -17,38 +18,61 @@ import de.innosystec.unrar.rarfile.FileHeader;
  */
 public class UnRar {
 
+	/**
+	 * Output stream, whose buffer can be read without copying it
+	 */
+	private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream
+	{
+		public ExposedByteArrayOutputStream(int _size)
+		{
+			super(_size);
+		}
+
+		public InputStream toInputStream()
+		{
+			return new ByteArrayInputStream(buf, 0, count);
+		}
+	}
+
 	/**
 	 * Unrar PFSSData object
 	 * @param data to unrar
-	 * @return raw byte stream of unrar data
-	 * @throws IOException The jUnrar library seems unable to decompress a byteArrayInputStream and needs to have a file on the local filesystem. Throws an IOException if it was unable to write the temp file.
+	 * @return stream of the unrar data, reading directly from the extracted bytes
+	 * @throws IOException The jUnrar library is unable to decompress from memory and needs to have a file on the local filesystem. Throws an IOException if it was unable to write the temp file.
 	 */
-	public static ByteArrayOutputStream unrarData(PfssCompressed data) throws IOException {
+	public static InputStream unrarData(PfssCompressed data) throws IOException {
+		File file = File.createTempFile("pfss", ".rar");
 		Archive archive = null;
 		try {
-			
-			File file = TikaInputStream.get(new ByteArrayInputStream(data.getData())).getFile();
+			try(FileOutputStream out = new FileOutputStream(file))
+			{
+				out.write(data.getData());
+			}
+
             archive = new Archive(file, null);
-            
+
             for(;;)
             {
     			FileHeader fh = archive.nextFileHeader();
     			if(fh==null)
     			    throw new IOException("Unsupported PFSS file format version");
-    			
+
     			if("v1.fits".equals(fh.getFileNameString()))
     			{
-        			ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    				// presize, so the buffer does not grow while extracting
+        			ExposedByteArrayOutputStream stream = new ExposedByteArrayOutputStream((int)Math.min(Integer.MAX_VALUE - 8, Math.max(32, fh.getFullUnpackSize())));
         			archive.extractFile(fh, stream);
-        			return stream;
+        			return stream.toInputStream();
     			}
             }
 		} catch (RarException e) {
 			throw new IOException(e);
 		}
 		finally {
-			archive.close();
+			if(archive != null)
+				archive.close();
+			file.delete();
 		}
 	}
-	
+
 }
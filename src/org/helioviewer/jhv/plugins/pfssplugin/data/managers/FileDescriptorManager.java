@@ -1,7 +1,10 @@
 package org.helioviewer.jhv.plugins.pfssplugin.data.managers;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -19,6 +22,7 @@ import org.helioviewer.jhv.plugins.pfssplugin.PfssPlugin;
 import org.helioviewer.jhv.plugins.pfssplugin.PfssPlugin3dRenderer;
 import org.helioviewer.jhv.plugins.pfssplugin.PfssSettings;
 import org.helioviewer.jhv.plugins.pfssplugin.data.FileDescriptor;
+import org.helioviewer.jhv.plugins.pfssplugin.data.caching.PfssDiskCache;
 
 /**
  * Manages loading and accessing of FileDescriptor Objects
@@ -147,7 +151,7 @@ public class FileDescriptorManager
         if(_curEpoch!=epoch)
             return;
         
-    	try(BufferedReader in = new BufferedReader(new InputStreamReader(new URL(url).openStream())))
+    	try(BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(loadMonthIndex(url, currentYear, currentMonth)))))
     	{
 			String dateString = null;
 			String fileName= null;
@@ -192,6 +196,43 @@ public class FileDescriptorManager
 		}
 	}
     
+    /**
+     * Returns the file list of one month, from the disk cache if it is up to date
+     * there, or from the server otherwise. Falls back to an outdated list from the
+     * disk cache, if the server cannot be reached.
+     * @param url
+     * @param currentYear
+     * @param currentMonth
+     * @return contents of the file list
+     * @throws IOException
+     */
+    private byte[] loadMonthIndex(String url, int currentYear, int currentMonth) throws IOException
+    {
+        byte[] index = PfssDiskCache.loadMonthIndex(currentYear, currentMonth, false);
+        if(index != null)
+            return index;
+        
+        try(InputStream in = new URL(url).openStream())
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int bytesRead;
+            while((bytesRead = in.read(buffer)) != -1)
+                out.write(buffer, 0, bytesRead);
+            
+            index = out.toByteArray();
+            PfssDiskCache.storeMonthIndex(currentYear, currentMonth, index);
+            return index;
+        }
+        catch(IOException e)
+        {
+            index = PfssDiskCache.loadMonthIndex(currentYear, currentMonth, true);
+            if(index == null)
+                throw e;
+            return index;
+        }
+    }
+    
     /**
      * Returns the Descriptor at Index
      * @param index
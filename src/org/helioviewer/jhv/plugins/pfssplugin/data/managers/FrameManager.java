@@ -7,14 +7,14 @@ import javax.media.opengl.GL2;
 
 import org.helioviewer.jhv.plugins.pfssplugin.PfssPlugin3dRenderer;
 import org.helioviewer.jhv.plugins.pfssplugin.data.FileDescriptor;
-import org.helioviewer.jhv.plugins.pfssplugin.data.PfssCompressed;
 import org.helioviewer.jhv.plugins.pfssplugin.data.PfssDecompressed;
 import org.helioviewer.jhv.plugins.pfssplugin.data.caching.DataCache;
-import org.helioviewer.jhv.plugins.pfssplugin.data.decompression.PfssDecompressor;
 
 /**
  * This class is responsible for managing frames. it Tries to have all frames
- * pre-loaded and pre-initialized before they are requested
+ * pre-loaded and pre-initialized before they are requested. Frames are
+ * decompressed in the background, the calling OpenGL thread never waits for
+ * them.
  */
 public class FrameManager
 {
@@ -43,16 +43,9 @@ public class FrameManager
 		//still the same frame
 		if (curFrame!=null && curFrame.getDescriptor().isDateInRange(date))
 		{
+		    //pick up the frame again, it is started anew if loading failed before
 		    if(!curFrame.isDataAssigned())
-		    {
-		        FileDescriptor fd=descriptorManager.getFileDescriptor(date);
-		        if(fd!=null)
-		        {
-		            PfssCompressed comp = dataCache.get(fd);
-		            comp.loadDataAsync();
-		            PfssDecompressor.decompress(comp,curFrame);
-		        }
-		    }
+		        curFrame = dataCache.getDecompressed(curFrame.getDescriptor());
 			return curFrame;
 		}
 
@@ -60,17 +53,8 @@ public class FrameManager
 		    curFrame.dispose(_gl);
 		
         FileDescriptor fd=descriptorManager.getFileDescriptor(date);
-        if(fd!=null)
-        {
-            curFrame = new PfssDecompressed(fd);
-            
-            PfssCompressed comp = dataCache.get(fd);
-            comp.loadDataAsync();
-            PfssDecompressor.decompress(comp,curFrame);
-            return curFrame;
-        }
-        
-        return null;
+        curFrame = fd!=null ? dataCache.getDecompressed(fd) : null;
+        return curFrame;
 	}
 	
     /**
@@ -0,0 +1,279 @@
+package org.helioviewer.jhv.viewmodel.imagedata;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.helioviewer.jhv.viewmodel.imagetransport.Byte8ImageTransport;
+import org.helioviewer.jhv.viewmodel.imagetransport.ImageTransport;
+import org.helioviewer.jhv.viewmodel.imagetransport.Int32ImageTransport;
+
+/**
+ * Pool for the pixel arrays backing {@link SingleChannelByte8ImageData} and
+ * {@link ARGBInt32ImageData} objects.
+ *
+ * <p>
+ * The arrays are pooled by their exact length, since all consumers of image
+ * data expect the pixel array to contain exactly width*height elements. While
+ * panning, the size of the decoded region usually stays the same, so the same
+ * arrays are handed out again and again. The total size of all pooled arrays is
+ * limited; if it is exceeded, the least recently used sizes are dropped.
+ *
+ * <p>
+ * The arrays handed out by the pool are reference counted. The caller of
+ * obtain holds the first reference; everybody else reading the array
+ * asynchronously, like the view publishing it or the texture upload, takes an
+ * additional reference with {@link #retain(Object)} and gives it back with
+ * release. An array only returns to the pool once the last reference is
+ * released. Arrays not handed out by the pool are ignored.
+ */
+public class PixelBufferPool {
+
+    /** Maximum amount of memory held by the pool, in bytes */
+    private static final long MAX_MEMORY = 128 * 1024 * 1024;
+
+    /** Maximum number of arrays held per size */
+    private static final int MAX_ARRAYS_PER_SIZE = 4;
+
+    private static final LinkedHashMap<Integer, ArrayDeque<byte[]>> byteArrays = new LinkedHashMap<Integer, ArrayDeque<byte[]>>(16, 0.75f, true);
+    private static final LinkedHashMap<Integer, ArrayDeque<int[]>> intArrays = new LinkedHashMap<Integer, ArrayDeque<int[]>>(16, 0.75f, true);
+
+    /**
+     * Number of references to each array handed out by the pool. Arrays have
+     * identity semantics, so arrays dropped without being released are simply
+     * collected.
+     */
+    private static final WeakHashMap<Object, int[]> references = new WeakHashMap<Object, int[]>();
+
+    private static long pooledMemory = 0;
+    private static long allocations = 0;
+    private static long allocatedBytes = 0;
+    private static long reuses = 0;
+
+    private PixelBufferPool() {
+    }
+
+    /**
+     * Returns a byte array of the given length, reusing a pooled one if
+     * possible. The content of the array is undefined.
+     *
+     * @param length
+     *            Number of elements
+     * @return byte array of exactly the given length
+     */
+    public static synchronized byte[] obtainByteArray(int length) {
+        ArrayDeque<byte[]> arrays = byteArrays.get(length);
+        byte[] array;
+        if (arrays != null && !arrays.isEmpty()) {
+            pooledMemory -= length;
+            reuses++;
+            array = arrays.poll();
+        } else {
+            allocations++;
+            allocatedBytes += length;
+            array = new byte[length];
+        }
+        references.put(array, new int[] { 1 });
+        return array;
+    }
+
+    /**
+     * Returns an int array of the given length, reusing a pooled one if
+     * possible. The content of the array is undefined.
+     *
+     * @param length
+     *            Number of elements
+     * @return int array of exactly the given length
+     */
+    public static synchronized int[] obtainIntArray(int length) {
+        ArrayDeque<int[]> arrays = intArrays.get(length);
+        int[] array;
+        if (arrays != null && !arrays.isEmpty()) {
+            pooledMemory -= 4L * length;
+            reuses++;
+            array = arrays.poll();
+        } else {
+            allocations++;
+            allocatedBytes += 4L * length;
+            array = new int[length];
+        }
+        references.put(array, new int[] { 1 });
+        return array;
+    }
+
+    /**
+     * Takes an additional reference to an array handed out by the pool.
+     *
+     * @param array
+     *            Array to retain, may be null
+     */
+    public static synchronized void retain(Object array) {
+        int[] count = array == null ? null : references.get(array);
+        if (count != null)
+            count[0]++;
+    }
+
+    /**
+     * Returns whether somebody else besides the caller holds a reference to
+     * the given array, so it must not be written to.
+     *
+     * @param array
+     *            Array handed out by the pool
+     * @return true, if the array has more than one reference
+     */
+    public static synchronized boolean isShared(Object array) {
+        int[] count = array == null ? null : references.get(array);
+        return count != null && count[0] > 1;
+    }
+
+    /**
+     * Takes an additional reference to the pixel array of the given image
+     * data, if it was handed out by the pool.
+     *
+     * @param imageData
+     *            Image data about to be read asynchronously, may be null
+     */
+    public static void retain(ImageData imageData) {
+        retain(getPixelArray(imageData));
+    }
+
+    /**
+     * Gives back a reference to the pixel array of the given image data taken
+     * by {@link #retain(ImageData)}.
+     *
+     * @param imageData
+     *            Image data not read anymore, may be null
+     */
+    public static void release(ImageData imageData) {
+        Object array = getPixelArray(imageData);
+        if (array instanceof byte[])
+            release((byte[]) array);
+        else if (array instanceof int[])
+            release((int[]) array);
+    }
+
+    private static Object getPixelArray(ImageData imageData) {
+        if (imageData == null)
+            return null;
+        ImageTransport transport = imageData.getImageTransport();
+        if (transport instanceof Byte8ImageTransport)
+            return ((Byte8ImageTransport) transport).getByte8PixelData();
+        if (transport instanceof Int32ImageTransport)
+            return ((Int32ImageTransport) transport).getInt32PixelData();
+        return null;
+    }
+
+    /** Drops a reference and returns whether it was the last one */
+    private static boolean dropReference(Object array) {
+        int[] count = references.get(array);
+        if (count == null || --count[0] > 0)
+            return false;
+        references.remove(array);
+        return true;
+    }
+
+    /**
+     * Gives back a reference to a byte array. The array returns to the pool
+     * when the last reference is released.
+     *
+     * @param array
+     *            Array which is not used anymore by the caller, may be null
+     */
+    public static synchronized void release(byte[] array) {
+        if (array == null || array.length == 0 || !dropReference(array))
+            return;
+
+        ArrayDeque<byte[]> arrays = byteArrays.get(array.length);
+        if (arrays == null) {
+            arrays = new ArrayDeque<byte[]>();
+            byteArrays.put(array.length, arrays);
+        } else if (arrays.size() >= MAX_ARRAYS_PER_SIZE || containsArray(arrays, array)) {
+            return;
+        }
+
+        arrays.add(array);
+        pooledMemory += array.length;
+        trim();
+    }
+
+    /**
+     * Gives back a reference to an int array. The array returns to the pool
+     * when the last reference is released.
+     *
+     * @param array
+     *            Array which is not used anymore by the caller, may be null
+     */
+    public static synchronized void release(int[] array) {
+        if (array == null || array.length == 0 || !dropReference(array))
+            return;
+
+        ArrayDeque<int[]> arrays = intArrays.get(array.length);
+        if (arrays == null) {
+            arrays = new ArrayDeque<int[]>();
+            intArrays.put(array.length, arrays);
+        } else if (arrays.size() >= MAX_ARRAYS_PER_SIZE || containsArray(arrays, array)) {
+            return;
+        }
+
+        arrays.add(array);
+        pooledMemory += 4L * array.length;
+        trim();
+    }
+
+    /**
+     * Returns the number of arrays, which could not be taken from the pool and
+     * had to be allocated.
+     *
+     * @return number of allocations since startup
+     */
+    public static synchronized long getAllocationCount() {
+        return allocations;
+    }
+
+    /**
+     * Returns the number of arrays, which were taken from the pool instead of
+     * being allocated.
+     *
+     * @return number of reused arrays since startup
+     */
+    public static synchronized long getReuseCount() {
+        return reuses;
+    }
+
+    /**
+     * Returns the amount of memory allocated by the pool.
+     *
+     * @return allocated bytes since startup
+     */
+    public static synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    private static boolean containsArray(ArrayDeque<?> arrays, Object array) {
+        for (Object pooled : arrays) {
+            if (pooled == array)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Drops the least recently used sizes until the pool fits into its memory
+     * limit.
+     */
+    private static void trim() {
+        trim(byteArrays, 1);
+        trim(intArrays, 4);
+    }
+
+    private static <T> void trim(LinkedHashMap<Integer, ArrayDeque<T>> arrays, int bytesPerElement) {
+        Iterator<Map.Entry<Integer, ArrayDeque<T>>> it = arrays.entrySet().iterator();
+        while (pooledMemory > MAX_MEMORY && it.hasNext()) {
+            Map.Entry<Integer, ArrayDeque<T>> entry = it.next();
+            pooledMemory -= (long) bytesPerElement * entry.getKey() * entry.getValue().size();
+            it.remove();
+        }
+    }
+}
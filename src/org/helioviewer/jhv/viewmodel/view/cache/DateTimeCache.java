@@ -1,5 +1,9 @@
 package org.helioviewer.jhv.viewmodel.view.cache;
 
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+
+import org.helioviewer.jhv.base.math.Interval;
 import org.helioviewer.jhv.viewmodel.changeevent.CacheStatusChangedReason;
 import org.helioviewer.jhv.viewmodel.changeevent.CacheStatusChangedReason.CacheType;
 import org.helioviewer.jhv.viewmodel.changeevent.ChangeEvent;
@@ -13,22 +17,60 @@ import org.helioviewer.jhv.viewmodel.view.jp2view.JHVJPXView;
  * Cache to parse and buffer all timestamps from all images of an image series.
  * 
  * <p>
- * To parse the time stamps, this class has its own thread.
+ * To parse the time stamps, this class has its own thread. Threads asking for
+ * a time stamp not parsed yet wait until the parsing thread signals it. The
+ * frames waited for are parsed ahead of the others, as soon as their meta data
+ * is available. While the meta data of the next frame is missing, the parsing
+ * thread waits until {@link #metaDataChanged()} is called. Changes of the
+ * cache status are announced at most every {@value #EVENT_INTERVAL} ms.
+ * 
+ * <p>
+ * Besides the date objects, the time stamps are kept in milliseconds in a
+ * sorted array, so frames can be looked up by time with a binary search.
  * 
  * @author Markus Langenberg
  * 
  */
 public abstract class DateTimeCache {
 
+	/** Minimum time in ms between two cache status change events */
+	private static final long EVENT_INTERVAL = 100;
+
 	protected JHVJPXView parent;
 
 	private ImmutableDateTime[] cache;
 
-	protected boolean stopParsing = false;
+	/** Time stamps in milliseconds, valid for the first numTimestamps frames */
+	private long[] timestamps;
+
+	/** Number of frames from the beginning, whose time stamps are known */
+	private volatile int numTimestamps = 0;
+
+	protected volatile boolean stopParsing = false;
 
-	protected int nextDateToParse = 0;
+	protected volatile int nextDateToParse = 0;
 	private Thread parsingThread = null;
 
+	/**
+	 * Signaled whenever a time stamp has been stored, a frame is requested,
+	 * meta data changed or parsing stopped
+	 */
+	private final Object parsedSignal = new Object();
+
+	/** Frames somebody is waiting for, guarded by parsedSignal */
+	private final LinkedHashSet<Integer> priorityFrames = new LinkedHashSet<Integer>();
+
+	/**
+	 * Whether frames were requested or meta data changed since the parsing
+	 * thread last looked, guarded by parsedSignal
+	 */
+	private boolean priorityFramesAdded = false;
+	private boolean metaDataChanged = false;
+
+	/** Last frame, for which a change event has been fired */
+	private int lastFiredFrame = -1;
+	private long lastEventTime = 0;
+
 	/**
 	 * Default constructor.
 	 * 
@@ -38,6 +80,7 @@ public abstract class DateTimeCache {
 	public DateTimeCache(JHVJPXView _parent) {
 		parent = _parent;
 		cache = new ImmutableDateTime[_parent.getMaximumFrameNumber() + 1];
+		timestamps = new long[cache.length];
 
 		parent.fireChangeEvent(new ChangeEvent(new CacheStatusChangedReason(
 				parent, CacheType.COMPLETE, 0)));
@@ -59,28 +102,153 @@ public abstract class DateTimeCache {
 	 * 
 	 * If the cache does not contain the value yet and the function was not
 	 * called by the thread responsible for parsing, waits until the value is
-	 * available. When the function is called by the thread responsible for
-	 * parsing, goes on parsing until the value is available. So, any case,
-	 * returns the correct value.
+	 * available, and the frame is parsed with priority. When the function is
+	 * called by the thread responsible for parsing, returns null instead of
+	 * waiting for itself.
 	 * 
 	 * @param frameNumber
 	 *            Frame number to fetch date and time for
-	 * @return Date and time of the given frame
+	 * @return Date and time of the given frame, null if parsing has been
+	 *         stopped before the value was available
 	 */
 	public ImmutableDateTime getDateTime(int frameNumber) {
-		if (cache.length <= frameNumber) return null;
-		if (cache[frameNumber] == null) {
-
-			do {
+		if (cache.length <= frameNumber)
+			return null;
+
+		ImmutableDateTime dateTime = cache[frameNumber];
+		if (dateTime != null || Thread.currentThread() == parsingThread)
+			return dateTime;
+
+		synchronized (parsedSignal) {
+			while ((dateTime = cache[frameNumber]) == null && !stopParsing) {
+				if (priorityFrames.add(frameNumber)) {
+					priorityFramesAdded = true;
+					parsedSignal.notifyAll();
+				}
 				try {
-					Thread.sleep(20);
+					parsedSignal.wait();
 				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
 					break;
 				}
-			} while (cache[frameNumber] == null && !stopParsing);
+			}
+		}
+		return dateTime;
+	}
+
+	/**
+	 * Wakes up the parsing thread, if it waits for missing meta data. Has to
+	 * be called whenever meta data of the image arrived.
+	 */
+	public void metaDataChanged() {
+		synchronized (parsedSignal) {
+			metaDataChanged = true;
+			parsedSignal.notifyAll();
 		}
+	}
 
-		return cache[frameNumber];
+	/**
+	 * Returns the frame, whose time stamp is closest to the given time.
+	 * 
+	 * <p>
+	 * The frames are assumed to be sorted by time. If the closest frame may
+	 * not be parsed yet, waits like {@link #getDateTime(int)}.
+	 * 
+	 * @param millis
+	 *            Time in milliseconds since the Epoch
+	 * @return Closest frame, or -1 if the time stamps are not available
+	 */
+	public int getNearestFrame(long millis) {
+		for (;;) {
+			int known = numTimestamps;
+			if (known == timestamps.length
+					|| (known > 0 && timestamps[known - 1] >= millis))
+				return known == 0 ? -1 : searchNearest(millis, known);
+
+			// the frame following the known ones might be closer
+			if (getDateTime(known) == null)
+				return -1;
+		}
+	}
+
+	/**
+	 * Returns the frames, whose time stamps lie within the given time window.
+	 * Only frames already parsed are taken into account.
+	 * 
+	 * @param startMillis
+	 *            Start of the window in milliseconds since the Epoch
+	 * @param endMillis
+	 *            End of the window in milliseconds since the Epoch, inclusive
+	 * @return First and last frame within the window, or null if there is
+	 *         none
+	 */
+	public Interval<Integer> getFramesInInterval(long startMillis,
+			long endMillis) {
+		int known = numTimestamps;
+		int first = lowerBound(startMillis, known);
+		int last = lowerBound(endMillis + 1, known) - 1;
+
+		if (first > last)
+			return null;
+		return new Interval<Integer>(first, last);
+	}
+
+	/**
+	 * Returns the closest of the first known frames to the given time. On a
+	 * tie, the later frame is chosen.
+	 */
+	private int searchNearest(long millis, int known) {
+		int index = lowerBound(millis, known);
+		if (index == known)
+			return known - 1;
+		if (index == 0)
+			return 0;
+		if (millis - timestamps[index - 1] < timestamps[index] - millis)
+			return index - 1;
+		return index;
+	}
+
+	/**
+	 * Returns the first of the known frames, whose time stamp is not before
+	 * the given time, or the number of known frames if there is none.
+	 */
+	private int lowerBound(long millis, int known) {
+		int low = 0, high = known;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (timestamps[mid] < millis)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Stores the time stamp of the given frame and wakes up the threads waiting
+	 * for it.
+	 * 
+	 * @param frameNumber
+	 *            Frame number
+	 * @param dateTime
+	 *            Date and time of the frame, nothing is stored if null
+	 */
+	private void store(int frameNumber, ImmutableDateTime dateTime) {
+		if (dateTime == null)
+			return;
+
+		synchronized (parsedSignal) {
+			timestamps[frameNumber] = dateTime.getMillis();
+			cache[frameNumber] = dateTime;
+
+			int known = numTimestamps;
+			while (known < cache.length && cache[known] != null)
+				known++;
+			numTimestamps = known;
+
+			priorityFrames.remove(frameNumber);
+			parsedSignal.notifyAll();
+		}
 	}
 
 	/**
@@ -105,6 +273,9 @@ public abstract class DateTimeCache {
 	 */
 	public void stopParsing() {
 		stopParsing = true;
+		synchronized (parsedSignal) {
+			parsedSignal.notifyAll();
+		}
 
 		if (parsingThread != null && parsingThread.isAlive()) {
 			try {
@@ -126,74 +297,129 @@ public abstract class DateTimeCache {
 	private void parseAll() {
 
 		nextDateToParse = 0;
+		lastFiredFrame = -1;
 
 		APIResponse apiResponse = APIResponseDump.getSingletonInstance()
 				.getResponse(((ImageInfoView) parent).getUri());
 
-		if (apiResponse != null) {
-			try {
-
-				String rawFrames = apiResponse.getString("frames").replaceAll(
-						"\\[|\\]", "");
+		String rawFrames = apiResponse == null ? null : apiResponse
+				.getString("frames");
 
-				if (rawFrames != null) {
-					String[] frames = rawFrames.split(",");
+		if (rawFrames != null) {
+			String[] frames = rawFrames.replaceAll("\\[|\\]", "").split(",");
 
-					if (frames.length - 1 == parent.getMaximumFrameNumber()) {
-						do {
-							cache[nextDateToParse] = new ImmutableDateTime(
-									Integer.parseInt(frames[nextDateToParse]));
-							fireChangeEventIfNecessary();
-							nextDateToParse++;
-
-						} while (!stopParsing
-								&& nextDateToParse <= parent
-										.getMaximumFrameNumber());
-					}
+			if (frames.length - 1 == parent.getMaximumFrameNumber()) {
+				try {
+					do {
+						store(nextDateToParse, new ImmutableDateTime(
+								Integer.parseInt(frames[nextDateToParse].trim())));
+						fireChangeEventIfNecessary(nextDateToParse, false);
+						nextDateToParse++;
+
+					} while (!stopParsing
+							&& nextDateToParse <= parent.getMaximumFrameNumber());
+				} catch (NumberFormatException e) {
+					// the remaining time stamps are read from the meta data
+					System.err.println(">> DateTimeCache > Invalid time stamp in API response: "
+							+ e.getMessage());
 				}
-			} catch (Exception e) {
-				// TODO: handle exception
 			}
-
 		}
 
+		ArrayList<Integer> requested = new ArrayList<Integer>();
+
 		while (!stopParsing
 				&& nextDateToParse <= parent.getMaximumFrameNumber()) {
 
-			cache[nextDateToParse] = parseDateTime(nextDateToParse);
+			// changes from now on wake up the wait below
+			synchronized (parsedSignal) {
+				requested.clear();
+				requested.addAll(priorityFrames);
+				priorityFramesAdded = false;
+				metaDataChanged = false;
+			}
+
+			// somebody waits for frames further ahead
+			for (int priority : requested) {
+				if (priority > nextDateToParse && priority < cache.length
+						&& cache[priority] == null)
+					store(priority, parseDateTime(priority));
+			}
+
+			if (nextDateToParse < cache.length
+					&& cache[nextDateToParse] == null)
+				store(nextDateToParse, parseDateTime(nextDateToParse));
 
 			if (nextDateToParse < cache.length
 					&& cache[nextDateToParse] == null) {
-				try {
-					Thread.sleep(200);
-				} catch (InterruptedException e) {
-				}
+				fireChangeEventIfNecessary(nextDateToParse - 1, true);
+				waitForMetaData();
 
 			} else {
-				fireChangeEventIfNecessary();
+				fireChangeEventIfNecessary(nextDateToParse, false);
 
 				nextDateToParse++;
 			}
 		}
+
+		fireChangeEventIfNecessary(
+				Math.min(nextDateToParse, cache.length) - 1, true);
+	}
+
+	/**
+	 * Waits until meta data changed, another frame is requested or parsing is
+	 * stopped. If the parsing thread is interrupted, parsing stops.
+	 */
+	private void waitForMetaData() {
+		synchronized (parsedSignal) {
+			while (!metaDataChanged && !priorityFramesAdded && !stopParsing) {
+				try {
+					parsedSignal.wait();
+				} catch (InterruptedException e) {
+					stopParsing = true;
+					parsedSignal.notifyAll();
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
 	}
 
 	/**
 	 * Fires a change event into the view chain, if the cache status has
-	 * changed.
+	 * changed. To avoid flooding the view chain with events, the event is
+	 * skipped if the last one is less than {@value #EVENT_INTERVAL} ms ago,
+	 * unless it is forced.
+	 * 
+	 * @param frameNumber
+	 *            Last frame parsed
+	 * @param force
+	 *            Fire the event independent of the time passed
 	 */
-	private void fireChangeEventIfNecessary() {
-		if (nextDateToParse <= parent.getImageCacheStatus()
+	private void fireChangeEventIfNecessary(int frameNumber, boolean force) {
+		if (frameNumber <= lastFiredFrame)
+			return;
+
+		long now = System.currentTimeMillis();
+		if (!force && now - lastEventTime < EVENT_INTERVAL)
+			return;
+
+		if (frameNumber <= parent.getImageCacheStatus()
 				.getImageCachedCompletelyUntil()) {
 			parent.fireChangeEvent(new ChangeEvent(
 					new CacheStatusChangedReason(parent, CacheType.COMPLETE,
-							nextDateToParse)));
+							frameNumber)));
 
-		} else if (nextDateToParse <= parent.getImageCacheStatus()
+		} else if (frameNumber <= parent.getImageCacheStatus()
 				.getImageCachedPartiallyUntil()) {
 			parent.fireChangeEvent(new ChangeEvent(
 					new CacheStatusChangedReason(parent, CacheType.PARTIAL,
-							nextDateToParse)));
+							frameNumber)));
+		} else {
+			return;
 		}
+
+		lastFiredFrame = frameNumber;
+		lastEventTime = now;
 	}
 
 	/**
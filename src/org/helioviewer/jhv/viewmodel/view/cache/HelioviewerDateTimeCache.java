@@ -118,27 +118,71 @@ public class HelioviewerDateTimeCache extends DateTimeCache {
         int year = 0, month = 0, day = 0, hour = 0, minute = 0, second = 0;
 
         if (dateTime != null) {
-            try {
-                String[] firstDivide = dateTime.split("T");
-                String[] secondDivide1 = firstDivide[0].split("[-/]");
-                String[] secondDivide2 = firstDivide[1].split(":");
-                String[] thirdDivide = secondDivide2[2].split("\\.");
-                year = Integer.valueOf(secondDivide1[0]);
-                month = Integer.valueOf(secondDivide1[1]);
-                day = Integer.valueOf(secondDivide1[2]);
-                hour = Integer.valueOf(secondDivide2[0]);
-                minute = Integer.valueOf(secondDivide2[1]);
-                second = Integer.valueOf(thirdDivide[0]);
-            } catch (Exception e) {
-                year = 0;
-                month = 0;
-                day = 0;
-                hour = 0;
-                minute = 0;
-                second = 0;
+            int[] fields = new int[6];
+            if (scanDateTime(dateTime, fields)) {
+                year = fields[0];
+                month = fields[1];
+                day = fields[2];
+                hour = fields[3];
+                minute = fields[4];
+                second = fields[5];
             }
         }
 
         return new ImmutableDateTime(year, month != 0 ? month - 1 : 0, day, hour, minute, second);
     }
+
+    /**
+     * Scans the fields of date and time in the format described at
+     * {@link #parseDateTime(String)} without regular expressions.
+     * 
+     * @param dateTime
+     *            Date and time given in one string
+     * @param fields
+     *            Receives year, month, day, hour, minute and second
+     * @return true, if all fields could be read
+     */
+    private static boolean scanDateTime(String dateTime, int[] fields) {
+        int length = dateTime.length();
+        int pos = 0;
+
+        for (int field = 0; field < 6; field++) {
+            int start = pos;
+            int value = 0;
+            while (pos < length) {
+                char c = dateTime.charAt(pos);
+                if (c < '0' || c > '9')
+                    break;
+                value = value * 10 + (c - '0');
+                pos++;
+            }
+            if (pos == start || pos - start > 9)
+                return false;
+            fields[field] = value;
+
+            if (field == 5) {
+                // fractions of seconds are not used
+                return pos == length || dateTime.charAt(pos) == '.';
+            }
+            if (pos == length)
+                return false;
+
+            char separator = dateTime.charAt(pos++);
+            switch (field) {
+            case 0:
+            case 1:
+                if (separator != '-' && separator != '/')
+                    return false;
+                break;
+            case 2:
+                if (separator != 'T')
+                    return false;
+                break;
+            default:
+                if (separator != ':')
+                    return false;
+            }
+        }
+        return true;
+    }
 }
@@ -1,25 +1,33 @@
 package org.helioviewer.jhv.viewmodel.view.fitsview;
 
-import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
-import nom.tam.fits.BasicHDU;
 import nom.tam.fits.Fits;
 import nom.tam.fits.Header;
 import nom.tam.fits.HeaderCard;
-import nom.tam.fits.ImageHDU;
+import nom.tam.util.ArrayDataInput;
+import nom.tam.util.BufferedFile;
 import nom.tam.util.Cursor;
 
-import org.helioviewer.jhv.viewmodel.imagedata.ARGBInt32ImageData;
-import org.helioviewer.jhv.viewmodel.imagedata.ColorMask;
-import org.helioviewer.jhv.viewmodel.imagedata.JavaBufferedImageData;
-import org.helioviewer.jhv.viewmodel.imagedata.SingleChannelByte8ImageData;
-import org.helioviewer.jhv.viewmodel.imagedata.SingleChannelShortImageData;
+import org.helioviewer.jhv.viewmodel.imagedata.ImageData;
 import org.helioviewer.jhv.viewmodel.metadata.MetaDataContainer;
 
 /**
  * This class provides access to any FITS file and makes the image data
  * available.
  * 
+ * <p>
+ * Only the header is read when the image is opened. The data unit of the
+ * primary HDU is memory mapped and decoded on demand, at the resolution
+ * requested, see {@link FITSImageSource}. Compressed files and files which
+ * are not local are read into the heap instead.
+ * 
  * @author Andreas Hoelzl
  * @author Stephan Pagel
  * */
@@ -29,11 +37,9 @@ public class FITSImage implements MetaDataContainer {
     // Definitions
     // /////////////////////////////////////////////////////////////////////////
 
-    private static final float MDI_THRESHOLD = 2000f;
-
     private Header header = null;
 
-    private BufferedImage image = null;
+    private FITSImageSource source = null;
 
     // /////////////////////////////////////////////////////////////////////////
     // Methods
@@ -49,174 +55,82 @@ public class FITSImage implements MetaDataContainer {
      * */
     public FITSImage(String url) throws Exception {
 
-        // access the FITS file
-        Fits fits = new Fits(url);
-
-        // get basic information from file
-        BasicHDU hdu = (ImageHDU) fits.readHDU();
-        int bitsPerPixel = hdu.getBitPix();
-        header = hdu.getHeader();
-
-        if (bitsPerPixel == BasicHDU.BITPIX_BYTE) {
-
-            // get image row data
-            byte[][] data2D = (byte[][]) ((hdu).getKernel());
-
-            // get width and height of image
-            int width = data2D[0].length;
-            int height = data2D.length;
-
-            // transform image row data into 1D image row data
-            byte[] data = new byte[width * height];
-
-            int counter = 0;
-            for (int h = 0; h < height; h++) {
-                for (int w = 0; w < width; w++) {
-                    data[counter] = data2D[h][w];
-                    counter++;
-                }
-            }
-
-            // create buffered image from row data
-            SingleChannelByte8ImageData imageData = new SingleChannelByte8ImageData(width, height, data, new ColorMask());
-            image = imageData.getBufferedImage();
-
-        } else if (bitsPerPixel == BasicHDU.BITPIX_SHORT) {
-
-            // get image row data
-            short[][] data2D = (short[][]) ((hdu).getKernel());
-
-            // get width and height of image
-            int width = data2D[0].length;
-            int height = data2D.length;
-
-            // transform image row data into 1D image row data and
-            // analyze the highest value when transfering the data
-            short[] data = new short[width * height];
-
-            int highestValue = Integer.MIN_VALUE;
-            int counter = 0;
-            boolean hasNegativValue = false;
-
-            for (int h = 0; h < height; h++) {
-                for (int w = 0; w < width; w++) {
-
-                    if (!hasNegativValue)
-                        hasNegativValue = data2D[h][w] < 0;
-
-                    highestValue = data2D[h][w] > highestValue ? data2D[h][w] : highestValue;
-                    data[counter] = data2D[h][w];
-                    counter++;
-                }
+        URL location = new URL(url);
+        File file = location.getProtocol().equals("file") ? new File(location.toURI()) : null;
+        ByteBuffer data;
+
+        if (file == null || isGzipped(file)) {
+            // the stream takes care of the decompression
+            ArrayDataInput in = new Fits(location).getStream();
+            try {
+                header = Header.readHeader(in);
+                data = ByteBuffer.wrap(readFully(in, getImageSize(header)));
+            } finally {
+                in.close();
             }
-
-            // if first bit is not set, shift bits
-            if (!hasNegativValue) {
-                // compute number of bits to shift
-                int shiftBits = BasicHDU.BITPIX_SHORT - ((int) Math.ceil(Math.log(highestValue) / Math.log(2)));
-
-                // shift bits of all values
-                for (int i = 0; i < data.length; i++) {
-                    data[i] = (short) (data[i] << shiftBits);
-                }
+        } else {
+            long dataOffset;
+            BufferedFile in = new BufferedFile(file, "r");
+            try {
+                header = Header.readHeader(in);
+                dataOffset = in.getFilePointer();
+            } finally {
+                in.close();
             }
 
-            // create buffered image from row data
-            SingleChannelShortImageData imageData = new SingleChannelShortImageData(width, height, bitsPerPixel, data, new ColorMask());
-            image = imageData.getBufferedImage();
-
-        } else if (bitsPerPixel == BasicHDU.BITPIX_INT) {
-
-            // get image row data
-            int[][] data2D = (int[][]) ((hdu).getKernel());
-
-            // get width and height of image
-            int width = data2D[0].length;
-            int height = data2D.length;
-
-            // transform image row data into 1D image row data
-            int[] data = new int[width * height];
-
-            int counter = 0;
-            for (int h = 0; h < height; h++) {
-                for (int w = 0; w < width; w++) {
-                    data[counter] = data2D[h][w];
-                    counter++;
-                }
+            // the mapping stays valid after the channel is closed
+            FileChannel channel = new FileInputStream(file).getChannel();
+            try {
+                long size = Math.min(getImageSize(header), channel.size() - dataOffset);
+                if (size > Integer.MAX_VALUE)
+                    throw new IOException("FITS data unit is too large to be mapped: " + size + " bytes");
+                data = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset, size);
+            } finally {
+                channel.close();
             }
+        }
 
-            // create buffered image from row data
-            JavaBufferedImageData imageData = new ARGBInt32ImageData(width, height, data, new ColorMask());
-            image = imageData.getBufferedImage();
-
-        } else if (bitsPerPixel == BasicHDU.BITPIX_FLOAT) {
-
-            // get image row data
-            float[][] data2D = (float[][]) ((hdu).getKernel());
-
-            // get width and height of image
-            int width = data2D[0].length;
-            int height = data2D.length;
-
-            // transform image row data into 1D image row data
-            short[] data = new short[width * height];
-
-            // if it is an MDI magnetogram image use threshold when converting
-            // the data
-            // otherwise set minimum value to zero and maximum value to 2^16 and
-            // scale values between
-            String instrument = header.getStringValue("INSTRUME");
-            String measurement = header.getStringValue("DPC_OBSR");
-
-            if (instrument != null && measurement != null && instrument.equals("MDI") && measurement.equals("FD_Magnetogram_Sum")) {
-
-                int counter = 0;
-                float doubleThreshold = MDI_THRESHOLD * 2.0f;
-
-                for (int h = 0; h < height; h++) {
-                    for (int w = 0; w < width; w++) {
-
-                        float value = data2D[h][w] + MDI_THRESHOLD;
-                        value = value < 0.0f ? 0.0f : value > doubleThreshold ? doubleThreshold : value;
-                        data[counter] = (short) ((value * 65535) / doubleThreshold);
-                        counter++;
-                    }
-                }
-
-            } else {
-
-                // get the minimum and maximum value from current data
-                float minValue = Float.MAX_VALUE;
-                float maxValue = Float.MIN_VALUE;
+        // if it is an MDI magnetogram image use threshold when converting
+        // the data
+        String instrument = header.getStringValue("INSTRUME");
+        String measurement = header.getStringValue("DPC_OBSR");
+        boolean mdiMagnetogram = instrument != null && measurement != null && instrument.equals("MDI") && measurement.equals("FD_Magnetogram_Sum");
 
-                for (int h = 0; h < height; h++) {
-                    for (int w = 0; w < width; w++) {
+        source = new FITSImageSource(data, header.getIntValue("NAXIS1"), header.getIntValue("NAXIS2"), header.getIntValue("BITPIX"), header.getDoubleValue("BSCALE", 1), header.getDoubleValue("BZERO", 0), mdiMagnetogram);
+    }
 
-                        minValue = data2D[h][w] < minValue ? data2D[h][w] : minValue;
-                        maxValue = data2D[h][w] > maxValue ? data2D[h][w] : maxValue;
-                    }
-                }
+    /**
+     * Returns the size of the first image plane, which is all that is shown
+     */
+    private static long getImageSize(Header header) {
+        return (long) Math.abs(header.getIntValue("BITPIX")) / 8 * header.getIntValue("NAXIS1") * header.getIntValue("NAXIS2");
+    }
 
-                // transform image row data into 1D image row data
-                int counter = 0;
-                float difference = maxValue - minValue;
+    private static boolean isGzipped(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return in.read() == 0x1f && in.read() == 0x8b;
+        } finally {
+            in.close();
+        }
+    }
 
-                for (int h = 0; h < height; h++) {
-                    for (int w = 0; w < width; w++) {
-                        data[counter] = (short) (((data2D[h][w] - minValue) / difference) * 65536.0f);
-                        counter++;
-                    }
-                }
-            }
+    private static byte[] readFully(ArrayDataInput in, long length) throws IOException {
+        if (length > Integer.MAX_VALUE)
+            throw new IOException("FITS data unit is too large: " + length + " bytes");
 
-            // create buffered image from row data
-            SingleChannelShortImageData imageData = new SingleChannelShortImageData(width, height, 16, data, new ColorMask());
-            image = imageData.getBufferedImage();
-        }
+        byte[] result = new byte[(int) length];
+        in.readFully(result);
+        return result;
     }
 
     /**
-     * Returns the image data of the specified area as an image object.
+     * Returns the image data of the specified area of one resolution level.
+     * 
+     * <p>
+     * Level 0 is the full resolution, each further level has half the width
+     * and height of the previous one. The coordinates and sizes are given in
+     * pixels of the requested level.
      * 
      * @param x
      *            X pixel coordinate of the top left point of the region.
@@ -226,23 +140,73 @@ public class FITSImage implements MetaDataContainer {
      *            Height in pixel of the region.
      * @param width
      *            Width in pixel of the region.
-     * @return an BufferedImage which represents the image data of the specified
-     *         area or null of no image data is available or the width or height
+     * @param level
+     *            Resolution level, between 0 and {@link #getLevelCount()}-1.
+     * @return image data of the specified area or null if the width or height
      *         parameter is less than 1 pixel.
      * */
-    public BufferedImage getImage(int x, int y, int height, int width) {
+    public ImageData getImageData(int x, int y, int height, int width, int level) {
 
-        // check parameters and image source
-        if (image == null || width <= 0 || height <= 0) {
+        // check parameters
+        if (width <= 0 || height <= 0) {
             return null;
         }
 
-        // create new buffered image with requested region
-        BufferedImage subImage = new BufferedImage(width, height, image.getType());
-        subImage.getGraphics().drawImage(image.getSubimage(x, y, width, height), 0, 0, null);
+        return source.getImageData(x, y, width, height, level);
+    }
+
+    /**
+     * Returns the number of resolution levels available.
+     * 
+     * @return number of levels, at least 1.
+     */
+    public int getLevelCount() {
+        return source.getLevelCount();
+    }
+
+    /**
+     * Returns the width of a resolution level.
+     * 
+     * @param level
+     *            Resolution level.
+     * @return width in pixels.
+     */
+    public int getPixelWidth(int level) {
+        return source.getWidth(level);
+    }
+
+    /**
+     * Returns the height of a resolution level.
+     * 
+     * @param level
+     *            Resolution level.
+     * @return height in pixels.
+     */
+    public int getPixelHeight(int level) {
+        return source.getHeight(level);
+    }
+
+    /**
+     * Returns whether a resolution level has been computed already. Until
+     * then, image data of that level is subsampled and may show aliasing.
+     * 
+     * @param level
+     *            Resolution level.
+     * @return true, if the level is available at full quality.
+     */
+    public boolean isLevelAvailable(int level) {
+        return source.isLevelAvailable(level);
+    }
 
-        // return new buffered image
-        return subImage;
+    /**
+     * Sets a listener, which is called from a background thread each time a
+     * resolution level has been computed.
+     * 
+     * @param listener
+     *            New listener, may be null.
+     */
+    public void setLevelListener(Runnable listener) {
+        source.setLevelListener(listener);
     }
 
     /**
@@ -297,10 +261,7 @@ public class FITSImage implements MetaDataContainer {
      */
     public int getPixelHeight() {
 
-        if (image == null)
-            return 0;
-
-        return image.getHeight();
+        return source.getHeight(0);
     }
 
     /**
@@ -308,10 +269,7 @@ public class FITSImage implements MetaDataContainer {
      */
     public int getPixelWidth() {
 
-        if (image == null)
-            return 0;
-
-        return image.getWidth();
+        return source.getWidth(0);
     }
     
     /**
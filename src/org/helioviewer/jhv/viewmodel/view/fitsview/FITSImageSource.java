@@ -0,0 +1,364 @@
+package org.helioviewer.jhv.viewmodel.view.fitsview;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.helioviewer.jhv.viewmodel.imagedata.ARGBInt32ImageData;
+import org.helioviewer.jhv.viewmodel.imagedata.ColorMask;
+import org.helioviewer.jhv.viewmodel.imagedata.ImageData;
+import org.helioviewer.jhv.viewmodel.imagedata.SingleChannelByte8ImageData;
+import org.helioviewer.jhv.viewmodel.imagedata.SingleChannelShortImageData;
+
+/**
+ * Pixel data of a FITS image, decoded on demand from the data unit.
+ *
+ * <p>
+ * The data unit is usually memory mapped, so opening an image does not read
+ * it into the heap. Requested regions are decoded row by row, touching only
+ * the rows and columns needed.
+ *
+ * <p>
+ * In the background, a pyramid of downsampled levels is built, each level
+ * half the width and height of the previous one. Level 0 is the image itself.
+ * A region of a level is copied from that level if it is built already,
+ * otherwise it is subsampled from the closest finer level available.
+ *
+ * <p>
+ * The raw values are converted to pixels by a {@link FITSPixelConverter}.
+ * Regions and levels are processed in stripes of rows in parallel.
+ *
+ * <p>
+ * This class is threadsafe.
+ */
+final class FITSImageSource {
+
+    /** Levels are only built down to this size */
+    private static final int MIN_LEVEL_SIZE = 256;
+
+    private static int builderNumber = 0;
+
+    private static final ExecutorService builder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = Executors.defaultThreadFactory().newThread(r);
+            t.setName("FITS-Pyramid-Builder-" + (builderNumber++));
+            t.setPriority(Thread.MIN_PRIORITY);
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final FITSPixelConverter converter;
+
+    private final int[] levelWidth;
+    private final int[] levelHeight;
+
+    /** Pixels of the levels built so far, null if not built yet */
+    private final AtomicReferenceArray<Object> levels;
+
+    private volatile Runnable levelListener;
+
+    /**
+     * Creates the source and starts building the pyramid.
+     *
+     * @param data
+     *            data unit, positioned at the first value
+     * @param width
+     *            width of the image (NAXIS1)
+     * @param height
+     *            height of the image (NAXIS2)
+     * @param bitsPerPixel
+     *            BITPIX of the image
+     * @param bscale
+     *            BSCALE of the image, 1 if not given
+     * @param bzero
+     *            BZERO of the image, 0 if not given
+     * @param mdiMagnetogram
+     *            whether the image is an MDI magnetogram
+     * @throws IllegalArgumentException
+     *             if the data type is not supported or the data unit is too
+     *             short
+     */
+    FITSImageSource(ByteBuffer data, int width, int height, int bitsPerPixel, double bscale, double bzero, boolean mdiMagnetogram) {
+        converter = new FITSPixelConverter(data.slice(), width, height, bitsPerPixel, bscale, bzero, mdiMagnetogram);
+
+        int count = 1;
+        for (int w = width, h = height; Math.max(w, h) > MIN_LEVEL_SIZE; w = (w + 1) / 2, h = (h + 1) / 2)
+            count++;
+
+        levelWidth = new int[count];
+        levelHeight = new int[count];
+        for (int i = 0; i < count; i++) {
+            levelWidth[i] = i == 0 ? width : (levelWidth[i - 1] + 1) / 2;
+            levelHeight[i] = i == 0 ? height : (levelHeight[i - 1] + 1) / 2;
+        }
+        levels = new AtomicReferenceArray<Object>(count);
+
+        if (count > 1) {
+            builder.execute(new Runnable() {
+                public void run() {
+                    buildLevels();
+                }
+            });
+        }
+    }
+
+    /**
+     * @return number of levels, at least 1
+     */
+    int getLevelCount() {
+        return levelWidth.length;
+    }
+
+    /**
+     * @param level
+     *            level of the pyramid
+     * @return width of the given level in pixels
+     */
+    int getWidth(int level) {
+        return levelWidth[level];
+    }
+
+    /**
+     * @param level
+     *            level of the pyramid
+     * @return height of the given level in pixels
+     */
+    int getHeight(int level) {
+        return levelHeight[level];
+    }
+
+    /**
+     * @param level
+     *            level of the pyramid
+     * @return true, if regions of the given level are copied from the level
+     *         itself instead of being subsampled
+     */
+    boolean isLevelAvailable(int level) {
+        return level == 0 || levels.get(level) != null;
+    }
+
+    /**
+     * Sets the listener to be notified from the builder thread each time a
+     * level is built.
+     *
+     * @param listener
+     *            new listener, may be null
+     */
+    void setLevelListener(Runnable listener) {
+        levelListener = listener;
+    }
+
+    /**
+     * Returns the image data of a region of one level. Pixels outside the
+     * level are black.
+     *
+     * @param x
+     *            X coordinate of the top left pixel within the level
+     * @param y
+     *            Y coordinate of the top left pixel within the level
+     * @param width
+     *            width of the region in pixels
+     * @param height
+     *            height of the region in pixels
+     * @param level
+     *            level of the pyramid
+     * @return image data of the region
+     */
+    ImageData getImageData(final int x, final int y, final int width, final int height, final int level) {
+        final Object pixels = converter.allocate(width * height);
+
+        // closest finer level available
+        int sourceLevel = level;
+        Object levelPixels = levels.get(sourceLevel);
+        while (sourceLevel > 0 && levelPixels == null)
+            levelPixels = levels.get(--sourceLevel);
+
+        final Object source = levelPixels;
+        final int step = 1 << (level - sourceLevel);
+        final int sourceWidth = levelWidth[sourceLevel];
+        final int sourceHeight = levelHeight[sourceLevel];
+
+        final int startX = Math.max(x, 0);
+        final int endX = Math.min(x + width, levelWidth[level]);
+        final int startY = Math.max(y, 0);
+        final int endY = Math.min(y + height, levelHeight[level]);
+
+        if (startX < endX) {
+            FITSPixelConverter.forEachStripe(endY - startY, endX - startX, new FITSPixelConverter.Rows() {
+                public void run(int from, int to) {
+                    FITSPixelConverter.RowDecoder decoder = source == null ? converter.new RowDecoder() : null;
+                    for (int levelY = startY + from; levelY < startY + to; levelY++) {
+                        int sourceX = startX * step;
+                        int sourceY = Math.min(levelY * step, sourceHeight - 1);
+                        int offset = (levelY - y) * width + startX - x;
+                        int count = Math.min(endX - startX, (sourceWidth - sourceX + step - 1) / step);
+                        if (count <= 0)
+                            continue;
+
+                        if (source == null)
+                            decoder.decode(sourceY * sourceWidth + sourceX, step, count, pixels, offset);
+                        else if (step == 1)
+                            System.arraycopy(source, sourceY * sourceWidth + sourceX, pixels, offset, count);
+                        else
+                            subsampleRow(source, sourceY * sourceWidth + sourceX, step, count, pixels, offset);
+                    }
+                }
+            });
+        }
+
+        switch (converter.getPixelType()) {
+        case FITSPixelConverter.PIXEL_BYTE:
+            return new SingleChannelByte8ImageData(width, height, (byte[]) pixels, new ColorMask());
+        case FITSPixelConverter.PIXEL_SHORT:
+            return new SingleChannelShortImageData(width, height, 16, (short[]) pixels, new ColorMask());
+        default:
+            return new ARGBInt32ImageData(width, height, (int[]) pixels, new ColorMask());
+        }
+    }
+
+    private void subsampleRow(Object source, int index, int step, int count, Object pixels, int offset) {
+        switch (converter.getPixelType()) {
+        case FITSPixelConverter.PIXEL_BYTE: {
+            byte[] in = (byte[]) source;
+            byte[] out = (byte[]) pixels;
+            for (int i = 0; i < count; i++, index += step)
+                out[offset + i] = in[index];
+            break;
+        }
+        case FITSPixelConverter.PIXEL_SHORT: {
+            short[] in = (short[]) source;
+            short[] out = (short[]) pixels;
+            for (int i = 0; i < count; i++, index += step)
+                out[offset + i] = in[index];
+            break;
+        }
+        default: {
+            int[] in = (int[]) source;
+            int[] out = (int[]) pixels;
+            for (int i = 0; i < count; i++, index += step)
+                out[offset + i] = in[index];
+        }
+        }
+    }
+
+    /**
+     * Builds all levels below level 0, each one by averaging 2x2 pixels of the
+     * previous one. Level 1 is built from the data unit directly, two rows at
+     * a time.
+     */
+    private void buildLevels() {
+        try {
+            final int width = levelWidth[0];
+            final int height = levelHeight[0];
+
+            final Object first = converter.allocate(levelWidth[1] * levelHeight[1]);
+            FITSPixelConverter.forEachStripe(levelHeight[1], 2 * width, new FITSPixelConverter.Rows() {
+                public void run(int from, int to) {
+                    FITSPixelConverter.RowDecoder decoder = converter.new RowDecoder();
+                    Object rows = converter.allocate(2 * width);
+                    for (int y = from; y < to; y++) {
+                        int y0 = 2 * y;
+                        int y1 = Math.min(y0 + 1, height - 1);
+                        decoder.decode(y0 * width, 1, width, rows, 0);
+                        decoder.decode(y1 * width, 1, width, rows, width);
+                        averageRows(rows, 0, width, width, first, y * levelWidth[1], levelWidth[1]);
+                    }
+                }
+            });
+            publishLevel(1, first);
+
+            Object level = first;
+            for (int i = 2; i < levelWidth.length; i++) {
+                final Object previous = level;
+                final int previousWidth = levelWidth[i - 1];
+                final int previousHeight = levelHeight[i - 1];
+                final int currentWidth = levelWidth[i];
+                final Object current = converter.allocate(levelWidth[i] * levelHeight[i]);
+                FITSPixelConverter.forEachStripe(levelHeight[i], 2 * previousWidth, new FITSPixelConverter.Rows() {
+                    public void run(int from, int to) {
+                        for (int y = from; y < to; y++) {
+                            int y0 = 2 * y;
+                            int y1 = Math.min(y0 + 1, previousHeight - 1);
+                            averageRows(previous, y0 * previousWidth, y1 * previousWidth, previousWidth, current, y * currentWidth, currentWidth);
+                        }
+                    }
+                });
+                publishLevel(i, current);
+                level = current;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void publishLevel(int level, Object pixels) {
+        levels.set(level, pixels);
+        Runnable listener = levelListener;
+        if (listener != null)
+            listener.run();
+    }
+
+    /**
+     * Averages 2x2 pixels of two rows into one row of half the width
+     *
+     * @param source
+     *            pixels of the finer level
+     * @param row0
+     *            index of the first row within the source
+     * @param row1
+     *            index of the second row within the source
+     * @param sourceWidth
+     *            width of the rows
+     * @param pixels
+     *            destination array
+     * @param offset
+     *            index of the destination row
+     * @param width
+     *            width of the destination row
+     */
+    private void averageRows(Object source, int row0, int row1, int sourceWidth, Object pixels, int offset, int width) {
+        switch (converter.getPixelType()) {
+        case FITSPixelConverter.PIXEL_BYTE: {
+            byte[] in = (byte[]) source;
+            byte[] out = (byte[]) pixels;
+            for (int x = 0; x < width; x++) {
+                int x0 = 2 * x;
+                int x1 = Math.min(x0 + 1, sourceWidth - 1);
+                int sum = (in[row0 + x0] & 0xFF) + (in[row0 + x1] & 0xFF) + (in[row1 + x0] & 0xFF) + (in[row1 + x1] & 0xFF);
+                out[offset + x] = (byte) ((sum + 2) >> 2);
+            }
+            break;
+        }
+        case FITSPixelConverter.PIXEL_SHORT: {
+            short[] in = (short[]) source;
+            short[] out = (short[]) pixels;
+            for (int x = 0; x < width; x++) {
+                int x0 = 2 * x;
+                int x1 = Math.min(x0 + 1, sourceWidth - 1);
+                int sum = (in[row0 + x0] & 0xFFFF) + (in[row0 + x1] & 0xFFFF) + (in[row1 + x0] & 0xFFFF) + (in[row1 + x1] & 0xFFFF);
+                out[offset + x] = (short) ((sum + 2) >> 2);
+            }
+            break;
+        }
+        default: {
+            int[] in = (int[]) source;
+            int[] out = (int[]) pixels;
+            for (int x = 0; x < width; x++) {
+                int x0 = 2 * x;
+                int x1 = Math.min(x0 + 1, sourceWidth - 1);
+                int a = in[row0 + x0], b = in[row0 + x1], c = in[row1 + x0], d = in[row1 + x1];
+                int result = 0;
+                // average each of the four channels
+                for (int shift = 0; shift < 32; shift += 8) {
+                    int sum = ((a >>> shift) & 0xFF) + ((b >>> shift) & 0xFF) + ((c >>> shift) & 0xFF) + ((d >>> shift) & 0xFF);
+                    result |= ((sum + 2) >> 2) << shift;
+                }
+                out[offset + x] = result;
+            }
+        }
+        }
+    }
+}
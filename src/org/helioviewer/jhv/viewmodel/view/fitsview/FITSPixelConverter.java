@@ -0,0 +1,555 @@
+package org.helioviewer.jhv.viewmodel.view.fitsview;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+import nom.tam.fits.BasicHDU;
+
+/**
+ * Conversion of the raw values of a FITS data unit to pixels.
+ *
+ * <p>
+ * Depending on BITPIX, BSCALE and BZERO, the values are converted to
+ * <ul>
+ * <li>8 bit pixels, unchanged, for unscaled BITPIX 8,
+ * <li>32 bit ARGB pixels, unchanged, for unscaled BITPIX 32,
+ * <li>16 bit pixels shifted to use all 16 bit, if no value is negative, for
+ * unscaled BITPIX 16 and for unsigned BITPIX 16 (BZERO 32768),
+ * <li>16 bit pixels otherwise: the physical values BZERO + BSCALE * raw are
+ * scaled from their minimum to their maximum, or clipped at +/-2000 Gauss for
+ * MDI magnetograms.
+ * </ul>
+ * The last case is a single multiply-add per value, since the physical
+ * scaling and the scaling to 16 bit are folded into one linear function.
+ *
+ * <p>
+ * Rows are converted by a {@link RowDecoder}, which copies the raw values of
+ * a row into a primitive array with one bulk get and then runs a branch free
+ * loop over that array, which the JIT compiler can vectorize. Larger jobs are
+ * split into stripes of rows, which are processed in parallel, see
+ * {@link #forEachStripe(int, int, Rows)}.
+ *
+ * <p>
+ * This class is threadsafe, the row decoders are not.
+ */
+final class FITSPixelConverter {
+
+    static final int PIXEL_BYTE = 0;
+    static final int PIXEL_SHORT = 1;
+    static final int PIXEL_INT = 2;
+
+    private static final double MDI_THRESHOLD = 2000;
+
+    /** Number of values below which a stripe is not split any further */
+    private static final int STRIPE_SIZE = 1 << 16;
+
+    private static final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(), new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            t.setName("FITS-Kernel-" + t.getPoolIndex());
+            return t;
+        }
+    }, null, false);
+
+    /**
+     * Work on a range of rows
+     */
+    interface Rows {
+        /**
+         * @param from
+         *            first row
+         * @param to
+         *            row after the last row
+         */
+        void run(int from, int to);
+    }
+
+    private static class Stripe extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Rows rows;
+        private final int from;
+        private final int to;
+        private final int rowSize;
+
+        private Stripe(Rows rows, int from, int to, int rowSize) {
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+            this.rowSize = rowSize;
+        }
+
+        protected void compute() {
+            if (to - from < 2 || (long) (to - from) * rowSize <= STRIPE_SIZE) {
+                rows.run(from, to);
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Stripe(rows, from, middle, rowSize), new Stripe(rows, middle, to, rowSize));
+            }
+        }
+    }
+
+    /**
+     * Runs the given work for all rows, split into stripes which are
+     * processed in parallel. Returns when all rows are done.
+     *
+     * @param height
+     *            number of rows
+     * @param rowSize
+     *            number of values per row
+     * @param rows
+     *            work, called once per stripe
+     */
+    static void forEachStripe(int height, int rowSize, Rows rows) {
+        if (height <= 0)
+            return;
+        if ((long) height * rowSize <= STRIPE_SIZE)
+            rows.run(0, height);
+        else
+            pool.invoke(new Stripe(rows, 0, height, rowSize));
+    }
+
+    private final ByteBuffer data;
+    private final int width;
+    private final int height;
+    private final int bitsPerPixel;
+    private final int pixelType;
+
+    /** Whether pixel = raw * factor + offset, clipped to 16 bit */
+    private final boolean linear;
+    private double factor = 0;
+    private double offset = 0;
+
+    /** Otherwise, for 16 bit: pixel = (raw ^ xor) << shiftBits */
+    private int xor = 0;
+    private int shiftBits = 0;
+
+    /**
+     * Creates the converter and, if needed, scans the data unit once to
+     * determine the range of the values.
+     *
+     * @param data
+     *            data unit, starting at the first value
+     * @param width
+     *            width of the image (NAXIS1)
+     * @param height
+     *            height of the image (NAXIS2)
+     * @param bitsPerPixel
+     *            BITPIX of the image
+     * @param bscale
+     *            BSCALE of the image, 1 if not given
+     * @param bzero
+     *            BZERO of the image, 0 if not given
+     * @param mdiMagnetogram
+     *            whether the image is an MDI magnetogram
+     * @throws IllegalArgumentException
+     *             if the data type is not supported or the data unit is too
+     *             short
+     */
+    FITSPixelConverter(ByteBuffer data, int width, int height, int bitsPerPixel, double bscale, double bzero, boolean mdiMagnetogram) {
+        this.data = data;
+        this.width = width;
+        this.height = height;
+        this.bitsPerPixel = bitsPerPixel;
+
+        boolean scaled = bscale != 1 || bzero != 0;
+        switch (bitsPerPixel) {
+        case BasicHDU.BITPIX_BYTE:
+        case BasicHDU.BITPIX_SHORT:
+        case BasicHDU.BITPIX_INT:
+        case BasicHDU.BITPIX_LONG:
+        case BasicHDU.BITPIX_FLOAT:
+        case BasicHDU.BITPIX_DOUBLE:
+            break;
+        default:
+            throw new IllegalArgumentException("Unsupported BITPIX " + bitsPerPixel);
+        }
+
+        if (width <= 0 || height <= 0 || (long) width * height * Math.abs(bitsPerPixel) / 8 > data.capacity())
+            throw new IllegalArgumentException("Data unit does not contain " + width + "x" + height + " values");
+
+        if (bitsPerPixel == BasicHDU.BITPIX_BYTE && !scaled) {
+            pixelType = PIXEL_BYTE;
+            linear = false;
+        } else if (bitsPerPixel == BasicHDU.BITPIX_INT && !scaled) {
+            pixelType = PIXEL_INT;
+            linear = false;
+        } else if (bitsPerPixel == BasicHDU.BITPIX_SHORT && (!scaled || (bscale == 1 && bzero == 32768))) {
+            pixelType = PIXEL_SHORT;
+            linear = false;
+            xor = scaled ? 0x8000 : 0;
+
+            // if no value is negative, shift the values to use all 16 bit
+            double[] range = scanRange();
+            int highestValue = (int) range[1] + (scaled ? 32768 : 0);
+            if ((scaled || range[0] >= 0) && highestValue > 0)
+                shiftBits = Integer.numberOfLeadingZeros(highestValue) - 16;
+        } else {
+            pixelType = PIXEL_SHORT;
+            linear = true;
+
+            if (mdiMagnetogram) {
+                double scale = 65535 / (2 * MDI_THRESHOLD);
+                factor = bscale * scale;
+                offset = (bzero + MDI_THRESHOLD) * scale;
+            } else {
+                double[] range = scanRange();
+                if (range[1] > range[0]) {
+                    double physicalMin = bzero + bscale * (bscale >= 0 ? range[0] : range[1]);
+                    double scale = 65535 / (Math.abs(bscale) * (range[1] - range[0]));
+                    factor = bscale * scale;
+                    offset = (bzero - physicalMin) * scale;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return type of the pixels, {@link #PIXEL_BYTE}, {@link #PIXEL_SHORT}
+     *         or {@link #PIXEL_INT}
+     */
+    int getPixelType() {
+        return pixelType;
+    }
+
+    /**
+     * Allocates an array for pixels of the type produced
+     *
+     * @param length
+     *            number of pixels
+     * @return byte[], short[] or int[]
+     */
+    Object allocate(int length) {
+        switch (pixelType) {
+        case PIXEL_BYTE:
+            return new byte[length];
+        case PIXEL_SHORT:
+            return new short[length];
+        default:
+            return new int[length];
+        }
+    }
+
+    /**
+     * @return minimum and maximum raw value, NaN values are ignored
+     */
+    private double[] scanRange() {
+        final double[] range = { Double.MAX_VALUE, -Double.MAX_VALUE };
+        forEachStripe(height, width, new Rows() {
+            public void run(int from, int to) {
+                RowDecoder decoder = new RowDecoder();
+                double[] stripeRange = { Double.MAX_VALUE, -Double.MAX_VALUE };
+                for (int y = from; y < to; y++)
+                    decoder.scan(y * width, width, stripeRange);
+                synchronized (range) {
+                    range[0] = Math.min(range[0], stripeRange[0]);
+                    range[1] = Math.max(range[1], stripeRange[1]);
+                }
+            }
+        });
+        return range;
+    }
+
+    /**
+     * Converts rows of the data unit. Each thread needs its own decoder.
+     */
+    final class RowDecoder {
+
+        private final ByteBuffer bytes;
+        private final ShortBuffer shorts;
+        private final IntBuffer ints;
+        private final LongBuffer longs;
+        private final FloatBuffer floats;
+        private final DoubleBuffer doubles;
+
+        /** Raw values of the current row */
+        private Object raw = null;
+
+        RowDecoder() {
+            ByteBuffer view = data.duplicate();
+            bytes = bitsPerPixel == BasicHDU.BITPIX_BYTE ? view : null;
+            shorts = bitsPerPixel == BasicHDU.BITPIX_SHORT ? view.asShortBuffer() : null;
+            ints = bitsPerPixel == BasicHDU.BITPIX_INT ? view.asIntBuffer() : null;
+            longs = bitsPerPixel == BasicHDU.BITPIX_LONG ? view.asLongBuffer() : null;
+            floats = bitsPerPixel == BasicHDU.BITPIX_FLOAT ? view.asFloatBuffer() : null;
+            doubles = bitsPerPixel == BasicHDU.BITPIX_DOUBLE ? view.asDoubleBuffer() : null;
+        }
+
+        /**
+         * Converts values of one row of the data unit
+         *
+         * @param index
+         *            index of the first value within the data unit
+         * @param step
+         *            distance between two values to convert
+         * @param count
+         *            number of values to convert
+         * @param pixels
+         *            destination array, see {@link FITSPixelConverter#allocate(int)}
+         * @param pixelOffset
+         *            index of the first pixel within the destination
+         */
+        void decode(int index, int step, int count, Object pixels, int pixelOffset) {
+            gather(index, step, count);
+
+            switch (bitsPerPixel) {
+            case BasicHDU.BITPIX_BYTE:
+                if (linear)
+                    convert((byte[]) raw, count, factor, offset, (short[]) pixels, pixelOffset);
+                else
+                    System.arraycopy(raw, 0, pixels, pixelOffset, count);
+                break;
+            case BasicHDU.BITPIX_SHORT:
+                if (linear)
+                    convert((short[]) raw, count, factor, offset, (short[]) pixels, pixelOffset);
+                else
+                    shift((short[]) raw, count, xor, shiftBits, (short[]) pixels, pixelOffset);
+                break;
+            case BasicHDU.BITPIX_INT:
+                if (linear)
+                    convert((int[]) raw, count, factor, offset, (short[]) pixels, pixelOffset);
+                else
+                    System.arraycopy(raw, 0, pixels, pixelOffset, count);
+                break;
+            case BasicHDU.BITPIX_LONG:
+                convert((long[]) raw, count, factor, offset, (short[]) pixels, pixelOffset);
+                break;
+            case BasicHDU.BITPIX_FLOAT:
+                convert((float[]) raw, count, factor, offset, (short[]) pixels, pixelOffset);
+                break;
+            case BasicHDU.BITPIX_DOUBLE:
+                convert((double[]) raw, count, factor, offset, (short[]) pixels, pixelOffset);
+                break;
+            }
+        }
+
+        /**
+         * Extends the given range by the raw values of one row
+         */
+        private void scan(int index, int count, double[] range) {
+            gather(index, 1, count);
+
+            double min = range[0];
+            double max = range[1];
+            switch (bitsPerPixel) {
+            case BasicHDU.BITPIX_BYTE: {
+                byte[] in = (byte[]) raw;
+                for (int i = 0; i < count; i++) {
+                    int value = in[i] & 0xFF;
+                    min = value < min ? value : min;
+                    max = value > max ? value : max;
+                }
+                break;
+            }
+            case BasicHDU.BITPIX_SHORT: {
+                short[] in = (short[]) raw;
+                int low = Short.MAX_VALUE, high = Short.MIN_VALUE;
+                for (int i = 0; i < count; i++) {
+                    low = in[i] < low ? in[i] : low;
+                    high = in[i] > high ? in[i] : high;
+                }
+                min = Math.min(min, low);
+                max = Math.max(max, high);
+                break;
+            }
+            case BasicHDU.BITPIX_INT: {
+                int[] in = (int[]) raw;
+                for (int i = 0; i < count; i++) {
+                    min = in[i] < min ? in[i] : min;
+                    max = in[i] > max ? in[i] : max;
+                }
+                break;
+            }
+            case BasicHDU.BITPIX_LONG: {
+                long[] in = (long[]) raw;
+                for (int i = 0; i < count; i++) {
+                    min = in[i] < min ? in[i] : min;
+                    max = in[i] > max ? in[i] : max;
+                }
+                break;
+            }
+            case BasicHDU.BITPIX_FLOAT: {
+                float[] in = (float[]) raw;
+                float low = Float.MAX_VALUE, high = -Float.MAX_VALUE;
+                // comparisons are false for NaN
+                for (int i = 0; i < count; i++) {
+                    low = in[i] < low ? in[i] : low;
+                    high = in[i] > high ? in[i] : high;
+                }
+                min = Math.min(min, low);
+                max = Math.max(max, high);
+                break;
+            }
+            case BasicHDU.BITPIX_DOUBLE: {
+                double[] in = (double[]) raw;
+                for (int i = 0; i < count; i++) {
+                    min = in[i] < min ? in[i] : min;
+                    max = in[i] > max ? in[i] : max;
+                }
+                break;
+            }
+            }
+            range[0] = min;
+            range[1] = max;
+        }
+
+        /**
+         * Copies raw values into {@link #raw}, with one bulk get if the
+         * values are consecutive
+         */
+        private void gather(int index, int step, int count) {
+            switch (bitsPerPixel) {
+            case BasicHDU.BITPIX_BYTE: {
+                byte[] out = raw == null || ((byte[]) raw).length < count ? new byte[Math.max(count, width)] : (byte[]) raw;
+                if (step == 1) {
+                    bytes.position(index);
+                    bytes.get(out, 0, count);
+                } else {
+                    for (int i = 0; i < count; i++, index += step)
+                        out[i] = bytes.get(index);
+                }
+                raw = out;
+                break;
+            }
+            case BasicHDU.BITPIX_SHORT: {
+                short[] out = raw == null || ((short[]) raw).length < count ? new short[Math.max(count, width)] : (short[]) raw;
+                if (step == 1) {
+                    shorts.position(index);
+                    shorts.get(out, 0, count);
+                } else {
+                    for (int i = 0; i < count; i++, index += step)
+                        out[i] = shorts.get(index);
+                }
+                raw = out;
+                break;
+            }
+            case BasicHDU.BITPIX_INT: {
+                int[] out = raw == null || ((int[]) raw).length < count ? new int[Math.max(count, width)] : (int[]) raw;
+                if (step == 1) {
+                    ints.position(index);
+                    ints.get(out, 0, count);
+                } else {
+                    for (int i = 0; i < count; i++, index += step)
+                        out[i] = ints.get(index);
+                }
+                raw = out;
+                break;
+            }
+            case BasicHDU.BITPIX_LONG: {
+                long[] out = raw == null || ((long[]) raw).length < count ? new long[Math.max(count, width)] : (long[]) raw;
+                if (step == 1) {
+                    longs.position(index);
+                    longs.get(out, 0, count);
+                } else {
+                    for (int i = 0; i < count; i++, index += step)
+                        out[i] = longs.get(index);
+                }
+                raw = out;
+                break;
+            }
+            case BasicHDU.BITPIX_FLOAT: {
+                float[] out = raw == null || ((float[]) raw).length < count ? new float[Math.max(count, width)] : (float[]) raw;
+                if (step == 1) {
+                    floats.position(index);
+                    floats.get(out, 0, count);
+                } else {
+                    for (int i = 0; i < count; i++, index += step)
+                        out[i] = floats.get(index);
+                }
+                raw = out;
+                break;
+            }
+            case BasicHDU.BITPIX_DOUBLE: {
+                double[] out = raw == null || ((double[]) raw).length < count ? new double[Math.max(count, width)] : (double[]) raw;
+                if (step == 1) {
+                    doubles.position(index);
+                    doubles.get(out, 0, count);
+                } else {
+                    for (int i = 0; i < count; i++, index += step)
+                        out[i] = doubles.get(index);
+                }
+                raw = out;
+                break;
+            }
+            }
+        }
+    }
+
+    // /////////////////////////////////////////////////////////////////////////
+    // Kernels
+    // /////////////////////////////////////////////////////////////////////////
+
+    /**
+     * pixel = (raw ^ xor) << shift, truncated to 16 bit
+     */
+    static void shift(short[] in, int count, int xor, int shift, short[] out, int offset) {
+        for (int i = 0; i < count; i++)
+            out[offset + i] = (short) ((in[i] ^ xor) << shift);
+    }
+
+    /**
+     * pixel = unsigned raw * factor + offset, clipped to 16 bit
+     */
+    static void convert(byte[] in, int count, double factor, double offset, short[] out, int outOffset) {
+        for (int i = 0; i < count; i++)
+            out[outOffset + i] = clip((in[i] & 0xFF) * factor + offset);
+    }
+
+    /**
+     * pixel = raw * factor + offset, clipped to 16 bit
+     */
+    static void convert(short[] in, int count, double factor, double offset, short[] out, int outOffset) {
+        for (int i = 0; i < count; i++)
+            out[outOffset + i] = clip(in[i] * factor + offset);
+    }
+
+    /**
+     * pixel = raw * factor + offset, clipped to 16 bit
+     */
+    static void convert(int[] in, int count, double factor, double offset, short[] out, int outOffset) {
+        for (int i = 0; i < count; i++)
+            out[outOffset + i] = clip(in[i] * factor + offset);
+    }
+
+    /**
+     * pixel = raw * factor + offset, clipped to 16 bit
+     */
+    static void convert(long[] in, int count, double factor, double offset, short[] out, int outOffset) {
+        for (int i = 0; i < count; i++)
+            out[outOffset + i] = clip(in[i] * factor + offset);
+    }
+
+    /**
+     * pixel = raw * factor + offset, clipped to 16 bit
+     */
+    static void convert(float[] in, int count, double factor, double offset, short[] out, int outOffset) {
+        // single precision is enough for 16 bit and twice as wide in SIMD
+        float f = (float) factor;
+        float o = (float) offset;
+        for (int i = 0; i < count; i++)
+            out[outOffset + i] = (short) Math.max(0, Math.min(65535, (int) (in[i] * f + o)));
+    }
+
+    /**
+     * pixel = raw * factor + offset, clipped to 16 bit
+     */
+    static void convert(double[] in, int count, double factor, double offset, short[] out, int outOffset) {
+        for (int i = 0; i < count; i++)
+            out[outOffset + i] = clip(in[i] * factor + offset);
+    }
+
+    /**
+     * Clips to [0, 65535], NaN becomes 0
+     */
+    private static short clip(double value) {
+        // (int) NaN is 0
+        return (short) Math.max(0, Math.min(65535, (int) value));
+    }
+}
@@ -1,6 +1,6 @@
 package org.helioviewer.jhv.viewmodel.view.fitsview;
 
-import java.awt.image.BufferedImage;
+import java.awt.EventQueue;
 import java.io.IOException;
 import java.net.URI;
 
@@ -10,11 +10,7 @@ import org.helioviewer.jhv.viewmodel.changeevent.RegionChangedReason;
 import org.helioviewer.jhv.viewmodel.changeevent.RegionUpdatedReason;
 import org.helioviewer.jhv.viewmodel.changeevent.SubImageDataChangedReason;
 import org.helioviewer.jhv.viewmodel.changeevent.ViewportChangedReason;
-import org.helioviewer.jhv.viewmodel.imagedata.ARGBInt32ImageData;
-import org.helioviewer.jhv.viewmodel.imagedata.ColorMask;
 import org.helioviewer.jhv.viewmodel.imagedata.ImageData;
-import org.helioviewer.jhv.viewmodel.imagedata.SingleChannelByte8ImageData;
-import org.helioviewer.jhv.viewmodel.imagedata.SingleChannelShortImageData;
 import org.helioviewer.jhv.viewmodel.metadata.MetaData;
 import org.helioviewer.jhv.viewmodel.metadata.MetaDataFactory;
 import org.helioviewer.jhv.viewmodel.region.Region;
@@ -30,6 +26,7 @@ import org.helioviewer.jhv.viewmodel.view.ViewportView;
 import org.helioviewer.jhv.viewmodel.viewport.StaticViewport;
 import org.helioviewer.jhv.viewmodel.viewport.Viewport;
 import org.helioviewer.jhv.viewmodel.viewportimagesize.StaticViewportImageSize;
+import org.helioviewer.jhv.viewmodel.viewportimagesize.ViewportImageSize;
 import org.helioviewer.jhv.viewmodel.viewportimagesize.ViewportImageSizeAdapter;
 
 /**
@@ -39,6 +36,11 @@ import org.helioviewer.jhv.viewmodel.viewportimagesize.ViewportImageSizeAdapter;
  * For further informations about the behavior of this view,
  * {@link ImageInfoView} is a good start to get into the concept.
  * 
+ * <p>
+ * Like the JPEG2000 views, this view only decodes the current region, at the
+ * lowest resolution level of the {@link FITSImage} which still covers the
+ * viewport.
+ * 
  * @author Andreas Hoelzl
  * */
 public class JHVFITSView extends AbstractView implements ViewportView, RegionView, SubimageDataView, ImageInfoView, MetaDataView {
@@ -48,8 +50,12 @@ public class JHVFITSView extends AbstractView implements ViewportView, RegionVie
     protected FITSImage fits;
     protected ImageData subImageData;
     protected MetaData m;
+    protected int level = 0;
     private URI uri;
 
+    /** Whether the image data was subsampled because the level was missing */
+    private boolean subsampled = false;
+
     /**
      * Constructor which loads a fits image from a given URI.
      * 
@@ -97,19 +103,49 @@ public class JHVFITSView extends AbstractView implements ViewportView, RegionVie
     	m = MetaDataFactory.getMetaData(fits);
         //m = MetaDataConstructor.getMetaData(fits);
 
-        BufferedImage bi = fits.getImage(0, 0, fits.getPixelHeight(), fits.getPixelWidth());
-
-        if (bi.getColorModel().getPixelSize() <= 8) {
-            subImageData = new SingleChannelByte8ImageData(bi, new ColorMask());
-        } else if (bi.getColorModel().getPixelSize() <= 16) {
-            subImageData = new SingleChannelShortImageData(bi.getColorModel().getPixelSize(), bi, new ColorMask());
-        } else {
-            subImageData = new ARGBInt32ImageData(bi, new ColorMask());
-        }
-
         region = StaticRegion.createAdaptedRegion(m.getPhysicalLowerLeft().x, m.getPhysicalLowerLeft().y, m.getPhysicalImageSize().x, m.getPhysicalImageSize().y);
 
         viewport = StaticViewport.createAdaptedViewport(100, 100);
+
+        level = calculateLevel();
+        subsampled = !fits.isLevelAvailable(level);
+        subImageData = fits.getImageData(0, 0, fits.getPixelHeight(level), fits.getPixelWidth(level), level);
+
+        // replace subsampled image data as soon as the level is available
+        fits.setLevelListener(new Runnable() {
+            public void run() {
+                EventQueue.invokeLater(new Runnable() {
+                    public void run() {
+                        if (subsampled && fits.isLevelAvailable(level))
+                            updateImageData(new ChangeEvent());
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Calculates the resolution level needed to display the current region
+     * in the current viewport, like
+     * {@link org.helioviewer.jhv.viewmodel.view.jp2view.image.ResolutionSet#getNextResolutionLevel(java.awt.Dimension)}
+     * 
+     * @return lowest resolution level which is at least as large as the
+     *         region within the viewport
+     */
+    private int calculateLevel() {
+        ViewportImageSize imageViewportDimension = ViewHelper.calculateViewportImageSize(viewport, region);
+        if (imageViewportDimension == null)
+            return 0;
+
+        // calculate total resolution of the image necessary to
+        // have the requested resolution in the subimage
+        int totalWidth = (int) Math.round(imageViewportDimension.getWidth() * m.getPhysicalImageWidth() / region.getWidth());
+        int totalHeight = (int) Math.round(imageViewportDimension.getHeight() * m.getPhysicalImageHeight() / region.getHeight());
+
+        int result = 0;
+        while (result + 1 < fits.getLevelCount() && fits.getPixelWidth(result + 1) >= totalWidth && fits.getPixelHeight(result + 1) >= totalHeight)
+            result++;
+        return result;
     }
 
     /**
@@ -123,21 +159,18 @@ public class JHVFITSView extends AbstractView implements ViewportView, RegionVie
 
         m = getMetaData();
 
-        double imageMeterPerPixel = m.getPhysicalImageWidth() / fits.getPixelWidth();
+        level = calculateLevel();
+        int levelWidth = fits.getPixelWidth(level);
+        int levelHeight = fits.getPixelHeight(level);
+
+        double imageMeterPerPixel = m.getPhysicalImageWidth() / levelWidth;
         long imageWidth = Math.round(r.getWidth() / imageMeterPerPixel);
         long imageHeight = Math.round(r.getHeight() / imageMeterPerPixel);
 
-        Vector2i imagePostion = ViewHelper.calculateInnerViewportOffset(r, m.getPhysicalRegion(), new ViewportImageSizeAdapter(new StaticViewportImageSize(fits.getPixelWidth(), fits.getPixelHeight())));
+        Vector2i imagePostion = ViewHelper.calculateInnerViewportOffset(r, m.getPhysicalRegion(), new ViewportImageSizeAdapter(new StaticViewportImageSize(levelWidth, levelHeight)));
 
-        BufferedImage bi = fits.getImage(imagePostion.getX(), imagePostion.getY(), (int) imageHeight, (int) imageWidth);
-
-        if (bi.getColorModel().getPixelSize() <= 8) {
-            subImageData = new SingleChannelByte8ImageData(bi, new ColorMask());
-        } else if (bi.getColorModel().getPixelSize() <= 16) {
-            subImageData = new SingleChannelShortImageData(bi.getColorModel().getPixelSize(), bi, new ColorMask());
-        } else {
-            subImageData = new ARGBInt32ImageData(bi, new ColorMask());
-        }
+        subsampled = !fits.isLevelAvailable(level);
+        subImageData = fits.getImageData(imagePostion.getX(), imagePostion.getY(), (int) imageHeight, (int) imageWidth, level);
 
         event.addReason(new SubImageDataChangedReason(this));
         notifyViewListeners(event);
@@ -161,7 +194,12 @@ public class JHVFITSView extends AbstractView implements ViewportView, RegionVie
 
         viewport = v;
         event.addReason(new ViewportChangedReason(this, v));
-        notifyViewListeners(event);
+
+        // decode again, if another resolution level is needed
+        if (calculateLevel() != level)
+            updateImageData(event);
+        else
+            notifyViewListeners(event);
 
         return true;
     }
@@ -0,0 +1,248 @@
+package org.helioviewer.jhv.viewmodel.view.jp2view;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.helioviewer.jhv.viewmodel.view.jp2view.kakadu.JHV_KduException;
+
+/**
+ * Table of the meta data of all frames of a {@link JP2Image}.
+ *
+ * <p>
+ * The XML box of every frame is parsed once in a single streaming pass. As it
+ * was done with the DOM before, a lookup only considers the first element with
+ * the name of the box in the document, and within it only the first element
+ * with the name of the keyword. The value is the text in front of any child
+ * element of the latter, so a lookup yields null if that element has no such
+ * text, even if a later element with the same name has.
+ *
+ * <p>
+ * All frames of an image mostly share the same keys, so the (box, keyword)
+ * pairs are numbered once per table and every frame only keeps an array of
+ * values indexed by these numbers.
+ */
+class FrameHeaderTable {
+
+    private static final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+
+    static {
+        xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    }
+
+    /** Element being parsed */
+    private static class Element {
+        private final String name;
+
+        /**
+         * Names of the descendants seen so far, null unless this is the first
+         * element with its name in the document
+         */
+        private final HashSet<String> descendants;
+
+        /** Boxes in which this is the first element with its name */
+        private final ArrayList<Element> boxes = new ArrayList<Element>();
+
+        private String text = null;
+        private boolean hasFirstChild = false;
+
+        private Element(String _name, boolean firstOfName) {
+            name = _name;
+            descendants = firstOfName ? new HashSet<String>() : null;
+        }
+    }
+
+    /** Number of each keyword by box name */
+    private final HashMap<String, HashMap<String, Integer>> keyIDs = new HashMap<String, HashMap<String, Integer>>();
+
+    private int numKeys = 0;
+
+    /** Values by key number per frame, null while a frame is not parsed */
+    private final String[][] frames;
+
+    /**
+     * Constructor.
+     *
+     * @param _numFrames
+     *            Number of frames of the image
+     */
+    FrameHeaderTable(int _numFrames) {
+        frames = new String[_numFrames][];
+    }
+
+    /**
+     * Returns whether the XML box of the given frame has already been parsed.
+     *
+     * @param frame
+     *            Frame number, starting at 0
+     * @return true, if the frame is parsed
+     */
+    synchronized boolean isParsed(int frame) {
+        return frames[frame] != null;
+    }
+
+    /**
+     * Parses the XML box of the given frame into the table.
+     *
+     * @param frame
+     *            Frame number, starting at 0
+     * @param xml
+     *            Contents of the XML box of the frame
+     * @throws JHV_KduException
+     *             if the XML data is malformed
+     */
+    void parse(int frame, String xml) throws JHV_KduException {
+        ArrayList<Element> elements = new ArrayList<Element>();
+        HashSet<String> names = new HashSet<String>();
+        ArrayList<String[]> pairs = new ArrayList<String[]>();
+
+        try {
+            XMLStreamReader reader;
+            synchronized (xmlInputFactory) {
+                reader = xmlInputFactory.createXMLStreamReader(new StringReader(xml));
+            }
+
+            try {
+                while (reader.hasNext()) {
+                    switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT: {
+                        if (!elements.isEmpty())
+                            elements.get(elements.size() - 1).hasFirstChild = true;
+
+                        Element element = new Element(reader.getLocalName(), names.add(reader.getLocalName()));
+                        for (Element box : elements) {
+                            if (box.descendants != null && box.descendants.add(element.name))
+                                element.boxes.add(box);
+                        }
+                        elements.add(element);
+                        break;
+                    }
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        // only the text in front of any child element counts
+                        if (!elements.isEmpty()) {
+                            Element element = elements.get(elements.size() - 1);
+                            if (!element.hasFirstChild)
+                                element.text = reader.getText();
+                            element.hasFirstChild = true;
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT: {
+                        Element element = elements.remove(elements.size() - 1);
+                        if (element.text != null) {
+                            for (Element box : element.boxes)
+                                pairs.add(new String[] { box.name, element.name, element.text });
+                        }
+                        break;
+                    }
+                    case XMLStreamConstants.COMMENT:
+                        if (!elements.isEmpty())
+                            elements.get(elements.size() - 1).hasFirstChild = true;
+                        break;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new JHV_KduException("Failed parsing XML data", e);
+        }
+
+        synchronized (this) {
+            if (frames[frame] != null)
+                return;
+
+            String[] values = new String[numKeys + pairs.size()];
+            for (String[] pair : pairs)
+                values[getKeyID(pair[0], pair[1])] = pair[2];
+
+            int length = values.length;
+            while (length > 0 && values[length - 1] == null)
+                length--;
+            String[] compact = new String[length];
+            System.arraycopy(values, 0, compact, 0, length);
+            frames[frame] = compact;
+        }
+    }
+
+    /**
+     * Returns the value of the given keyword in the given box of a frame.
+     *
+     * @param frame
+     *            Frame number, starting at 0
+     * @param box
+     *            Name of the box, e.g. "fits"
+     * @param keyword
+     *            Name of the keyword
+     * @return Value of the keyword, null if the keyword does not exist or the
+     *         frame is not parsed yet
+     */
+    synchronized String get(int frame, String box, String keyword) {
+        String[] values = frames[frame];
+        if (values == null)
+            return null;
+
+        HashMap<String, Integer> boxKeys = keyIDs.get(box);
+        if (boxKeys == null)
+            return null;
+
+        Integer id = boxKeys.get(keyword);
+        if (id == null || id >= values.length)
+            return null;
+        return values[id];
+    }
+
+    /**
+     * Returns the value of the given keyword as double.
+     *
+     * @return Value of the keyword, or the given default if it does not exist
+     * @throws NumberFormatException
+     *             if the value is not a number
+     * @see #get(int, String, String)
+     */
+    double getDouble(int frame, String box, String keyword, double defaultValue) {
+        String value = get(frame, box, keyword);
+        if (value == null)
+            return defaultValue;
+        return Double.parseDouble(value);
+    }
+
+    /**
+     * Returns the value of the given keyword as int.
+     *
+     * @return Value of the keyword, or the given default if it does not exist
+     * @throws NumberFormatException
+     *             if the value is not an integer
+     * @see #get(int, String, String)
+     */
+    int getInt(int frame, String box, String keyword, int defaultValue) {
+        String value = get(frame, box, keyword);
+        if (value == null)
+            return defaultValue;
+        return Integer.parseInt(value);
+    }
+
+    /** Returns the number of the given pair, the lock has to be held */
+    private int getKeyID(String box, String keyword) {
+        HashMap<String, Integer> boxKeys = keyIDs.get(box);
+        if (boxKeys == null) {
+            boxKeys = new HashMap<String, Integer>();
+            keyIDs.put(box, boxKeys);
+        }
+
+        Integer id = boxKeys.get(keyword);
+        if (id == null) {
+            id = numKeys++;
+            boxKeys.put(keyword, id);
+        }
+        return id;
+    }
+}
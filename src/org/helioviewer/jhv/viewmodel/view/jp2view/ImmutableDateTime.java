@@ -6,9 +6,10 @@ import java.util.Date;
 import java.util.TimeZone;
 
 /**
- * Class that holds Date and Time information. The data is stored in a Calendar
- * object. This class is immutable, if you want a mutable version look at
- * MutableDateTime.
+ * Class that holds Date and Time information. The data is stored as the number
+ * of milliseconds since the Epoch, a Calendar object is only created when
+ * single fields are requested. This class is immutable, if you want a mutable
+ * version look at MutableDateTime.
  * 
  * @author caplins
  * 
@@ -21,8 +22,11 @@ public class ImmutableDateTime implements Comparable<ImmutableDateTime> {
     /** Default DateFormat used to format the time. */
     protected static final DateFormat TIME_FORMAT = DateFormat.getTimeInstance(DateFormat.MEDIUM);
 
-    /** Internal class that holds date/time information. */
-    protected Calendar calendar;
+    /** Milliseconds since the Epoch */
+    private final long millis;
+
+    /** Calendar view of the time, created on demand. */
+    private volatile Calendar calendar;
 
     static
     {
@@ -38,12 +42,15 @@ public class ImmutableDateTime implements Comparable<ImmutableDateTime> {
     public ImmutableDateTime(int _year, int _month, int _day, int _hour, int _minute, int _second) {
         if ((_year | _month | _day | _hour | _minute | _second) < 0)
             throw new IllegalArgumentException("Arguments cannot be negative!");
-        try {
-            calendar = Calendar.getInstance(TimeZone.getTimeZone("GMT+00:00"));
-            calendar.clear();
-            calendar.set(_year, _month, _day, _hour, _minute, _second);
-        } catch (Exception e) {
-            e.printStackTrace();
+
+        if (_year >= 1600 && _month < 12) {
+            millis = toMillis(_year, _month, _day, _hour, _minute, _second);
+        } else {
+            // years before the Gregorian calendar or overflowing months
+            Calendar c = Calendar.getInstance(TimeZone.getTimeZone("GMT+00:00"));
+            c.clear();
+            c.set(_year, _month, _day, _hour, _minute, _second);
+            millis = c.getTimeInMillis();
         }
     }
 
@@ -52,13 +59,7 @@ public class ImmutableDateTime implements Comparable<ImmutableDateTime> {
             throw new IllegalArgumentException("Arguments cannot be negative!");
         }
 
-        try {
-            calendar = Calendar.getInstance(TimeZone.getTimeZone("GMT+00:00"));
-            calendar.clear();
-            calendar.setTimeInMillis(seconds * 1000);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        millis = seconds * 1000;
     }
 
     public ImmutableDateTime(ImmutableDateTime original) {
@@ -66,13 +67,38 @@ public class ImmutableDateTime implements Comparable<ImmutableDateTime> {
             throw new IllegalArgumentException("Can not copy null object");
         }
 
-        try {
-            calendar = Calendar.getInstance(TimeZone.getTimeZone("GMT+00:00"));
-            calendar.clear();
-            calendar.setTimeInMillis(original.getMillis());
-        } catch (Exception e) {
-            e.printStackTrace();
+        millis = original.millis;
+    }
+
+    /**
+     * Converts a date of the Gregorian calendar to milliseconds since the
+     * Epoch. Days and smaller fields may overflow, they carry over like in a
+     * lenient Calendar. NOTE: Month argument is zero based.
+     */
+    private static long toMillis(int _year, int _month, int _day, int _hour, int _minute, int _second) {
+        // count years from March on, so the leap day is the last day of a year
+        long year = _month < 2 ? _year - 1 : _year;
+        long month = _month < 2 ? _month + 10 : _month - 2;
+
+        long era = year / 400;
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * month + 2) / 5 + _day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        long days = era * 146097 + dayOfEra - 719468;
+
+        return (((days * 24 + _hour) * 60 + _minute) * 60 + _second) * 1000;
+    }
+
+    /** Returns the Calendar view of this time, creating it if necessary. */
+    private Calendar getCalendar() {
+        Calendar c = calendar;
+        if (c == null) {
+            c = Calendar.getInstance(TimeZone.getTimeZone("GMT+00:00"));
+            c.clear();
+            c.setTimeInMillis(millis);
+            calendar = c;
         }
+        return c;
     }
 
     /**
@@ -84,19 +110,19 @@ public class ImmutableDateTime implements Comparable<ImmutableDateTime> {
      * @return Requested field
      */
     public int getField(int _field) {
-        return calendar.get(_field);
+        return getCalendar().get(_field);
     }
 
     /** Returns the number of milliseconds since the Epoch. */
     public long getMillis() {
-        return calendar.getTimeInMillis();
+        return millis;
     }
 
     /** Returns the internal Date formatted to a String appropriately. */
     public String getFormattedDate() {
         synchronized(DATE_FORMAT)
         {
-            return DATE_FORMAT.format(calendar.getTime());
+            return DATE_FORMAT.format(new Date(millis));
         }
     }
 
@@ -104,12 +130,12 @@ public class ImmutableDateTime implements Comparable<ImmutableDateTime> {
     public String getFormattedTime() {
         synchronized(DATE_FORMAT)
         {
-            return TIME_FORMAT.format(calendar.getTime());
+            return TIME_FORMAT.format(new Date(millis));
         }
     }
 
     public Date getTime() {
-        return calendar.getTime();
+        return new Date(millis);
     }
 
     /**
@@ -117,8 +143,7 @@ public class ImmutableDateTime implements Comparable<ImmutableDateTime> {
      * DataTime objects.
      */
     public int compareTo(ImmutableDateTime _dt) {
-        long diff = (calendar.getTimeInMillis() - _dt.calendar.getTimeInMillis());
-        return diff < 0 ? -1 : (diff > 0 ? +1 : 0);
+        return millis < _dt.millis ? -1 : (millis > _dt.millis ? +1 : 0);
     }
 
     /** Overridden equals method */
@@ -137,6 +162,6 @@ public class ImmutableDateTime implements Comparable<ImmutableDateTime> {
     /** Overridden hashCode method */
 
     public int hashCode() {
-        return (int) (calendar.getTimeInMillis() ^ (calendar.getTimeInMillis() >>> 32));
+        return (int) (millis ^ (millis >>> 32));
     }
 };
@@ -0,0 +1,559 @@
+package org.helioviewer.jhv.viewmodel.view.jp2view;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.helioviewer.jhv.base.math.Interval;
+import org.helioviewer.jhv.viewmodel.view.cache.ImageCacheStatus;
+import org.helioviewer.jhv.viewmodel.view.cache.ImageCacheStatus.CacheStatus;
+import org.helioviewer.jhv.viewmodel.view.jp2view.J2KRender.RenderReasons;
+import org.helioviewer.jhv.viewmodel.view.jp2view.JHVJP2View.ReaderMode;
+import org.helioviewer.jhv.viewmodel.view.jp2view.io.http.HTTPRequest;
+import org.helioviewer.jhv.viewmodel.view.jp2view.io.jpip.JPIPConstants;
+import org.helioviewer.jhv.viewmodel.view.jp2view.io.jpip.JPIPQuery;
+import org.helioviewer.jhv.viewmodel.view.jp2view.io.jpip.JPIPRequest;
+import org.helioviewer.jhv.viewmodel.view.jp2view.io.jpip.JPIPRequestField;
+import org.helioviewer.jhv.viewmodel.view.jp2view.io.jpip.JPIPResponse;
+import org.helioviewer.jhv.viewmodel.view.jp2view.io.jpip.JPIPSocket;
+import org.helioviewer.jhv.viewmodel.view.jp2view.kakadu.JHV_KduException;
+import org.helioviewer.jhv.viewmodel.view.jp2view.kakadu.JHV_Kdu_cache;
+import org.helioviewer.jhv.viewmodel.view.jp2view.kakadu.KakaduUtils;
+
+/**
+ * Fetches the frames of a remote movie over several JPIP channels at once.
+ *
+ * <p>
+ * The {@link J2KReader} only hands a movie over, once its own channel is
+ * saturated. A fetch starts with {@link #INITIAL_CHANNELS} channels; another
+ * one is opened only when all running channels are saturated as well.
+ *
+ * <p>
+ * The steps of a fetch, each covering up to
+ * {@link JPIPConstants#MAX_REQ_LAYERS} composition layers, are split into
+ * contiguous ranges, one per channel. Every channel requests its steps one
+ * after another, keeping as many requests outstanding as its flow control
+ * allows, until the server has sent all data of a step. A channel finishing
+ * its range early takes over the upper half of the largest range left.
+ *
+ * <p>
+ * If a channel fails, the whole fetch is cancelled and no channels are used
+ * for a backoff time growing with every consecutive failure, so the reader
+ * falls back to its single channel in the meantime.
+ *
+ * <p>
+ * All channels write into the cache of the image, which serializes them by
+ * its lock.
+ */
+class J2KFetchScheduler {
+
+    /** Whether IOExceptions should be shown on System.err or not */
+    private static final boolean VERBOSE = false;
+
+    /** Maximum number of channels opened in addition to the one of the J2KReader */
+    private static final int NUM_CHANNELS = 4;
+
+    /** Number of channels a fetch starts with */
+    private static final int INITIAL_CHANNELS = 2;
+
+    /** Time in milliseconds no channels are used after the first failure */
+    private static final long MIN_BACKOFF = 1000;
+
+    /** Maximum time in milliseconds no channels are used after a failure */
+    private static final long MAX_BACKOFF = 60000;
+
+    private static int threadNumber = 0;
+    private static final ExecutorService pool = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable _r) {
+            Thread t = Executors.defaultThreadFactory().newThread(_r);
+            t.setName("J2KFetchScheduler-" + (threadNumber++));
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /** A single JPIP channel and the range of steps assigned to it */
+    private class Channel {
+        private JPIPSocket socket;
+        private final J2KFlowControl flowControl = new J2KFlowControl();
+
+        /** Next and end index into the step order, guarded by the scheduler */
+        private int next;
+        private int end;
+        private boolean running;
+
+        private volatile long receivedBytes = 0;
+        private volatile long busyTime = 0;
+
+        private void connect() throws IOException, JHV_KduException {
+            socket = new JPIPSocket();
+            JPIPResponse res = (JPIPResponse) socket.connect(parentImageRef.getURI());
+            cacheRef.addJPIPResponseData(res);
+
+            // tell the server, what is already known from the other channels
+            KakaduUtils.updateServerCacheModel(socket, cacheRef, true);
+        }
+
+        private void close() {
+            if (socket == null)
+                return;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                if (VERBOSE)
+                    e.printStackTrace();
+            } finally {
+                socket = null;
+            }
+        }
+    }
+
+    /** A reference to the view this object is fetching for. */
+    private final JHVJPXView parentViewRef;
+
+    /** A reference to the JP2Image of the view. */
+    private final JP2Image parentImageRef;
+
+    /** The cache all channels write into. */
+    private final JHV_Kdu_cache cacheRef;
+
+    private final Channel[] channels = new Channel[NUM_CHANNELS];
+
+    /*
+     * State of the current fetch, guarded by this object. A query is set to
+     * null, as soon as its step is complete.
+     */
+    private JPIPQuery[] stepQuerys = new JPIPQuery[0];
+    private int[] order = new int[0];
+    private boolean[] inProgress = new boolean[0];
+    private boolean[] visited = new boolean[0];
+    private boolean missingFramesFirst;
+    private int curLayer;
+    private int completeSteps;
+    private int runningChannels = 0;
+    private boolean cancelled;
+    private boolean failed;
+    private boolean downgradeNecessary;
+    private boolean downgraded;
+
+    /** Number of fetches in a row which failed, and when to try again */
+    private int consecutiveFailures = 0;
+    private long retryTime = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param _parentViewRef
+     *            View to fetch the frames for
+     */
+    J2KFetchScheduler(JHVJPXView _parentViewRef) {
+        parentViewRef = _parentViewRef;
+        parentImageRef = parentViewRef.jp2Image;
+        cacheRef = parentImageRef.getCacheRef();
+
+        for (int i = 0; i < channels.length; i++)
+            channels[i] = new Channel();
+    }
+
+    /**
+     * Starts to fetch the given steps. If a previous fetch is still running,
+     * it is cancelled and waited for.
+     *
+     * @param _stepQuerys
+     *            One query per step, null for steps which are already complete.
+     *            The array is modified while fetching.
+     * @param firstStep
+     *            Step to fetch first
+     * @param _missingFramesFirst
+     *            Whether a channel moves on to its next step as soon as the
+     *            meta data of all frames of the current one are available,
+     *            coming back for the rest later
+     * @param _curLayer
+     *            Composition layer currently shown
+     * @param _downgradeNecessary
+     *            Whether the cache status of the steps has to be downgraded as
+     *            soon as the first data arrives
+     * @throws InterruptedException
+     */
+    synchronized void start(JPIPQuery[] _stepQuerys, int firstStep, boolean _missingFramesFirst, int _curLayer, boolean _downgradeNecessary) throws InterruptedException {
+        cancel();
+        while (runningChannels > 0)
+            wait();
+
+        stepQuerys = _stepQuerys;
+        missingFramesFirst = _missingFramesFirst;
+        curLayer = _curLayer;
+        completeSteps = 0;
+        cancelled = false;
+        failed = false;
+        downgradeNecessary = _downgradeNecessary;
+        downgraded = false;
+
+        int numSteps = stepQuerys.length;
+        order = new int[numSteps];
+        for (int i = 0; i < numSteps; i++)
+            order[i] = (firstStep + i) % numSteps;
+        inProgress = new boolean[numSteps];
+        visited = new boolean[numSteps];
+
+        for (Channel channel : channels) {
+            channel.next = 0;
+            channel.end = 0;
+        }
+
+        int numChannels = Math.min(INITIAL_CHANNELS, numSteps);
+        for (int i = 0; i < numChannels; i++) {
+            channels[i].next = i * numSteps / numChannels;
+            channels[i].end = (i + 1) * numSteps / numChannels;
+            startChannel(channels[i]);
+        }
+    }
+
+    /**
+     * Returns whether channels may be used, i.e. there is no backoff after a
+     * failure pending.
+     */
+    synchronized boolean isAvailable() {
+        return System.currentTimeMillis() >= retryTime;
+    }
+
+    private synchronized void startChannel(final Channel channel) {
+        channel.running = true;
+        runningChannels++;
+
+        pool.execute(new Runnable() {
+            public void run() {
+                runChannel(channel);
+            }
+        });
+    }
+
+    /**
+     * Opens another channel, if all running channels are saturated and there
+     * are enough steps left to share. The new channel takes over half of the
+     * largest range left.
+     */
+    private synchronized void openChannelIfNeeded() {
+        if (cancelled || failed)
+            return;
+
+        Channel idle = null;
+        int remaining = 0;
+        for (Channel c : channels) {
+            if (!c.running) {
+                if (idle == null)
+                    idle = c;
+            } else if (!c.flowControl.isSaturated()) {
+                return;
+            }
+            remaining = Math.max(remaining, c.end - c.next);
+        }
+
+        if (idle != null && remaining > 1) {
+            idle.next = 0;
+            idle.end = 0;
+            startChannel(idle);
+        }
+    }
+
+    /**
+     * Waits until all channels have finished or the timeout expired.
+     *
+     * @param timeout
+     *            Maximum time to wait in milliseconds
+     * @return true, if all channels have finished
+     * @throws InterruptedException
+     */
+    synchronized boolean waitForFinish(long timeout) throws InterruptedException {
+        if (runningChannels > 0)
+            wait(timeout);
+        return runningChannels == 0;
+    }
+
+    /**
+     * Stops the current fetch. The channels finish their current request, so
+     * they stay usable for the next fetch.
+     */
+    synchronized void cancel() {
+        cancelled = true;
+    }
+
+    /** Returns the number of steps completed by the current fetch */
+    synchronized int getCompleteSteps() {
+        return completeSteps;
+    }
+
+    /**
+     * Returns whether the cache status has been downgraded by the current
+     * fetch.
+     */
+    synchronized boolean hasDowngraded() {
+        return downgraded;
+    }
+
+    /**
+     * Returns whether a channel lost its connection during the current fetch,
+     * leaving its step incomplete.
+     */
+    synchronized boolean hasFailed() {
+        return failed;
+    }
+
+    /**
+     * Returns the throughput of each channel, measured from sending a request
+     * until its response has been received.
+     *
+     * @return bytes per second, one entry per channel
+     */
+    double[] getChannelThroughput() {
+        double[] throughput = new double[channels.length];
+        for (int i = 0; i < channels.length; i++) {
+            long busyTime = channels[i].busyTime;
+            throughput[i] = busyTime == 0 ? 0 : channels[i].receivedBytes * 1000.0 / busyTime;
+        }
+        return throughput;
+    }
+
+    /** Stops fetching and closes all channels */
+    void abolish() {
+        synchronized (this) {
+            cancel();
+            try {
+                while (runningChannels > 0)
+                    wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        for (Channel channel : channels)
+            channel.close();
+    }
+
+    private void runChannel(Channel channel) {
+        try {
+            if (channel.socket == null || channel.socket.isClosed())
+                channel.connect();
+            channel.flowControl.restart();
+
+            int step;
+            while ((step = nextStep(channel)) >= 0)
+                fetchStep(channel, step);
+
+        } catch (IOException e) {
+            if (VERBOSE)
+                e.printStackTrace();
+            channel.close();
+            fail();
+        } catch (JHV_KduException e) {
+            e.printStackTrace();
+            channel.close();
+            fail();
+        } finally {
+            synchronized (this) {
+                channel.running = false;
+                runningChannels--;
+                if (runningChannels == 0 && !failed)
+                    consecutiveFailures = 0;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Cancels the fetch after a channel failed and backs off, so the reader
+     * continues on its own channel instead of reconnecting right away.
+     */
+    private synchronized void fail() {
+        if (failed)
+            return;
+        failed = true;
+        cancelled = true;
+
+        long backoff = MIN_BACKOFF << Math.min(consecutiveFailures, 6);
+        consecutiveFailures++;
+        retryTime = System.currentTimeMillis() + Math.min(backoff, MAX_BACKOFF);
+    }
+
+    /**
+     * Returns the next step the given channel should fetch. If its own range
+     * is exhausted, it takes over the upper half of the largest range left, or
+     * all of it, if the owner is not running anymore.
+     *
+     * @return next step, or -1 if there is nothing left to do
+     */
+    private synchronized int nextStep(Channel channel) {
+        while (!cancelled) {
+            while (channel.next < channel.end) {
+                int step = order[channel.next++];
+                if (stepQuerys[step] != null && !inProgress[step]) {
+                    inProgress[step] = true;
+                    return step;
+                }
+            }
+
+            Channel busiest = null;
+            for (Channel c : channels) {
+                if (busiest == null || c.end - c.next > busiest.end - busiest.next)
+                    busiest = c;
+            }
+
+            int remaining = busiest.end - busiest.next;
+            if (remaining <= 0) {
+                // come back for the steps left incomplete by missing frames
+                // first
+                for (int step : order) {
+                    if (stepQuerys[step] != null && !inProgress[step]) {
+                        inProgress[step] = true;
+                        return step;
+                    }
+                }
+                return -1;
+            }
+
+            int mid = busiest.running ? busiest.next + remaining / 2 : busiest.next;
+            channel.next = mid;
+            channel.end = busiest.end;
+            busiest.end = mid;
+        }
+        return -1;
+    }
+
+    /**
+     * Requests the given step on the channel, until the server has sent all of
+     * its data or the fetch is cancelled. As many requests are kept
+     * outstanding as the flow control of the channel allows; their responses
+     * are always read, so the channel stays usable.
+     *
+     * <p>
+     * With missing frames first, the channel moves on as soon as the meta data
+     * of all frames of the step are available, the first time it visits the
+     * step.
+     */
+    private void fetchStep(Channel channel, int step) throws IOException, JHV_KduException {
+        JPIPRequest req = new JPIPRequest(HTTPRequest.Method.GET);
+        Interval<Integer> layers = parentImageRef.getCompositionLayerRange();
+        int outstanding = 0;
+        boolean done = false;
+
+        boolean moveOnWithMetaData;
+        synchronized (this) {
+            moveOnWithMetaData = missingFramesFirst && !visited[step];
+            visited[step] = true;
+        }
+
+        try {
+            for (;;) {
+                JPIPQuery query;
+                synchronized (this) {
+                    query = stepQuerys[step];
+                    if (cancelled || query == null)
+                        done = true;
+                }
+
+                long start = System.currentTimeMillis();
+
+                // keep the window of the channel filled
+                while (!done && outstanding < channel.flowControl.getMaxOutstandingRequests()) {
+                    query.setField(JPIPRequestField.LEN.toString(), String.valueOf(channel.flowControl.getRequestLen()));
+                    req.setQuery(query.toString());
+                    channel.socket.send(req);
+                    outstanding++;
+                }
+
+                if (outstanding == 0)
+                    return;
+
+                JPIPResponse res = channel.socket.receive(cacheRef);
+                if (res == null)
+                    throw new EOFException("The server closed the channel.");
+                outstanding--;
+
+                channel.flowControl.update(channel.socket);
+                channel.receivedBytes += channel.socket.getReceivedData();
+                channel.busyTime += System.currentTimeMillis() - start;
+
+                if (channel.flowControl.isSaturated())
+                    openChannelIfNeeded();
+
+                if (res.getResponseSize() > 0)
+                    downgradeIfNecessary();
+
+                boolean stepComplete = res.isResponseComplete();
+                if (stepComplete) {
+                    completeStep(step);
+                    done = true;
+                }
+
+                // if package belongs to current frame, tell the render-thread
+                if (curLayer / JPIPConstants.MAX_REQ_LAYERS == step) {
+                    ReaderMode mode = parentViewRef.getReaderMode();
+                    if ((mode == ReaderMode.ONLYFIREONCOMPLETE && stepComplete) || mode == ReaderMode.ALWAYSFIREONNEWDATA)
+                        parentViewRef.renderRequestedSignal.signal(RenderReasons.NEW_DATA);
+                }
+
+                if (moveOnWithMetaData) {
+                    int metaStatus = parentViewRef.getDateTimeCache().getMetaStatus();
+                    if (metaStatus >= Math.min((step + 1) * JPIPConstants.MAX_REQ_LAYERS, layers.end))
+                        done = true;
+                }
+            }
+        } finally {
+            synchronized (this) {
+                inProgress[step] = false;
+            }
+        }
+    }
+
+    /**
+     * Downgrades the cache status of all steps not yet complete, if the view
+     * changed since they were fetched last.
+     */
+    private void downgradeIfNecessary() {
+        List<Integer> steps = new ArrayList<Integer>();
+        synchronized (this) {
+            if (!downgradeNecessary)
+                return;
+            downgradeNecessary = false;
+            downgraded = true;
+
+            for (int i = 0; i < stepQuerys.length; i++) {
+                if (stepQuerys[i] != null)
+                    steps.add(i);
+            }
+        }
+
+        if (!parentViewRef.isMainView())
+            return;
+
+        Interval<Integer> layers = parentImageRef.getCompositionLayerRange();
+        ImageCacheStatus cacheStatus = parentViewRef.getImageCacheStatus();
+        for (int i : steps) {
+            for (int j = i * JPIPConstants.MAX_REQ_LAYERS; j < Math.min((i + 1) * JPIPConstants.MAX_REQ_LAYERS, layers.end + 1); j++)
+                cacheStatus.downgradeImageStatus(j);
+        }
+    }
+
+    /** Marks the given step as complete and tells the cache status */
+    private void completeStep(int step) {
+        synchronized (this) {
+            if (stepQuerys[step] == null)
+                return;
+            stepQuerys[step] = null;
+            completeSteps++;
+        }
+
+        if (!parentViewRef.isMainView())
+            return;
+
+        Interval<Integer> layers = parentImageRef.getCompositionLayerRange();
+        ImageCacheStatus cacheStatus = parentViewRef.getImageCacheStatus();
+        for (int j = Math.min((step + 1) * JPIPConstants.MAX_REQ_LAYERS, layers.end + 1) - 1; j >= step * JPIPConstants.MAX_REQ_LAYERS; j--)
+            cacheStatus.setImageStatus(j, CacheStatus.COMPLETE);
+    }
+}
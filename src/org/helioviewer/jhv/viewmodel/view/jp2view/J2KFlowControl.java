@@ -0,0 +1,125 @@
+package org.helioviewer.jhv.viewmodel.view.jp2view;
+
+import org.helioviewer.jhv.viewmodel.view.jp2view.io.jpip.JPIPConstants;
+import org.helioviewer.jhv.viewmodel.view.jp2view.io.jpip.JPIPSocket;
+
+/**
+ * Flow control of a single JPIP channel.
+ *
+ * <p>
+ * Adjusts dynamically the length of the requests sent on the channel and the
+ * number of requests kept outstanding, from the measured round trip time and
+ * throughput of the channel. The requests are made long enough to keep each
+ * response busy for about TARGET_RESPONSE_TIME, and enough of them are kept
+ * outstanding to cover the round trip time, so the server always has a
+ * request to answer when it finishes a response.
+ *
+ * <p>
+ * The idle gap between two responses can not be used for this, since it is
+ * close to zero as soon as requests are pipelined.
+ */
+class J2KFlowControl {
+
+    /** Time in milliseconds a single response should take to transfer */
+    private static final int TARGET_RESPONSE_TIME = 1000;
+
+    /** Weight of a new measurement in the moving averages */
+    private static final double SMOOTHING = 0.25;
+
+    /**
+     * The time when the last response was received. A negative value means
+     * that there is not a previous valid response to take into account.
+     */
+    private volatile long lastResponseTime = -1;
+
+    /** Smoothed round trip time in milliseconds, negative if not measured */
+    private double roundTripTime = -1;
+
+    /** Smoothed throughput in bytes per millisecond, negative if not measured */
+    private double throughput = -1;
+
+    /** The current length in bytes to use for requests */
+    private volatile int requestLen = JPIPConstants.MIN_REQUEST_LEN;
+
+    /** The current number of requests to keep outstanding on the socket */
+    private volatile int maxOutstandingRequests = 1;
+
+    /**
+     * Whether more requests would have to be kept outstanding than allowed to
+     * cover the round trip time
+     */
+    private volatile boolean depthLimited = false;
+
+    /**
+     * Forgets the time of the last response. Has to be called, when the
+     * channel was idle.
+     */
+    void restart() {
+        lastResponseTime = -1;
+    }
+
+    /**
+     * Adjusts the request length and the number of outstanding requests to
+     * the last response received on the given socket.
+     *
+     * <p>
+     * The round trip time is only measured on requests which were not queued
+     * behind the response to an earlier request, since otherwise the waiting
+     * time would be included. The throughput is only measured on responses
+     * which used most of the requested length.
+     *
+     * @param socket
+     *            Socket the last response has been received on
+     */
+    void update(JPIPSocket socket) {
+        int receivedBytes = socket.getReceivedData();
+        long requestTime = socket.getRequestTime();
+        long replyTextTime = socket.getReplyTextTime();
+        long replyDataTime = socket.getReplyDataTime();
+
+        if (requestTime > 0 && (lastResponseTime < 0 || requestTime >= lastResponseTime)) {
+            long rtt = Math.max(1, replyTextTime - requestTime);
+            roundTripTime = roundTripTime < 0 ? rtt : roundTripTime + SMOOTHING * (rtt - roundTripTime);
+        }
+
+        if (((receivedBytes - requestLen) < (requestLen >> 1)) && (receivedBytes > (requestLen >> 1))) {
+            double rate = (double) receivedBytes / Math.max(1, replyDataTime - replyTextTime);
+            throughput = throughput < 0 ? rate : throughput + SMOOTHING * (rate - throughput);
+        }
+
+        if (throughput > 0) {
+            long len = (long) (throughput * TARGET_RESPONSE_TIME);
+            requestLen = (int) Math.max(JPIPConstants.MIN_REQUEST_LEN, Math.min(JPIPConstants.MAX_REQUEST_LEN, len));
+
+            if (roundTripTime > 0) {
+                // bytes in flight during one round trip, plus the request
+                // being answered
+                int depth = 1 + (int) Math.ceil(roundTripTime * throughput / requestLen);
+                depthLimited = depth > JPIPConstants.MAX_OUTSTANDING_REQUESTS;
+                maxOutstandingRequests = Math.min(depth, JPIPConstants.MAX_OUTSTANDING_REQUESTS);
+            }
+        }
+
+        lastResponseTime = replyDataTime;
+    }
+
+    /** Returns the length in bytes to use for the next request */
+    int getRequestLen() {
+        return requestLen;
+    }
+
+    /** Returns the number of requests to keep outstanding */
+    int getMaxOutstandingRequests() {
+        return maxOutstandingRequests;
+    }
+
+    /**
+     * Returns whether the channel is at its limit, i.e. the requests are as
+     * long as allowed and even the allowed number of outstanding requests does
+     * not cover the round trip time. Only then another channel can speed up
+     * fetching.
+     */
+    boolean isSaturated() {
+        return requestLen >= JPIPConstants.MAX_REQUEST_LEN && depthLimited;
+    }
+}
@@ -0,0 +1,187 @@
+package org.helioviewer.jhv.viewmodel.view.jp2view;
+
+import org.helioviewer.jhv.viewmodel.imagedata.PixelBufferPool;
+import org.helioviewer.jhv.viewmodel.view.jp2view.image.JP2ImageParameter;
+
+/**
+ * Bounded ring of frames decoded ahead of the play cursor.
+ *
+ * <p>
+ * During movie playback, {@link J2KRender} uses the time between two frames to
+ * decode the frames it expects to show next and queues them in this ring. When
+ * the next frame is due, it is taken from the ring instead of being decoded.
+ * All frames in the ring belong to the same region, resolution and number of
+ * quality layers; the ring is flushed when any of them changes.
+ *
+ * <p>
+ * The ring is only accessed by the render thread. The counters may be read
+ * from any thread.
+ */
+class J2KFrameRing {
+
+    /** Maximum number of frames held by the ring */
+    private static final int MAX_FRAMES = 16;
+
+    /** Maximum amount of memory held by the ring, in bytes */
+    private static final long MAX_MEMORY = 128 * 1024 * 1024;
+
+    /** A single decoded frame */
+    static class Frame {
+        final int compositionLayer;
+        final byte[] byteBuffer;
+        final int[] intBuffer;
+
+        private Frame(int _compositionLayer, byte[] _byteBuffer, int[] _intBuffer) {
+            compositionLayer = _compositionLayer;
+            byteBuffer = _byteBuffer;
+            intBuffer = _intBuffer;
+        }
+    }
+
+    private final Frame[] frames = new Frame[MAX_FRAMES];
+    private int head = 0;
+    private volatile int count = 0;
+    private volatile int capacity = 0;
+
+    /** Parameters all frames in the ring were decoded with */
+    private JP2ImageParameter params;
+
+    private volatile long hits = 0;
+    private volatile long stalls = 0;
+
+    /**
+     * Returns whether the frames in the ring were decoded using the given
+     * parameters, ignoring the composition layer.
+     *
+     * @param _params
+     *            Parameters to compare with
+     * @return true, if the ring can serve frames for the given parameters
+     */
+    boolean matches(JP2ImageParameter _params) {
+        return params != null && params.subImage.equals(_params.subImage) && params.resolution.equals(_params.resolution) && params.qualityLayers == _params.qualityLayers;
+    }
+
+    /**
+     * Flushes the ring and prepares it for frames decoded with the given
+     * parameters.
+     *
+     * @param _params
+     *            Parameters the following frames will be decoded with
+     * @param _singleChannel
+     *            Whether the frames are single channel (byte) or ARGB (int)
+     *            images
+     */
+    void reset(JP2ImageParameter _params, boolean _singleChannel) {
+        clear();
+
+        params = _params;
+
+        long frameSize = (long) params.subImage.getNumPixels() * (_singleChannel ? 1 : 4);
+        capacity = frameSize == 0 ? 0 : (int) Math.min(MAX_FRAMES, MAX_MEMORY / frameSize);
+    }
+
+    /** Removes all frames and hands their buffers back to the pool */
+    void clear() {
+        while (count > 0)
+            recycle(removeHead());
+
+        params = null;
+        capacity = 0;
+    }
+
+    /**
+     * Drops frames from the head of the ring until the given composition layer
+     * is at the head. If the layer is not queued at all, the ring will be empty
+     * afterwards.
+     *
+     * @param compositionLayer
+     *            Frame that is due next
+     */
+    void skipTo(int compositionLayer) {
+        for (int i = 0; i < count; i++) {
+            if (frames[(head + i) % MAX_FRAMES].compositionLayer == compositionLayer) {
+                while (i-- > 0)
+                    recycle(removeHead());
+                return;
+            }
+        }
+        while (count > 0)
+            recycle(removeHead());
+    }
+
+    /**
+     * Takes the given composition layer from the ring, dropping all frames
+     * queued before it.
+     *
+     * <p>
+     * Counts a hit, if the frame was ready, or a stall otherwise.
+     *
+     * @param compositionLayer
+     *            Frame to show
+     * @return The decoded frame, or null if it has not been decoded ahead
+     */
+    Frame poll(int compositionLayer) {
+        skipTo(compositionLayer);
+        if (count == 0) {
+            stalls++;
+            return null;
+        }
+        hits++;
+        return removeHead();
+    }
+
+    /**
+     * Queues a decoded frame at the tail of the ring.
+     *
+     * @param compositionLayer
+     *            Frame number
+     * @param byteBuffer
+     *            Pixels of a single channel image, or null
+     * @param intBuffer
+     *            Pixels of an ARGB image, or null
+     */
+    void add(int compositionLayer, byte[] byteBuffer, int[] intBuffer) {
+        if (isFull())
+            return;
+        frames[(head + count) % MAX_FRAMES] = new Frame(compositionLayer, byteBuffer, intBuffer);
+        count++;
+    }
+
+    private void recycle(Frame frame) {
+        PixelBufferPool.release(frame.byteBuffer);
+        PixelBufferPool.release(frame.intBuffer);
+    }
+
+    private Frame removeHead() {
+        Frame frame = frames[head];
+        frames[head] = null;
+        head = (head + 1) % MAX_FRAMES;
+        count--;
+        return frame;
+    }
+
+    /** Returns whether no more frames can be queued */
+    boolean isFull() {
+        return count >= capacity;
+    }
+
+    /** Returns the number of frames currently queued */
+    int size() {
+        return count;
+    }
+
+    /** Returns the number of frames the ring can hold at the current size */
+    int getCapacity() {
+        return capacity;
+    }
+
+    /** Returns how often a due frame was already decoded */
+    long getHits() {
+        return hits;
+    }
+
+    /** Returns how often a due frame had to be decoded on demand */
+    long getStalls() {
+        return stalls;
+    }
+}
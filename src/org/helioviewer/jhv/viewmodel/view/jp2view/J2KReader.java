@@ -3,6 +3,7 @@ package org.helioviewer.jhv.viewmodel.view.jp2view;
 import java.awt.Rectangle;
 import java.io.IOException;
 import java.net.SocketException;
+import java.util.ArrayDeque;
 
 import org.helioviewer.jhv.base.Message;
 import org.helioviewer.jhv.base.math.Interval;
@@ -64,15 +65,13 @@ class J2KReader implements Runnable {
     /** The a reference to the cache object used by the run method. */
     private JHV_Kdu_cache cacheRef;
 
+    /** The flow control of the socket */
+    private final J2KFlowControl flowControl = new J2KFlowControl();
+
     /**
-     * The time when the last response was received. It is used for performing
-     * the flow control. A negative value means that there is not a previous
-     * valid response to take into account.
+     * Fetches the frames of movies over several channels, created when needed
      */
-    private volatile long lastResponseTime = -1;
-
-    /** The current length in bytes to use for requests */
-    private volatile int JpipRequestLen = JPIPConstants.MIN_REQUEST_LEN;
+    private volatile J2KFetchScheduler fetchScheduler;
 
     /**
      * The constructor. Creates and connects the socket if image is remote.
@@ -149,6 +148,11 @@ class J2KReader implements Runnable {
     void abolish() {
         stop();
 
+        if (fetchScheduler != null) {
+            fetchScheduler.abolish();
+            fetchScheduler = null;
+        }
+
         try {
             if (socket != null) {
                 socket.close();
@@ -161,48 +165,17 @@ class J2KReader implements Runnable {
     }
 
     /**
-     * This method perfoms the flow control, that is, adjusts dynamically the
-     * value of the variable <code>JPIP_REQUEST_LEN</code>. The used algorithm
-     * is the same as the used one by the viewer kdu_show of Kakadu (if
-     * something works... why not to use it?)
+     * Returns the throughput of the channels used to fetch the frames of a
+     * movie.
+     * 
+     * @return bytes per second, one entry per channel, or an empty array if no
+     *         channels have been opened
      */
-    private void flowControl() {
-        int adjust = 0;
-        int receivedBytes = socket.getReceivedData();
-        long replyTextTime = socket.getReplyTextTime();
-        long replyDataTime = socket.getReplyDataTime();
-
-        long tdat = replyDataTime - replyTextTime;
-
-        if (((receivedBytes - JpipRequestLen) < (JpipRequestLen >> 1)) && (receivedBytes > (JpipRequestLen >> 1))) {
-            if (tdat > 10000)
-                adjust = -1;
-            else if (lastResponseTime > 0) {
-                long tgap = replyTextTime - lastResponseTime;
-
-                if ((tgap + tdat) < 1000)
-                    adjust = +1;
-                else {
-                    double gapRatio = ((double) tgap) / ((double) (tgap + tdat));
-                    double targetRatio = ((double) (tdat + tgap)) / 10000.0;
-
-                    if (gapRatio > targetRatio)
-                        adjust = +1;
-                    else
-                        adjust = -1;
-                }
-            }
-        }
-
-        JpipRequestLen += (JpipRequestLen >> 2) * adjust;
-
-        if (JpipRequestLen > JPIPConstants.MAX_REQUEST_LEN)
-            JpipRequestLen = JPIPConstants.MAX_REQUEST_LEN;
-
-        if (JpipRequestLen < JPIPConstants.MIN_REQUEST_LEN)
-            JpipRequestLen = JPIPConstants.MIN_REQUEST_LEN;
-
-        lastResponseTime = replyDataTime;
+    double[] getFetchChannelThroughput() {
+        J2KFetchScheduler scheduler = fetchScheduler;
+        if (scheduler == null)
+            return new double[0];
+        return scheduler.getChannelThroughput();
     }
 
     private JPIPQuery createQuery(JP2ImageParameter currParams, int iniLayer, int endLayer) {
@@ -217,9 +190,71 @@ class J2KReader implements Runnable {
         query.setField(JPIPRequestField.ROFF.toString(), String.valueOf(currParams.subImage.x) + "," + String.valueOf(currParams.subImage.y));
         query.setField(JPIPRequestField.RSIZ.toString(), String.valueOf(currParams.subImage.width) + "," + String.valueOf(currParams.subImage.height));
 
+        // several requests are kept outstanding, so the server must not
+        // preempt a response by the next request
+        query.setField(JPIPRequestField.WAIT.toString(), "yes");
+
         return query;
     }
 
+    /**
+     * Returns the first step, starting at the given one, which is neither
+     * complete nor already requested.
+     * 
+     * @return step to request next, or -1 if there is none
+     */
+    private static int findStepToQueue(JPIPQuery[] stepQuerys, int firstStep, ArrayDeque<Integer> outstandingSteps) {
+        for (int i = 0; i < stepQuerys.length; i++) {
+            int step = (firstStep + i) % stepQuerys.length;
+            if (stepQuerys[step] != null && !outstandingSteps.contains(step))
+                return step;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns whether the remaining steps of a movie should be fetched over
+     * several channels. This is only the case, if the channel of the reader is
+     * saturated and the channels are not backing off after a failure.
+     * 
+     * @param remainingSteps
+     *            Number of steps not complete yet
+     */
+    private boolean shouldFetchOverChannels(int remainingSteps) {
+        if (remainingSteps < 2 || !flowControl.isSaturated())
+            return false;
+        J2KFetchScheduler scheduler = fetchScheduler;
+        return scheduler == null || scheduler.isAvailable();
+    }
+
+    /**
+     * Fetches the given steps with the fetch scheduler and waits until it is
+     * finished or the reader is signaled. If a channel fails, the scheduler
+     * stops and the remaining steps are left to the channel of the reader.
+     * 
+     * @return number of completed steps
+     */
+    private int fetchOverChannels(JPIPQuery[] stepQuerys, int firstStep, boolean missingFramesFirst, int curLayer, boolean downgradeNecessary) {
+        if (fetchScheduler == null)
+            fetchScheduler = new J2KFetchScheduler((JHVJPXView) parentViewRef);
+
+        try {
+            fetchScheduler.start(stepQuerys, firstStep, missingFramesFirst, curLayer, downgradeNecessary);
+
+            while (!fetchScheduler.waitForFinish(100)) {
+                if (parentViewRef.readerSignal.isSignaled() || Thread.currentThread().isInterrupted()) {
+                    fetchScheduler.cancel();
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            fetchScheduler.cancel();
+            Thread.currentThread().interrupt();
+        }
+
+        return fetchScheduler.getCompleteSteps();
+    }
+
     public boolean isConnected() {
         return (socket != null && socket.isConnected());
     }
@@ -338,7 +373,7 @@ class J2KReader implements Runnable {
                             Interval<Integer> layers = parentImageRef.getCompositionLayerRange();
                             int num_layers = layers.end - layers.start + 1;
 
-                            lastResponseTime = -1;
+                            flowControl.restart();
 
                             int complete_steps = 0;
                             int current_step;
@@ -408,182 +443,241 @@ class J2KReader implements Runnable {
                                 return;
                             
 
+                            // several frames -> once this channel is
+                            // saturated, fetch them over several channels
+                            boolean multiFrame = strategy == CacheStrategy.ALLFRAMESEQUALLY || strategy == CacheStrategy.MISSINGFRAMESFIRST;
+                            boolean handOver = false;
+
                             req = new JPIPRequest(HTTPRequest.Method.GET);
 
+                            // steps of the requests sent, but not yet
+                            // answered, in the order they were sent
+                            ArrayDeque<Integer> outstandingSteps = new ArrayDeque<Integer>();
+
                             // long time = System.currentTimeMillis();
 
                             // send queries, until everything is complete or
-                            // caching is interrupted
-                            while ((complete_steps < stepQuerys.length) && !stopReading) {
-                                if (current_step >= stepQuerys.length)
-                                    current_step = 0;
+                            // caching is interrupted. The responses to all
+                            // requests sent have to be read in any case.
+                            for (;;) {
+                                try {
+                                    while (!outstandingSteps.isEmpty() || ((complete_steps < stepQuerys.length) && !stopReading && !handOver)) {
 
-                                // If query is already complete, to to next step
-                                if (stepQuerys[current_step] == null) {
-                                    current_step++;
+                                        if (multiFrame && !handOver && shouldFetchOverChannels(stepQuerys.length - complete_steps))
+                                            handOver = true;
 
-                                    continue;
-                                }
+                                        // keep the pipeline filled
+                                        while ((complete_steps < stepQuerys.length) && !stopReading && !handOver && outstandingSteps.size() < flowControl.getMaxOutstandingRequests()) {
+                                            if (current_step >= stepQuerys.length)
+                                                current_step = 0;
 
-                                // Update requested package size
-                                stepQuerys[current_step].setField(JPIPRequestField.LEN.toString(), String.valueOf(JpipRequestLen));
+                                            // If query is already complete, to to next step
+                                            if (stepQuerys[current_step] == null) {
+                                                current_step++;
 
-                                req.setQuery(stepQuerys[current_step].toString());
-                                
-                                if(Thread.currentThread().isInterrupted())
-                                    return;
+                                                continue;
+                                            }
+
+                                            int send_step = current_step;
+
+                                            // missing frames first stays at the
+                                            // current step until its frames are
+                                            // available, so request each step only
+                                            // once and fill up with the next ones
+                                            if (strategy == CacheStrategy.MISSINGFRAMESFIRST) {
+                                                send_step = findStepToQueue(stepQuerys, current_step, outstandingSteps);
+                                                if (send_step < 0)
+                                                    break;
+                                            }
+
+                                            // Update requested package size
+                                            stepQuerys[send_step].setField(JPIPRequestField.LEN.toString(), String.valueOf(flowControl.getRequestLen()));
+
+                                            req.setQuery(stepQuerys[send_step].toString());
+
+                                            if(Thread.currentThread().isInterrupted())
+                                                return;
+
+                                            socket.send(req);
+                                            outstandingSteps.add(send_step);
 
-                                socket.send(req);
+                                            // all frames equally -> next request for
+                                            // the next step
+                                            if (strategy == CacheStrategy.ALLFRAMESEQUALLY)
+                                                current_step++;
+                                        }
 
-                                if(Thread.currentThread().isInterrupted())
-                                    return;
+                                        if(Thread.currentThread().isInterrupted())
+                                            return;
                                 
-                                // long start = System.currentTimeMillis();
-                                res = socket.receive();
+                                        // long start = System.currentTimeMillis();
+                                        // the data is added to the cache while
+                                        // it is received
+                                        res = socket.receive(cacheRef);
+                                        int response_step = outstandingSteps.poll();
                                 
-                                if(Thread.currentThread().isInterrupted())
-                                    return;
+                                        if(Thread.currentThread().isInterrupted())
+                                            return;
 
-                                // if(iamPersistent)
-                                // System.out.println(res.getResponseSize() /
-                                // (System.currentTimeMillis() - start));
+                                        // if(iamPersistent)
+                                        // System.out.println(res.getResponseSize() /
+                                        // (System.currentTimeMillis() - start));
 
-                                // receive data
-                                if (res != null) {
+                                        // receive data
+                                        if (res != null) {
 
-                                    // Update optimal package size
-                                    flowControl();
+                                            // Update optimal package size
+                                            flowControl.update(socket);
                                     
-                                    if(Thread.currentThread().isInterrupted())
-                                        return;
+                                            if(Thread.currentThread().isInterrupted())
+                                                return;
 
-                                    // Downgrade, if necessary
-                                    if (downgradeNecessary && res.getResponseSize() > 0 && parentViewRef.isMainView() && parentViewRef instanceof JHVJPXView) {
+                                            // Downgrade, if necessary
+                                            if (downgradeNecessary && res.getResponseSize() > 0 && parentViewRef.isMainView() && parentViewRef instanceof JHVJPXView) {
 
-                                        ImageCacheStatus cacheStatus = ((JHVJPXView) parentViewRef).getImageCacheStatus();
+                                                ImageCacheStatus cacheStatus = ((JHVJPXView) parentViewRef).getImageCacheStatus();
 
-                                        switch (strategy) {
-                                        case CURRENTFRAMEONLY:
-                                        case CURRENTFRAMEFIRST:
-                                            for (int i = 0; i <= layers.end; i++) {
-                                                cacheStatus.downgradeImageStatus(i);
-                                            }
-                                            break;
+                                                switch (strategy) {
+                                                case CURRENTFRAMEONLY:
+                                                case CURRENTFRAMEFIRST:
+                                                    for (int i = 0; i <= layers.end; i++) {
+                                                        cacheStatus.downgradeImageStatus(i);
+                                                    }
+                                                    break;
 
                                             
-                                        case ALLFRAMESEQUALLY:
-                                        case MISSINGFRAMESFIRST:
-                                            for (int i = 0; i < stepQuerys.length; i++) {
+                                                case ALLFRAMESEQUALLY:
+                                                case MISSINGFRAMESFIRST:
+                                                    for (int i = 0; i < stepQuerys.length; i++) {
 
-                                                if (stepQuerys[i] == null) {
-                                                    continue;
-                                                }
+                                                        if (stepQuerys[i] == null) {
+                                                            continue;
+                                                        }
 
-                                                for (int j = i * JPIPConstants.MAX_REQ_LAYERS; j < Math.min((i + 1) * JPIPConstants.MAX_REQ_LAYERS, layers.end + 1); j++) {
+                                                        for (int j = i * JPIPConstants.MAX_REQ_LAYERS; j < Math.min((i + 1) * JPIPConstants.MAX_REQ_LAYERS, layers.end + 1); j++) {
 
-                                                    cacheStatus.downgradeImageStatus(j);
+                                                            cacheStatus.downgradeImageStatus(j);
+                                                        }
+                                                    }
+                                                    break;
+                                            
+                                                default:
+                                                    throw new RuntimeException("Whan an ususual strategy: "+strategy);
                                                 }
+
+                                                downgradeNecessary = false;
                                             }
-                                            break;
-                                            
-                                        default:
-                                            throw new RuntimeException("Whan an ususual strategy: "+strategy);
-                                        }
 
-                                        downgradeNecessary = false;
-                                    }
+                                            if(Thread.currentThread().isInterrupted())
+                                                return;
 
-                                    if(Thread.currentThread().isInterrupted())
-                                        return;
+                                            // if query complete, react (other
+                                            // requests for the same step may still
+                                            // have been outstanding)
+                                            if (res.isResponseComplete() && stepQuerys[response_step] != null) {
 
-                                    // add response to cache - if query
-                                    // complete, react
-                                    if (cacheRef.addJPIPResponseData(res)) {
+                                                // mark query as complete
+                                                complete_steps++;
+                                                stepQuerys[response_step] = null;
 
-                                        // mark query as complete
-                                        complete_steps++;
-                                        stepQuerys[current_step] = null;
+                                                // tell the cache status
+                                                if (parentViewRef.isMainView() && parentViewRef instanceof JHVJPXView) {
 
-                                        // tell the cache status
-                                        if (parentViewRef.isMainView() && parentViewRef instanceof JHVJPXView) {
+                                                    if(Thread.currentThread().isInterrupted())
+                                                        return;
 
-                                            if(Thread.currentThread().isInterrupted())
-                                                return;
+                                                    ImageCacheStatus cacheStatus = ((JHVJPXView) parentViewRef).getImageCacheStatus();
 
-                                            ImageCacheStatus cacheStatus = ((JHVJPXView) parentViewRef).getImageCacheStatus();
+                                                    switch (strategy) {
+                                                    case CURRENTFRAMEONLY:
+                                                    case CURRENTFRAMEFIRST:
+                                                        cacheStatus.setImageStatus(curLayer, CacheStatus.COMPLETE);
+                                                        break;
 
-                                            switch (strategy) {
-                                            case CURRENTFRAMEONLY:
-                                            case CURRENTFRAMEFIRST:
-                                                cacheStatus.setImageStatus(curLayer, CacheStatus.COMPLETE);
-                                                break;
+                                                    default:
+                                                        for (int j = Math.min((response_step + 1) * JPIPConstants.MAX_REQ_LAYERS, layers.end + 1) - 1; j >= response_step * JPIPConstants.MAX_REQ_LAYERS; j--) {
 
-                                            default:
-                                                for (int j = Math.min((current_step + 1) * JPIPConstants.MAX_REQ_LAYERS, layers.end + 1) - 1; j >= current_step * JPIPConstants.MAX_REQ_LAYERS; j--) {
+                                                            cacheStatus.setImageStatus(j, CacheStatus.COMPLETE);
+                                                        }
+                                                    }
+                                            
+                                                    if(Thread.currentThread().isInterrupted())
+                                                        return;
 
-                                                    cacheStatus.setImageStatus(j, CacheStatus.COMPLETE);
                                                 }
                                             }
-                                            
+                                    
                                             if(Thread.currentThread().isInterrupted())
                                                 return;
 
+                                            // Fire ChangeEvent, if wanted
+                                            if ((parentViewRef.getReaderMode() == ReaderMode.ONLYFIREONCOMPLETE && stepQuerys[response_step] == null) || parentViewRef.getReaderMode() == ReaderMode.ALWAYSFIREONNEWDATA) {
+
+                                                // if package belongs to current frame,
+                                                // tell the render-thread
+                                                switch (strategy) {
+                                                case CURRENTFRAMEONLY:
+                                                case CURRENTFRAMEFIRST:
+                                                    parentViewRef.renderRequestedSignal.signal(RenderReasons.NEW_DATA);
+                                                    break;
+                                                default:
+                                                    if (curLayer / JPIPConstants.MAX_REQ_LAYERS == response_step) {
+                                                        parentViewRef.renderRequestedSignal.signal(RenderReasons.NEW_DATA);
+                                                    }
+                                                }
+                                        
+                                                if(Thread.currentThread().isInterrupted())
+                                                    return;
+                                            }
                                         }
-                                    }
-                                    
-                                    if(Thread.currentThread().isInterrupted())
-                                        return;
-
-                                    // Fire ChangeEvent, if wanted
-                                    if ((parentViewRef.getReaderMode() == ReaderMode.ONLYFIREONCOMPLETE && stepQuerys[current_step] == null) || parentViewRef.getReaderMode() == ReaderMode.ALWAYSFIREONNEWDATA) {
-
-                                        // if package belongs to current frame,
-                                        // tell the render-thread
-                                        switch (strategy) {
-                                        case CURRENTFRAMEONLY:
-                                        case CURRENTFRAMEFIRST:
-                                            parentViewRef.renderRequestedSignal.signal(RenderReasons.NEW_DATA);
-                                            break;
-                                        default:
-                                            if (curLayer / JPIPConstants.MAX_REQ_LAYERS == current_step) {
-                                                parentViewRef.renderRequestedSignal.signal(RenderReasons.NEW_DATA);
+
+                                        // select next query, based on strategy
+                                        // (all frames equally already moves on, when
+                                        // sending)
+                                        if (strategy == CacheStrategy.MISSINGFRAMESFIRST) {
+
+                                            int metaStatus = ((JHVJPXView) parentViewRef).getDateTimeCache().getMetaStatus();
+
+                                            if (metaStatus >= Math.min((current_step + 1) * JPIPConstants.MAX_REQ_LAYERS, layers.end)) {
+
+                                                current_step++;
                                             }
                                         }
-                                        
+                                
                                         if(Thread.currentThread().isInterrupted())
                                             return;
-                                    }
-                                }
-
-                                // select next query, based on strategy
-                                switch (strategy) {
-                                case MISSINGFRAMESFIRST:
-
-                                    int metaStatus = ((JHVJPXView) parentViewRef).getDateTimeCache().getMetaStatus();
 
-                                    if (metaStatus >= Math.min((current_step + 1) * JPIPConstants.MAX_REQ_LAYERS, layers.end)) {
+                                        // let others do their work, too
+                                        Thread.yield();
 
-                                        current_step++;
+                                        // Check, whether caching has to be interrupted
+                                        if (parentViewRef.readerSignal.isSignaled() || Thread.currentThread().isInterrupted()) {
+                                            stopReading = true;
+                                        }
                                     }
-                                    break;
+                                } finally {
+                                    // responses to requests still outstanding
+                                    // cannot be told apart from later ones
+                                    if (!outstandingSteps.isEmpty())
+                                        socket.close();
+                                }
 
-                                case ALLFRAMESEQUALLY:
-                                    current_step++;
+                                if (!handOver || stopReading)
                                     break;
-                                default:
-                                    break;
-                                }
-                                
-                                if(Thread.currentThread().isInterrupted())
-                                    return;
 
-                                // let others do their work, too
-                                Thread.yield();
+                                // all responses have been read, the channels take
+                                // over the remaining steps
+                                handOver = false;
+                                complete_steps += fetchOverChannels(stepQuerys, current_step, strategy == CacheStrategy.MISSINGFRAMESFIRST, curLayer, downgradeNecessary);
+                                if (fetchScheduler.hasDowngraded())
+                                    downgradeNecessary = false;
 
-                                // Check, whether caching has to be interrupted
-                                if (parentViewRef.readerSignal.isSignaled() || Thread.currentThread().isInterrupted()) {
+                                if (parentViewRef.readerSignal.isSignaled() || Thread.currentThread().isInterrupted())
                                     stopReading = true;
-                                }
+
+                                // after a failure the channels back off, so this
+                                // channel goes on with what they left
+                                flowControl.restart();
                             }
 
                             // Check, whether all queries are complete
@@ -11,11 +11,13 @@ import org.helioviewer.jhv.viewmodel.changeevent.ChangeEvent;
 import org.helioviewer.jhv.viewmodel.changeevent.NonConstantMetaDataChangedReason;
 import org.helioviewer.jhv.viewmodel.imagedata.ARGBInt32ImageData;
 import org.helioviewer.jhv.viewmodel.imagedata.ColorMask;
+import org.helioviewer.jhv.viewmodel.imagedata.PixelBufferPool;
 import org.helioviewer.jhv.viewmodel.imagedata.SingleChannelByte8ImageData;
 import org.helioviewer.jhv.viewmodel.metadata.MetaData;
 import org.helioviewer.jhv.viewmodel.view.AnimationMode;
 import org.helioviewer.jhv.viewmodel.view.LinkedMovieManager;
 import org.helioviewer.jhv.viewmodel.view.cache.DateTimeCache;
+import org.helioviewer.jhv.viewmodel.view.cache.ImageCacheStatus.CacheStatus;
 import org.helioviewer.jhv.viewmodel.view.jp2view.image.JP2ImageParameter;
 import org.helioviewer.jhv.viewmodel.view.jp2view.kakadu.JHV_Kdu_thread_env;
 import org.helioviewer.jhv.viewmodel.view.jp2view.kakadu.KakaduUtils;
@@ -71,6 +73,15 @@ class J2KRender implements Runnable {
 	private byte[][] byteBuffer = new byte[NUM_BUFFERS][0];
 	private int currentByteBuffer = 0;
 
+	/**
+	 * Kakadu objects reused for every decoded frame. The dims passed to the
+	 * compositor have to stay referenced, so the GC does not collect them.
+	 */
+	private final Kdu_dims dimsRef1 = new Kdu_dims(), dimsRef2 = new Kdu_dims();
+	private final Kdu_dims actualBufferedRegion = new Kdu_dims();
+	private final Kdu_dims newRegion = new Kdu_dims();
+	private final Kdu_coords actualOffset = new Kdu_coords();
+
 	/** Maximum of samples to process per rendering iteration */
 	private static final int MAX_RENDER_SAMPLES = 50000;
 
@@ -93,6 +104,15 @@ class J2KRender implements Runnable {
 
 	private JHV_Kdu_thread_env jhv_Kdu_thread_env;
 
+	/** Decodes large sub images in parallel strips */
+	private J2KStripDecoder stripDecoder;
+
+	/** Frames decoded ahead of the play cursor during movie playback */
+	private J2KFrameRing frameRing = new J2KFrameRing();
+
+	/** Time needed to decode the last frame ahead, in milliseconds */
+	private long lastAheadDecodeTime = 0;
+
 	/**
 	 * The constructor.
 	 * 
@@ -107,6 +127,7 @@ class J2KRender implements Runnable {
 		compositorRef = parentImageRef.getCompositorRef();
 
 		jhv_Kdu_thread_env = new JHV_Kdu_thread_env();
+		stripDecoder = new J2KStripDecoder(parentImageRef);
 
 		stop = false;
 		myThread = null;
@@ -139,9 +160,7 @@ class J2KRender implements Runnable {
 			} catch (NullPointerException e) {
 			} finally {
 				myThread = null;
-
-				intBuffer = new int[NUM_BUFFERS][0];
-				byteBuffer = new byte[NUM_BUFFERS][0];
+				releaseBuffers();
 			}
 		}
 	}
@@ -149,6 +168,7 @@ class J2KRender implements Runnable {
 	/** Destroys the resources associated with this object */
 	void abolish() {
 		stop();
+		stripDecoder.abolish();
 		try
         {
             jhv_Kdu_thread_env.Destroy();
@@ -219,21 +239,17 @@ class J2KRender implements Runnable {
 		return movieMode;
 	}
 
-	private void renderLayer(int numLayer) {
+	/**
+	 * Renders the given composition layer into the current buffer.
+	 * 
+	 * @return true, if the current buffer holds the complete frame, false if
+	 *         the frame has to be discarded
+	 */
+	private boolean renderLayer(int numLayer) {
 		parentImageRef.getLock().lock();
 
 		try {
-			compositorRef.Set_thread_env(
-					jhv_Kdu_thread_env, 0);
-
-			compositorRef.Refresh();
-			compositorRef.Remove_compositing_layer(-1, true);
-
-			parentImageRef.deactivateColorLookupTable(numLayer);
-
-			Kdu_dims dimsRef1 = new Kdu_dims(), dimsRef2 = new Kdu_dims();
-
-			compositorRef.Add_compositing_layer(numLayer, dimsRef1, dimsRef2);
+			addLayer(numLayer);
 
 			if (lastCompositionLayerRendered != numLayer) {
 				lastCompositionLayerRendered = numLayer;
@@ -253,86 +269,238 @@ class J2KRender implements Runnable {
 				}
 			}
 
-			compositorRef.Set_max_quality_layers(currParams.qualityLayers);
-			compositorRef.Set_scale(false, false, false,
-					currParams.resolution.getZoomPercent());
-
-			Kdu_dims requestedBufferedRegion = KakaduUtils
-					.roiToKdu_dims(currParams.subImage);
-
-			compositorRef.Set_buffer_surface(requestedBufferedRegion);
-
-			Kdu_dims actualBufferedRegion = new Kdu_dims();
-			Kdu_compositor_buf compositorBuf = compositorRef
-					.Get_composition_buffer(actualBufferedRegion);
-
-			Kdu_coords actualOffset = new Kdu_coords();
-			actualOffset.Assign(actualBufferedRegion.Access_pos());
-
-			Kdu_dims newRegion = new Kdu_dims();
+			if (movieMode && frameRing.matches(currParams)) {
+				J2KFrameRing.Frame frame = frameRing.poll(numLayer);
+				if (frame != null) {
+					if (frame.byteBuffer != null) {
+						currentByteBuffer = (currentByteBuffer + 1) % NUM_BUFFERS;
+						PixelBufferPool.release(byteBuffer[currentByteBuffer]);
+						byteBuffer[currentByteBuffer] = frame.byteBuffer;
+					} else {
+						currentIntBuffer = (currentIntBuffer + 1) % NUM_BUFFERS;
+						PixelBufferPool.release(intBuffer[currentIntBuffer]);
+						intBuffer[currentIntBuffer] = frame.intBuffer;
+					}
+					return true;
+				}
+			}
 
 			if (parentImageRef.getNumComponents() < 3) {
 				currentByteBuffer = (currentByteBuffer + 1) % NUM_BUFFERS;
 				if (currParams.subImage.getNumPixels() != byteBuffer[currentByteBuffer].length
-						|| (!movieMode && !linkedMovieMode && !false)) {
-					byteBuffer[currentByteBuffer] = new byte[currParams.subImage
-							.getNumPixels()];
+						|| PixelBufferPool.isShared(byteBuffer[currentByteBuffer])) {
+					PixelBufferPool.release(byteBuffer[currentByteBuffer]);
+					byteBuffer[currentByteBuffer] = PixelBufferPool
+							.obtainByteArray(currParams.subImage.getNumPixels());
+				}
+				if (!decodeLayer(numLayer, currParams, byteBuffer[currentByteBuffer], null)) {
+					currentByteBuffer = (currentByteBuffer + NUM_BUFFERS - 1) % NUM_BUFFERS;
+					return false;
 				}
 			} else {
 				currentIntBuffer = (currentIntBuffer + 1) % NUM_BUFFERS;
 				if (currParams.subImage.getNumPixels() != intBuffer[currentIntBuffer].length
-						|| (!movieMode && !linkedMovieMode && !false)) {
-					intBuffer[currentIntBuffer] = new int[currParams.subImage
-							.getNumPixels()];
+						|| PixelBufferPool.isShared(intBuffer[currentIntBuffer])) {
+					PixelBufferPool.release(intBuffer[currentIntBuffer]);
+					intBuffer[currentIntBuffer] = PixelBufferPool
+							.obtainIntArray(currParams.subImage.getNumPixels());
+				}
+				if (!decodeLayer(numLayer, currParams, null, intBuffer[currentIntBuffer])) {
+					currentIntBuffer = (currentIntBuffer + NUM_BUFFERS - 1) % NUM_BUFFERS;
+					return false;
 				}
 			}
+			return true;
+
+		} catch (KduException e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+			parentImageRef.getLock().unlock();
+		}
+
+	}
+
+	/**
+	 * Makes the given composition layer the only layer of the compositor. The
+	 * lock of the JP2Image has to be held.
+	 */
+	private void addLayer(int numLayer) throws KduException {
+		parentImageRef.loadCachedLayer(numLayer);
+
+		compositorRef.Set_thread_env(
+				jhv_Kdu_thread_env, 0);
+
+		compositorRef.Refresh();
+		compositorRef.Remove_compositing_layer(-1, true);
+
+		parentImageRef.deactivateColorLookupTable(numLayer);
+
+		compositorRef.Add_compositing_layer(numLayer, dimsRef1, dimsRef2);
+	}
+
+	/**
+	 * Decodes the given composition layer into one of the given buffers. The
+	 * layer has to be added by {@link #addLayer(int)} before and the lock of
+	 * the JP2Image has to be held. The lock is released while a large sub
+	 * image is decoded in strips.
+	 * 
+	 * @return true, if the frame was decoded completely, false if the buffer
+	 *         only holds partial data
+	 */
+	private boolean decodeLayer(int numLayer, JP2ImageParameter params,
+			byte[] destByteBuffer, int[] destIntBuffer) throws KduException {
+
+		if (stripDecoder.isWorthSplitting(params.subImage)) {
+			// the strips only use Kakadu objects of their workers, so other
+			// threads may use the image meanwhile
+			parentImageRef.getLock().unlock();
+			try {
+				return stripDecoder.decode(numLayer, params, destByteBuffer, destIntBuffer);
+			} finally {
+				parentImageRef.getLock().lock();
+			}
+		}
 
-			while (!compositorRef.Is_processing_complete()) {
-				compositorRef.Process(MAX_RENDER_SAMPLES, newRegion);
-				Kdu_coords newOffset = newRegion.Access_pos();
-				Kdu_coords newSize = newRegion.Access_size();
+		compositorRef.Set_max_quality_layers(params.qualityLayers);
+		compositorRef.Set_scale(false, false, false,
+				params.resolution.getZoomPercent());
 
-				newOffset.Subtract(actualOffset);
+		Kdu_dims requestedBufferedRegion = KakaduUtils
+				.roiToKdu_dims(params.subImage);
 
-				int newPixels = newSize.Get_x() * newSize.Get_y();
-				if (newPixels == 0)
-					continue;
+		compositorRef.Set_buffer_surface(requestedBufferedRegion);
 
-				localIntBuffer = newPixels > localIntBuffer.length ? new int[newPixels << 1]
-						: localIntBuffer;
+		Kdu_compositor_buf compositorBuf = compositorRef
+				.Get_composition_buffer(actualBufferedRegion);
 
-				compositorBuf.Get_region(newRegion, localIntBuffer);
-				
-				int srcIdx = 0;
-				int destIdx = newOffset.Get_x() + newOffset.Get_y()
-						* currParams.subImage.width;
+		actualOffset.Assign(actualBufferedRegion.Access_pos());
 
-				int newWidth = newSize.Get_x();
-				int newHeight = newSize.Get_y();
+		while (!compositorRef.Is_processing_complete()) {
+			compositorRef.Process(MAX_RENDER_SAMPLES, newRegion);
+			Kdu_coords newOffset = newRegion.Access_pos();
+			Kdu_coords newSize = newRegion.Access_size();
 
+			newOffset.Subtract(actualOffset);
+
+			int newPixels = newSize.Get_x() * newSize.Get_y();
+			if (newPixels == 0)
+				continue;
+
+			localIntBuffer = newPixels > localIntBuffer.length ? new int[newPixels << 1]
+					: localIntBuffer;
+
+			compositorBuf.Get_region(newRegion, localIntBuffer);
+			
+			int srcIdx = 0;
+			int destIdx = newOffset.Get_x() + newOffset.Get_y()
+					* params.subImage.width;
+
+			int newWidth = newSize.Get_x();
+			int newHeight = newSize.Get_y();
+
+			if (destByteBuffer != null) {
+				for (int row = 0; row < newHeight; row++, destIdx += params.subImage.width, srcIdx += newWidth) {
+					for (int col = 0; col < newWidth; ++col) {
+						destByteBuffer[destIdx + col] = (byte) ((localIntBuffer[srcIdx
+								+ col] >> 8) & 0xFF);
+					}
+				}
+			} else {
+				for (int row = 0; row < newHeight; row++, destIdx += params.subImage.width, srcIdx += newWidth)
+					System.arraycopy(localIntBuffer, srcIdx,
+							destIntBuffer, destIdx, newWidth);
+			}
+		}
+
+		if (compositorBuf != null)
+			compositorBuf.Native_destroy();
+		return true;
+	}
+
+	/**
+	 * Decodes the frames expected to be shown next into the frame ring, until
+	 * either the ring is full or the given deadline would be missed.
+	 * 
+	 * <p>
+	 * Only frames which are completely available are decoded ahead, since
+	 * partially loaded frames would otherwise be shown in low quality.
+	 * 
+	 * @param deadline
+	 *            System time in milliseconds at which the next frame is due
+	 */
+	private void fillFrameRing(long deadline) {
+		if (!(parentViewRef instanceof JHVJPXView))
+			return;
+
+		JHVJPXView jpxView = (JHVJPXView) parentViewRef;
+		JP2ImageParameter params = currParams;
+
+		if (!frameRing.matches(params))
+			frameRing.reset(params, parentImageRef.getNumComponents() < 3);
+
+		frameRing.skipTo(params.compositionLayer);
+
+		while (!frameRing.isFull()
+				&& !Thread.currentThread().isInterrupted()
+				&& System.currentTimeMillis() + lastAheadDecodeTime < deadline) {
+
+			int frame = nextFrameCandidateChooser.predictCandidate(
+					params.compositionLayer, frameRing.size());
+			if (frame < 0
+					|| frame > jpxView.getMaximumAccessibleFrameNumber()
+					|| jpxView.getImageCacheStatus().getImageStatus(frame) != CacheStatus.COMPLETE)
+				break;
+
+			long tstart = System.currentTimeMillis();
+
+			parentImageRef.getLock().lock();
+			try {
+				addLayer(frame);
 				if (parentImageRef.getNumComponents() < 3) {
-					for (int row = 0; row < newHeight; row++, destIdx += currParams.subImage.width, srcIdx += newWidth) {
-						for (int col = 0; col < newWidth; ++col) {
-							byteBuffer[currentByteBuffer][destIdx + col] = (byte) ((localIntBuffer[srcIdx
-									+ col] >> 8) & 0xFF);
-						}
+					byte[] buffer = PixelBufferPool.obtainByteArray(params.subImage.getNumPixels());
+					if (!decodeLayer(frame, params, buffer, null)) {
+						PixelBufferPool.release(buffer);
+						break;
 					}
+					frameRing.add(frame, buffer, null);
 				} else {
-					for (int row = 0; row < newHeight; row++, destIdx += currParams.subImage.width, srcIdx += newWidth)
-						System.arraycopy(localIntBuffer, srcIdx,
-								intBuffer[currentIntBuffer], destIdx, newWidth);
+					int[] buffer = PixelBufferPool.obtainIntArray(params.subImage.getNumPixels());
+					if (!decodeLayer(frame, params, null, buffer)) {
+						PixelBufferPool.release(buffer);
+						break;
+					}
+					frameRing.add(frame, null, buffer);
 				}
+			} catch (KduException e) {
+				e.printStackTrace();
+				break;
+			} finally {
+				parentImageRef.getLock().unlock();
 			}
 
-			if (compositorBuf != null)
-				compositorBuf.Native_destroy();
-
-		} catch (KduException e) {
-			e.printStackTrace();
-		} finally {
-			parentImageRef.getLock().unlock();
+			lastAheadDecodeTime = System.currentTimeMillis() - tstart;
 		}
+	}
+
+	/** Returns how often a due movie frame was already decoded ahead */
+	long getFrameRingHits() {
+		return frameRing.getHits();
+	}
 
+	/** Returns how often a due movie frame had to be decoded on demand */
+	long getFrameRingStalls() {
+		return frameRing.getStalls();
+	}
+
+	/** Returns the number of movie frames currently decoded ahead */
+	int getFrameRingOccupancy() {
+		return frameRing.size();
+	}
+
+	/** Returns the number of movie frames which can be decoded ahead */
+	int getFrameRingCapacity() {
+		return frameRing.getCapacity();
 	}
 
 	/**
@@ -385,31 +553,37 @@ class J2KRender implements Runnable {
 					}
 				}
 
-				renderLayer(curLayer);
-
-				int width = currParams.subImage.width;
-				int height = currParams.subImage.height;
-				if (parentImageRef.getNumComponents() < 3) {
+				// partially decoded frames are never shown
+				boolean rendered = renderLayer(curLayer);
+				if (!rendered
+						&& (!movieMode || Thread.currentThread().isInterrupted()))
+					break;
 
-					if (currParams.subImage.getNumPixels() == byteBuffer[currentByteBuffer].length) {
-						parentViewRef.setSubimageData(
-								new SingleChannelByte8ImageData(width, height,
-										byteBuffer[currentByteBuffer],
-										new ColorMask()), currParams.subImage,
-								curLayer);
-					} else {
-						System.out.println("J2KRender: Params out of sync, skip frame");
-					}
+				if (rendered) {
+					int width = currParams.subImage.width;
+					int height = currParams.subImage.height;
+					if (parentImageRef.getNumComponents() < 3) {
+
+						if (currParams.subImage.getNumPixels() == byteBuffer[currentByteBuffer].length) {
+							parentViewRef.setSubimageData(
+									new SingleChannelByte8ImageData(width, height,
+											byteBuffer[currentByteBuffer],
+											new ColorMask()), currParams.subImage,
+									curLayer);
+						} else {
+							System.out.println("J2KRender: Params out of sync, skip frame");
+						}
 
-				} else {
-					if (currParams.subImage.getNumPixels() == intBuffer[currentIntBuffer].length) {
-						parentViewRef
-								.setSubimageData(new ARGBInt32ImageData(width,
-										height, intBuffer[currentIntBuffer],
-										new ColorMask()), currParams.subImage,
-										curLayer);
 					} else {
-						System.out.println("J2KRender: Params out of sync, skip frame");
+						if (currParams.subImage.getNumPixels() == intBuffer[currentIntBuffer].length) {
+							parentViewRef
+									.setSubimageData(new ARGBInt32ImageData(width,
+											height, intBuffer[currentIntBuffer],
+											new ColorMask()), currParams.subImage,
+											curLayer);
+						} else {
+							System.out.println("J2KRender: Params out of sync, skip frame");
+						}
 					}
 				}
 
@@ -431,6 +605,11 @@ class J2KRender implements Runnable {
 						tini = tnow;
 						numFrames = 0;
 					}
+					if (movieMode) {
+						fillFrameRing(tfrm + tmax);
+					}
+
+					tnow = System.currentTimeMillis();
 					lastSleepTime = tmax - (tnow - tfrm);
 
 					if (lastSleepTime > 0) {
@@ -444,6 +623,9 @@ class J2KRender implements Runnable {
 					}
 				}
 			}
+			if (!movieMode) {
+				frameRing.clear();
+			}
 			numFrames += currParams.compositionLayer - lastFrame;
 			lastFrame = currParams.compositionLayer;
 			if (lastFrame > currParams.compositionLayer) {
@@ -457,6 +639,16 @@ class J2KRender implements Runnable {
 				numFrames = 0;
 			}
 		}
+		releaseBuffers();
+		frameRing.clear();
+	}
+
+	/** Gives the references to the frame buffers back to the pool */
+	private void releaseBuffers() {
+		for (int i = 0; i < NUM_BUFFERS; i++) {
+			PixelBufferPool.release(byteBuffer[i]);
+			PixelBufferPool.release(intBuffer[i]);
+		}
 		byteBuffer = new byte[NUM_BUFFERS][0];
 		intBuffer = new int[NUM_BUFFERS][0];
 	}
@@ -483,6 +675,14 @@ class J2KRender implements Runnable {
 		}
 
 		public abstract int getNextCandidate(int lastCandidate);
+
+		/**
+		 * Returns the candidate the given number of steps after the given one,
+		 * without changing the state of the chooser.
+		 * 
+		 * @return the predicted candidate, or -1 if playback stops before
+		 */
+		public abstract int predictCandidate(int lastCandidate, int steps);
 	}
 
 	private class NextFrameCandidateLoopChooser extends
@@ -495,6 +695,11 @@ class J2KRender implements Runnable {
 			}
 			return lastCandidate;
 		}
+
+		public int predictCandidate(int lastCandidate, int steps) {
+			int numLayers = layers.end - layers.start + 1;
+			return layers.start + (lastCandidate - layers.start + steps) % numLayers;
+		}
 	}
 
 	private class NextFrameCandidateStopChooser extends
@@ -508,6 +713,11 @@ class J2KRender implements Runnable {
 			}
 			return lastCandidate;
 		}
+
+		public int predictCandidate(int lastCandidate, int steps) {
+			lastCandidate += steps;
+			return lastCandidate > layers.end ? -1 : lastCandidate;
+		}
 	}
 
 	private class NextFrameCandidateSwingChooser extends
@@ -529,6 +739,21 @@ class J2KRender implements Runnable {
 
 			return lastCandidate;
 		}
+
+		public int predictCandidate(int lastCandidate, int steps) {
+			int direction = currentDirection;
+			for (int i = 0; i < steps; i++) {
+				lastCandidate += direction;
+				if (lastCandidate < layers.start && direction == -1) {
+					direction = 1;
+					lastCandidate = layers.start + 1;
+				} else if (lastCandidate > layers.end && direction == 1) {
+					direction = -1;
+					lastCandidate = layers.end - 1;
+				}
+			}
+			return lastCandidate;
+		}
 	}
 
 	private interface FrameChooser {
@@ -0,0 +1,443 @@
+package org.helioviewer.jhv.viewmodel.view.jp2view;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import kdu_jni.Jp2_threadsafe_family_src;
+import kdu_jni.Jpx_source;
+import kdu_jni.KduException;
+import kdu_jni.Kdu_cache;
+import kdu_jni.Kdu_compositor_buf;
+import kdu_jni.Kdu_coords;
+import kdu_jni.Kdu_dims;
+import kdu_jni.Kdu_region_compositor;
+import kdu_jni.Kdu_thread_env;
+
+import org.helioviewer.jhv.viewmodel.view.jp2view.image.JP2ImageParameter;
+import org.helioviewer.jhv.viewmodel.view.jp2view.image.SubImage;
+import org.helioviewer.jhv.viewmodel.view.jp2view.kakadu.KakaduUtils;
+
+/**
+ * Decodes the sub image of a composition layer in horizontal strips on a
+ * number of worker threads.
+ *
+ * <p>
+ * The workers are shared by all images, so there is one worker per processor
+ * no matter how many layers are open. Each worker keeps a complete set of
+ * Kakadu objects per image it decoded recently: a family source opened on the
+ * data of the {@link JP2Image} (through a cache attached to the cache of the
+ * image, if remote), a Jpx_source, a Kdu_region_compositor and a
+ * Kdu_thread_env. These objects are created, used and destroyed only by the
+ * thread of their worker, so no Kakadu object is shared between threads. A
+ * worker keeps the objects of at most MAX_IMAGES_PER_WORKER images and
+ * destroys those of the least recently decoded image first, which bounds the
+ * number of open files. The strips do not overlap, so every worker writes its
+ * pixels directly into the frame buffer of the caller.
+ */
+class J2KStripDecoder {
+
+    /** Sub images with less pixels per strip are not worth splitting */
+    private static final int MIN_PIXELS_PER_STRIP = 256 * 256;
+
+    /** Maximum of samples to process per rendering iteration */
+    private static final int MAX_RENDER_SAMPLES = 50000;
+
+    private static final int NUM_WORKERS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    /** Maximum number of images a worker keeps Kakadu objects open for */
+    private static final int MAX_IMAGES_PER_WORKER = 4;
+
+    private static int threadNumber = 0;
+    private static final ThreadFactory threadFactory = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable _r) {
+            Thread t = Executors.defaultThreadFactory().newThread(_r);
+            t.setName("J2KStripDecoder-" + (threadNumber++));
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    /** Workers shared by all images */
+    private static final Worker[] workers = new Worker[NUM_WORKERS];
+    static {
+        for (int i = 0; i < NUM_WORKERS; i++)
+            workers[i] = new Worker();
+    }
+
+    /** A reference to the JP2Image this object is decoding. */
+    private final JP2Image parentImageRef;
+
+    /**
+     * Constructor.
+     *
+     * @param _parentImageRef
+     *            Image to decode
+     */
+    J2KStripDecoder(JP2Image _parentImageRef) {
+        parentImageRef = _parentImageRef;
+    }
+
+    /**
+     * Returns whether it is worth to split the given sub image into strips.
+     *
+     * @param subImage
+     *            Region to decode
+     * @return true, if the region should be decoded by this class
+     */
+    boolean isWorthSplitting(SubImage subImage) {
+        return getNumStrips(subImage) > 1;
+    }
+
+    private int getNumStrips(SubImage subImage) {
+        int numStrips = Math.min(NUM_WORKERS, subImage.getNumPixels() / MIN_PIXELS_PER_STRIP);
+        return Math.max(1, Math.min(numStrips, subImage.height));
+    }
+
+    /**
+     * Decodes the given composition layer into one of the given buffers.
+     *
+     * <p>
+     * Exactly one of the buffers has to be non-null and sized to the sub
+     * image. The strips do not use any Kakadu object of the image, so the
+     * lock of the image does not have to be held. If the calling thread is
+     * interrupted, the strips still being decoded are aborted and the
+     * interrupt flag is restored. This method always waits until no strip
+     * writes into the buffer anymore.
+     *
+     * @param numLayer
+     *            Composition layer to decode
+     * @param params
+     *            Parameters describing region, resolution and quality
+     * @param byteBuffer
+     *            Destination for single channel images, or null
+     * @param intBuffer
+     *            Destination for color images, or null
+     * @return true, if the frame was decoded completely, false if it only
+     *         holds partial data and has to be discarded
+     * @throws KduException
+     */
+    boolean decode(final int numLayer, final JP2ImageParameter params, final byte[] byteBuffer, final int[] intBuffer) throws KduException {
+        final SubImage subImage = params.subImage;
+        int numStrips = getNumStrips(subImage);
+        int stripHeight = (subImage.height + numStrips - 1) / numStrips;
+
+        final AtomicBoolean aborted = new AtomicBoolean();
+        List<SubImage> regions = new ArrayList<SubImage>(numStrips);
+
+        for (int i = 0; i < numStrips; i++) {
+            int stripY = i * stripHeight;
+            int height = Math.min(stripHeight, subImage.height - stripY);
+            if (height <= 0)
+                break;
+
+            regions.add(new SubImage(subImage.x, subImage.y + stripY, subImage.width, height));
+        }
+
+        final CountDownLatch done = new CountDownLatch(regions.size());
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(regions.size());
+
+        for (int i = 0; i < regions.size(); i++) {
+            final Worker worker = workers[i];
+            final SubImage region = regions.get(i);
+
+            futures.add(worker.executor.submit(new Callable<Boolean>() {
+                public Boolean call() throws Exception {
+                    try {
+                        if (aborted.get())
+                            return false;
+                        return worker.getStrip(J2KStripDecoder.this).decode(numLayer, params, region, byteBuffer, intBuffer, aborted);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }));
+        }
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+                aborted.set(true);
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        boolean complete = true;
+        for (Future<Boolean> future : futures) {
+            try {
+                complete &= future.get();
+            } catch (InterruptedException e) {
+                // cannot happen, all strips are done
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof KduException)
+                    throw (KduException) e.getCause();
+                e.printStackTrace();
+                complete = false;
+            }
+        }
+        return complete;
+    }
+
+    /**
+     * Destroys the Kakadu objects the workers keep for this image. Waits until
+     * every worker released them on its own thread.
+     */
+    void abolish() {
+        List<Future<?>> futures = new ArrayList<Future<?>>(NUM_WORKERS);
+        for (final Worker worker : workers) {
+            futures.add(worker.executor.submit(new Runnable() {
+                public void run() {
+                    worker.removeStrip(J2KStripDecoder.this);
+                }
+            }));
+        }
+
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                    break;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * A thread together with the Kakadu objects it keeps for the images it
+     * decoded recently. The map is only accessed by the thread itself.
+     */
+    private static class Worker {
+
+        private final ExecutorService executor = Executors.newSingleThreadExecutor(threadFactory);
+
+        /** Kakadu objects by image, least recently used first */
+        private final LinkedHashMap<J2KStripDecoder, Strip> strips = new LinkedHashMap<J2KStripDecoder, Strip>(16, 0.75f, true);
+
+        /**
+         * Returns the Kakadu objects of this worker for the given image,
+         * destroys those of the least recently used image if there are too
+         * many. Has to be called on the thread of the worker.
+         */
+        private Strip getStrip(J2KStripDecoder decoder) {
+            Strip strip = strips.get(decoder);
+            if (strip == null) {
+                strip = decoder.new Strip();
+                strips.put(decoder, strip);
+
+                Iterator<Map.Entry<J2KStripDecoder, Strip>> it = strips.entrySet().iterator();
+                while (strips.size() > MAX_IMAGES_PER_WORKER) {
+                    it.next().getValue().destroy();
+                    it.remove();
+                }
+            }
+            return strip;
+        }
+
+        /**
+         * Destroys the Kakadu objects of this worker for the given image. Has
+         * to be called on the thread of the worker.
+         */
+        private void removeStrip(J2KStripDecoder decoder) {
+            Strip strip = strips.remove(decoder);
+            if (strip != null)
+                strip.destroy();
+        }
+    }
+
+    /**
+     * The Kakadu objects of one worker decoding strips of this image. They
+     * are opened on the first strip and reused for all later frames.
+     */
+    private class Strip {
+
+        private Kdu_thread_env threadEnv;
+        private Kdu_cache cache;
+        private Jp2_threadsafe_family_src familySrc;
+        private Jpx_source jpxSrc;
+        private Kdu_region_compositor compositor;
+
+        /** Intermediate buffer of this strip */
+        private int[] stripBuffer = new int[0];
+
+        /**
+         * Kakadu dims reused by this strip. The dims passed to the compositor
+         * have to stay referenced, so the GC does not collect them.
+         */
+        private final Kdu_dims dimsRef1 = new Kdu_dims();
+        private final Kdu_dims dimsRef2 = new Kdu_dims();
+        private final Kdu_dims bufferedRegion = new Kdu_dims();
+        private final Kdu_dims newRegion = new Kdu_dims();
+
+        /**
+         * Opens the Kakadu objects of this strip. Has to be called on the
+         * thread of the worker.
+         */
+        private void open() throws KduException, IOException {
+            try {
+                threadEnv = new Kdu_thread_env();
+                threadEnv.Create();
+
+                cache = new Kdu_cache();
+                familySrc = new Jp2_threadsafe_family_src();
+                parentImageRef.openFamilySrc(familySrc, cache);
+
+                jpxSrc = new Jpx_source();
+                jpxSrc.Open(familySrc, false);
+
+                Kdu_region_compositor newCompositor = new Kdu_region_compositor();
+                newCompositor.Create(jpxSrc, JP2Image.getCodestreamCacheThreshold());
+                newCompositor.Set_thread_env(threadEnv, 0);
+                compositor = newCompositor;
+            } catch (KduException e) {
+                destroy();
+                throw e;
+            } catch (IOException e) {
+                destroy();
+                throw e;
+            }
+        }
+
+        /**
+         * Configures the compositor of this strip for the given region and
+         * decodes it. Has to be called on the thread of the worker.
+         *
+         * @return true, if the strip was decoded completely
+         */
+        private boolean decode(int numLayer, JP2ImageParameter params, SubImage region, byte[] byteBuffer, int[] intBuffer, AtomicBoolean aborted) throws KduException, IOException {
+            if (aborted.get())
+                return false;
+
+            if (compositor == null)
+                open();
+
+            compositor.Refresh();
+            compositor.Remove_compositing_layer(-1, true);
+            JP2Image.deactivateColorLookupTable(jpxSrc, numLayer);
+            compositor.Add_compositing_layer(numLayer, dimsRef1, dimsRef2);
+
+            compositor.Set_max_quality_layers(params.qualityLayers);
+            compositor.Set_scale(false, false, false, params.resolution.getZoomPercent());
+            compositor.Set_buffer_surface(KakaduUtils.roiToKdu_dims(region));
+
+            return processStrip(params.subImage, byteBuffer, intBuffer, aborted);
+        }
+
+        /**
+         * Runs the compositor of this strip until it is complete and copies
+         * the decoded pixels into the destination buffer.
+         *
+         * @return true, if the strip was decoded completely, false if it was
+         *         aborted
+         */
+        private boolean processStrip(SubImage subImage, byte[] byteBuffer, int[] intBuffer, AtomicBoolean aborted) throws KduException {
+            Kdu_compositor_buf compositorBuf = compositor.Get_composition_buffer(bufferedRegion);
+
+            try {
+                while (!compositor.Is_processing_complete()) {
+                    if (aborted.get())
+                        return false;
+
+                    compositor.Process(MAX_RENDER_SAMPLES, newRegion);
+                    Kdu_coords newOffset = newRegion.Access_pos();
+                    Kdu_coords newSize = newRegion.Access_size();
+
+                    int newWidth = newSize.Get_x();
+                    int newHeight = newSize.Get_y();
+                    int newPixels = newWidth * newHeight;
+                    if (newPixels == 0)
+                        continue;
+
+                    if (newPixels > stripBuffer.length)
+                        stripBuffer = new int[newPixels << 1];
+
+                    compositorBuf.Get_region(newRegion, stripBuffer);
+
+                    int srcIdx = 0;
+                    int destIdx = (newOffset.Get_x() - subImage.x) + (newOffset.Get_y() - subImage.y) * subImage.width;
+
+                    if (byteBuffer != null) {
+                        for (int row = 0; row < newHeight; row++, destIdx += subImage.width, srcIdx += newWidth) {
+                            for (int col = 0; col < newWidth; ++col) {
+                                byteBuffer[destIdx + col] = (byte) ((stripBuffer[srcIdx + col] >> 8) & 0xFF);
+                            }
+                        }
+                    } else {
+                        for (int row = 0; row < newHeight; row++, destIdx += subImage.width, srcIdx += newWidth)
+                            System.arraycopy(stripBuffer, srcIdx, intBuffer, destIdx, newWidth);
+                    }
+                }
+                return true;
+            } finally {
+                if (compositorBuf != null)
+                    compositorBuf.Native_destroy();
+            }
+        }
+
+        /**
+         * Destroys the Kakadu objects of this strip. Has to be called on the
+         * thread of the worker.
+         */
+        private void destroy() {
+            try {
+                if (compositor != null) {
+                    compositor.Remove_compositing_layer(-1, true);
+                    compositor.Native_destroy();
+                }
+                if (jpxSrc != null) {
+                    jpxSrc.Close();
+                    jpxSrc.Native_destroy();
+                }
+                if (familySrc != null) {
+                    familySrc.Close();
+                    familySrc.Native_destroy();
+                }
+                if (cache != null) {
+                    cache.Close();
+                    cache.Native_destroy();
+                }
+                if (threadEnv != null) {
+                    threadEnv.Destroy();
+                    threadEnv.Native_destroy();
+                }
+            } catch (KduException e) {
+                e.printStackTrace();
+            } finally {
+                compositor = null;
+                jpxSrc = null;
+                familySrc = null;
+                cache = null;
+                threadEnv = null;
+            }
+        }
+    }
+}
@@ -16,6 +16,7 @@ import org.helioviewer.jhv.viewmodel.changeevent.SubImageDataChangedReason;
 import org.helioviewer.jhv.viewmodel.changeevent.TimestampChangedReason;
 import org.helioviewer.jhv.viewmodel.changeevent.ViewportChangedReason;
 import org.helioviewer.jhv.viewmodel.imagedata.ImageData;
+import org.helioviewer.jhv.viewmodel.imagedata.PixelBufferPool;
 import org.helioviewer.jhv.viewmodel.metadata.MetaData;
 import org.helioviewer.jhv.viewmodel.metadata.MetaDataFactory;
 import org.helioviewer.jhv.viewmodel.region.Region;
@@ -637,6 +638,10 @@ public class JHVJP2View extends AbstractView implements JP2View, ViewportView, R
      *            {@link org.helioviewer.jhv.viewmodel.region.Region}
      */
     void setSubimageData(ImageData newImageData, SubImage roi, int compositionLayer) {
+        // the published pixels are read asynchronously, so they must not go
+        // back to the pool before they are replaced
+        PixelBufferPool.retain(newImageData);
+        PixelBufferPool.release(imageData);
         imageData = newImageData;
         Region lastRegionSaved = lastDecodedRegion;
         subImageBuffer.setLastRegion(roi);
@@ -89,6 +89,7 @@ public class JHVJPXView extends JHVJP2View implements View {
         jp2Image.setImageCacheStatus(imageCacheStatus);
 
         dateTimeCache = new HelioviewerDateTimeCache(this, jp2Image);
+        jp2Image.setDateTimeCache(dateTimeCache);
 
         super.setJP2Image(newJP2Image);
 
@@ -161,25 +162,12 @@ public class JHVJPXView extends JHVJP2View implements View {
             return;
         }
 
-        int frameNumber = -1;
-        long timeMillis = time.getMillis();
-        long lastDiff, currentDiff = -Long.MAX_VALUE;
-
-        do {
-            lastDiff = currentDiff;
-
-            if (dateTimeCache.getDateTime(++frameNumber) == null) {
-                return;
-            }
-
-            currentDiff = dateTimeCache.getDateTime(frameNumber).getMillis() - timeMillis;
-        } while (currentDiff < 0 && frameNumber < jp2Image.getCompositionLayerRange().end);
-
-        if (-lastDiff < currentDiff) {
-            setCurrentFrameNumber(frameNumber - 1, event, forceSignal);
-        } else {
-            setCurrentFrameNumber(frameNumber, event, forceSignal);
+        int frameNumber = dateTimeCache.getNearestFrame(time.getMillis());
+        if (frameNumber < 0) {
+            return;
         }
+
+        setCurrentFrameNumber(frameNumber, event, forceSignal);
     }
 
     /**
@@ -279,6 +267,71 @@ public class JHVJPXView extends JHVJP2View implements View {
         return 0;
     }
 
+    /**
+     * Returns how often a movie frame was already decoded ahead when it was
+     * due.
+     * 
+     * @return number of frames taken from the decode-ahead buffer
+     */
+    public long getDecodeAheadHits() {
+        if (render != null)
+            return render.getFrameRingHits();
+
+        return 0;
+    }
+
+    /**
+     * Returns how often a movie frame had to be decoded when it was due,
+     * because it was not decoded ahead.
+     * 
+     * @return number of frames decoded on demand during playback
+     */
+    public long getDecodeAheadStalls() {
+        if (render != null)
+            return render.getFrameRingStalls();
+
+        return 0;
+    }
+
+    /**
+     * Returns the fill level of the decode-ahead buffer.
+     * 
+     * @return number of frames currently decoded ahead of the play cursor
+     */
+    public int getDecodeAheadOccupancy() {
+        if (render != null)
+            return render.getFrameRingOccupancy();
+
+        return 0;
+    }
+
+    /**
+     * Returns the size of the decode-ahead buffer, which depends on the size
+     * of the currently decoded region.
+     * 
+     * @return maximum number of frames decoded ahead of the play cursor
+     */
+    public int getDecodeAheadCapacity() {
+        if (render != null)
+            return render.getFrameRingCapacity();
+
+        return 0;
+    }
+
+    /**
+     * Returns the throughput of the JPIP channels used to fetch the frames of
+     * the movie.
+     * 
+     * @return bytes per second, one entry per channel, or an empty array if no
+     *         channels have been opened
+     */
+    public double[] getFetchChannelThroughput() {
+        if (reader != null)
+            return reader.getFetchChannelThroughput();
+
+        return new double[0];
+    }
+
     /**
      * {@inheritDoc}
      */
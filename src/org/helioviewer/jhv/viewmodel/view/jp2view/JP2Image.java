@@ -1,9 +1,7 @@
 package org.helioviewer.jhv.viewmodel.view.jp2view;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.util.Timer;
@@ -12,15 +10,13 @@ import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-
 import kdu_jni.*;
 
 import org.helioviewer.jhv.base.math.Interval;
 import org.helioviewer.jhv.base.math.MathUtils;
 import org.helioviewer.jhv.viewmodel.io.APIResponseDump;
 import org.helioviewer.jhv.viewmodel.metadata.MultiFrameMetaDataContainer;
+import org.helioviewer.jhv.viewmodel.view.cache.DateTimeCache;
 import org.helioviewer.jhv.viewmodel.view.cache.ImageCacheStatus;
 import org.helioviewer.jhv.viewmodel.view.jp2view.image.ResolutionSet;
 import org.helioviewer.jhv.viewmodel.view.jp2view.io.jpip.JPIPResponse;
@@ -28,11 +24,6 @@ import org.helioviewer.jhv.viewmodel.view.jp2view.io.jpip.JPIPSocket;
 import org.helioviewer.jhv.viewmodel.view.jp2view.kakadu.JHV_KduException;
 import org.helioviewer.jhv.viewmodel.view.jp2view.kakadu.JHV_Kdu_cache;
 import org.helioviewer.jhv.viewmodel.view.jp2view.kakadu.KakaduUtils;
-import org.w3c.dom.CharacterData;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 /**
  * This class can open JPEG2000 images, yeah baby! Modified to improve the JPIP
@@ -49,6 +40,9 @@ public class JP2Image implements MultiFrameMetaDataContainer {
 
     private static AtomicInteger numJP2Images = new AtomicInteger();
 
+    /** The amount of cache to allocate to each codestream */
+    private static final int CODESTREAM_CACHE_THRESHOLD = 1024 * 256;
+
     /** This is the URI that uniquely identifies the image. */
     private URI uri;
 
@@ -95,7 +89,7 @@ public class JP2Image implements MultiFrameMetaDataContainer {
      */
     private boolean isJpx = false;
 
-    private NodeList[] xmlCache;
+    private FrameHeaderTable headerTable;
 
     private JHVJP2View parentView;
     private ReentrantLock lock = new ReentrantLock();
@@ -169,7 +163,7 @@ public class JP2Image implements MultiFrameMetaDataContainer {
 
         createKakaduMachinery();
 
-        xmlCache = new NodeList[layerRange.end + 1];
+        headerTable = new FrameHeaderTable(layerRange.end + 1);
     }
 
     /**
@@ -279,9 +273,6 @@ public class JP2Image implements MultiFrameMetaDataContainer {
      */
     private void createKakaduMachinery() throws JHV_KduException {
 
-        // The amount of cache to allocate to each codestream
-        final int CODESTREAM_CACHE_THRESHOLD = 1024 * 256;
-
         try {
             // Open the jpx source from the family source
             jpxSrc.Open(familySrc, false);
@@ -423,11 +414,7 @@ public class JP2Image implements MultiFrameMetaDataContainer {
      * @throws JHV_KduException
      */
     public String getValueFromXML(String _keyword, String _box) throws JHV_KduException {
-        int boxNumber = 1;
-        if (parentView != null && parentView.getImageViewParams() != null) {
-            boxNumber = parentView.getImageViewParams().compositionLayer + 1;
-        }
-        return getValueFromXML(_keyword, _box, boxNumber);
+        return getValueFromXML(_keyword, _box, getCurrentBoxNumber());
     }
 
     /**
@@ -439,60 +426,85 @@ public class JP2Image implements MultiFrameMetaDataContainer {
      * @throws JHV_KduException
      */
     public String getValueFromXML(String _keyword, String _box, int _boxNumber) throws JHV_KduException {
+        parseXML(_boxNumber);
+        return headerTable.get(_boxNumber - 1, _box, _keyword);
+    }
 
-        if (xmlCache[_boxNumber - 1] == null) {
-            String xml = null;
-
-            lock.lock();
-            try {
-                xml = KakaduUtils.getXml(familySrc, _boxNumber);
-            } catch (JHV_KduException e) {
-                throw e;
-            } finally {
-                lock.unlock();
-            }
-
-            if (xml == null) {
-                throw new JHV_KduException("No XML data present");
-            } else if (!xml.contains("</meta>")) {
-                throw new JHV_KduException("XML data incomplete");
-            }
-
-            xml = xml.trim().replace("&", "&amp;").replace("$OBS", "");
+    /**
+     * Returns the number of the xml box of the currently shown frame.
+     */
+    private int getCurrentBoxNumber() {
+        int boxNumber = 1;
+        if (parentView != null && parentView.getImageViewParams() != null) {
+            boxNumber = parentView.getImageViewParams().compositionLayer + 1;
+        }
+        return boxNumber;
+    }
 
-            InputStream in = null;
-            try {
-                in = new ByteArrayInputStream(xml.getBytes("UTF-8"));
-            } catch (Exception ex) {
-                ex.printStackTrace();
-            }
+    /**
+     * Parses the specified xml box into the header table, unless this has
+     * already been done.
+     * 
+     * @param _boxNumber
+     * @throws JHV_KduException
+     */
+    private void parseXML(int _boxNumber) throws JHV_KduException {
+        if (headerTable.isParsed(_boxNumber - 1))
+            return;
 
-            try {
-                DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-                Document doc = builder.parse(in);
+        String xml = null;
 
-                xmlCache[_boxNumber - 1] = doc.getElementsByTagName("meta");
-            } catch (Exception e) {
-                throw new JHV_KduException("Failed parsing XML data", e);
-            }
+        lock.lock();
+        try {
+            xml = KakaduUtils.getXml(familySrc, _boxNumber);
+        } finally {
+            lock.unlock();
         }
 
-        try {
-            NodeList nodes = ((Element) xmlCache[_boxNumber - 1].item(0)).getElementsByTagName(_box);
-            NodeList value = ((Element) nodes.item(0)).getElementsByTagName(_keyword);
-            Element line = (Element) value.item(0);
+        if (xml == null) {
+            throw new JHV_KduException("No XML data present");
+        } else if (!xml.contains("</meta>")) {
+            throw new JHV_KduException("XML data incomplete");
+        }
 
-            if (line == null)
-                return null;
+        xml = xml.trim().replace("&", "&amp;").replace("$OBS", "");
+        headerTable.parse(_boxNumber - 1, xml);
+    }
 
-            Node child = line.getFirstChild();
-            if (child instanceof CharacterData) {
-                CharacterData cd = (CharacterData) child;
-                return cd.getData();
+    /**
+     * Parses the xml box of the currently shown frame, waiting for it while it
+     * is incomplete. The cache signals when meta data arrives, local files do
+     * not get more data, so nothing is waited for.
+     * 
+     * @return The number of the parsed xml box, or 0 if there is none or the
+     *         calling thread was interrupted
+     */
+    private int waitForCurrentXML() {
+        int boxNumber = getCurrentBoxNumber();
+        for (;;) {
+            JHV_Kdu_cache currentCache = cache;
+            int version = currentCache == null ? 0 : currentCache.getMetaDataVersion();
+            try {
+                parseXML(boxNumber);
+                return boxNumber;
+            } catch (JHV_KduException e) {
+                String message = e.getMessage() == null ? "" : e.getMessage();
+                if (message.equals("XML data incomplete") || message.toLowerCase().contains("box not open")) {
+                    if (currentCache == null)
+                        return 0;
+                    try {
+                        if (!currentCache.waitForMetaData(version))
+                            return 0;
+                    } catch (InterruptedException e1) {
+                        Thread.currentThread().interrupt();
+                        return 0;
+                    }
+                } else {
+                    if (!message.equals("No XML data present"))
+                        e.printStackTrace();
+                    return 0;
+                }
             }
-            return null;
-        } catch (Exception e) {
-            throw new JHV_KduException("Failed parsing XML data", e);
         }
     }
 
@@ -561,22 +573,10 @@ public class JP2Image implements MultiFrameMetaDataContainer {
      * {@inheritDoc}
      */
     public String get(String key) {
-        try {
-            String value = getValueFromXML(key, "fits");
-            return value;
-        } catch (JHV_KduException e) {
-            if (e.getMessage() == "XML data incomplete" || e.getMessage().toLowerCase().contains("box not open")) {
-                try {
-                    Thread.sleep(500);
-                } catch (InterruptedException e1) {
-                }
-
-                return get(key);
-            } else if (e.getMessage() != "No XML data present") {
-                e.printStackTrace();
-            }
-        }
-        return null;
+        int boxNumber = waitForCurrentXML();
+        if (boxNumber == 0)
+            return null;
+        return headerTable.get(boxNumber - 1, "fits", key);
     }
 
     /**
@@ -595,34 +595,32 @@ public class JP2Image implements MultiFrameMetaDataContainer {
      * {@inheritDoc}
      */
     public double tryGetDouble(String key) {
+        int boxNumber = waitForCurrentXML();
+        if (boxNumber == 0)
+            return 0.0;
 
-        String string = get(key);
-        if (string != null) {
-            try {
-                return Double.parseDouble(string);
-            } catch (NumberFormatException e) {
-                System.out.println("NumberFormatException while trying to parse value \"" + string + "\" of key " + key + " from meta data of\n" + getURI());
-                return Double.NaN;
-            }
+        try {
+            return headerTable.getDouble(boxNumber - 1, "fits", key, 0.0);
+        } catch (NumberFormatException e) {
+            System.out.println("NumberFormatException while trying to parse value \"" + headerTable.get(boxNumber - 1, "fits", key) + "\" of key " + key + " from meta data of\n" + getURI());
+            return Double.NaN;
         }
-        return 0.0;
     }
 
     /**
      * {@inheritDoc}
      */
     public int tryGetInt(String key) {
+        int boxNumber = waitForCurrentXML();
+        if (boxNumber == 0)
+            return 0;
 
-        String string = get(key);
-        if (string != null) {
-            try {
-                return Integer.parseInt(string);
-            } catch (NumberFormatException e) {
-                System.out.println("NumberFormatException while trying to parse value \"" + string + "\" of key " + key + " from meta data of\n" + getURI());
-                return 0;
-            }
+        try {
+            return headerTable.getInt(boxNumber - 1, "fits", key, 0);
+        } catch (NumberFormatException e) {
+            System.out.println("NumberFormatException while trying to parse value \"" + headerTable.get(boxNumber - 1, "fits", key) + "\" of key " + key + " from meta data of\n" + getURI());
+            return 0;
         }
-        return 0;
     }
 
     /**
@@ -694,8 +692,6 @@ public class JP2Image implements MultiFrameMetaDataContainer {
             if (cache != null) {
                 cache.Close();
                 cache.Native_destroy();
-
-                JHV_Kdu_cache.updateCacheDirectory();
             }
         } catch (KduException ex) {
             ex.printStackTrace();
@@ -745,6 +741,24 @@ public class JP2Image implements MultiFrameMetaDataContainer {
         return true;
     }
 
+    /**
+     * Adds the data of the given composition layer from the cache file to the
+     * cache of remote images, see {@link JHV_Kdu_cache#loadCodestream(int)}.
+     *
+     * @param numLayer
+     *            composition layer to load
+     */
+    void loadCachedLayer(int numLayer) {
+        if (cache == null)
+            return;
+
+        try {
+            cache.loadCodestream(numLayer);
+        } catch (JHV_KduException e) {
+            e.printStackTrace();
+        }
+    }
+
     /**
      * Deactivates the internal color lookup table for the given composition
      * layer.
@@ -759,13 +773,7 @@ public class JP2Image implements MultiFrameMetaDataContainer {
 
         try {
             lock.lock();
-            Jpx_codestream_source jpxStream = jpxSrc.Access_codestream(0);
-            Jp2_palette palette = jpxStream.Access_palette();
-
-            for (int i = 0; i < palette.Get_num_luts(); i++) {
-                jpxSrc.Access_layer(numLayer).Access_channels().Set_colour_mapping(i, 0, -1, numLayer);
-            }
-
+            deactivateColorLookupTable(jpxSrc, numLayer);
         } catch (KduException e) {
             e.printStackTrace();
         } finally {
@@ -773,6 +781,25 @@ public class JP2Image implements MultiFrameMetaDataContainer {
         }
     }
 
+    /**
+     * Deactivates the internal color lookup table for the given composition
+     * layer of the given jpx source.
+     * 
+     * @param _jpxSrc
+     *            jpx source opened on the data of a JP2Image
+     * @param numLayer
+     *            composition layer to deactivate internal color lookup for
+     * @throws KduException
+     */
+    static void deactivateColorLookupTable(Jpx_source _jpxSrc, int numLayer) throws KduException {
+        Jpx_codestream_source jpxStream = _jpxSrc.Access_codestream(0);
+        Jp2_palette palette = jpxStream.Access_palette();
+
+        for (int i = 0; i < palette.Get_num_luts(); i++) {
+            _jpxSrc.Access_layer(numLayer).Access_channels().Set_colour_mapping(i, 0, -1, numLayer);
+        }
+    }
+
     Lock getLock() {
         return lock;
     }
@@ -788,11 +815,45 @@ public class JP2Image implements MultiFrameMetaDataContainer {
             cache.setImageCacheStatus(imageCacheStatus);
     }
 
+    /** Sets the DateTimeCache to inform about arriving meta data */
+    void setDateTimeCache(DateTimeCache dateTimeCache) {
+        if (cache != null)
+            cache.setDateTimeCache(dateTimeCache);
+    }
+
     /** Returns the compositor reference */
     Kdu_region_compositor getCompositorRef() {
         return compositor;
     }
 
+    /**
+     * Opens an additional family source on the data of this image, which does
+     * not share any state with the family source of this image. Remote images
+     * are read through the given cache, which gets attached to the cache of
+     * this image, local images are opened from the file again. The caller is
+     * responsible for closing both before the image is abolished.
+     * 
+     * @param _familySrc
+     *            Family source to open
+     * @param _cache
+     *            Cache to attach for remote images, unused for local images
+     * @throws KduException
+     * @throws IOException
+     */
+    void openFamilySrc(Jp2_threadsafe_family_src _familySrc, Kdu_cache _cache) throws KduException, IOException {
+        if (cache != null) {
+            _cache.Attach_to(cache);
+            _familySrc.Open(_cache);
+        } else {
+            _familySrc.Open(new File(uri).getCanonicalPath(), true);
+        }
+    }
+
+    /** Returns the amount of cache to allocate to each codestream */
+    static int getCodestreamCacheThreshold() {
+        return CODESTREAM_CACHE_THRESHOLD;
+    }
+
     /** Returns the jpx source */
     Jpx_source getJpxSource() {
         return jpxSrc;
@@ -112,13 +112,21 @@ public class ChunkedInputStream extends InputStream {
               try
               {
                   chunkLength = Integer.parseInt(line, 16);
-                  if (chunkLength <= 0)
-                      eof = true;
               }
               catch (NumberFormatException ex)
               {
                   throw new ProtocolException("Invalid chunk length format.");
               }
+              
+              if (chunkLength <= 0)
+              {
+                  eof = true;
+                  
+                  // skip the trailer, so the next response starts right
+                  // after this one
+                  while (readLine().length() > 0)
+                      ;
+              }
           }
         }
     }
@@ -1,5 +1,6 @@
 package org.helioviewer.jhv.viewmodel.view.jp2view.io.http;
 
+import java.io.BufferedInputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -31,6 +32,9 @@ public class HTTPSocket extends Socket {
     /** The last used host */
     private String lastUsedHost = null;
 
+    /** Buffered stream on top of the socket input, used for all responses */
+    private InputStream inputStream = null;
+
     /** The default port for the HTTP socket */
     static public final int PORT = 80;
 
@@ -131,7 +135,7 @@ public class HTTPSocket extends Socket {
         int code;
         double ver;
 
-        InputStream input = getInputStream();
+        InputStream input = getBufferedInputStream();
         String line = LineReader.readLine(input);
         if (line == null)
             return null;
@@ -187,6 +191,20 @@ public class HTTPSocket extends Socket {
         }
     }
 
+    /**
+     * Returns the buffered input stream of the socket. All responses have to
+     * be read from this stream, since it may already hold the beginning of the
+     * next response, if several requests are outstanding.
+     * 
+     * @return Buffered stream on top of the socket input
+     * @throws java.io.IOException
+     */
+    protected InputStream getBufferedInputStream() throws IOException {
+        if (inputStream == null)
+            inputStream = new BufferedInputStream(getInputStream(), 65536);
+        return inputStream;
+    }
+
     /** Returns the lastUsedPort */
     public int getPort() {
         return lastUsedPort;
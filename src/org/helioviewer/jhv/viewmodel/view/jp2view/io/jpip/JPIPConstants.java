@@ -93,6 +93,12 @@ public class JPIPConstants {
      */
     public static final int MIN_REQUEST_LEN = 500000; //4000;
 
+    /**
+     * The maximum number of requests sent ahead on a channel, before the
+     * response to the first one has been received.
+     */
+    public static final int MAX_OUTSTANDING_REQUESTS = 4;
+
     /**
      * Maximum number of layers that can be requested at the same time.
      */
@@ -128,19 +128,26 @@ public class JPIPDataInputStream {
      * buffer is not reallocated every time. It is only reallocated if the next
      * data length is bigger than the previous one.
      * 
+     * @param seg
+     *            Segment to fill, all its fields are overwritten
      * @throws java.io.IOException
      * @return Returns <code>true</code> if a new data segment was read, or
      *         <code>false</code> if the end of stream was reached.
      */
-    public JPIPDataSegment readSegment() throws IOException {
+    public boolean readSegment(JPIPDataSegment seg) throws IOException {
         int m;
         long id;
         if ((id = readVBAS()) < 0)
-            return null;
-
-        JPIPDataSegment seg = new JPIPDataSegment();
+            return false;
 
         seg.binID = id;
+        seg.aux = 0;
+        seg.classID = null;
+        seg.codestreamID = 0;
+        seg.offset = 0;
+        seg.length = 0;
+        seg.isFinal = false;
+        seg.isComplete = false;
 
         if (vbasFstByte == 0) {
             seg.isEOR = true;
@@ -201,6 +208,19 @@ public class JPIPDataInputStream {
             }
         }
 
-        return seg;
+        return true;
+    }
+
+    /**
+     * Reads the next data segment from the stream into a new
+     * <code>JpipDataSegment</code> object.
+     * 
+     * @throws java.io.IOException
+     * @return The segment read, or <code>null</code> if the end of stream was
+     *         reached.
+     */
+    public JPIPDataSegment readSegment() throws IOException {
+        JPIPDataSegment seg = new JPIPDataSegment();
+        return readSegment(seg) ? seg : null;
     }
 };
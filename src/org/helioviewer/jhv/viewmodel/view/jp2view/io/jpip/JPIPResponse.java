@@ -20,6 +20,8 @@ public class JPIPResponse extends HTTPResponse {
     /** A list of the data segments. */
     private LinkedList<JPIPDataSegment> jpipDataList;
 
+    private long responseSize;
+
     /**
      * Used to form responses.
      * 
@@ -34,6 +36,7 @@ public class JPIPResponse extends HTTPResponse {
 
         status = -1;
         jpipDataList = new LinkedList<JPIPDataSegment>();
+        responseSize = 0;
     }
 
     /**
@@ -42,10 +45,22 @@ public class JPIPResponse extends HTTPResponse {
      * @param data
      */
     public void addJpipDataSegment(JPIPDataSegment data) {
+        countJpipDataSegment(data);
+        jpipDataList.add(data);
+    }
+
+    /**
+     * Takes a segment into account, which has not been stored in the response
+     * but handed on directly when it was received.
+     * 
+     * @param data
+     *            Segment received as part of this response
+     */
+    public void countJpipDataSegment(JPIPDataSegment data) {
         if (data.isEOR) {
             status = data.binID;
         }
-        jpipDataList.add(data);
+        responseSize += data.length;
     }
 
     /**
@@ -63,10 +78,7 @@ public class JPIPResponse extends HTTPResponse {
      * @return Response size
      */
     public long getResponseSize() {
-        long size = 0;
-        for (int i = 0; i < jpipDataList.size(); i++)
-            size += jpipDataList.get(i).length;
-        return size;
+        return responseSize;
     }
 
     /**
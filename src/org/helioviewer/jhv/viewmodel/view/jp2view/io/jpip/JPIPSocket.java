@@ -1,10 +1,10 @@
 package org.helioviewer.jhv.viewmodel.view.jp2view.io.jpip;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.helioviewer.jhv.viewmodel.view.jp2view.io.ChunkedInputStream;
 import org.helioviewer.jhv.viewmodel.view.jp2view.io.FixedSizedInputStream;
@@ -13,6 +13,8 @@ import org.helioviewer.jhv.viewmodel.view.jp2view.io.http.HTTPRequest;
 import org.helioviewer.jhv.viewmodel.view.jp2view.io.http.HTTPRequest.Method;
 import org.helioviewer.jhv.viewmodel.view.jp2view.io.http.HTTPResponse;
 import org.helioviewer.jhv.viewmodel.view.jp2view.io.http.HTTPSocket;
+import org.helioviewer.jhv.viewmodel.view.jp2view.kakadu.JHV_KduException;
+import org.helioviewer.jhv.viewmodel.view.jp2view.kakadu.JHV_Kdu_cache;
 
 /**
  * Assumes a persistent HTTP connection.
@@ -43,6 +45,18 @@ public class JPIPSocket extends HTTPSocket {
     /** Time when received the last reply data */
     private long replyDataTm = 0;
 
+    /** Time when the request of the last reply was sent */
+    private long requestTm = 0;
+
+    /**
+     * Times when the requests not answered yet were sent, in the order of
+     * their replies
+     */
+    private final ConcurrentLinkedQueue<Long> sendTimes = new ConcurrentLinkedQueue<Long>();
+
+    /** Segment reused for all data streamed directly into a cache */
+    private final JPIPDataSegment streamSegment = new JPIPDataSegment();
+
     /** Default constructor. */
     public JPIPSocket() {
         super();
@@ -181,6 +195,8 @@ public class JPIPSocket extends HTTPSocket {
             str.append(queryStr);
 
         if (!isConnected()) {
+            // the requests sent on the old connection are not answered
+            sendTimes.clear();
             reconnect();
         }
         // Writes the result to the output stream.
@@ -193,6 +209,7 @@ public class JPIPSocket extends HTTPSocket {
             System.err.println(str.toString());
             _re.printStackTrace();
         }*/
+        sendTimes.add(System.currentTimeMillis());
         getOutputStream().write(str.toString().getBytes());
     }
 
@@ -208,6 +225,31 @@ public class JPIPSocket extends HTTPSocket {
 
     /** Receives a JPIPResponse returning null if EOS reached */
     public JPIPResponse receive() throws IOException {
+        try {
+            return receive(null);
+        } catch (JHV_KduException e) {
+            // cannot happen without a cache
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Receives a JPIPResponse returning null if EOS reached.
+     * 
+     * <p>
+     * If a cache is given, every data segment is added to the cache as soon
+     * as it has been read, instead of being stored in the response. All
+     * segments are read into the same buffer, which is reused for the next
+     * responses. The returned response only contains the headers, the size
+     * and the EOR status.
+     * 
+     * @param _cache
+     *            Cache to add the data to, or null to store it in the response
+     * @return The response received
+     * @throws IOException
+     * @throws JHV_KduException
+     */
+    public JPIPResponse receive(JHV_Kdu_cache _cache) throws IOException, JHV_KduException {
         // long tini = System.currentTimeMillis();
 
         HTTPResponse httpRes = (HTTPResponse) super.receive();
@@ -217,6 +259,9 @@ public class JPIPSocket extends HTTPSocket {
         JPIPResponse res = new JPIPResponse(httpRes);
         InputStream input;
 
+        Long sendTime = sendTimes.poll();
+        requestTm = sendTime == null ? 0 : sendTime;
+
         if (res.getCode() != 200)
             throw new IOException("Invalid status code returned (" + res.getCode() + ")");
         if (res.getHeader("Content-Type") != null && !res.getHeader("Content-Type").equals("image/jpp-stream"))
@@ -227,12 +272,12 @@ public class JPIPSocket extends HTTPSocket {
             String contentLengthString = res.getHeader("Content-Length") == null ? "" : res.getHeader("Content-Length").trim();
             try {
                 int contentLength = Integer.parseInt(contentLengthString);
-                input = new FixedSizedInputStream(new BufferedInputStream(getInputStream(),65536), contentLength);
+                input = new FixedSizedInputStream(getBufferedInputStream(), contentLength);
             } catch (Exception e) {
                 throw new IOException("Invalid Content-Length header: " + contentLengthString + "\n" + getResponseHeadersAsString(res));
             }
         } else if (transferEncoding.equals("chunked")) {
-            input = new ChunkedInputStream(new BufferedInputStream(getInputStream(),65536));
+            input = new ChunkedInputStream(getBufferedInputStream());
         } else {
             throw new IOException("Unsupported transfer encoding: " + transferEncoding + "\n" + getResponseHeadersAsString(res));
         }
@@ -241,12 +286,21 @@ public class JPIPSocket extends HTTPSocket {
 
         JPIPDataInputStream jpip = new JPIPDataInputStream(input);
 
-        JPIPDataSegment seg;
+        if (_cache == null) {
+            JPIPDataSegment seg;
 
-        while ((seg = jpip.readSegment()) != null)
-            res.addJpipDataSegment(seg);
+            while ((seg = jpip.readSegment()) != null)
+                res.addJpipDataSegment(seg);
+        } else {
+            while (jpip.readSegment(streamSegment)) {
+                if (!streamSegment.isEOR)
+                    _cache.addDataSegment(streamSegment);
+                res.countJpipDataSegment(streamSegment);
+            }
+        }
 
         if (res.getHeader("Connection") != null && res.getHeader("Connection").equals("close")) {
+            sendTimes.clear();
             super.close();
         }
         replyDataTm = System.currentTimeMillis();
@@ -276,6 +330,14 @@ public class JPIPSocket extends HTTPSocket {
         return replyTextTm;
     }
 
+    /**
+     * Returns the time when the request of the last reply was sent, or 0 if
+     * it is not known
+     */
+    public long getRequestTime() {
+        return requestTm;
+    }
+
     /**
      * Returns the time when received the last reply data
      */
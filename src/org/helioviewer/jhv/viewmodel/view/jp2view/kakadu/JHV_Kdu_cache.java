@@ -3,16 +3,16 @@ package org.helioviewer.jhv.viewmodel.view.jp2view.kakadu;
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FilenameFilter;
+import java.io.IOException;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.concurrent.locks.ReentrantLock;
 
 import kdu_jni.KduException;
 import kdu_jni.Kdu_cache;
 
 import org.helioviewer.jhv.Directories;
+import org.helioviewer.jhv.viewmodel.view.cache.DateTimeCache;
 import org.helioviewer.jhv.viewmodel.view.cache.ImageCacheStatus;
 import org.helioviewer.jhv.viewmodel.view.cache.ImageCacheStatus.CacheStatus;
 import org.helioviewer.jhv.viewmodel.view.jp2view.io.jpip.JPIPDataSegment;
@@ -40,8 +40,38 @@ public class JHV_Kdu_cache extends Kdu_cache {
      */
     private final File cacheFile;
 
+    /**
+     * Cache file of the old, sequential format. It is read if there is no
+     * cacheFile yet and removed once the cacheFile has been written.
+     */
+    private final File legacyCacheFile;
+
+    /** Reads and writes the cacheFile */
+    private final KakaduCacheFile cacheFileIO;
+
+    /**
+     * The file acquired from the {@link KakaduCacheDirectory} while this
+     * object is open. Null if no cache file is used.
+     */
+    private File acquiredCacheFile = null;
+
     private ImageCacheStatus status;
 
+    /** Informed about arriving meta data, may be null */
+    private volatile DateTimeCache dateTimeCache;
+
+    /**
+     * Signalled when meta data arrives or the cache is closed. Guards
+     * metaDataVersion and closed.
+     */
+    private final Object metaDataSignal = new Object();
+
+    /** Incremented whenever meta data arrives */
+    private int metaDataVersion = 0;
+
+    /** Set when the cache is closed, no more meta data arrives then */
+    private boolean closed = false;
+
     /**
      * The targetID for the image as given by the JPIP server. Should be a
      * unique hash for the image and thus serves as a good way of naming the
@@ -60,7 +90,7 @@ public class JHV_Kdu_cache extends Kdu_cache {
      */
     private static boolean iamPersistent = true;
 
-    private static final long CACHE_SIZE_LIMIT = 1024*1024*100;
+    private static final byte[] LEGACY_MAGIC = "hvc/1.0\n".getBytes();
 
     /**
      * Main constructor used when you want to use a cache file.
@@ -72,11 +102,16 @@ public class JHV_Kdu_cache extends Kdu_cache {
         super();
         targetID = _targetID;
 
-        cacheFile = new File(Directories.CACHE.getFile().getAbsolutePath() + File.separator + targetID + ".hvc");
+        cacheFile = new File(Directories.CACHE.getFile().getAbsolutePath() + File.separator + targetID + ".hvc2");
+        legacyCacheFile = new File(Directories.CACHE.getFile().getAbsolutePath() + File.separator + targetID + ".hvc");
+        cacheFileIO = new KakaduCacheFile(cacheFile);
         newData = 0;
 
-        if (iamPersistent)
+        if (iamPersistent) {
+            acquiredCacheFile = getCacheFile();
+            KakaduCacheDirectory.acquire(acquiredCacheFile);
             readCacheFromFile();
+        }
     }
 
     
@@ -91,11 +126,16 @@ public class JHV_Kdu_cache extends Kdu_cache {
         targetID = _targetID;
         iamPersistent = _iamPersistent;
 
-        cacheFile = new File(Directories.CACHE.getFile().getAbsolutePath() + File.separator + targetID + ".hvc");
+        cacheFile = new File(Directories.CACHE.getFile().getAbsolutePath() + File.separator + targetID + ".hvc2");
+        legacyCacheFile = new File(Directories.CACHE.getFile().getAbsolutePath() + File.separator + targetID + ".hvc");
+        cacheFileIO = new KakaduCacheFile(cacheFile);
         newData = 0;
 
-        if (iamPersistent)
+        if (iamPersistent) {
+            acquiredCacheFile = getCacheFile();
+            KakaduCacheDirectory.acquire(acquiredCacheFile);
             readCacheFromFile();
+        }
     }
 
     /**
@@ -106,6 +146,14 @@ public class JHV_Kdu_cache extends Kdu_cache {
         status = imageCacheStatus;
     }
 
+    /**
+     * Sets the DateTimeCache to inform about arriving meta data
+     * 
+     */
+    public void setDateTimeCache(DateTimeCache _dateTimeCache) {
+        dateTimeCache = _dateTimeCache;
+    }
+
     /**
      * Returns the amount of new data.
      * 
@@ -172,8 +220,14 @@ public class JHV_Kdu_cache extends Kdu_cache {
      * not be used again.
      */
     public boolean Close() {
+        synchronized (metaDataSignal) {
+            closed = true;
+            metaDataSignal.notifyAll();
+        }
+
         if ((cacheFile != null) && iamPersistent)
             writeCacheToFile();
+        cacheFileIO.close();
 
         try {
             super.Close();
@@ -183,11 +237,22 @@ public class JHV_Kdu_cache extends Kdu_cache {
         }
 
         newData = 0;
+
+        if (acquiredCacheFile != null) {
+            KakaduCacheDirectory.release(acquiredCacheFile);
+            if (!acquiredCacheFile.equals(cacheFile))
+                KakaduCacheDirectory.release(cacheFile);
+            acquiredCacheFile = null;
+        }
         return true;
     }
 
     /**
      * Adds a JPIPResponse to the cache object using the addDataSegment methods.
+     * The whole response is added while holding the lock of the cache, since
+     * several channels may add their responses at the same time. Responses
+     * received directly into the cache contain no segments anymore, only
+     * their status is returned.
      * 
      * @param jRes
      * @return True, the response is complete
@@ -195,18 +260,25 @@ public class JHV_Kdu_cache extends Kdu_cache {
      */
     public boolean addJPIPResponseData(JPIPResponse jRes) throws JHV_KduException {
         JPIPDataSegment data;
-        while ((data = jRes.removeJpipDataSegment()) != null && !data.isEOR)
-            addDataSegment(data);
+        cacheMutex.lock();
+        try {
+            while ((data = jRes.removeJpipDataSegment()) != null && !data.isEOR)
+                addDataSegment(data);
+        } finally {
+            cacheMutex.unlock();
+        }
         return jRes.isResponseComplete();
     }
 
     /**
      * Adds a JPIPDataSegment to the cache object. Updates the newData variable.
+     * The data is copied, so the segment may be reused afterwards.
      * 
      * @param _data
      * @throws JHV_KduException
      */
     public void addDataSegment(JPIPDataSegment _data) throws JHV_KduException {
+        cacheMutex.lock();
         try {
             Add_to_databin(_data.classID.getKakaduClassID(), _data.codestreamID, _data.binID, _data.data, _data.offset, _data.length, _data.isFinal, true, false);
 
@@ -214,6 +286,8 @@ public class JHV_Kdu_cache extends Kdu_cache {
 
         } catch (KduException ex) {
             throw new JHV_KduException("Internal Kakadu error: " + ex.getMessage());
+        } finally {
+            cacheMutex.unlock();
         }
 
         if (status != null) {
@@ -228,101 +302,95 @@ public class JHV_Kdu_cache extends Kdu_cache {
                     status.setImageStatus(compositionLayer, CacheStatus.HEADER);
             }
         }
+
+        if (_data.classID.getKakaduClassID() == KakaduConstants.KDU_META_DATABIN || (_data.classID.getKakaduClassID() == KakaduConstants.KDU_MAIN_HEADER_DATABIN && _data.isFinal)) {
+            synchronized (metaDataSignal) {
+                metaDataVersion++;
+                metaDataSignal.notifyAll();
+            }
+
+            DateTimeCache dates = dateTimeCache;
+            if (dates != null)
+                dates.metaDataChanged();
+        }
     }
 
     /**
-     * Attempts to write the present cache object to a file as specified by the
-     * cacheFile variable. The file format is firmly based on the one used in
-     * the kdu_show application.
+     * Returns a number which changes whenever meta data arrives. It has to be
+     * read before looking at the meta data, to pass it to
+     * {@link #waitForMetaData(int)} afterwards.
      * 
-     * @return true, if the file could be written successfully, false otherwise
+     * @return current meta data version
      */
-    private boolean writeCacheToFile() {
-        File fTarget = cacheFile;
-        FileOutputStream fStream = null;
-        try {
-            if (fTarget.exists() && !fTarget.delete())
-                return false;
-            if (!fTarget.createNewFile())
-                return false;
-            fStream = new FileOutputStream(fTarget);
-            fStream.write("hvc/1.0\n".getBytes());
-        } catch (Exception ex) {
-            System.err.println("Error in writeToCacheMethod in file (" + fTarget + ") and FileOutputStream creation.");
-            ex.printStackTrace();
-            return false;
+    public int getMetaDataVersion() {
+        synchronized (metaDataSignal) {
+            return metaDataVersion;
         }
+    }
 
-        int bufferIndex, i;
-        byte[] headerBuffer = new byte[24];
-        byte[] byteBuffer = new byte[512];
-
-        long codestreamID, databinID;
-        boolean isComplete[] = new boolean[1];
-        int databinClassID, length, idBits, codestreamBits;
+    /**
+     * Waits until meta data arrives after the given version was read.
+     * 
+     * @param version
+     *            Version returned by {@link #getMetaDataVersion()}
+     * @return true, if new meta data arrived, false if the cache was closed
+     * @throws InterruptedException
+     */
+    public boolean waitForMetaData(int version) throws InterruptedException {
+        synchronized (metaDataSignal) {
+            while (metaDataVersion == version && !closed)
+                metaDataSignal.wait();
+            return metaDataVersion != version;
+        }
+    }
 
+    /**
+     * Adds the data of the given codestream from the cache file, unless it was
+     * added before. Only the headers and the metadata are read from the cache
+     * file when this object is created, the data of a codestream has to be
+     * loaded before the codestream is decompressed.
+     * 
+     * @param _codestreamID
+     * @throws JHV_KduException
+     */
+    public void loadCodestream(int _codestreamID) throws JHV_KduException {
         try {
-            codestreamID = this.Get_next_codestream(-1);
-            while (codestreamID >= 0) {
-                for (databinClassID = 0; databinClassID < 5; databinClassID++) {
-                    databinID = this.Get_next_lru_databin(databinClassID, codestreamID, -1, false);
-                    while (databinID >= 0) {
-                        length = this.Get_databin_length(databinClassID, codestreamID, databinID, isComplete);
-                        if ((length > 0) || isComplete[0]) {
-                            if (length > byteBuffer.length) {
-                                byteBuffer = new byte[byteBuffer.length + length + 256];
-                            }
-                            length = this.Get_databin_prefix(databinClassID, codestreamID, databinID, byteBuffer, length);
-                            bufferIndex = 0;
-                            if (isComplete[0])
-                                headerBuffer[bufferIndex++] = (byte) (2 * databinClassID + 1);
-                            else
-                                headerBuffer[bufferIndex++] = (byte) (2 * databinClassID);
-                            for (codestreamBits = 0; (codestreamID >> codestreamBits) > 0; codestreamBits += 8)
-                                ;
-                            for (idBits = 0; (databinID >> idBits) > 0; idBits += 8)
-                                ;
-                            headerBuffer[bufferIndex++] = (byte) ((codestreamBits << 1) | (idBits >> 3));
-                            for (i = codestreamBits - 8; i >= 0; i -= 8)
-                                headerBuffer[bufferIndex++] = (byte) (codestreamID >> i);
-                            for (i = idBits - 8; i >= 0; i -= 8)
-                                headerBuffer[bufferIndex++] = (byte) (databinID >> i);
-                            for (i = 24; i >= 0; i -= 8)
-                                headerBuffer[bufferIndex++] = (byte) (length >> i);
-                            fStream.write(headerBuffer, 0, bufferIndex);
-                            fStream.write(byteBuffer, 0, length);
-                        }
-                        databinID = this.Get_next_lru_databin(databinClassID, codestreamID, databinID, false);
-                    }
-                }
-                codestreamID = this.Get_next_codestream(codestreamID);
-            }
-        } catch (Exception ex) {
-            System.err.println("Error in writeToCacheMethod in actual writing algorithm.");
-            ex.printStackTrace();
-            return false;
-        } finally {
-            byteBuffer = null;
-            headerBuffer = null;
+            cacheFileIO.loadCodestream(this, _codestreamID);
+        } catch (KduException ex) {
+            throw new JHV_KduException("Internal Kakadu error: " + ex.getMessage());
+        } catch (IOException ex) {
+            throw new JHV_KduException("Error reading cache file (" + cacheFile + "): " + ex.getMessage());
         }
+    }
 
+    /**
+     * Attempts to write the present cache object to the file as specified by
+     * the cacheFile variable. Only databins which changed since the file was
+     * read are appended to it, see {@link KakaduCacheFile}. A cache file of
+     * the old format is removed once its contents have been written in the
+     * new format.
+     * 
+     * @return true, if the file could be written successfully, false otherwise
+     */
+    private boolean writeCacheToFile() {
         try {
-            fStream.flush();
-            fStream.close();
+            cacheFileIO.write(this);
         } catch (Exception ex) {
-            System.err.println("Error in writeToCacheMethod in file and FileOutputStream closure.");
+            System.err.println("Error in writeToCacheMethod in file (" + cacheFile + ").");
             ex.printStackTrace();
             return false;
-        } finally {
-            fStream = null;
         }
 
+        if (legacyCacheFile.exists() && !legacyCacheFile.delete())
+            System.err.println("Could not delete old cache file (" + legacyCacheFile + ").");
         return true;
     }
 
     /**
      * Attempts to read data from a file as specified by the cacheFile variable.
-     * All data inserted into the cache object from a file is marked. This mark
+     * Most of its data is only added on demand, see
+     * {@link #loadCodestream(int)}. If there is none, a cache file of the old
+     * format is read instead. All data inserted into the cache object from a file is marked. This mark
      * signifies that the servers cache model has not yet been informed about
      * the data.
      * 
@@ -330,23 +398,38 @@ public class JHV_Kdu_cache extends Kdu_cache {
      *         otherwise
      */
     private boolean readCacheFromFile() {
-        File fTarget = cacheFile;
-        // FileInputStream fStream = null;
+        if (KakaduCacheFile.isCacheFile(cacheFile)) {
+            try {
+                cacheFileIO.read(this);
+                return true;
+            } catch (Exception ex) {
+                System.err.println("Error in readFromCacheMethod in file (" + cacheFile + ").");
+                ex.printStackTrace();
+                return false;
+            }
+        }
+
+        if (legacyCacheFile.exists())
+            return readLegacyCacheFile();
+        return false;
+    }
+
+    /**
+     * Reads a cache file of the old, sequential hvc/1.0 format. The file
+     * format is firmly based on the one used in the kdu_show application.
+     * 
+     * @return true, if the cache file could be read successfully, false
+     *         otherwise
+     */
+    private boolean readLegacyCacheFile() {
+        File fTarget = legacyCacheFile;
         BufferedInputStream fStream = null;
         try {
             try {
-                if (!fTarget.exists())
-                    return false;
-
-                // fStream = new FileInputStream(fTarget);
                 fStream = new BufferedInputStream(new FileInputStream(fTarget), 1000000);
 
-                char c;
-                String str = "";
-                while ((c = (char) fStream.read()) != '\n') {
-                    str += c;
-                }
-                if (!str.equalsIgnoreCase("hvc/1.0")) {
+                byte[] magic = new byte[LEGACY_MAGIC.length];
+                if (fStream.read(magic) != magic.length || !Arrays.equals(magic, LEGACY_MAGIC)) {
                     throw new JHV_KduException("Wrong cache file format.");
                 }
             } catch (Exception ex) {
@@ -356,30 +439,28 @@ public class JHV_Kdu_cache extends Kdu_cache {
             }
 
             int bufferIndex, i;
+            byte[] headerBuffer = new byte[2 + 15 + 15 + 4];
             byte[] byteBuffer = new byte[512];
-            int[] intBuffer;
 
             long databinID, codestreamID;
             int idBytes, codestreamBytes, length, databinClassID;
 
             try {
 
-                while (fStream.read(byteBuffer, 0, 2) == 2) {
+                while (fStream.read(headerBuffer, 0, 2) == 2) {
 
-                    intBuffer = uByteToInt(byteBuffer);
-                    codestreamBytes = (intBuffer[1] >> 4) & 0x0F;
-                    idBytes = intBuffer[1] & 0x0F;
-                    if (fStream.read(byteBuffer, 2, (codestreamBytes + idBytes + 4)) != (codestreamBytes + idBytes + 4))
+                    codestreamBytes = (headerBuffer[1] >> 4) & 0x0F;
+                    idBytes = headerBuffer[1] & 0x0F;
+                    if (fStream.read(headerBuffer, 2, (codestreamBytes + idBytes + 4)) != (codestreamBytes + idBytes + 4))
                         break;
-                    intBuffer = uByteToInt(byteBuffer);
                     for (codestreamID = 0, bufferIndex = 2, i = 0; i < codestreamBytes; i++)
-                        codestreamID = (codestreamID << 8) + intBuffer[bufferIndex++];
+                        codestreamID = (codestreamID << 8) + (headerBuffer[bufferIndex++] & 0xFF);
                     for (databinID = 0, i = 0; i < idBytes; i++)
-                        databinID = (databinID << 8) + intBuffer[bufferIndex++];
+                        databinID = (databinID << 8) + (headerBuffer[bufferIndex++] & 0xFF);
                     for (length = 0, i = 0; i < 4; i++)
-                        length = (length << 8) + intBuffer[bufferIndex++];
-                    boolean isComplete = ((intBuffer[0] & 1) == 1) ? true : false;
-                    databinClassID = (intBuffer[0] >> 1);
+                        length = (length << 8) + (headerBuffer[bufferIndex++] & 0xFF);
+                    boolean isComplete = (headerBuffer[0] & 1) == 1;
+                    databinClassID = (headerBuffer[0] & 0xFF) >> 1;
                     if (length > byteBuffer.length) {
                         byteBuffer = new byte[byteBuffer.length + length + 256];
                     }
@@ -392,9 +473,6 @@ public class JHV_Kdu_cache extends Kdu_cache {
                 System.err.println("Error in readFromCacheMethod in actual read algorithm.");
                 ex.printStackTrace();
                 return false;
-            } finally {
-                byteBuffer = null;
-                intBuffer = null;
             }
             return true;
         } finally {
@@ -414,7 +492,8 @@ public class JHV_Kdu_cache extends Kdu_cache {
      * This method walks through all the databins and finds all the marked
      * databins and unmarks them. It builds a String out of these databins that
      * can be sent to the JPIP server using the 'model' header to update the
-     * servers cache model.
+     * servers cache model. The data of the cache file which was not loaded yet
+     * is included as well.
      * 
      * @return String that can be sent to the JPIP server
      * @throws JHV_KduException
@@ -451,6 +530,7 @@ public class JHV_Kdu_cache extends Kdu_cache {
                 }
                 codestreamID = this.Get_next_codestream(codestreamID);
             }
+            cacheFileIO.appendPendingToCacheModel(cacheModel, force);
             if (cacheModel.length() > 0)
                 cacheModel.deleteCharAt(cacheModel.length() - 1);
 
@@ -460,62 +540,25 @@ public class JHV_Kdu_cache extends Kdu_cache {
         return cacheModel.toString();
     }
 
-    /**
-     * Private helped method to convert a unsigned byte array to an integer
-     * array. This method is only necessary since Java does not have unsigned
-     * types.
-     * 
-     * @param _x
-     *            unsigned byte array to convert
-     * @return converted integer array
-     */
-    private static int[] uByteToInt(byte[] _x) {
-        int[] ret = new int[_x.length];
-        for (int i = 0; i < _x.length; i++)
-            ret[i] = (_x[i] & 0xFF);
-        return ret;
-    }
-
     /**
      * @return All the cache files stored in the cache directory.
      */
     public static File[] getCacheFiles() {
         return Directories.CACHE.getFile().listFiles(new FilenameFilter() {
             public boolean accept(File dir, String name) {
-                return (name.toUpperCase().endsWith(".HVC"));
+                String upperName = name.toUpperCase();
+                return upperName.endsWith(".HVC") || upperName.endsWith(".HVC2");
             }
         });
     }
 
     /**
-     * @return The associated cache file.
+     * @return The associated cache file, or the one of the old format as long
+     *         as only that exists.
      */
     public File getCacheFile() {
+        if (!cacheFile.exists() && legacyCacheFile.exists())
+            return legacyCacheFile;
         return cacheFile;
     }
-
-    /**
-     * This method allows to remove the cache files according to the size limit
-     * specified in the properties of the application. The files are removed
-     * following a LRU order.
-     */
-    public static void updateCacheDirectory() {
-        File[] list = getCacheFiles();
-
-        Arrays.sort(list, new Comparator<File>() {
-            public int compare(File o1, File o2) {
-                return (int) (o1.lastModified() - o2.lastModified());
-            }
-        });
-
-        long total = 0;
-
-        for (File f : list)
-            total += f.length();
-
-        for (int i = 0; (total > CACHE_SIZE_LIMIT) && (i < list.length); i++) {
-            total -= list[i].length();
-            list[i].delete();
-        }
-    }
 };
@@ -0,0 +1,292 @@
+package org.helioviewer.jhv.viewmodel.view.jp2view.kakadu;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.helioviewer.jhv.Directories;
+import org.helioviewer.jhv.Settings;
+
+/**
+ * Keeps the JPIP cache directory within its size limit.
+ *
+ * <p>
+ * The manager keeps an index of all cache files with their sizes and the time
+ * they were last used. The index is stored in the cache directory, so the
+ * access times survive restarts and the directory has to be listed only to
+ * pick up changes made behind the back of the manager.
+ *
+ * <p>
+ * Cache files are acquired while a {@link JHV_Kdu_cache} uses them and
+ * released when it is closed. Files in use are never removed. Whenever a file
+ * is released, the least recently used files are removed on a background
+ * thread until the directory fits into the limit given by the setting
+ * <code>jpip.cache.size</code> in megabytes.
+ */
+public class KakaduCacheDirectory {
+
+    private static final String INDEX_FILE_NAME = "cache.idx";
+
+    /** Limit used, if the setting is missing or invalid */
+    private static final long DEFAULT_SIZE_LIMIT = 1024 * 1024 * 100;
+
+    /** A file of the cache directory */
+    private static class Entry {
+        private final File file;
+        private long size;
+        private long lastAccess;
+        private int useCount = 0;
+
+        private Entry(File _file, long _size, long _lastAccess) {
+            file = _file;
+            size = _size;
+            lastAccess = _lastAccess;
+        }
+    }
+
+    /** Cache files by name, guarded by the class lock */
+    private static HashMap<String, Entry> entries = null;
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+    private static final AtomicLong evictedBytes = new AtomicLong();
+
+    private static final ExecutorService evictionThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable _r) {
+            Thread t = Executors.defaultThreadFactory().newThread(_r);
+            t.setName("KakaduCacheDirectory");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private KakaduCacheDirectory() {
+    }
+
+    /**
+     * Marks the given cache file as being in use and counts the access as hit
+     * or miss, depending on whether the file exists.
+     *
+     * @param file
+     *            Cache file about to be used
+     */
+    public static synchronized void acquire(File file) {
+        Entry entry = getEntries().get(file.getName());
+        if (entry == null || !file.exists()) {
+            misses.incrementAndGet();
+            entry = new Entry(file, 0, System.currentTimeMillis());
+            entries.put(file.getName(), entry);
+        } else {
+            hits.incrementAndGet();
+            entry.lastAccess = System.currentTimeMillis();
+        }
+        entry.useCount++;
+    }
+
+    /**
+     * Marks the given cache file as not being used anymore, updates its size
+     * and starts the eviction in the background. Files not acquired before,
+     * e.g. newly written ones, are added to the index.
+     *
+     * @param file
+     *            Cache file no longer used
+     */
+    public static synchronized void release(File file) {
+        Entry entry = getEntries().get(file.getName());
+        if (entry == null) {
+            entry = new Entry(file, 0, 0);
+            entries.put(file.getName(), entry);
+        }
+        entry.useCount = Math.max(0, entry.useCount - 1);
+        entry.size = file.length();
+        entry.lastAccess = System.currentTimeMillis();
+        scheduleEviction();
+    }
+
+    /** Starts the eviction in the background */
+    public static void scheduleEviction() {
+        evictionThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                evict();
+                saveIndex();
+            }
+        });
+    }
+
+    /**
+     * Returns the size limit of the cache directory in bytes.
+     *
+     * @return Limit as given by the settings
+     */
+    public static long getSizeLimit() {
+        String value = Settings.getProperty("jpip.cache.size");
+        try {
+            double megabytes = Double.parseDouble(value);
+            if (megabytes > 0)
+                return (long) (megabytes * 1024 * 1024);
+            System.err.println(">> KakaduCacheDirectory > Invalid jpip.cache.size: " + value);
+        } catch (NumberFormatException e) {
+            System.err.println(">> KakaduCacheDirectory > Invalid jpip.cache.size: " + value);
+        } catch (NullPointerException e) {
+            // setting missing, use the default
+        }
+        return DEFAULT_SIZE_LIMIT;
+    }
+
+    /** Returns the total size of all known cache files in bytes */
+    public static synchronized long getTotalSize() {
+        long total = 0;
+        for (Entry entry : getEntries().values())
+            total += entry.size;
+        return total;
+    }
+
+    /** Returns the number of cache files, which existed when acquired */
+    public static long getHits() {
+        return hits.get();
+    }
+
+    /** Returns the number of cache files, which did not exist when acquired */
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    /** Returns the number of cache files removed to fit into the limit */
+    public static long getEvictions() {
+        return evictions.get();
+    }
+
+    /** Returns the number of bytes removed to fit into the limit */
+    public static long getEvictedBytes() {
+        return evictedBytes.get();
+    }
+
+    /**
+     * Removes the least recently used files, which are not in use, until the
+     * directory fits into the size limit.
+     */
+    private static synchronized void evict() {
+        long limit = getSizeLimit();
+        long total = getTotalSize();
+        if (total <= limit)
+            return;
+
+        List<Entry> candidates = new ArrayList<Entry>(entries.size());
+        for (Entry entry : entries.values())
+            if (entry.useCount == 0)
+                candidates.add(entry);
+
+        Collections.sort(candidates, new Comparator<Entry>() {
+            public int compare(Entry o1, Entry o2) {
+                return Long.compare(o1.lastAccess, o2.lastAccess);
+            }
+        });
+
+        for (int i = 0; total > limit && i < candidates.size(); i++) {
+            Entry entry = candidates.get(i);
+            if (!entry.file.exists()) {
+                entries.remove(entry.file.getName());
+                total -= entry.size;
+                continue;
+            }
+            if (!entry.file.delete())
+                continue;
+
+            entries.remove(entry.file.getName());
+            total -= entry.size;
+            evictions.incrementAndGet();
+            evictedBytes.addAndGet(entry.size);
+        }
+    }
+
+    /**
+     * Returns the entries, reading the index and synchronizing it with the
+     * cache directory on first use. The class lock has to be held.
+     */
+    private static HashMap<String, Entry> getEntries() {
+        if (entries != null)
+            return entries;
+
+        entries = new HashMap<String, Entry>();
+        File directory = Directories.CACHE.getFile();
+
+        HashMap<String, long[]> indexed = new HashMap<String, long[]>();
+        BufferedReader reader = null;
+        try {
+            File indexFile = new File(directory, INDEX_FILE_NAME);
+            if (indexFile.exists()) {
+                reader = new BufferedReader(new FileReader(indexFile));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    if (fields.length == 3)
+                        indexed.put(fields[0], new long[] { Long.parseLong(fields[1]), Long.parseLong(fields[2]) });
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        File[] files = JHV_Kdu_cache.getCacheFiles();
+        if (files != null) {
+            for (File file : files) {
+                long[] sizeAndAccess = indexed.get(file.getName());
+                if (sizeAndAccess != null)
+                    entries.put(file.getName(), new Entry(file, sizeAndAccess[0], sizeAndAccess[1]));
+                else
+                    entries.put(file.getName(), new Entry(file, file.length(), file.lastModified()));
+            }
+        }
+        return entries;
+    }
+
+    /** Writes the names, sizes and access times of all cache files to the index */
+    private static void saveIndex() {
+        StringBuilder index = new StringBuilder();
+        synchronized (KakaduCacheDirectory.class) {
+            for (Entry entry : getEntries().values())
+                if (entry.file.exists())
+                    index.append(entry.file.getName()).append('\t').append(entry.size).append('\t').append(entry.lastAccess).append('\n');
+        }
+
+        File indexFile = new File(Directories.CACHE.getFile(), INDEX_FILE_NAME);
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(indexFile));
+            writer.write(index.toString());
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
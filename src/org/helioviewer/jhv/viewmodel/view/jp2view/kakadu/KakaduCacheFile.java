@@ -0,0 +1,527 @@
+package org.helioviewer.jhv.viewmodel.view.jp2view.kakadu;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import kdu_jni.KduException;
+import kdu_jni.Kdu_cache;
+
+import org.helioviewer.jhv.viewmodel.view.jp2view.io.jpip.JPIPDatabinClass;
+
+/**
+ * Indexed cache file holding the databins of a {@link Kdu_cache}.
+ *
+ * <p>
+ * The file consists of a fixed size header, the data of the databins and an
+ * index locating the data of every databin:
+ *
+ * <pre>
+ * header:  "hvc/2.0\n", index offset (long), number of index entries (int), 0 (int)
+ * data:    databin contents, one after another
+ * index:   per databin: 2 * class + complete (byte), codestream ID (long),
+ *          databin ID (long), data offset (long), data length (int)
+ * </pre>
+ *
+ * <p>
+ * When the file is read, only the index, the main headers and the metadata are
+ * read. The remaining databins of a codestream are added to the cache when the
+ * codestream is needed, see {@link #loadCodestream(Kdu_cache, long)}. The file
+ * is accessed through memory-mapped windows of limited size, so files larger
+ * than 2 GB can be read.
+ *
+ * <p>
+ * When the file is written, only databins which are new or have changed since
+ * they were read are appended, followed by a new index. The header is updated
+ * last, so an interrupted write leaves the previous state intact. If more than
+ * half of the file is taken by outdated data, the file is rewritten into a
+ * temporary file, which then replaces it.
+ */
+class KakaduCacheFile {
+
+    private static final byte[] MAGIC = "hvc/2.0\n".getBytes();
+    private static final int HEADER_SIZE = MAGIC.length + 16;
+    private static final int INDEX_ENTRY_SIZE = 29;
+
+    /** Maximum size of a memory-mapped window of the file */
+    private static final long MAX_WINDOW_SIZE = 1 << 26;
+
+    /** Number of Kakadu databin classes stored in the file */
+    private static final int NUM_DATABIN_CLASSES = 5;
+
+    /** Identifies a databin */
+    private static class Key {
+        private final int databinClass;
+        private final long codestreamID;
+        private final long databinID;
+
+        private Key(int _databinClass, long _codestreamID, long _databinID) {
+            databinClass = _databinClass;
+            codestreamID = _codestreamID;
+            databinID = _databinID;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return databinClass == k.databinClass && codestreamID == k.codestreamID && databinID == k.databinID;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (databinID ^ (databinID >>> 32)) * 31 + (int) codestreamID * 7 + databinClass;
+        }
+    }
+
+    /** Location of the data of a databin */
+    private static class Entry {
+        private final long offset;
+        private final int length;
+        private final boolean complete;
+
+        private Entry(long _offset, int _length, boolean _complete) {
+            offset = _offset;
+            length = _length;
+            complete = _complete;
+        }
+    }
+
+    /** Databins of a codestream, which are in the file but not in the cache */
+    private static class PendingCodestream {
+        private final ArrayList<Key> keys = new ArrayList<Key>();
+
+        /** Whether the server was told about the databins already */
+        private boolean reported = false;
+    }
+
+    private final File file;
+
+    /** Index of the databins in the file, as read or last written */
+    private final HashMap<Key, Entry> index = new HashMap<Key, Entry>();
+
+    /** Databins not yet added to the cache, by codestream ID */
+    private final TreeMap<Long, PendingCodestream> pending = new TreeMap<Long, PendingCodestream>();
+
+    /** File the pending databins are read from, open while there are any */
+    private RandomAccessFile source = null;
+
+    /** Currently mapped window of the source */
+    private MappedByteBuffer window = null;
+    private long windowStart = 0;
+    private long windowEnd = 0;
+
+    /** End of the used part of the file */
+    private long fileEnd = 0;
+
+    /** Sum of the lengths of all indexed databins */
+    private long liveBytes = 0;
+
+    /** Buffer the databins are copied through into the cache, grown as needed */
+    private byte[] buffer = new byte[4096];
+
+    /**
+     * Constructor.
+     *
+     * @param _file
+     *            Cache file to read or write
+     */
+    KakaduCacheFile(File _file) {
+        file = _file;
+    }
+
+    /**
+     * Returns whether the given file starts like a file of this format.
+     *
+     * @param _file
+     *            File to check
+     * @return true, if the file exists and has the right magic
+     */
+    static boolean isCacheFile(File _file) {
+        if (!_file.isFile() || _file.length() < HEADER_SIZE)
+            return false;
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(_file, "r");
+            byte[] magic = new byte[MAGIC.length];
+            raf.readFully(magic);
+            return Arrays.equals(magic, MAGIC);
+        } catch (IOException e) {
+            return false;
+        } finally {
+            close(raf);
+        }
+    }
+
+    /**
+     * Reads the index of the file and adds the main headers and the metadata
+     * to the given cache. All other databins are added by
+     * {@link #loadCodestream(Kdu_cache, long)}. The databins are marked, since
+     * the server does not know about them.
+     *
+     * @param cache
+     *            Cache to fill
+     * @throws IOException
+     * @throws KduException
+     */
+    synchronized void read(Kdu_cache cache) throws IOException, KduException {
+        close();
+        index.clear();
+        pending.clear();
+        liveBytes = 0;
+        fileEnd = 0;
+
+        source = new RandomAccessFile(file, "r");
+        try {
+            long size = source.length();
+            if (size < HEADER_SIZE)
+                throw new IOException("Cache file too short: " + file);
+
+            ByteBuffer header = map(0, HEADER_SIZE);
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC))
+                throw new IOException("Wrong cache file format: " + file);
+
+            long indexOffset = header.getLong();
+            int indexCount = header.getInt();
+            if (indexOffset < HEADER_SIZE || indexCount < 0 || indexOffset + (long) indexCount * INDEX_ENTRY_SIZE > size)
+                throw new IOException("Corrupt cache file index: " + file);
+
+            for (int i = 0; i < indexCount; i++) {
+                ByteBuffer entries = map(indexOffset + (long) i * INDEX_ENTRY_SIZE, INDEX_ENTRY_SIZE);
+                int classAndComplete = entries.get() & 0xFF;
+                long codestreamID = entries.getLong();
+                long databinID = entries.getLong();
+                long offset = entries.getLong();
+                int length = entries.getInt();
+
+                int databinClass = classAndComplete >> 1;
+                boolean complete = (classAndComplete & 1) == 1;
+                if (databinClass >= NUM_DATABIN_CLASSES || length < 0 || offset < HEADER_SIZE || offset + length > indexOffset)
+                    throw new IOException("Corrupt cache file index entry " + i + ": " + file);
+
+                Key key = new Key(databinClass, codestreamID, databinID);
+                index.put(key, new Entry(offset, length, complete));
+                liveBytes += length;
+
+                if (databinClass == KakaduConstants.KDU_MAIN_HEADER_DATABIN || databinClass == KakaduConstants.KDU_META_DATABIN) {
+                    addToCache(cache, key, true);
+                } else {
+                    PendingCodestream codestream = pending.get(codestreamID);
+                    if (codestream == null) {
+                        codestream = new PendingCodestream();
+                        pending.put(codestreamID, codestream);
+                    }
+                    codestream.keys.add(key);
+                }
+            }
+
+            fileEnd = indexOffset + (long) indexCount * INDEX_ENTRY_SIZE;
+        } catch (IOException | KduException e) {
+            index.clear();
+            pending.clear();
+            liveBytes = 0;
+            throw e;
+        } finally {
+            if (pending.isEmpty())
+                close();
+        }
+    }
+
+    /**
+     * Adds the databins of the given codestream, which are in the file but not
+     * yet in the cache, to the cache. They are only marked if the server has
+     * not been told about them by
+     * {@link #appendPendingToCacheModel(StringBuilder, boolean)}.
+     *
+     * @param cache
+     *            Cache to fill
+     * @param codestreamID
+     *            Codestream to load
+     * @throws IOException
+     * @throws KduException
+     */
+    synchronized void loadCodestream(Kdu_cache cache, long codestreamID) throws IOException, KduException {
+        PendingCodestream codestream = pending.remove(codestreamID);
+        if (codestream == null)
+            return;
+
+        try {
+            for (Key key : codestream.keys)
+                addToCache(cache, key, !codestream.reported);
+        } finally {
+            if (pending.isEmpty())
+                close();
+        }
+    }
+
+    /**
+     * Appends the databins, which are in the file but not yet in the cache, to
+     * a cache model update string. Unless forced, every databin is only
+     * appended once.
+     *
+     * @param cacheModel
+     *            Cache model update string, each item followed by a comma
+     * @param force
+     *            Whether to append databins which were appended before
+     */
+    synchronized void appendPendingToCacheModel(StringBuilder cacheModel, boolean force) {
+        for (Map.Entry<Long, PendingCodestream> e : pending.entrySet()) {
+            PendingCodestream codestream = e.getValue();
+            if (codestream.reported && !force)
+                continue;
+            codestream.reported = true;
+
+            cacheModel.append("[" + e.getKey() + "],");
+            for (Key key : codestream.keys) {
+                Entry entry = index.get(key);
+                for (JPIPDatabinClass databinClass : JPIPDatabinClass.values()) {
+                    if (databinClass.getKakaduClassID() == key.databinClass) {
+                        cacheModel.append(databinClass.getJpipString() + key.databinID);
+                        if (!entry.complete)
+                            cacheModel.append(":" + entry.length);
+                        cacheModel.append(",");
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Releases the file the pending databins are read from. Databins which
+     * were not loaded until then stay in the index, but cannot be loaded
+     * anymore.
+     */
+    synchronized void close() {
+        window = null;
+        windowStart = windowEnd = 0;
+        close(source);
+        source = null;
+    }
+
+    /** Adds the data of an indexed databin to the cache */
+    private void addToCache(Kdu_cache cache, Key key, boolean mark) throws IOException, KduException {
+        Entry entry = index.get(key);
+        if (entry.length > buffer.length)
+            buffer = new byte[entry.length + (entry.length >> 1)];
+        map(entry.offset, entry.length).get(buffer, 0, entry.length);
+        cache.Add_to_databin(key.databinClass, key.codestreamID, key.databinID, buffer, 0, entry.length, entry.complete, false, mark);
+    }
+
+    /**
+     * Returns a buffer on the given region of the source. The region is taken
+     * from the current window if it lies within, otherwise a new window
+     * starting at the region is mapped.
+     */
+    private ByteBuffer map(long offset, int length) throws IOException {
+        if (window == null || offset < windowStart || offset + length > windowEnd) {
+            long size = Math.min(source.length() - offset, Math.max(MAX_WINDOW_SIZE, length));
+            if (size < length)
+                throw new IOException("Cache file truncated: " + file);
+
+            window = source.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, size);
+            windowStart = offset;
+            windowEnd = offset + size;
+        }
+
+        ByteBuffer region = window.duplicate();
+        region.position((int) (offset - windowStart));
+        region.limit(region.position() + length);
+        return region;
+    }
+
+    /**
+     * Writes the databins of the given cache to the file. Only databins which
+     * are not yet in the file or have changed are written. Databins which were
+     * never loaded from the file stay in the index.
+     *
+     * @param cache
+     *            Cache to save
+     * @throws IOException
+     * @throws KduException
+     */
+    synchronized void write(Kdu_cache cache) throws IOException, KduException {
+        if (fileEnd == 0 || !file.isFile() || file.length() < fileEnd) {
+            close();
+            index.clear();
+            pending.clear();
+            liveBytes = 0;
+            fileEnd = 0;
+        } else {
+            loadAugmentedCodestreams(cache);
+
+            if (fileEnd - HEADER_SIZE > 2 * liveBytes + (long) index.size() * INDEX_ENTRY_SIZE) {
+                // mostly outdated data -> rewrite from scratch
+                if (rewrite(cache))
+                    return;
+            }
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (fileEnd == 0) {
+                raf.setLength(0);
+                raf.write(MAGIC);
+                raf.writeLong(0);
+                raf.writeInt(0);
+                raf.writeInt(0);
+                fileEnd = HEADER_SIZE;
+            }
+
+            // new data goes behind the current index, which stays valid until
+            // the header is updated
+            raf.seek(fileEnd);
+            long position = appendChangedDatabins(cache, raf, fileEnd);
+
+            long indexOffset = position;
+            raf.seek(indexOffset);
+
+            ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+            byte[] entries = new byte[INDEX_ENTRY_SIZE * 1024];
+            int filled = 0;
+            for (Map.Entry<Key, Entry> e : index.entrySet()) {
+                entry.clear();
+                entry.put((byte) (2 * e.getKey().databinClass + (e.getValue().complete ? 1 : 0)));
+                entry.putLong(e.getKey().codestreamID);
+                entry.putLong(e.getKey().databinID);
+                entry.putLong(e.getValue().offset);
+                entry.putInt(e.getValue().length);
+
+                System.arraycopy(entry.array(), 0, entries, filled, INDEX_ENTRY_SIZE);
+                filled += INDEX_ENTRY_SIZE;
+                if (filled == entries.length) {
+                    raf.write(entries, 0, filled);
+                    filled = 0;
+                }
+            }
+            raf.write(entries, 0, filled);
+
+            fileEnd = indexOffset + (long) index.size() * INDEX_ENTRY_SIZE;
+            raf.getFD().sync();
+
+            raf.seek(MAGIC.length);
+            raf.writeLong(indexOffset);
+            raf.writeInt(index.size());
+        } finally {
+            close(raf);
+        }
+    }
+
+    /**
+     * Writes all databins to a new file, which then replaces this file.
+     *
+     * @return true, if the file could be replaced
+     */
+    private boolean rewrite(Kdu_cache cache) throws IOException, KduException {
+        for (Long codestreamID : new ArrayList<Long>(pending.keySet()))
+            loadCodestream(cache, codestreamID);
+        close();
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+        KakaduCacheFile fresh = new KakaduCacheFile(tmpFile);
+        fresh.write(cache);
+
+        // the old file stays in place until it is replaced; this fails if a
+        // mapping of it has not been released yet on some platforms, then
+        // the data is appended to the old file instead
+        try {
+            try {
+                Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            tmpFile.delete();
+            return false;
+        }
+
+        index.clear();
+        index.putAll(fresh.index);
+        liveBytes = fresh.liveBytes;
+        fileEnd = fresh.fileEnd;
+        return true;
+    }
+
+    /**
+     * Loads the pending codestreams for which the cache received other
+     * databins meanwhile. The server only sends what extends the databins in
+     * the file, which could not be written without the data of the file.
+     */
+    private void loadAugmentedCodestreams(Kdu_cache cache) throws IOException, KduException {
+        for (Long codestreamID : new ArrayList<Long>(pending.keySet())) {
+            for (int databinClass = 0; databinClass < NUM_DATABIN_CLASSES; databinClass++) {
+                if (databinClass != KakaduConstants.KDU_MAIN_HEADER_DATABIN && databinClass != KakaduConstants.KDU_META_DATABIN
+                        && cache.Get_next_lru_databin(databinClass, codestreamID, -1, false) >= 0) {
+                    loadCodestream(cache, codestreamID);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends the contents of all databins, which are not yet in the index or
+     * have changed, and updates the index.
+     *
+     * @return position behind the last byte written
+     */
+    private long appendChangedDatabins(Kdu_cache cache, RandomAccessFile raf, long position) throws IOException, KduException {
+        boolean isComplete[] = new boolean[1];
+        byte[] data = new byte[4096];
+
+        long codestreamID = cache.Get_next_codestream(-1);
+        while (codestreamID >= 0) {
+            for (int databinClass = 0; databinClass < NUM_DATABIN_CLASSES; databinClass++) {
+                long databinID = cache.Get_next_lru_databin(databinClass, codestreamID, -1, false);
+                while (databinID >= 0) {
+                    int length = cache.Get_databin_length(databinClass, codestreamID, databinID, isComplete);
+                    if (length > 0 || isComplete[0]) {
+                        Key key = new Key(databinClass, codestreamID, databinID);
+                        Entry entry = index.get(key);
+
+                        if (entry == null || entry.length != length || entry.complete != isComplete[0]) {
+                            if (length > data.length)
+                                data = new byte[length + (length >> 1)];
+                            length = cache.Get_databin_prefix(databinClass, codestreamID, databinID, data, length);
+
+                            raf.write(data, 0, length);
+                            index.put(key, new Entry(position, length, isComplete[0]));
+
+                            if (entry != null)
+                                liveBytes -= entry.length;
+                            liveBytes += length;
+                            position += length;
+                        }
+                    }
+                    databinID = cache.Get_next_lru_databin(databinClass, codestreamID, databinID, false);
+                }
+            }
+            codestreamID = cache.Get_next_codestream(codestreamID);
+        }
+        return position;
+    }
+
+    private static void close(RandomAccessFile raf) {
+        if (raf == null)
+            return;
+        try {
+            raf.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -111,18 +111,18 @@ public class KakaduUtils {
         try {
             do {
                 _socket.send(req);
-                if ((res = _socket.receive()) == null)
+                if ((res = _socket.receive(_cache)) == null)
                     break;
-            } while (!_cache.addJPIPResponseData(res));
+            } while (!res.isResponseComplete());
 
             if (!_cache.isDataBinCompleted(JPIPDatabinClass.MAIN_HEADER_DATABIN, 0, 0)) {
                 req.setQuery(new JPIPQuery("stream", "0"));
 
                 do {
                     _socket.send(req);
-                    if ((res = _socket.receive()) == null)
+                    if ((res = _socket.receive(_cache)) == null)
                         break;
-                } while (!_cache.addJPIPResponseData(res) && !_cache.isDataBinCompleted(JPIPDatabinClass.MAIN_HEADER_DATABIN, 0, 0));
+                } while (!res.isResponseComplete() && !_cache.isDataBinCompleted(JPIPDatabinClass.MAIN_HEADER_DATABIN, 0, 0));
             }
         } catch (EOFException e) {
             e.printStackTrace();
@@ -373,8 +373,6 @@ public class KakaduUtils {
         req.setQuery(cacheUpdateQuery.toString());
 
         _socket.send(req);
-        JPIPResponse res = _socket.receive();
-
-        _cache.addJPIPResponseData(res);
+        _socket.receive(_cache);
     }
 };
@@ -474,8 +474,7 @@ public class CompenentView extends GL3DComponentView implements
 
 	@Override
 	public void dispose(GLAutoDrawable arg0) {
-		// TODO Auto-generated method stub
-
+		GLTextureHelper.disposeContext(arg0.getContext());
 	}
 
 	@Override
@@ -129,6 +129,12 @@ public class GL3DComponentView extends AbstractBasicView implements
 	private static int DEFAULT_TILE_HEIGHT = 2048;
 	private int tileWidth = 512;
 	private int tileHeight = 512;
+	private int renderBufferWidth = -1;
+	private int renderBufferHeight = -1;
+
+	// offscreen resources of the export, kept across frames
+	private GLDrawable offscreenDrawable;
+	private TextRenderer textRenderer;
 
 	private Viewport defaultViewport;
 
@@ -431,6 +437,9 @@ public class GL3DComponentView extends AbstractBasicView implements
 		gl.glFramebufferRenderbuffer(GL2.GL_FRAMEBUFFER,
 				GL2.GL_COLOR_ATTACHMENT0, GL2.GL_RENDERBUFFER,
 				renderBufferColor[0]);
+
+		renderBufferWidth = tileWidth;
+		renderBufferHeight = tileHeight;
 	}
 
 	public void saveScreenshot(String imageFormat, File outputFile, int width,
@@ -450,6 +459,30 @@ public class GL3DComponentView extends AbstractBasicView implements
 	}
 
 	public BufferedImage getBufferedImage(int width, int height, ArrayList<String> descriptions) {
+		BufferedImage screenshot = new BufferedImage(width,
+				height, BufferedImage.TYPE_3BYTE_BGR);
+		renderToImage(screenshot, descriptions);
+		ImageUtil.flipImageVertically(screenshot);
+		return screenshot;
+	}
+
+	/**
+	 * Renders the current scene into the given image.
+	 * 
+	 * The offscreen resources are kept for the next call, so rendering a
+	 * sequence of images of the same size only allocates them once. The rows
+	 * are stored bottom-up, as read from OpenGL, so the image has to be
+	 * flipped vertically afterwards, which can be done on another thread.
+	 * 
+	 * @param screenshot
+	 *            image of type TYPE_3BYTE_BGR to render into
+	 * @param descriptions
+	 *            lines of text to draw onto the image, or null
+	 */
+	public void renderToImage(BufferedImage screenshot, ArrayList<String> descriptions) {
+		int width = screenshot.getWidth();
+		int height = screenshot.getHeight();
+
 		this.canvas.repaint();
 		this.exportMovie = true;
 		defaultViewport = this.getAdapter(ViewportView.class).getViewport();
@@ -469,18 +502,24 @@ public class GL3DComponentView extends AbstractBasicView implements
 		int countYTiles = height % tileHeight == 0 ? (int) yTiles
 				: (int) yTiles + 1;
 
-		GLDrawableFactory factory = GLDrawableFactory.getFactory(GLProfile
-				.getDefault());
-		GLProfile profile = GLProfile.get(GLProfile.GL2);
-		profile = GLProfile.getDefault();
-		GLCapabilities capabilities = new GLCapabilities(profile);
-		capabilities.setDoubleBuffered(false);
-		capabilities.setOnscreen(false);
-		capabilities.setHardwareAccelerated(true);
-		capabilities.setFBO(true);
-
-		GLDrawable offscreenDrawable = factory.createOffscreenDrawable(null,
-				capabilities, null, tileWidth, tileHeight);
+		if (offscreenDrawable == null
+				|| offscreenDrawable.getSurfaceWidth() != tileWidth
+				|| offscreenDrawable.getSurfaceHeight() != tileHeight) {
+			if (offscreenDrawable != null)
+				offscreenDrawable.setRealized(false);
+
+			GLDrawableFactory factory = GLDrawableFactory.getFactory(GLProfile
+					.getDefault());
+			GLProfile profile = GLProfile.getDefault();
+			GLCapabilities capabilities = new GLCapabilities(profile);
+			capabilities.setDoubleBuffered(false);
+			capabilities.setOnscreen(false);
+			capabilities.setHardwareAccelerated(true);
+			capabilities.setFBO(true);
+
+			offscreenDrawable = factory.createOffscreenDrawable(null,
+					capabilities, null, tileWidth, tileHeight);
+		}
 
 		offscreenDrawable.setRealized(true);
 		GLContext offscreenContext = canvas.getContext();
@@ -489,12 +528,11 @@ public class GL3DComponentView extends AbstractBasicView implements
 		GL2 offscreenGL = offscreenContext.getGL().getGL2();
 
 		offscreenGL.glBindFramebuffer(GL2.GL_FRAMEBUFFER, frameBufferObject[0]);
-		generateNewRenderBuffers(offscreenGL);
+		if (renderBufferWidth != tileWidth || renderBufferHeight != tileHeight)
+			generateNewRenderBuffers(offscreenGL);
 
-		BufferedImage screenshot = new BufferedImage(width,
-				height, BufferedImage.TYPE_3BYTE_BGR);
-		ByteBuffer.wrap(((DataBufferByte) screenshot.getRaster()
-				.getDataBuffer()).getData());
+		ByteBuffer pixels = ByteBuffer.wrap(((DataBufferByte) screenshot
+				.getRaster().getDataBuffer()).getData());
 
 		offscreenGL.glViewport(0, 0, tileWidth, tileHeight);
 
@@ -507,8 +545,10 @@ public class GL3DComponentView extends AbstractBasicView implements
 		offscreenGL.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
 
 		double tileLeft, tileRight, tileBottom, tileTop;
-		TextRenderer textRenderer = new TextRenderer(new Font("SansSerif", Font.BOLD, 24));
-		textRenderer.setColor(1f, 1f, 1f, 1f);
+		if (descriptions != null && textRenderer == null) {
+			textRenderer = new TextRenderer(new Font("SansSerif", Font.BOLD, 24));
+			textRenderer.setColor(1f, 1f, 1f, 1f);
+		}
 		for (int x = 0; x < countXTiles; x++) {
 			for (int y = 0; y < countYTiles; y++) {
 				tileLeft = left + (right - left) / xTiles * x;
@@ -555,10 +595,9 @@ public class GL3DComponentView extends AbstractBasicView implements
 				int cutOffY = height >= (y + 1) * tileHeight ? tileHeight
 						: viewport.getHeight() - y * tileHeight;
 
+				pixels.rewind();
 				offscreenGL.glReadPixels(0, 0, cutOffX, cutOffY, GL2.GL_BGR,
-						GL2.GL_UNSIGNED_BYTE, ByteBuffer
-								.wrap(((DataBufferByte) screenshot.getRaster()
-										.getDataBuffer()).getData()));
+						GL2.GL_UNSIGNED_BYTE, pixels);
 
 				GL3DState.get().checkGLErrors(
 						"GL3DComponentView.afterTileRenderer");
@@ -566,7 +605,6 @@ public class GL3DComponentView extends AbstractBasicView implements
 			}
 		}
 
-		ImageUtil.flipImageVertically(screenshot);
 		exportMovie = false;
 		Viewport newViewport = StaticViewport.createAdaptedViewport(
 				canvas.getSurfaceWidth(), canvas.getSurfaceHeight());
@@ -574,7 +612,6 @@ public class GL3DComponentView extends AbstractBasicView implements
 				new ChangeEvent());
 		this.canvas.repaint();
 		viewport = null;
-		return screenshot;
 	}
 
 	public void updateMainImagePanelSize(Vector2i size) {
@@ -650,7 +687,7 @@ public class GL3DComponentView extends AbstractBasicView implements
 		gl.glDeleteFramebuffers(1, frameBufferObject, 0);
 		gl.glDeleteRenderbuffers(1, renderBufferDepth, 0);
 		gl.glDeleteRenderbuffers(1, renderBufferColor, 0);
-
+		GLTextureHelper.disposeContext(drawable.getContext());
 	}
 
 	public Dimension getCanavasSize() {
@@ -10,15 +10,20 @@ import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
 import java.nio.ShortBuffer;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.media.opengl.GL;
 import javax.media.opengl.GL2;
+import javax.media.opengl.GLContext;
 import javax.media.opengl.glu.GLU;
 
 import org.helioviewer.jhv.Settings;
 import org.helioviewer.jhv.base.math.Vector2d;
 import org.helioviewer.jhv.viewmodel.imagedata.ColorMask;
 import org.helioviewer.jhv.viewmodel.imagedata.ImageData;
+import org.helioviewer.jhv.viewmodel.imagedata.PixelBufferPool;
 import org.helioviewer.jhv.viewmodel.imageformat.ARGB32ImageFormat;
 import org.helioviewer.jhv.viewmodel.imageformat.ImageFormat;
 import org.helioviewer.jhv.viewmodel.imageformat.RGB24ImageFormat;
@@ -49,6 +54,24 @@ public class GLTextureHelper {
 
 	private static HashMap<Integer, Vector2d> allTextures = new HashMap<Integer, Vector2d>();
 
+	/** Shared buffer of zeros used to clear texture storage */
+	private static ByteBuffer zeroBuffer;
+
+	/** Maximum number of textures kept by {@link #getImageTexture} */
+	private static final int MAX_IMAGE_TEXTURES = 8;
+
+	/**
+	 * Texture bookkeeping per GL context, since texture ids are only unique
+	 * within a context
+	 */
+	private static HashMap<GLContext, ContextTextures> contextTextures = new HashMap<GLContext, ContextTextures>();
+
+	/** Cached value of the setting default.display.highDPI */
+	private static volatile boolean highDPI;
+
+	/** Incremented whenever the settings used for textures change */
+	private static volatile int settingsVersion = 1;
+
 	private final static int[] FORMAT_MAP = { GL2.GL_LUMINANCE4,
 			GL2.GL_LUMINANCE4, GL2.GL_LUMINANCE4, GL2.GL_LUMINANCE4,
 			GL2.GL_LUMINANCE8, GL2.GL_LUMINANCE8, GL2.GL_LUMINANCE8,
@@ -149,6 +172,9 @@ public class GLTextureHelper {
 		}
 
 		allTextures.remove(texID);
+		ContextTextures textures = getContextTextures(gl);
+		textures.textureStorage.remove(texID);
+		textures.imageTextures.values().remove(texID);
 
 		int[] tmp = new int[1];
 		tmp[0] = texID;
@@ -171,6 +197,7 @@ public class GLTextureHelper {
 			int[] tmp = new int[1];
 			tmp[0] = texID;
 			gl.glDeleteTextures(1, tmp, 0);
+			getContextTextures(gl).textureStorage.remove(texID);
 			texID = 0;
 		}
 
@@ -303,7 +330,11 @@ public class GLTextureHelper {
 			return;
 		if (source.getWidth() <= maxTextureSize
 				&& source.getHeight() <= maxTextureSize) {
-			moveImageDataToGLTexture(gl, source, texID);
+			int target = texID;
+			if (!isUploadedAs1DTexture(source.getHeight())) {
+				target = getImageTexture(gl, source);
+			}
+			moveImageDataToGLTexture(gl, source, target);
 			this.checkGLErrors(gl, this + ".afterMoveImageDataToGLTexture");
 			renderTextureToScreen(gl, region);
 			this.checkGLErrors(gl, this + ".afterRenderTextureToScreen");
@@ -386,43 +417,49 @@ public class GLTextureHelper {
 		if (source == null)
 			return;
 
-		int bitsPerPixel = source.getImageTransport().getNumBitsPerPixel();
-		Buffer buffer;
+		// the pixels may come from the pool, keep them until they are uploaded
+		PixelBufferPool.retain(source);
+		try {
+			int bitsPerPixel = source.getImageTransport().getNumBitsPerPixel();
+			Buffer buffer;
 
-		switch (bitsPerPixel) {
-		case 8:
-			buffer = ByteBuffer.wrap(((Byte8ImageTransport) source
-					.getImageTransport()).getByte8PixelData());
-			break;
-		case 16:
-			buffer = ShortBuffer.wrap(((Short16ImageTransport) source
-					.getImageTransport()).getShort16PixelData());
-			break;
-		case 32:
-			buffer = IntBuffer.wrap(((Int32ImageTransport) source
-					.getImageTransport()).getInt32PixelData());
-			break;
-		default:
-			buffer = null;
-		}
-
-		gl.glPixelStorei(GL2.GL_UNPACK_SKIP_PIXELS, 0);
-		gl.glPixelStorei(GL2.GL_UNPACK_SKIP_ROWS, 0);
-		gl.glPixelStorei(GL2.GL_UNPACK_ROW_LENGTH, 0);
-		gl.glPixelStorei(GL2.GL_UNPACK_ALIGNMENT, bitsPerPixel >> 3);
-
-		ImageFormat imageFormat = source.getImageFormat();
+			switch (bitsPerPixel) {
+			case 8:
+				buffer = ByteBuffer.wrap(((Byte8ImageTransport) source
+						.getImageTransport()).getByte8PixelData());
+				break;
+			case 16:
+				buffer = ShortBuffer.wrap(((Short16ImageTransport) source
+						.getImageTransport()).getShort16PixelData());
+				break;
+			case 32:
+				buffer = IntBuffer.wrap(((Int32ImageTransport) source
+						.getImageTransport()).getInt32PixelData());
+				break;
+			default:
+				buffer = null;
+			}
 
-		if (source.getHeight() == 1) {
-			genTexture1D(gl, target,
-					mapImageFormatToInternalGLFormat(imageFormat), width,
-					mapImageFormatToInputGLFormat(imageFormat),
-					mapBitsPerPixelToGLType(bitsPerPixel), buffer);
-		} else {
-			genTexture2D(gl, target,
-					mapImageFormatToInternalGLFormat(imageFormat), width,
-					height, mapImageFormatToInputGLFormat(imageFormat),
-					mapBitsPerPixelToGLType(bitsPerPixel), buffer);
+			gl.glPixelStorei(GL2.GL_UNPACK_SKIP_PIXELS, 0);
+			gl.glPixelStorei(GL2.GL_UNPACK_SKIP_ROWS, 0);
+			gl.glPixelStorei(GL2.GL_UNPACK_ROW_LENGTH, 0);
+			gl.glPixelStorei(GL2.GL_UNPACK_ALIGNMENT, bitsPerPixel >> 3);
+
+			ImageFormat imageFormat = source.getImageFormat();
+
+			if (isUploadedAs1DTexture(source.getHeight())) {
+				genTexture1D(gl, target,
+						mapImageFormatToInternalGLFormat(imageFormat), width,
+						mapImageFormatToInputGLFormat(imageFormat),
+						mapBitsPerPixelToGLType(bitsPerPixel), buffer);
+			} else {
+				genTexture2D(gl, target,
+						mapImageFormatToInternalGLFormat(imageFormat), width,
+						height, mapImageFormatToInputGLFormat(imageFormat),
+						mapBitsPerPixelToGLType(bitsPerPixel), buffer);
+			}
+		} finally {
+			PixelBufferPool.release(source);
 		}
 	}
 
@@ -469,7 +506,7 @@ public class GLTextureHelper {
 		gl.glPixelStorei(GL2.GL_UNPACK_ROW_LENGTH, 0);
 		gl.glPixelStorei(GL2.GL_UNPACK_ALIGNMENT, 1);
 
-		if (source.getHeight() == 1) {
+		if (isUploadedAs1DTexture(source.getHeight())) {
 			genTexture1D(gl, target, GL.GL_RGBA, source.getWidth(),
 							GL.GL_BGRA, GL2.GL_UNSIGNED_BYTE, buffer);
 		} else {
@@ -618,32 +655,52 @@ public class GLTextureHelper {
 				throw new RuntimeException("" + inputType);
 			}
 
-			ByteBuffer b = ByteBuffer.allocate(width2 * height2 * bpp);
-			b.limit(width2 * height2 * bpp);
-
-			gl.glTexImage2D(GL.GL_TEXTURE_2D, 0, internalFormat, width2,
-					height2, 0, inputFormat, inputType, b);
+			HashMap<Integer, TextureStorage> textureStorage = getContextTextures(gl).textureStorage;
+			TextureStorage storage = textureStorage.get(texID);
+			if (storage == null
+					|| !storage.matches(internalFormat, width2, height2)) {
+				gl.glTexImage2D(GL.GL_TEXTURE_2D, 0, internalFormat, width2,
+						height2, 0, inputFormat, inputType,
+						getZeroBuffer(width2 * height2 * bpp));
+
+				gl.glTexParameteri(GL2.GL_TEXTURE_2D,
+						GL2.GL_TEXTURE_MIN_FILTER, GL2.GL_LINEAR);
+				if (highDPI) {
+					gl.glTexParameteri(GL2.GL_TEXTURE_2D,
+							GL2.GL_TEXTURE_MAG_FILTER, GL2.GL_NEAREST);
+				} else {
+					gl.glTexParameteri(GL2.GL_TEXTURE_2D,
+							GL2.GL_TEXTURE_MAG_FILTER, GL2.GL_LINEAR);
+				}
+				gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_WRAP_S,
+						GL2.GL_CLAMP_TO_BORDER);
+				gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_WRAP_T,
+						GL2.GL_CLAMP_TO_BORDER);
+
+				storage = new TextureStorage(internalFormat, width2, height2);
+				textureStorage.put(texID, storage);
+			} else if (width < storage.width || height < storage.height) {
+				// The texels right of and above the image are read by the
+				// linear filter, so clear what is left of a bigger upload
+				if (width < width2) {
+					int rows = Math.min(storage.height, height2);
+					gl.glTexSubImage2D(GL.GL_TEXTURE_2D, 0, width, 0, 1, rows,
+							inputFormat, inputType, getZeroBuffer(rows * bpp));
+				}
+				if (height < height2) {
+					int cols = Math.min(storage.width, width2);
+					gl.glTexSubImage2D(GL.GL_TEXTURE_2D, 0, 0, height, cols, 1,
+							inputFormat, inputType, getZeroBuffer(cols * bpp));
+				}
+			}
 
 			// Log.debug("GLTextureHelper.genTexture2D: Width="+width+", Height="+height+" Width2="+width2+", Height2="+height2);
 			if (buffer != null) {
 				gl.glTexSubImage2D(GL.GL_TEXTURE_2D, 0, 0, 0, width, height,
 						inputFormat, inputType, buffer);
 			}
-
-			gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_MIN_FILTER,
-					GL2.GL_LINEAR);
-			if (Boolean.parseBoolean(Settings.getProperty("default.display.highDPI"))){
-				gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_MAG_FILTER,
-						GL2.GL_NEAREST);				
-			}
-			else {
-				gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_MAG_FILTER,
-						GL2.GL_LINEAR);
-			}
-			gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_WRAP_S,
-					GL2.GL_CLAMP_TO_BORDER);
-			gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_WRAP_T,
-					GL2.GL_CLAMP_TO_BORDER);
+			storage.width = width;
+			storage.height = height;
 
 			float scaleX = (float) width / width2;
 			float scaleY = (float) height / height2;
@@ -660,6 +717,7 @@ public class GLTextureHelper {
 		    
 			int width = nextPowerOfTwo(rect.width);
 			int height = nextPowerOfTwo(rect.height);
+			getContextTextures(gl).textureStorage.remove(texture);
 			gl.glCopyTexImage2D(GL.GL_TEXTURE_2D, 0, GL.GL_RGBA, rect.x,
 					rect.y, width, height, 0);
 			gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_MIN_FILTER,
@@ -672,6 +730,175 @@ public class GLTextureHelper {
 					GL2.GL_CLAMP_TO_BORDER);
 		}
 
+		/**
+		 * Returns a direct buffer filled with zeros, which is used to clear
+		 * the texture storage.
+		 * 
+		 * <p>
+		 * The buffer is never written to, so it can be shared by all uploads.
+		 * It only grows, when a bigger texture is needed.
+		 * 
+		 * @param size
+		 *            Minimum number of bytes
+		 * @return Direct buffer containing exactly size zeros
+		 */
+		public static synchronized ByteBuffer getZeroBuffer(int size) {
+			if (zeroBuffer == null || zeroBuffer.capacity() < size) {
+				zeroBuffer = ByteBuffer.allocateDirect(size);
+			}
+			ByteBuffer b = zeroBuffer.duplicate();
+			b.limit(size);
+			return b;
+		}
+
+		/**
+		 * Returns the texture used to render the given image data.
+		 * 
+		 * <p>
+		 * Images of different size or format get different textures, so the
+		 * layers of a multi layer view do not reallocate the storage of a
+		 * shared texture on every frame.
+		 * 
+		 * @param gl
+		 *            Valid reference to the current gl object
+		 * @param source
+		 *            Image data to render
+		 * @return texture id with matching storage, if it has been used before
+		 */
+		private synchronized int getImageTexture(GL2 gl, ImageData source) {
+			int internalFormat = mapImageFormatToInternalGLFormat(source
+					.getImageFormat());
+			long key = ((long) internalFormat << 32)
+					| ((long) nextPowerOfTwo(source.getWidth()) << 16)
+					| nextPowerOfTwo(source.getHeight());
+
+			LinkedHashMap<Long, Integer> imageTextures = getContextTextures(gl).imageTextures;
+			Integer texture = imageTextures.get(key);
+			if (texture == null) {
+				texture = genTextureID(gl);
+				imageTextures.put(key, texture);
+
+				Iterator<Map.Entry<Long, Integer>> it = imageTextures
+						.entrySet().iterator();
+				while (imageTextures.size() > MAX_IMAGE_TEXTURES) {
+					int oldTexture = it.next().getValue();
+					it.remove();
+					delTextureID(gl, oldTexture);
+				}
+			}
+			return texture;
+		}
+
+		/**
+		 * Rereads the settings used for new textures.
+		 * 
+		 * <p>
+		 * Has to be called after the settings have been changed. The storage
+		 * of all textures is reallocated on their next upload, so the new
+		 * settings apply to them as well.
+		 */
+		public static void reloadSettings() {
+			settingsVersion++;
+		}
+
+		/**
+		 * Returns whether image data of the given height is uploaded into a
+		 * 1D texture. Those are the lookup tables of the shaders, which share
+		 * the default texture of the helper instead of getting one per size.
+		 * 
+		 * @param height
+		 *            Height of the image
+		 * @return true, if the image consists of a single row
+		 */
+		private static boolean isUploadedAs1DTexture(int height) {
+			return height == 1;
+		}
+
+		/**
+		 * Returns the texture bookkeeping of the context of the given gl
+		 * object. The storage of all textures is forgotten, if the settings
+		 * have changed since the last call for this context.
+		 */
+		private static synchronized ContextTextures getContextTextures(GL gl) {
+			GLContext context = gl.getContext();
+			ContextTextures textures = contextTextures.get(context);
+			if (textures == null) {
+				textures = new ContextTextures();
+				contextTextures.put(context, textures);
+			}
+
+			int version = settingsVersion;
+			if (textures.settingsVersion != version) {
+				highDPI = Boolean.parseBoolean(Settings
+						.getProperty("default.display.highDPI"));
+				textures.textureStorage.clear();
+				textures.settingsVersion = version;
+			}
+			return textures;
+		}
+
+		/**
+		 * Forgets the textures of the given GL context.
+		 * 
+		 * <p>
+		 * Has to be called when the context is disposed, since its texture
+		 * ids may be reused by the next context.
+		 * 
+		 * @param context
+		 *            Context being disposed
+		 */
+		public static synchronized void disposeContext(GLContext context) {
+			contextTextures.remove(context);
+		}
+
+		/**
+		 * Returns whether the storage of the given texture of the current
+		 * context was allocated with the given format and size.
+		 * 
+		 * @param gl
+		 *            Valid reference to the current gl object
+		 * @param texID
+		 *            Texture to check
+		 * @return true, if the storage does not have to be reallocated
+		 */
+		public static boolean hasTextureStorage(GL gl, int texID,
+				int internalFormat, int width2, int height2) {
+			TextureStorage storage = getContextTextures(gl).textureStorage
+					.get(texID);
+			return storage != null
+					&& storage.matches(internalFormat, width2, height2);
+		}
+
+		/**
+		 * Remembers the storage allocated for the given texture of the current
+		 * context, for textures not allocated by this helper.
+		 * 
+		 * @param gl
+		 *            Valid reference to the current gl object
+		 * @param texID
+		 *            Texture whose storage was allocated
+		 */
+		public static void setTextureStorage(GL gl, int texID,
+				int internalFormat, int width2, int height2) {
+			getContextTextures(gl).textureStorage.put(texID,
+					new TextureStorage(internalFormat, width2, height2));
+		}
+
+		/**
+		 * Forgets the given texture of the current context. Has to be called
+		 * when a texture not generated by this helper is deleted.
+		 * 
+		 * @param gl
+		 *            Valid reference to the current gl object
+		 * @param texID
+		 *            Texture being deleted
+		 */
+		public static void forgetTexture(GL gl, int texID) {
+			ContextTextures textures = getContextTextures(gl);
+			textures.textureStorage.remove(texID);
+			textures.imageTextures.values().remove(texID);
+		}
+
 		/**
 		 * Internal function for calculation the next power of two.
 		 * 
@@ -690,6 +917,44 @@ public class GLTextureHelper {
 			return output;
 		}
 
+	/** Textures of one GL context */
+	private static class ContextTextures {
+		/** Storage currently allocated for each 2D texture */
+		private final HashMap<Integer, TextureStorage> textureStorage = new HashMap<Integer, TextureStorage>();
+
+		/**
+		 * Textures used to render image data, one per storage size and
+		 * format, in least recently used order
+		 */
+		private final LinkedHashMap<Long, Integer> imageTextures = new LinkedHashMap<Long, Integer>(16, 0.75f, true);
+
+		/** Settings version the storage was allocated with */
+		private int settingsVersion;
+	}
+
+	/**
+	 * Size and format of the storage allocated for a texture, and size of the
+	 * image last uploaded into it.
+	 */
+	private static class TextureStorage {
+		private final int internalFormat;
+		private final int width2;
+		private final int height2;
+		private int width;
+		private int height;
+
+		private TextureStorage(int _internalFormat, int _width2, int _height2) {
+			internalFormat = _internalFormat;
+			width2 = _width2;
+			height2 = _height2;
+		}
+
+		private boolean matches(int _internalFormat, int _width2, int _height2) {
+			return internalFormat == _internalFormat && width2 == _width2
+					&& height2 == _height2;
+		}
+	}
+
 	/**
 	 * GLTextureCoordinate implementation for the standard texture coordinate.
 	 * 
@@ -1,22 +1,32 @@
 package org.helioviewer.jhv.viewmodel.view.opengl.shader;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 
 import javax.media.opengl.GL2;
 import javax.media.opengl.glu.GLU;
 
+import org.helioviewer.jhv.Directories;
 import org.helioviewer.jhv.base.FileUtils;
 import org.helioviewer.jhv.viewmodel.renderer.GLCommonRenderGraphics;
 
@@ -28,6 +38,16 @@ import org.helioviewer.jhv.viewmodel.renderer.GLCommonRenderGraphics;
  * including compiling them. Therefore, it uses the Cg stand-alone compiler.
  * 
  * <p>
+ * The compiled programs are kept in the subdirectory "shaders" of the cache
+ * directory, named by a hash of the profile and the source. Thus, a program
+ * only has to be compiled once, later sessions just read the file. The time of
+ * last use of a program is kept as the modification time of its source file.
+ * At startup, {@link #precompile()} removes the programs which have not been
+ * used for a long time or exceed the maximum number, and loads the recently
+ * used ones in the background, so they are in memory when the view chain asks
+ * for them.
+ * 
+ * <p>
  * For further information about how to build shaders, see
  * {@link GLShaderBuilder} as well as the Cg User Manual.
  * 
@@ -35,9 +55,36 @@ import org.helioviewer.jhv.viewmodel.renderer.GLCommonRenderGraphics;
  */
 public class GLShaderHelper {
     private static LinkedList<Integer> allShaders = new LinkedList<Integer>();
-    
-    private static File tmpAsm;
-    private static File tmpCg;
+
+    /** Changing this invalidates all programs cached on disk */
+    private static final String CACHE_VERSION = "1";
+
+    private static final String SOURCE_SUFFIX = ".cg";
+    private static final String PROGRAM_SUFFIX = ".asm";
+
+    /** Maximum number of programs kept in the cache directory */
+    private static final int MAX_CACHED_PROGRAMS = 64;
+
+    /** Programs not used for this time are removed from the cache directory */
+    private static final long MAX_UNUSED_TIME = 30L * 24 * 60 * 60 * 1000;
+
+    /** Only programs used within this time are loaded by the precompilation */
+    private static final long PRELOAD_TIME = 7L * 24 * 60 * 60 * 1000;
+
+    /** Programs whose time of last use has been updated in this session */
+    private static final Set<String> usedPrograms = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Compiled programs by the hash of profile and source. The tasks make sure
+     * that a program is only compiled once, even if it is requested by the
+     * precompilation and the GL thread at the same time.
+     */
+    private static final ConcurrentHashMap<String, FutureTask<String>> shaderCache = new ConcurrentHashMap<String, FutureTask<String>>();
+
+    private static Path tmpDir;
+
+    private static boolean precompileStarted = false;
+    private static int precompilerNumber = 0;
 
     /**
      * Initializes the helper.
@@ -49,20 +96,111 @@ public class GLShaderHelper {
      */
     public static void initHelper(GL2 gl) throws IOException {
         System.out.println(">> GLShaderHelper.initHelper(GL gl, String _tmpPath) > Initialize helper functions");
-        
-        Path tmpDir=Files.createTempDirectory("jhv-cg");
-        tmpDir.toFile().deleteOnExit();
-        
-        tmpCg = new File(tmpDir.toFile(), "tmp.cg");
-        tmpAsm = new File(tmpDir.toFile(), "tmp.asm");
-        if (tmpAsm.exists()) {
-            tmpAsm.delete();
+        System.out.println(">> GLShaderHelper.initHelper(GL gl, String _tmpPath) > temp path: " + getTempDirectory().toString());
+    }
+
+    /**
+     * Removes the programs which are no longer used from the cache directory,
+     * then loads the recently used programs in the background, and compiles
+     * those whose compiled file is missing.
+     * 
+     * The Cg compiler has to be registered before calling this function.
+     */
+    public static synchronized void precompile() {
+        if (precompileStarted)
+            return;
+        precompileStarted = true;
+
+        List<File> sources = cleanUpCache();
+        long now = System.currentTimeMillis();
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() / 2), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = Executors.defaultThreadFactory().newThread(r);
+                t.setName("Shader-Precompiler-" + (precompilerNumber++));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        for (final File sourceFile : sources) {
+            if (now - sourceFile.lastModified() > PRELOAD_TIME)
+                continue;
+
+            final String name = sourceFile.getName();
+            final int separator = name.lastIndexOf('-');
+            pool.execute(new Runnable() {
+                public void run() {
+                    try {
+                        String profile = name.substring(separator + 1, name.length() - SOURCE_SUFFIX.length());
+                        String source = new String(Files.readAllBytes(sourceFile.toPath()), StandardCharsets.UTF_8);
+                        getCompiledProgram(getHash(profile, source), profile, source);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+    }
+
+    /**
+     * Deletes the programs which have not been used for MAX_UNUSED_TIME or
+     * exceed MAX_CACHED_PROGRAMS, least recently used first, as well as
+     * compiled files without source and left over temporary files.
+     * 
+     * @return source files of the remaining programs
+     */
+    private static List<File> cleanUpCache() {
+        List<File> sources = new ArrayList<File>();
+        File[] files = getCacheDirectory().listFiles();
+        if (files == null)
+            return sources;
+
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(SOURCE_SUFFIX) && name.lastIndexOf('-') >= 0)
+                sources.add(file);
+            else if (name.endsWith(PROGRAM_SUFFIX)) {
+                File sourceFile = new File(file.getParentFile(), name.substring(0, name.length() - PROGRAM_SUFFIX.length()) + SOURCE_SUFFIX);
+                if (!sourceFile.exists())
+                    file.delete();
+            } else if (now - file.lastModified() > 24 * 60 * 60 * 1000)
+                file.delete();
         }
-        tmpAsm.deleteOnExit();
-        tmpCg.deleteOnExit();
 
+        // most recently used first
+        File[] sorted = sources.toArray(new File[sources.size()]);
+        final long[] lastUse = new long[sorted.length];
+        for (int i = 0; i < sorted.length; i++)
+            lastUse[i] = sorted[i].lastModified();
+        Integer[] order = new Integer[sorted.length];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Long.compare(lastUse[b], lastUse[a]);
+            }
+        });
 
-        System.out.println(">> GLShaderHelper.initHelper(GL gl, String _tmpPath) > temp path: " + tmpDir.toString());
+        sources.clear();
+        int removed = 0;
+        for (int i = 0; i < order.length; i++) {
+            File sourceFile = sorted[order[i]];
+            if (sources.size() < MAX_CACHED_PROGRAMS && now - lastUse[order[i]] <= MAX_UNUSED_TIME) {
+                sources.add(sourceFile);
+                continue;
+            }
+
+            String name = sourceFile.getName();
+            new File(sourceFile.getParentFile(), name.substring(0, name.length() - SOURCE_SUFFIX.length()) + PROGRAM_SUFFIX).delete();
+            sourceFile.delete();
+            removed++;
+        }
+        if (removed > 0)
+            System.out.println(">> GLShaderHelper > Removed " + removed + " unused programs from the cache");
+        return sources;
     }
 
     /**
@@ -145,53 +283,161 @@ public class GLShaderHelper {
      * @param target
      *            Shader id to put the compiled program
      */
-    public synchronized void compileProgram(GL2 gl, int programType, String source, int target) {
-        
-        String cacheKey=programType+"@"+source;
-        
-        String compiledProgram = shaderCache.get(cacheKey);
-        if(compiledProgram == null)
-        {
-            putContents(tmpCg, source);
-    
-            String profile = programType == GL2.GL_FRAGMENT_PROGRAM_ARB ? "arbfp1" : "arbvp1";
+    public void compileProgram(GL2 gl, int programType, String source, int target) {
+        String profile = programType == GL2.GL_FRAGMENT_PROGRAM_ARB ? "arbfp1" : "arbvp1";
+        String key = getHash(profile, source);
+        String compiledProgram = getCompiledProgram(key, profile, source);
+        if (compiledProgram == null)
+            return;
+
+        // the precompilation does not count as use, otherwise no program
+        // would ever become unused
+        if (usedPrograms.add(key))
+            new File(getCacheDirectory(), key + "-" + profile + SOURCE_SUFFIX).setLastModified(System.currentTimeMillis());
+
+        gl.glBindProgramARB(programType, target);
+        gl.glProgramStringARB(programType, GL2.GL_PROGRAM_FORMAT_ASCII_ARB, compiledProgram.length(), compiledProgram);
+    }
+
+    /**
+     * Returns the compiled program for the given source, from memory, from
+     * the cache directory or by compiling it
+     * 
+     * @param key
+     *            hash of profile and source, see {@link #getHash}
+     * @param profile
+     *            Cg profile, "arbfp1" or "arbvp1"
+     * @param source
+     *            Complete program code, given in Cg.
+     * @return compiled program, or null if the source could not be compiled
+     */
+    private static String getCompiledProgram(final String key, final String profile, final String source) {
+        FutureTask<String> task = shaderCache.get(key);
+        if (task == null) {
+            FutureTask<String> newTask = new FutureTask<String>(new Callable<String>() {
+                public String call() {
+                    return loadOrCompile(key, profile, source);
+                }
+            });
+            task = shaderCache.putIfAbsent(key, newTask);
+            if (task == null) {
+                task = newTask;
+                task.run();
+            }
+        }
+
+        String compiledProgram = null;
+        try {
+            compiledProgram = task.get();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+
+        // try again next time
+        if (compiledProgram == null)
+            shaderCache.remove(key, task);
+        return compiledProgram;
+    }
+
+    private static String loadOrCompile(String key, String profile, String source) {
+        File programFile = new File(getCacheDirectory(), key + "-" + profile + PROGRAM_SUFFIX);
+        if (programFile.exists()) {
+            try {
+                return new String(Files.readAllBytes(programFile.toPath()), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        String compiledProgram = compile(profile, source);
+        if (compiledProgram != null) {
+            // the source is needed to compile the program again in the
+            // precompilation, if the compiled file gets lost
+            putContents(new File(getCacheDirectory(), key + "-" + profile + SOURCE_SUFFIX), source);
+            putContents(programFile, compiledProgram);
+        }
+        return compiledProgram;
+    }
+
+    /**
+     * Compiles a program with the Cg stand-alone compiler
+     * 
+     * @return compiled program, or null if the source could not be compiled
+     */
+    private static String compile(String profile, String source) {
+        File tmpCg = null;
+        File tmpAsm = null;
+        try {
+            tmpCg = Files.createTempFile(getTempDirectory(), "shader", ".cg").toFile();
+            tmpAsm = new File(tmpCg.getPath().substring(0, tmpCg.getPath().length() - 3) + ".asm");
+            Files.write(tmpCg.toPath(), source.getBytes(StandardCharsets.UTF_8));
+
             List<String> args = new ArrayList<String>();
             args.add("-profile");
             args.add(profile);
             args.add("-o");
             args.add(tmpAsm.getPath());
             args.add(tmpCg.getPath());
-            
-            try {
-                Process p = FileUtils.invokeExecutable("cgc", args);
-                FileUtils.logProcessOutput(p, "cgc", true);
-                p.waitFor();
-            } catch (IOException e) {
-                e.printStackTrace();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-    
+
+            Process p = FileUtils.invokeExecutable("cgc", args);
+            FileUtils.logProcessOutput(p, "cgc", true);
+            p.waitFor();
+
             if (!tmpAsm.exists()) {
                 System.err.println("Error while compiling shader program:");
                 System.err.println(source);
-                return;
+                return null;
             }
-            
-            //Log.debug("GLShaderHelper.compile Source: "+source);
-            compiledProgram = getContents(tmpAsm);
-            // Log.debug("GLShaderHelper.compile Compiled Code: "+compiledProgram);
-            
-            shaderCache.put(cacheKey,compiledProgram);
+
+            return getContents(tmpAsm);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } finally {
+            if (tmpCg != null)
+                tmpCg.delete();
+            if (tmpAsm != null)
+                tmpAsm.delete();
         }
-        
-        gl.glBindProgramARB(programType, target);
-        
-        CharBuffer programBuffer = CharBuffer.wrap(compiledProgram);
-        gl.glProgramStringARB(programType, GL2.GL_PROGRAM_FORMAT_ASCII_ARB, compiledProgram.length(), programBuffer.toString());
+        return null;
+    }
+
+    /**
+     * Returns a hex string of the SHA-1 hash of the cache version, the profile
+     * and the source
+     */
+    private static String getHash(String profile, String source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update((CACHE_VERSION + "\n" + profile + "\n").getBytes(StandardCharsets.UTF_8));
+            byte[] hash = digest.digest(source.getBytes(StandardCharsets.UTF_8));
+
+            StringBuilder result = new StringBuilder(hash.length * 2);
+            for (byte b : hash)
+                result.append(String.format("%02x", b & 0xff));
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform supports SHA-1
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static File getCacheDirectory() {
+        File directory = new File(Directories.CACHE.getFile(), "shaders");
+        directory.mkdirs();
+        return directory;
+    }
+
+    private static synchronized Path getTempDirectory() throws IOException {
+        if (tmpDir == null) {
+            tmpDir = Files.createTempDirectory("jhv-cg");
+            tmpDir.toFile().deleteOnExit();
+        }
+        return tmpDir;
     }
-    
-    private static final HashMap<String,String> shaderCache=new HashMap<>();
 
     /**
      * Reads the contents of a file and puts them to a String.
@@ -200,44 +446,38 @@ public class GLShaderHelper {
      *            File to read
      * @return contents of the file
      */
-    private String getContents(File aFile) {
-
+    private static String getContents(File aFile) throws IOException {
         StringBuilder contents = new StringBuilder();
-
-        try {
-            BufferedReader input = new BufferedReader(new FileReader(aFile));
-            try {
-                String line = null; // not declared within while loop
-
-                while ((line = input.readLine()) != null) {
-                    contents.append(line);
-                    contents.append(System.getProperty("line.separator"));
-                }
-            } finally {
-                input.close();
-            }
-        } catch (IOException ex) {
-            ex.printStackTrace();
+        for (String line : Files.readAllLines(aFile.toPath(), StandardCharsets.UTF_8)) {
+            contents.append(line);
+            contents.append(System.getProperty("line.separator"));
         }
-
         return contents.toString();
     }
 
     /**
-     * Writes String to a File.
+     * Writes String to a File. The file is written under a temporary name and
+     * renamed afterwards, so other threads never see a partially written file.
      * 
      * @param aFile
      *            Output file
      * @param content
      *            Data to write
      */
-    private void putContents(File aFile, String content) {
+    private static void putContents(File aFile, String content) {
+        File tmpFile = new File(aFile.getPath() + ".tmp" + Thread.currentThread().getId());
         try {
-            BufferedWriter output = new BufferedWriter(new FileWriter(aFile));
-            output.write(content);
-            output.close();
+            try (FileOutputStream output = new FileOutputStream(tmpFile)) {
+                output.write(content.getBytes(StandardCharsets.UTF_8));
+            }
+            if (!tmpFile.renameTo(aFile)) {
+                aFile.delete();
+                tmpFile.renameTo(aFile);
+            }
         } catch (IOException ex) {
             ex.printStackTrace();
+        } finally {
+            tmpFile.delete();
         }
     }
 }
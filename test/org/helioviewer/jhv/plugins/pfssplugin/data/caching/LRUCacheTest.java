@@ -0,0 +1,101 @@
+package org.helioviewer.jhv.plugins.pfssplugin.data.caching;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+
+import org.helioviewer.jhv.plugins.pfssplugin.data.FileDescriptor;
+import org.junit.Test;
+
+/**
+ * Checks the entry and byte bounds of {@link LRUCache}.
+ */
+public class LRUCacheTest {
+
+	private static class Entry implements Cacheable {
+		private final FileDescriptor descriptor;
+		private long size;
+
+		Entry(int i, long size) {
+			descriptor = new FileDescriptor(new Date(i * 1000L), new Date(i * 1000L + 999), "file" + i);
+			this.size = size;
+		}
+
+		@Override
+		public FileDescriptor getDescriptor() {
+			return descriptor;
+		}
+
+		@Override
+		public long getSize() {
+			return size;
+		}
+	}
+
+	private static Entry[] fill(LRUCache<Entry> cache, int count, long size) {
+		Entry[] entries = new Entry[count];
+		for(int i = 0; i < count; i++) {
+			entries[i] = new Entry(i, size);
+			cache.put(entries[i].getDescriptor(), entries[i]);
+		}
+		return entries;
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsedBeyondMaxEntries() {
+		LRUCache<Entry> cache = new LRUCache<>(3);
+		Entry[] entries = fill(cache, 3, 0);
+
+		cache.get(entries[0].getDescriptor());
+		Entry extra = new Entry(3, 0);
+		cache.put(extra.getDescriptor(), extra);
+
+		assertTrue(cache.contains(entries[0].getDescriptor()));
+		assertFalse(cache.contains(entries[1].getDescriptor()));
+		assertTrue(cache.contains(entries[2].getDescriptor()));
+		assertSame(extra, cache.get(extra.getDescriptor()));
+	}
+
+	@Test
+	public void evictsWhenLoadedSizesExceedMaxBytes() {
+		LRUCache<Entry> cache = new LRUCache<>(10, 100);
+		Entry[] entries = fill(cache, 5, 0);
+
+		for(Entry e : entries)
+			e.size = 40;
+		cache.updateSizes();
+
+		for(int i = 0; i < 3; i++)
+			assertFalse(cache.contains(entries[i].getDescriptor()));
+		assertTrue(cache.contains(entries[3].getDescriptor()));
+		assertTrue(cache.contains(entries[4].getDescriptor()));
+	}
+
+	@Test
+	public void keepsMostRecentEntryEvenIfTooLarge() {
+		LRUCache<Entry> cache = new LRUCache<>(10, 100);
+		Entry[] entries = fill(cache, 2, 40);
+
+		Entry large = new Entry(2, 500);
+		cache.put(large.getDescriptor(), large);
+
+		assertFalse(cache.contains(entries[0].getDescriptor()));
+		assertFalse(cache.contains(entries[1].getDescriptor()));
+		assertSame(large, cache.get(large.getDescriptor()));
+	}
+
+	@Test
+	public void countsHitsAndMisses() {
+		LRUCache<Entry> cache = new LRUCache<>(2);
+		Entry[] entries = fill(cache, 1, 0);
+
+		assertEquals(0.0, cache.getHitRate(), 0.0);
+		cache.get(entries[0].getDescriptor());
+		assertNull(cache.get(new Entry(1, 0).getDescriptor()));
+		assertEquals(0.5, cache.getHitRate(), 1e-9);
+	}
+}
@@ -0,0 +1,96 @@
+package org.helioviewer.jhv.viewmodel.imagedata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks the allocation and reuse counters of {@link PixelBufferPool}.
+ *
+ * <p>
+ * The pool is static and shared with the rest of the program, so every test
+ * uses a length of its own and only looks at how the counters change.
+ */
+public class PixelBufferPoolTest {
+
+    @Test
+    public void releasedByteArrayIsReused() {
+        int length = 10007;
+        long allocations = PixelBufferPool.getAllocationCount();
+        long reuses = PixelBufferPool.getReuseCount();
+
+        byte[] first = PixelBufferPool.obtainByteArray(length);
+        assertEquals(length, first.length);
+        assertEquals(allocations + 1, PixelBufferPool.getAllocationCount());
+
+        PixelBufferPool.release(first);
+        byte[] second = PixelBufferPool.obtainByteArray(length);
+
+        assertSame(first, second);
+        assertEquals(allocations + 1, PixelBufferPool.getAllocationCount());
+        assertEquals(reuses + 1, PixelBufferPool.getReuseCount());
+        PixelBufferPool.release(second);
+    }
+
+    @Test
+    public void releasedIntArrayIsReused() {
+        int length = 10009;
+        long allocations = PixelBufferPool.getAllocationCount();
+        long allocatedBytes = PixelBufferPool.getAllocatedBytes();
+        long reuses = PixelBufferPool.getReuseCount();
+
+        int[] first = PixelBufferPool.obtainIntArray(length);
+        assertEquals(allocations + 1, PixelBufferPool.getAllocationCount());
+        assertEquals(allocatedBytes + 4L * length, PixelBufferPool.getAllocatedBytes());
+
+        PixelBufferPool.release(first);
+        assertSame(first, PixelBufferPool.obtainIntArray(length));
+        assertEquals(allocations + 1, PixelBufferPool.getAllocationCount());
+        assertEquals(reuses + 1, PixelBufferPool.getReuseCount());
+        PixelBufferPool.release(first);
+    }
+
+    @Test
+    public void retainedArrayReturnsAfterLastRelease() {
+        int length = 10037;
+        byte[] array = PixelBufferPool.obtainByteArray(length);
+        assertFalse(PixelBufferPool.isShared(array));
+
+        PixelBufferPool.retain(array);
+        assertTrue(PixelBufferPool.isShared(array));
+
+        PixelBufferPool.release(array);
+        assertFalse(PixelBufferPool.isShared(array));
+
+        long allocations = PixelBufferPool.getAllocationCount();
+        byte[] other = PixelBufferPool.obtainByteArray(length);
+        assertNotSame(array, other);
+        assertEquals(allocations + 1, PixelBufferPool.getAllocationCount());
+
+        PixelBufferPool.release(array);
+        long reuses = PixelBufferPool.getReuseCount();
+        assertSame(array, PixelBufferPool.obtainByteArray(length));
+        assertEquals(reuses + 1, PixelBufferPool.getReuseCount());
+
+        PixelBufferPool.release(array);
+        PixelBufferPool.release(other);
+    }
+
+    @Test
+    public void foreignArrayIsNotPooled() {
+        int length = 10039;
+        PixelBufferPool.release(new int[length]);
+
+        long allocations = PixelBufferPool.getAllocationCount();
+        long reuses = PixelBufferPool.getReuseCount();
+        int[] array = PixelBufferPool.obtainIntArray(length);
+
+        assertEquals(allocations + 1, PixelBufferPool.getAllocationCount());
+        assertEquals(reuses, PixelBufferPool.getReuseCount());
+        PixelBufferPool.release(array);
+    }
+}
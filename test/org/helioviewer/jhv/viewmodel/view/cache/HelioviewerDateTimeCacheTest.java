@@ -0,0 +1,40 @@
+package org.helioviewer.jhv.viewmodel.view.cache;
+
+import static org.junit.Assert.assertEquals;
+
+import org.helioviewer.jhv.viewmodel.view.jp2view.ImmutableDateTime;
+import org.junit.Test;
+
+/**
+ * Checks the date parsing of {@link HelioviewerDateTimeCache}, which accepts
+ * the same strings as the split based parsing it replaced.
+ */
+public class HelioviewerDateTimeCacheTest {
+
+    private static void assertParsed(String dateTime, int year, int month, int day, int hour, int minute, int second) {
+        assertEquals(new ImmutableDateTime(year, month, day, hour, minute, second), HelioviewerDateTimeCache.parseDateTime(dateTime));
+    }
+
+    @Test
+    public void parsesBothDateSeparators() {
+        assertParsed("2011-06-07T06:30:15", 2011, 5, 7, 6, 30, 15);
+        assertParsed("2011/06/07T06:30:15", 2011, 5, 7, 6, 30, 15);
+    }
+
+    @Test
+    public void ignoresFractionsOfSeconds() {
+        assertParsed("2011-06-07T06:30:15.345", 2011, 5, 7, 6, 30, 15);
+        assertParsed("2011-06-07T06:30:15.", 2011, 5, 7, 6, 30, 15);
+    }
+
+    @Test
+    public void invalidStringsGiveTheDefault() {
+        ImmutableDateTime zero = new ImmutableDateTime(0, 0, 0, 0, 0, 0);
+        assertEquals(zero, HelioviewerDateTimeCache.parseDateTime(null));
+        assertEquals(zero, HelioviewerDateTimeCache.parseDateTime(""));
+        assertEquals(zero, HelioviewerDateTimeCache.parseDateTime("2011-06-07 06:30:15"));
+        assertEquals(zero, HelioviewerDateTimeCache.parseDateTime("2011-06-07T06:30"));
+        assertEquals(zero, HelioviewerDateTimeCache.parseDateTime("2011-06-07T06:30:15Z"));
+        assertEquals(zero, HelioviewerDateTimeCache.parseDateTime("2011-0x-07T06:30:15"));
+    }
+}
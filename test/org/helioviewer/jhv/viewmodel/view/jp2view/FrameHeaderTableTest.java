@@ -0,0 +1,68 @@
+package org.helioviewer.jhv.viewmodel.view.jp2view;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.helioviewer.jhv.viewmodel.view.jp2view.kakadu.JHV_KduException;
+import org.junit.Test;
+
+/**
+ * Checks that {@link FrameHeaderTable} finds the same values as the DOM
+ * lookup it replaced.
+ */
+public class FrameHeaderTableTest {
+
+    private static final String XML = "<meta><fits><A>1</A><B><C>x</C></B></fits><fits><A>2</A><D>3</D></fits><other><A>9</A></other><fits2><E>e</E></fits2><fits><E>5</E></fits></meta>";
+
+    @Test
+    public void usesTheFirstBoxOfAName() throws JHV_KduException {
+        FrameHeaderTable table = new FrameHeaderTable(1);
+        table.parse(0, XML);
+
+        assertEquals("1", table.get(0, "fits", "A"));
+        // only in the second fits box
+        assertNull(table.get(0, "fits", "D"));
+        assertNull(table.get(0, "fits", "E"));
+    }
+
+    @Test
+    public void findsNestedKeywords() throws JHV_KduException {
+        FrameHeaderTable table = new FrameHeaderTable(1);
+        table.parse(0, XML);
+
+        assertEquals("x", table.get(0, "fits", "C"));
+        assertEquals("x", table.get(0, "B", "C"));
+        assertEquals("9", table.get(0, "other", "A"));
+        assertEquals("1", table.get(0, "meta", "A"));
+    }
+
+    @Test
+    public void keywordWithChildrenHasNoValue() throws JHV_KduException {
+        FrameHeaderTable table = new FrameHeaderTable(1);
+        table.parse(0, XML);
+
+        assertNull(table.get(0, "fits", "B"));
+    }
+
+    @Test
+    public void framesAreParsedSeparately() throws JHV_KduException {
+        FrameHeaderTable table = new FrameHeaderTable(2);
+        assertFalse(table.isParsed(1));
+
+        table.parse(1, "<meta><fits><A>7</A><N>2.5</N></fits></meta>");
+
+        assertTrue(table.isParsed(1));
+        assertFalse(table.isParsed(0));
+        assertNull(table.get(0, "fits", "A"));
+        assertEquals(7, table.getInt(1, "fits", "A", 0));
+        assertEquals(2.5, table.getDouble(1, "fits", "N", 0), 0);
+        assertEquals(-1, table.getInt(1, "fits", "missing", -1));
+    }
+
+    @Test(expected = JHV_KduException.class)
+    public void malformedXmlIsRejected() throws JHV_KduException {
+        new FrameHeaderTable(1).parse(0, "<meta><fits></meta>");
+    }
+}
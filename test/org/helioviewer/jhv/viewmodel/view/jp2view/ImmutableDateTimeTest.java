@@ -0,0 +1,64 @@
+package org.helioviewer.jhv.viewmodel.view.jp2view;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Calendar;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+/**
+ * Compares the epoch milliseconds of {@link ImmutableDateTime} with a lenient
+ * GMT Calendar, which was used to compute them before.
+ */
+public class ImmutableDateTimeTest {
+
+    private static long calendarMillis(int year, int month, int day, int hour, int minute, int second) {
+        Calendar c = Calendar.getInstance(TimeZone.getTimeZone("GMT+00:00"));
+        c.clear();
+        c.set(year, month, day, hour, minute, second);
+        return c.getTimeInMillis();
+    }
+
+    private static void assertSameMillis(int year, int month, int day, int hour, int minute, int second) {
+        assertEquals(calendarMillis(year, month, day, hour, minute, second), new ImmutableDateTime(year, month, day, hour, minute, second).getMillis());
+    }
+
+    @Test
+    public void matchesCalendarOnLeapDays() {
+        assertSameMillis(2000, Calendar.FEBRUARY, 29, 12, 0, 0);
+        assertSameMillis(2012, Calendar.FEBRUARY, 29, 23, 59, 59);
+        assertSameMillis(1900, Calendar.MARCH, 1, 0, 0, 0);
+        assertSameMillis(1970, Calendar.JANUARY, 1, 0, 0, 0);
+    }
+
+    @Test
+    public void matchesCalendarOnOverflowingFields() {
+        // February 30th is March 1st or 2nd
+        assertSameMillis(2013, Calendar.FEBRUARY, 30, 0, 0, 0);
+        assertSameMillis(2014, Calendar.DECEMBER, 31, 24, 60, 60);
+        // day 0 is the last day of the previous month
+        assertSameMillis(2014, Calendar.MARCH, 0, 0, 0, 0);
+        assertSameMillis(2014, 12, 1, 0, 0, 0);
+    }
+
+    @Test
+    public void matchesCalendarOnRandomDates() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            assertSameMillis(1600 + random.nextInt(800), random.nextInt(12), 1 + random.nextInt(31), random.nextInt(24), random.nextInt(60), random.nextInt(60));
+        }
+    }
+
+    @Test
+    public void fieldsAreReadBack() {
+        ImmutableDateTime dateTime = new ImmutableDateTime(2011, Calendar.JUNE, 7, 6, 30, 15);
+        assertEquals(2011, dateTime.getField(Calendar.YEAR));
+        assertEquals(Calendar.JUNE, dateTime.getField(Calendar.MONTH));
+        assertEquals(7, dateTime.getField(Calendar.DAY_OF_MONTH));
+        assertEquals(6, dateTime.getField(Calendar.HOUR_OF_DAY));
+        assertEquals(30, dateTime.getField(Calendar.MINUTE));
+        assertEquals(15, dateTime.getField(Calendar.SECOND));
+    }
+}
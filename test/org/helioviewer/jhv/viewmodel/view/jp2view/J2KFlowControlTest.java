@@ -0,0 +1,127 @@
+package org.helioviewer.jhv.viewmodel.view.jp2view;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayDeque;
+
+import org.helioviewer.jhv.viewmodel.view.jp2view.io.jpip.JPIPConstants;
+import org.helioviewer.jhv.viewmodel.view.jp2view.io.jpip.JPIPSocket;
+import org.junit.Test;
+
+/**
+ * Feeds {@link J2KFlowControl} with the timing of a simulated channel, on
+ * which a server answers the requests one after another.
+ */
+public class J2KFlowControlTest {
+
+    /** Socket reporting the timing of the simulated responses */
+    private static class SimulatedSocket extends JPIPSocket {
+        private long requestTime;
+        private long replyTextTime;
+        private long replyDataTime;
+        private int receivedData;
+
+        @Override
+        public long getRequestTime() {
+            return requestTime;
+        }
+
+        @Override
+        public long getReplyTextTime() {
+            return replyTextTime;
+        }
+
+        @Override
+        public long getReplyDataTime() {
+            return replyDataTime;
+        }
+
+        @Override
+        public int getReceivedData() {
+            return receivedData;
+        }
+    }
+
+    /**
+     * Simulates a channel with the given throughput and round trip time. New
+     * requests are sent whenever a response has been received and fewer than
+     * the allowed number are outstanding.
+     *
+     * @param flowControl
+     *            flow control to feed
+     * @param bytesPerMs
+     *            throughput of the channel
+     * @param roundTripTime
+     *            round trip time in milliseconds
+     * @return time the server was idle after the first ten responses
+     */
+    private static long simulate(J2KFlowControl flowControl, double bytesPerMs, long roundTripTime) {
+        SimulatedSocket socket = new SimulatedSocket();
+        ArrayDeque<long[]> outstanding = new ArrayDeque<long[]>();
+        long now = 1000;
+        long serverFree = 0;
+        long idle = 0;
+
+        for (int i = 0; i < 100; i++) {
+            while (outstanding.size() < flowControl.getMaxOutstandingRequests())
+                outstanding.add(new long[] { now, flowControl.getRequestLen() });
+
+            long[] request = outstanding.poll();
+            long arrival = request[0] + roundTripTime / 2;
+            long start = Math.max(arrival, serverFree);
+            if (i >= 10)
+                idle += Math.max(0, arrival - serverFree);
+
+            socket.requestTime = request[0];
+            socket.replyTextTime = start + roundTripTime / 2;
+            socket.replyDataTime = socket.replyTextTime + (long) (request[1] / bytesPerMs);
+            socket.receivedData = (int) request[1];
+            serverFree = start + (long) (request[1] / bytesPerMs);
+
+            now = socket.replyDataTime;
+            flowControl.update(socket);
+        }
+        return idle;
+    }
+
+    @Test
+    public void pipelinesToCoverTheRoundTrip() {
+        J2KFlowControl flowControl = new J2KFlowControl();
+        long idle = simulate(flowControl, 2000, 1500);
+
+        assertEquals(2000000, flowControl.getRequestLen());
+        assertEquals(3, flowControl.getMaxOutstandingRequests());
+        assertEquals(0, idle);
+        assertFalse(flowControl.isSaturated());
+    }
+
+    @Test
+    public void reachesTheMaximumDepthOnFastChannels() {
+        J2KFlowControl flowControl = new J2KFlowControl();
+        long idle = simulate(flowControl, 20000, 1000);
+
+        assertEquals(JPIPConstants.MAX_REQUEST_LEN, flowControl.getRequestLen());
+        assertEquals(JPIPConstants.MAX_OUTSTANDING_REQUESTS, flowControl.getMaxOutstandingRequests());
+        assertEquals(0, idle);
+    }
+
+    @Test
+    public void isSaturatedIfTheDepthIsNotEnough() {
+        J2KFlowControl flowControl = new J2KFlowControl();
+        simulate(flowControl, 20000, 3000);
+
+        assertEquals(JPIPConstants.MAX_OUTSTANDING_REQUESTS, flowControl.getMaxOutstandingRequests());
+        assertTrue(flowControl.isSaturated());
+    }
+
+    @Test
+    public void slowChannelsUseShortRequests() {
+        J2KFlowControl flowControl = new J2KFlowControl();
+        simulate(flowControl, 200, 300);
+
+        assertEquals(JPIPConstants.MIN_REQUEST_LEN, flowControl.getRequestLen());
+        assertEquals(2, flowControl.getMaxOutstandingRequests());
+    }
+}